@@ -1,19 +1,19 @@
 package ca.kscheme;
 
-import static ca.kscheme.data.SchemeValue.asString;
 import static ca.kscheme.data.SchemeValue.isEofObject;
-import static ca.kscheme.data.SchemeValue.list;
 import static ca.kscheme.data.SchemeValue.makeInputPort;
 import static ca.kscheme.data.SchemeValue.makeStringInputPort;
-import static ca.kscheme.data.SchemeValue.makeSymbol;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.Printer;
 import ca.kscheme.data.SInputPort;
+import ca.kscheme.data.SOutputPort;
 import ca.kscheme.namespace.Frame;
 import ca.kscheme.reader.SchemeReader;
 
@@ -86,17 +86,29 @@ public abstract class KScheme {
 		return reader.read(input);
 	}
 
-	final public Object load(URL resource) throws KSchemeException {
+	/**
+	 * Read a datum, without the source positions that code read by
+	 * {@link #read(SInputPort)} has.
+	 */
+	public Object readDatum(SInputPort input) throws KSchemeException {
+		return reader.readDatum(input);
+	}
+
+	public Object load(URL resource) throws KSchemeException {
 		return load(makeInputPort(resource));
 	}
 
 	final public Object load(SInputPort input) throws KSchemeException {
-		Object exp = read(input);
-		while (!isEofObject(exp)) {
-			compile(exp);
-			exp = read(input);
+		try {
+			Object exp = read(input);
+			while (!isEofObject(exp)) {
+				compile(exp);
+				exp = read(input);
+			}
+			return execute();
+		} finally {
+			SOutputPort.flushConsole();
 		}
-		return execute();
 	}
 
 	final public Object load(String string) throws KSchemeException {
@@ -131,16 +143,21 @@ public abstract class KScheme {
 	}
 
 	public String toString(Object val) throws KSchemeException {
-		if (isDefined("->string")) 
-			return asString(run(list(makeSymbol("->string"), 
-					list(makeSymbol("quote"), val))));
-		else {
-			return ""+val;
+		StringBuilder out = new StringBuilder();
+		try {
+			new Printer(out, true).shared().print(val);
+		} catch (IOException e) {
+			throw new KSchemeException("Printing "+val, e);
 		}
+		return out.toString();
 	}
 
 	public Object run(Object exp) {
-		compile(exp);
-		return execute();
+		try {
+			compile(exp);
+			return execute();
+		} finally {
+			SOutputPort.flushConsole();
+		}
 	}
 }
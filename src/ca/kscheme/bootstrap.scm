@@ -11,6 +11,11 @@
 
 (:require "ca.kscheme.primitives.JavaClasses")
 (:require "ca.kscheme.primitives.Procedures")
+(:require "ca.kscheme.primitives.Arithmetic")
+(:require "ca.kscheme.primitives.CorePrimitives")
+(:require "ca.kscheme.primitives.Lists")
+(:require "ca.kscheme.primitives.HashTables")
+(:require "ca.kscheme.primitives.Output")
 (:require "ca.kscheme.primitives.InterpreterProcedures")
 
 ; The idea of the minimal interpreter is that it does not provide many primitives.
@@ -106,75 +111,17 @@
 ;a null pointer.
 (define .equals (method Object 'equals Object))
 
-(define (eqv? x y)
-  ;Eqv is equivalent to Java's equals method, except, the equals method can 
-  ;not be invoked on null pointers.
-  (if (null? x) 
-      (null? y)
-      (.equals x y)))
-  
-(define eq? (method SchemeValue 'isEqv Object Object))
-   ; Not using == comparison because Java reflection may cause multiple Boolean
-   ; instances that represent true or false and these must be treated as being
-   ; eq? to meet the R4RS standard.
-
-; equal?
-
-(define (equal? x y)
-  (cond ((pair? x)
-         (and (pair? y)
-              (equal? (car x) (car y))
-              (equal? (cdr x) (cdr y))))
-        ((vector? x)
-         (and (vector? y)
-              (vector-equal? x y)))
-        (else (eqv? x y))))
-
-
-; Procedures
-(define procedure? (instance-of SProcedure))
+; eq?, eqv?, equal?, equal-hash, not, the type predicates, and the primitives
+; on pairs, strings and vectors are in ca.kscheme.primitives.CorePrimitives.
 
 ; Symbols
-(define symbol?  (instance-of SSymbol))
 (define gensym   (method SSymbol 'gensym))
 (define symbol->string (method SSymbol 'toString))
 (define string->symbol (method SSymbol 'intern String))
 
-; Null 
-(define (null? x) (eq? x ()))
-
-; Booleans
-(define boolean? (instance-of Boolean))
-(define (not x) (if x #f #t))
-
 ; Pairs
-(define pair?    (instance-of SPair))
-(define cons     (method SchemeValue 'cons Object Object))
-(define car      (method SPair 'car))
-(define cdr      (method SPair 'cdr))
-(define set-car! (method SPair 'setCar Object))
-(define set-cdr! (method SPair 'setCdr Object))
-
-(define (caar x) (car (car x)))  
-(define (cadr x) (car (cdr x)))  
-(define (cdar x) (cdr (car x)))  
-(define (cddr x) (cdr (cdr x)))  
-(define (cadar x) (car (cdar x)))
-(define (caddr x) (car (cddr x)))  
-
-(define (map1 f l)
-  (if (null? l)
-      l
-      (cons (f (car l))
-            (map1 f (cdr l)))))
-  
-(define (map f . lists)
-  (if (null? (car lists))
-      '()
-      (cons (apply f (map1 car lists))
-            (apply map (cons f (map1 cdr lists))))))
 
-(define (list . args) args)
+; list, map and for-each are in ca.kscheme.primitives.Lists.
 
 ; Fixnum integers
 (define =int (method SchemeValue 'sameInt    int int))
@@ -205,43 +152,9 @@
      (() (Integer.string num))
      ((?radix) (Integer.string2 num ?radix))))
 
-(define (zero? x) (=int x 0))
-(define (make-comparison bin-op)
-  (define (comp a1 a2 . rest)
-    (and (bin-op a1 a2)
-         (or (null? rest)
-             (apply comp (cons a2 rest)))))
-  comp)
-
-(define =  (make-comparison =int))
-(define >  (make-comparison >int))
-(define <  (make-comparison <int))
-(define <= (make-comparison <=int))
-(define >= (make-comparison >=int))
-
 (define (negative? x) (< x 0))
 (define (positive? x) (> x 0))
 
-(define (foldl z f)
-  (lambda args
-    (let loop ((acc z)
-               (args args))
-      (if (null? args)
-          acc
-          (loop (f acc (car args))
-                (cdr args))))))
-
-(define * (foldl 1 *int))
-(define + (foldl 0 +int))
-
-(define (- a . rest)
-  (define (loop acc args)
-    (if (null? args)
-        acc
-        (loop (-int acc (car args)) (cdr args)))) 
-  (if (null? rest)
-      (-int 0 a)
-      (loop a rest)))
 (define (/ a b)
   (if (= (remainder a b) 0)
       (quotient a b)
@@ -316,7 +229,6 @@
           (error `(expt ,base ,power) "Not implemented, we only have integers"))))
 
 ; Skeleton of the "numeric tower" when only fixnums exist
-(define integer? (instance-of Integer))
 (define rational? integer?)
 (define real? integer?)
 (define complex? integer?)
@@ -328,7 +240,6 @@
    (not (exact? x)))
 
 ; Chars
-(define char? (instance-of Character))
 (define char-upcase (method Character 'toUpperCase char))
 (define char-downcase (method Character 'toLowerCase char))
   
@@ -376,121 +287,14 @@
 (define integer->char (method SchemeValue 'makeChar int))   
 (define char->integer (method SchemeValue 'toInt char))
 
-; - - the most used R4RS syntax defined by means of macros - - - - - - - - - - - - - - - -
+; - - R4RS syntax defined by means of macros - - - - - - - - - - - - - - - -
+; (let, let*, letrec, named let, do, cond, case, and and or are special forms
+; built into the interpreter.)
 
 (define macro (method SchemeValue 'makeMacro SProcedure))
 
-(define let
-  (begin 
-    (define (#expand-named-let name bindings body)
-      (list let bindings
-            (list letrec (list (list name (cons lambda (cons (map car bindings) body))))
-                  (cons name (map car bindings)))))
-    
-    (macro
-     (lambda (let bindings . body)
-       (if (symbol? bindings)
-           (#expand-named-let bindings (car body) (cdr body))
-           (cons (cons 'lambda (cons (map car bindings) body))
-                 (map cadr bindings)))))))
-
-(define letrec
-  (macro 
-   (lambda (xxx bindings . body)
-     (cons let
-           (cons (map (lambda (b)
-                        (list (car b) #f))
-                      bindings)
-                 (append (map (lambda (b)
-                                (list set! (car b) (cadr b)))
-                              bindings)
-                         body))))))
-
-(define let*
-  (macro 
-   (lambda (let* bindings . body)
-     (cond ((null? bindings)
-            (append (list let (list)) body))
-           ((null? (cdr bindings))
-            (cons let (cons bindings body)))
-           (else
-            (list let (list (list (caar bindings) (cadar bindings)))
-                  (cons let* 
-                        (cons (cdr bindings)
-                              body))))))))
-
-(define cond
-  (macro ;(traced 'cond
-   (lambda (cond . clauses)
-     (if (null? clauses)
-         #f
-         (let ((first (car clauses))
-               (rest  (cons cond (cdr clauses)))
-               (test-var (gensym 'test)))
-           (if (null? (cdr first)) 
-               ;(cond (test) ...)
-               (list let (list (list test-var (car first)))
-                     (list if test-var test-var rest))
-               (if (eqv? (cadr first) '=>)
-                   ;(cond (test => ...)
-                   (list let (list (list test-var (car first)))
-                         (list if test-var (list (caddr first) test-var)
-                               rest))
-                   ;(cond (test exp1 exp2 ...)
-                   (list if (car first)
-                         (cons begin (cdr first))
-                         rest))))))));)
-
 (define else #t)
 
-(define and 
-  (macro 
-   (lambda (and . args)
-     (cond ((null? args)
-            #t)
-           ((null? (cdr args))
-            (car args))
-           (else
-            (let ((tmp (gensym 'tmp)))
-              (list let (list (list tmp (car args)))
-                    (list if tmp (cons and (cdr args)) 
-                          tmp))))))))
-
-(define or 
-  (macro 
-   (lambda (or . args)
-     (cond ((null? args)
-            #f)
-           ((null? (cdr args))
-            (car args))
-           (else
-            (let ((tmp (gensym 'tmp)))
-              (list let (list (list tmp (car args)))
-                    (list if tmp tmp 
-                          (cons or (cdr args))))))))))
-
-; Less used R4RS Macros
-
-(define case
-  (macro 
-   (lambda (case val . clauses)
-     (list (#case-clauses clauses) val))))
-
-(define (#case-clauses clauses)
-  (define val (gensym 'case-val))
-  (cond ((null? clauses)
-         (list lambda (list val)
-               #f))
-        (else
-         (let ((clause (car clauses)))
-           (cons lambda 
-                 (cons (list val)
-                       (if (eqv? (car clause) 'else)
-                           (cdr clause)
-                           (list (list if (list 'memv val (list quote (car clause))) 
-                                       (cons begin (cdr clause))
-                                       (list (#case-clauses (cdr clauses)) val))))))))))
-
 (define % 
   (macro
    (lambda (% . template)
@@ -506,30 +310,6 @@
 (define (#unquote? x)
   (and (pair? x) (eqv? (car x) 'unquote)))         
 
-(define do
-  (macro 
-   (lambda (xxx clauses finish . body)
-     (define initialize
-       (lambda (clause)
-       (match-case clause
-          ((?nam ?ini ?upd) (% ?nam ?ini))
-          ((?nam ?ini)      (% ?nam ?ini)))))
-     (define (update clause)
-       (match-case clause
-          ((?nam ?ini ?upd) ?upd)
-          ((?nam ?ini)      ?nam)))
-     (let ((loop (gensym 'do-loop)))
-       (% let loop ,(map initialize clauses)
-          ,(match-case finish 
-              ((?test ?ret) (% if ?test ?ret 
-                               (begin (begin . body) 
-                                 (loop . ,(map update clauses)))))
-              ((?test)      (let ((tmp-test (gensym 'test)))
-                              (% let ((tmp-test ?test))
-                                 (if tmp-test tmp-test
-                                     (begin (begin . body) 
-                                       (loop . ,(map update clauses)))))))))))))
-
 (define if-match
   (macro 
    (let ((var? (lambda (x) (and (symbol? x) 
@@ -602,8 +382,6 @@
 
 ; - - Strings - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 
-(define string?    (instance-of String))
-(define string-ref (method String 'charAt int))
 (define (string=? s1 s2)
   (.equals s1 s2))
 (define .newString (constructor String char[]))       
@@ -624,7 +402,6 @@
              (.newString contents))))))
 (define string-upcase (method String 'toUpperCase))
   
-(define string-length (method String 'length))
 (define String.concat (method String 'concat String))
 (define String.toCharArray (method String 'toCharArray))
 
@@ -691,90 +468,25 @@
 
 ; - - lists - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - 
 
-(define (make-assoc eq?)
-  (begin 
-    (define (assoc obj alist)
-      (cond ((null? alist)
-             #f)
-            ((eq? (caar alist) obj)
-             (car alist))
-            (else
-             (assoc obj (cdr alist)))))
-    assoc))
-
-(define assq (make-assoc eq?))
-(define assv (make-assoc eqv?))
-(define assoc (make-assoc equal?))
-
-(define (make-member eq?)
-  (begin
-    (define (member val lis)
-      (cond ((null? lis)
-             #f)
-            ((eq? (car lis) val) lis)
-            (else
-             (member val (cdr lis)))))
-    member))
-
-(define memq   (make-member eq?))
-(define memv   (make-member eqv?))
-(define member (make-member equal?))
-
-; lists 
-
-(define (append . lists)
-  (cond ((null? lists)
-	 '())
-	((null? (cdr lists))
-	 (car lists))
-	((null? (car lists))
-	 (apply append (cdr lists)))
-	(else
-	 (cons (caar lists)
-	       (apply append (cons (cdar lists) (cdr lists)))))))
-
-(define (reverse lis)
-  (let loop ((rev '())
-             (lis lis))
-    (if (null? lis) rev
-        (loop (cons (car lis) rev)
-              (cdr lis)))))
-
-(define (list-ref lis i)
-  (if (zero? i) 
-      (car lis)
-      (list-ref (cdr lis) (- i 1))))
-
-(define new.HashSet      (constructor HashSet))
-(define Set.contains?    (method Set 'contains Object))
-(define Set.add!         (method Set 'add Object))
-
-(define (list? x)
-  (define *seen* (new.HashSet)) ;; for circular "lists"
-  (let loop ((x x))
-    (and (not (Set.contains? *seen* x))
-         (or (null? x)
-             (and (pair? x)
-                  (begin (Set.add! *seen* x)
-                         (loop (cdr x))))))))
-
-(define (length l)
-  (let loop ((ct 0)
-	     (l l))
-    (if (null? l) ct
-	(loop (+ ct 1) (cdr l)))))
-
-(define (for-each proc . lis)
-  (if (pair? (car lis))
-      (begin (apply proc (map car lis))
-             (apply for-each (cons proc (map cdr lis))))))
+; length, append, reverse, list-tail, list-ref, list?, memq, memv, member,
+; assq, assv and assoc are in ca.kscheme.primitives.Lists.
+
+; hash tables
+
+; The other hash table procedures are in ca.kscheme.primitives.HashTables.
+(define (make-hash-table . args)
+  (let ((same? (if (null? args) equal? (car args))))
+    (cond ((or (eq? same? eq?) (eq? same? eqv?) (eq? same? =) (eq? same? string=?))
+           (make-eqv-hash-table))
+          ((eq? same? equal?)
+           (make-equal-hash-table))
+          (else
+           (error 'make-hash-table "Unsupported equivalence: " same?)))))
+(define make-eq-hash-table make-eqv-hash-table)
+(define make-string-hash-table make-eqv-hash-table)
 
 ; vectors
 
-(define vector? (instance-of Object[]))
-(define vector-length (method Array 'getLength Object))
-(define vector-ref    (method Array 'get Object int))
-(define vector-set!   (method Array 'set Object int Object))
 (define .newArray (method Array 'newInstance Class int))
 (define (vector-fill! vector el)
   (let loop ((i 0))
@@ -788,13 +500,6 @@
      (vector-fill! vec el)
      vec))
 
-(define (vector-equal? v1 v2)
-  (and (= (vector-length v1) (vector-length v2))
-       (let loop ((i 0))
-         (or (>= i (vector-length v1))
-             (and (equal? (vector-ref v1 i) (vector-ref v2 i))
-                  (loop (+ i 1)))))))
-  
 (define (vector->list v)
   (let loop ((i (- (vector-length v) 1))
              (l '()))
@@ -954,15 +659,11 @@
 (define eof-object? (method SchemeValue 'isEofObject Object))
   
 ; output
-(define current-output-port (get-field System 'out))
-  
-(define current-error-port (get-field System 'err))
 
-(define output-port? (instance-of OutputStream))
-  
-(define close-output-port (method FileOutputStream 'close))
-(define open-output-file/File  (constructor FileOutputStream File))
-  
+; current-output-port, current-error-port, output-port?, close-output-port,
+; write-char, write-string, display, write, write-shared, newline and 
+; flush-output are in ca.kscheme.primitives.Output.
+
 (define (open-output-file file)
   (cond ((string? file) 
          (open-output-file (in-vicinity-URL (user-vicinity) file)))
@@ -979,82 +680,6 @@
       (close-output-port out)
       r)))
   
-(define OutputStream.write-int (method OutputStream 'write int))
-  
-(define (write-char char . port)
-  (if (null? port)
-      (set! port (current-output-port))
-      (set! port (car port)))
-  (OutputStream.write-int port (char->integer char)))  
-  
-(define (display x . port)
-  (if (null? port)
-      (set! port (current-output-port))
-      (set! port (car port)))
-  (cond ((string? x)
-         (let loop ((i 0))
-           (if (< i (string-length x))
-               (begin (write-char (string-ref x i) port)
-                 (loop (+ 1 i))))))
-        (else
-         (display (->string x) port))))
-  
-(define (newline . args)
-  (apply display (cons #\newline args)))
-
-(define (write x . port)
-  (if (null? port)
-      (set! port (current-output-port))
-      (set! port (car port)))
-  (let ((display (lambda (x) (display x port)))
-        (write-char (lambda (x) (write-char x port))))
-    (let write ((x x))
-      (cond ((number? x)
-             (display (->string x)))
-            ((boolean? x)
-             (display (if x "#t" "#f")))
-            ((vector? x)
-             (display "#(")
-             (let loop ((i 0))
-               (if (< i (vector-length x))
-                   (begin
-                     (if (> i 0)
-                         (display " "))
-                     (write (vector-ref x i))
-                     (loop (+ i 1)))))
-             (display ")"))
-            ((pair? x)
-             (display "(")
-             (write (car x))
-             (let loop ((x (cdr x)))
-               (cond ((pair? x)
-                      (display " ")
-                      (write (car x))
-                      (loop (cdr x)))
-                     ((null? x)
-                      'done)
-                     (else
-                      (display " . ")
-                      (write x))))
-             (display ")"))
-            ((string? x)
-             (display #\")
-             (let loop ((i 0))
-               (if (< i (string-length x))
-                   (let ((c (string-ref x i)))
-                     (cond ((eqv? c #\")
-                            (display #\\)
-                            (display #\"))
-                           (else
-                            (write-char c)))
-                     (loop (+ i 1)))))
-             (display #\"))
-            ((char? x)
-             (display "#\\")
-             (write-char x))
-            (else
-             (display x))))))
-
 ; - - kscheme specific procedures not part of slib or r4rs - - - - - 
 
 (define (every pred? lis) 
@@ -1067,53 +692,12 @@
               (every pred? (cdr lis))))))
 
 (define .toString  (method Object 'toString))
-(define (->string x)
-  (cond ((null? x) 
-         "()")
-        ((vector? x)
-         (vector->string x))
-        ((pair? x)
-         (pair->string x))
-        (else
-         (.toString x))))
+
+; ->string is in ca.kscheme.primitives.Output.
 
 (define make-string-builder (constructor StringBuilder))
 (define string-builder-append! (method StringBuilder 'append Object))
 
-(define (pair->string x)
-  (let ((str (make-string-builder)))
-    
-    (define (rest->string x)
-      (cond ((null? x)
-             'done)
-            ((pair? x)
-             (string-builder-append! str " ")
-             (string-builder-append! str (->string (car x)))
-             (rest->string (cdr x)))
-            (else
-             (string-builder-append! str " . ")
-             (string-builder-append! str (->string x)))))
-    
-    (string-builder-append! str "(")
-    (string-builder-append! str (->string (car x)))
-    (rest->string (cdr x))
-    (string-builder-append! str ")")
-    
-    (->string str)))
-
-(define (vector->string vec)
-  (let ((str (make-string-builder))
-        (len (vector-length vec)))
-    (string-builder-append! str "#(")
-    (let loop ((i 0))
-      (cond ((< i len)
-             (if (> i 0)
-                 (string-builder-append! str " "))
-             (string-builder-append! str (->string (vector-ref vec i)))
-             (loop (+ i 1)))))
-    (string-builder-append! str ")")
-    (->string str)))
-
 (define (list-of? pred? l)
   (if (null? l)
       #t
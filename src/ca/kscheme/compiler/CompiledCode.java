@@ -0,0 +1,80 @@
+package ca.kscheme.compiler;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.interp.Assignment;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.interp.Node;
+
+/**
+ * Superclass of the classes generated by the {@link Compiler}. 
+ * <p>
+ * A generated class has a single method, run, that evaluates a Node tree. The code
+ * follows the same protocol as {@link Node#exec(Machine, Object[], Cont)}: tail calls 
+ * and returning a value are handed to the Machine. A call that is not in tail position 
+ * suspends the code: the intermediate values that are still needed are saved in a
+ * {@link CompiledFrame}, which is passed to the callee as its continuation. When the 
+ * frame is resumed, run is called again with the number of the resume point (the 
+ * 'state'), which jumps back into the middle of the code. A frame that is resumed
+ * more than once (through call/cc) just restores the same values again.
+ * 
+ * @author kdvolder
+ */
+public abstract class CompiledCode {
+	
+	/**
+	 * Objects used by the generated code: constants and Nodes. Element 0 is the 
+	 * Node that was compiled.
+	 */
+	protected final Object[] consts;
+	
+	/**
+	 * For each resume point, the Node that is evaluated when the code is suspended
+	 * there. Element 0 corresponds to state 1; state 0 is the start of the code. 
+	 */
+	private final Node[] resumeNodes;
+
+	protected CompiledCode(Object[] consts, Node[] resumeNodes) {
+		this.consts = consts;
+		this.resumeNodes = resumeNodes;
+	}
+	
+	/**
+	 * Run the code, from the start (state 0) or from a resume point.
+	 * 
+	 * @param temps The intermediate values saved when the code was suspended.
+	 * @param value The value of the Node the code was suspended on.
+	 */
+	public abstract void run(Machine m, int state, Object[] frame, Object[] temps, Object value, Cont k);
+	
+	Node getNode() {
+		return (Node) consts[0];
+	}
+	
+	Node getResumeNode(int state) {
+		return resumeNodes[state-1];
+	}
+	
+	/////////// Support methods called by the generated code ///////////
+	
+	final Cont suspend(int state, Object[] frame, Object[] temps, Cont k) {
+		return new CompiledFrame(this, state, frame, temps, k);
+	}
+	
+	static void ret(Object value, Machine m, Cont k) {
+		m.applyCont(k, value);
+	}
+	
+	static Object assign(Object value, Assignment node, Object[] frame, Cont k) {
+		node.assign(frame, value, k);
+		return value;
+	}
+	
+	/**
+	 * Report an error. pos is the index in consts of the Node that failed.
+	 */
+	static void raise(KSchemeException e, CompiledCode code, Machine m, Cont k, int pos) {
+		k.raise(m, ((Node) code.consts[pos]).getExp(), e);
+	}
+
+}
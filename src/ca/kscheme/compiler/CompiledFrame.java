@@ -0,0 +1,35 @@
+package ca.kscheme.compiler;
+
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.interp.Node;
+
+/**
+ * Continuation of a call made by compiled code, see {@link CompiledCode}.
+ */
+final class CompiledFrame extends Cont {
+
+	private final CompiledCode code;
+	private final int state;
+	private final Object[] frame;
+	private final Object[] temps;
+
+	CompiledFrame(CompiledCode code, int state, Object[] frame, Object[] temps, Cont parent) {
+		super(parent);
+		this.code = code;
+		this.state = state;
+		this.frame = frame;
+		this.temps = temps;
+	}
+	
+	@Override
+	protected Node getNode() {
+		return code.getResumeNode(state);
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		code.run(m, state, frame, temps, value, parent);
+	}
+
+}
@@ -0,0 +1,31 @@
+package ca.kscheme.compiler;
+
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.interp.Node;
+
+/**
+ * Node that runs the compiled code for another Node.
+ */
+public class CompiledNode extends Node {
+
+	private final CompiledCode code;
+
+	CompiledNode(Node original, CompiledCode code) {
+		super(original.getExp());
+		this.code = code;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		code.run(m, 0, frame, null, null, k);
+	}
+	
+	/**
+	 * The Node this was compiled from.
+	 */
+	public Node getOriginal() {
+		return code.getNode();
+	}
+
+}
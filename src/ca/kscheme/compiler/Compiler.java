@@ -0,0 +1,822 @@
+package ca.kscheme.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.Assignment;
+import ca.kscheme.interp.Call;
+import ca.kscheme.interp.Case;
+import ca.kscheme.interp.Const;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.If;
+import ca.kscheme.interp.Let;
+import ca.kscheme.interp.LocalRef;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.interp.Node;
+import ca.kscheme.interp.Or;
+import ca.kscheme.interp.PrimitiveCall;
+import ca.kscheme.interp.Seq;
+
+/**
+ * Compiles Node trees to JVM bytecode, using ASM. See {@link CompiledCode} for the
+ * protocol the generated code follows.
+ * <p>
+ * Each compiled tree becomes a class of its own. It is loaded as a hidden class when
+ * the JVM supports those (Java 15 and up), so that it can be unloaded once the code
+ * is no longer used. On older JVMs it is defined in this package's class loader.
+ * <p>
+ * Nodes of a type the compiler doesn't know about are not compiled, the generated
+ * code calls them instead. The same goes for lambda bodies: a lambda expression
+ * compiles to the creation of a closure, and the body is compiled separately when
+ * the closure is first called.
+ *
+ * @author kdvolder
+ */
+public class Compiler {
+
+	private static final String CLASS_NAME_PREFIX = "ca/kscheme/compiler/Compiled";
+
+	private static final String OBJECT = Type.getInternalName(Object.class);
+	private static final String OBJECT_ARRAY = Type.getDescriptor(Object[].class);
+	private static final String NODE = Type.getInternalName(Node.class);
+	private static final String CONT = Type.getInternalName(Cont.class);
+	private static final String MACHINE = Type.getInternalName(Machine.class);
+	private static final String PROCEDURE = Type.getInternalName(SProcedure.class);
+	private static final String CODE = Type.getInternalName(CompiledCode.class);
+	private static final String PRIMITIVE_CALL = Type.getInternalName(PrimitiveCall.class);
+
+	private static final String RUN_DESC = "(L"+MACHINE+";I"+OBJECT_ARRAY+OBJECT_ARRAY+"L"+OBJECT+";L"+CONT+";)V";
+
+	// Local variables of the run method
+	private static final int THIS = 0;
+	private static final int M = 1;
+	private static final int STATE = 2;
+	private static final int FRAME = 3;
+	private static final int TEMPS = 4;
+	private static final int VALUE = 5;
+	private static final int K = 6;
+	private static final int POS = 7;
+	private static final int FIRST_TEMP = 8;
+
+	/**
+	 * Lookup.defineHiddenClass, if this JVM has it.
+	 */
+	private static final Method defineHiddenClass;
+	private static final Object noClassOptions;
+	static {
+		Method method = null;
+		Object options = null;
+		try {
+			Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(optionClass, 0);
+			method = Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+		} catch (ReflectiveOperationException e) {
+			// Not supported, use Lookup.defineClass
+		}
+		defineHiddenClass = method;
+		noClassOptions = options;
+	}
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private final Lookup lookup = MethodHandles.lookup();
+
+	/**
+	 * Compile a Node. If the code is too large for a JVM method, the Node is returned
+	 * as is.
+	 */
+	public Node compile(Node node) {
+		byte[] bytes;
+		CodeGen gen = new CodeGen(node);
+		try {
+			bytes = gen.generate();
+		} catch (MethodTooLargeException e) {
+			return node;
+		} catch (ClassTooLargeException e) {
+			return node;
+		}
+		try {
+			Class<?> cls = define(bytes);
+			CompiledCode code = (CompiledCode) cls
+				.getConstructor(Object[].class, Node[].class)
+				.newInstance(gen.consts.toArray(), gen.resumeNodes.toArray(new Node[gen.resumeNodes.size()]));
+			return new CompiledNode(node, code);
+		} catch (ReflectiveOperationException e) {
+			throw new Error("Could not load compiled code for "+node, e);
+		}
+	}
+
+	private Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+		if (defineHiddenClass!=null) {
+			Lookup hidden = (Lookup) defineHiddenClass.invoke(lookup, bytes, true, noClassOptions);
+			return hidden.lookupClass();
+		}
+		else
+			return lookup.defineClass(bytes);
+	}
+
+	/**
+	 * Generates the class for a single Node tree.
+	 */
+	private static class CodeGen {
+
+		private final Node root;
+		private final String className = CLASS_NAME_PREFIX+classCounter.incrementAndGet();
+
+		final List<Object> consts = new ArrayList<Object>();
+		final List<Node> resumeNodes = new ArrayList<Node>();
+		private final List<Label> resumeLabels = new ArrayList<Label>();
+
+		/**
+		 * Local variables holding intermediate values that are needed after the
+		 * code currently being generated. They must be saved when the code suspends.
+		 */
+		private final List<Integer> liveTemps = new ArrayList<Integer>();
+		private int nextTemp = FIRST_TEMP;
+
+		private final Map<Node, Boolean> directCache = new IdentityHashMap<Node, Boolean>();
+
+		private MethodVisitor mv;
+
+		CodeGen(Node root) {
+			this.root = root;
+			consts.add(root);
+		}
+
+		byte[] generate() {
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+				@Override
+				protected String getCommonSuperClass(String type1, String type2) {
+					// Only used to merge values of type Object, avoid loading classes.
+					return OBJECT;
+				}
+			};
+			cw.visit(V11, ACC_PUBLIC|ACC_FINAL|ACC_SUPER, className, null, CODE, null);
+
+			mv = cw.visitMethod(ACC_PUBLIC, "<init>", "("+OBJECT_ARRAY+"[L"+NODE+";)V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitMethodInsn(INVOKESPECIAL, CODE, "<init>", "("+OBJECT_ARRAY+"[L"+NODE+";)V", false);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+
+			mv = cw.visitMethod(ACC_PUBLIC, "run", RUN_DESC, null, null);
+			mv.visitCode();
+			Label start = new Label();
+			Label end = new Label();
+			Label handler = new Label();
+			Label entry = new Label();
+			Label dispatch = new Label();
+			mv.visitTryCatchBlock(start, end, handler, Type.getInternalName(KSchemeException.class));
+			pushInt(0);
+			mv.visitVarInsn(ISTORE, POS);
+			mv.visitLabel(start);
+			mv.visitJumpInsn(GOTO, dispatch);
+			mv.visitLabel(entry);
+			compileTail(root);
+			mv.visitLabel(dispatch);
+			mv.visitVarInsn(ILOAD, STATE);
+			Label[] states = new Label[resumeLabels.size()+1];
+			states[0] = entry;
+			for (int i = 0; i < resumeLabels.size(); i++) {
+				states[i+1] = resumeLabels.get(i);
+			}
+			mv.visitTableSwitchInsn(0, states.length-1, entry, states);
+			mv.visitLabel(end);
+			mv.visitLabel(handler);
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitVarInsn(ALOAD, M);
+			mv.visitVarInsn(ALOAD, K);
+			mv.visitVarInsn(ILOAD, POS);
+			mv.visitMethodInsn(INVOKESTATIC, CODE, "raise",
+					"(L"+Type.getInternalName(KSchemeException.class)+";L"+CODE+";L"+MACHINE+";L"+CONT+";I)V", false);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+
+			cw.visitEnd();
+			return cw.toByteArray();
+		}
+
+		/**
+		 * A node is direct if the compiled code can compute its value without
+		 * calling procedures or other code that may capture the continuation.
+		 */
+		private boolean isDirect(Node node) {
+			Boolean result = directCache.get(node);
+			if (result==null) {
+				result = computeDirect(node);
+				directCache.put(node, result);
+			}
+			return result;
+		}
+
+		private boolean computeDirect(Node node) {
+			if (node.isSimple())
+				return true;
+			else if (node instanceof If) {
+				If ifNode = (If) node;
+				return isDirect(ifNode.getTest()) && isDirect(ifNode.getThen()) && isDirect(ifNode.getElse());
+			}
+			else if (node instanceof Seq)
+				return allDirect(((Seq) node).getNodes());
+			else if (node instanceof Assignment)
+				return isDirect(((Assignment) node).getValue());
+			else if (node instanceof Or)
+				return allDirect(((Or) node).getNodes());
+			else if (node instanceof Let) {
+				Let let = (Let) node;
+				return allDirect(let.getInits()) && isDirect(let.getBody());
+			}
+			else if (node instanceof Case) {
+				Case caseNode = (Case) node;
+				return isDirect(caseNode.getKey()) && allDirect(caseNode.getBodies()) && isDirect(caseNode.getElse());
+			}
+			else
+				return false;
+		}
+
+		private boolean allDirect(Node[] nodes) {
+			for (Node n : nodes) {
+				if (!isDirect(n)) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Generate code that evaluates a node in tail position. The code passes
+		 * the value to k, or makes a tail call, and then returns.
+		 */
+		private void compileTail(Node node) {
+			if (node instanceof If) {
+				If ifNode = (If) node;
+				Label els = new Label();
+				compileValue(ifNode.getTest());
+				mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SchemeValue.class), "isFalse", "(L"+OBJECT+";)Z", false);
+				mv.visitJumpInsn(IFNE, els);
+				compileTail(ifNode.getThen());
+				mv.visitLabel(els);
+				compileTail(ifNode.getElse());
+			}
+			else if (node instanceof Seq) {
+				Node[] nodes = ((Seq) node).getNodes();
+				for (int i = 0; i < nodes.length-1; i++) {
+					compileValue(nodes[i]);
+					mv.visitInsn(POP);
+				}
+				compileTail(nodes[nodes.length-1]);
+			}
+			else if (node instanceof Call) {
+				compileCall((Call) node, true);
+			}
+			else if (node instanceof Or) {
+				Node[] nodes = ((Or) node).getNodes();
+				for (int i = 0; i < nodes.length-1; i++) {
+					Label next = new Label();
+					compileValue(nodes[i]);
+					mv.visitInsn(DUP);
+					mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SchemeValue.class), "isFalse", "(L"+OBJECT+";)Z", false);
+					mv.visitJumpInsn(IFNE, next);
+					mv.visitVarInsn(ALOAD, M);
+					mv.visitVarInsn(ALOAD, K);
+					mv.visitMethodInsn(INVOKESTATIC, CODE, "ret", "(L"+OBJECT+";L"+MACHINE+";L"+CONT+";)V", false);
+					mv.visitInsn(RETURN);
+					mv.visitLabel(next);
+					mv.visitInsn(POP);
+				}
+				compileTail(nodes[nodes.length-1]);
+			}
+			else if (node instanceof Let) {
+				Let let = (Let) node;
+				compileLetFrame(let);
+				compileTail(let.getBody());
+			}
+			else if (node instanceof Case) {
+				Case caseNode = (Case) node;
+				Node[] bodies = caseNode.getBodies();
+				Label[] labels = compileCaseDispatch(caseNode);
+				for (int i = 0; i < bodies.length; i++) {
+					mv.visitLabel(labels[i]);
+					compileTail(bodies[i]);
+				}
+				mv.visitLabel(labels[bodies.length]);
+				compileTail(caseNode.getElse());
+			}
+			else if (node instanceof PrimitiveCall) {
+				// Otherwise it runs as a call, which must be a tail call here
+				int i = addConst(node);
+				Label generic = new Label();
+				loadConst(i, PRIMITIVE_CALL);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PRIMITIVE_CALL, "isInlined", "()Z", false);
+				mv.visitJumpInsn(IFEQ, generic);
+				compileInlined((PrimitiveCall) node);
+				mv.visitVarInsn(ALOAD, M);
+				mv.visitVarInsn(ALOAD, K);
+				mv.visitMethodInsn(INVOKESTATIC, CODE, "ret", "(L"+OBJECT+";L"+MACHINE+";L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+				mv.visitLabel(generic);
+				loadConst(i, NODE);
+				mv.visitVarInsn(ALOAD, M);
+				mv.visitVarInsn(ALOAD, FRAME);
+				mv.visitVarInsn(ALOAD, K);
+				mv.visitMethodInsn(INVOKEVIRTUAL, NODE, "exec", "(L"+MACHINE+";"+OBJECT_ARRAY+"L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+			}
+			else if (isDirect(node) || node instanceof Assignment) {
+				compileValue(node);
+				mv.visitVarInsn(ALOAD, M);
+				mv.visitVarInsn(ALOAD, K);
+				mv.visitMethodInsn(INVOKESTATIC, CODE, "ret", "(L"+OBJECT+";L"+MACHINE+";L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+			}
+			else {
+				loadConst(addConst(node), NODE);
+				mv.visitVarInsn(ALOAD, M);
+				mv.visitVarInsn(ALOAD, FRAME);
+				mv.visitVarInsn(ALOAD, K);
+				mv.visitMethodInsn(INVOKEVIRTUAL, NODE, "exec", "(L"+MACHINE+";"+OBJECT_ARRAY+"L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+			}
+		}
+
+		/**
+		 * Generate code that evaluates a node and leaves its value on the operand stack.
+		 * Unless the node is direct, the code may suspend. Since suspending loses the
+		 * operand stack, the operand stack must then be empty when this code starts.
+		 */
+		private void compileValue(Node node) {
+			if (node instanceof Const) {
+				Object value = ((Const) node).getValue();
+				if (value==null)
+					mv.visitInsn(ACONST_NULL);
+				else
+					loadConst(addConst(value), null);
+			}
+			else if (node instanceof LocalRef) {
+				LocalRef ref = (LocalRef) node;
+				mv.visitVarInsn(ALOAD, FRAME);
+				for (int d = ref.getDepth(); d > 0; d--) {
+					pushInt(0);
+					mv.visitInsn(AALOAD);
+					mv.visitTypeInsn(CHECKCAST, OBJECT_ARRAY);
+				}
+				pushInt(ref.getSlot());
+				mv.visitInsn(AALOAD);
+			}
+			else if (node instanceof If) {
+				If ifNode = (If) node;
+				Label els = new Label();
+				Label end = new Label();
+				compileValue(ifNode.getTest());
+				mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SchemeValue.class), "isFalse", "(L"+OBJECT+";)Z", false);
+				mv.visitJumpInsn(IFNE, els);
+				compileValue(ifNode.getThen());
+				mv.visitJumpInsn(GOTO, end);
+				mv.visitLabel(els);
+				compileValue(ifNode.getElse());
+				mv.visitLabel(end);
+			}
+			else if (node instanceof Seq) {
+				Node[] nodes = ((Seq) node).getNodes();
+				for (int i = 0; i < nodes.length-1; i++) {
+					compileValue(nodes[i]);
+					mv.visitInsn(POP);
+				}
+				compileValue(nodes[nodes.length-1]);
+			}
+			else if (node instanceof Assignment) {
+				compileValue(((Assignment) node).getValue());
+				loadConst(addConst(node), Type.getInternalName(Assignment.class));
+				mv.visitVarInsn(ALOAD, FRAME);
+				mv.visitVarInsn(ALOAD, K);
+				mv.visitMethodInsn(INVOKESTATIC, CODE, "assign",
+						"(L"+OBJECT+";L"+Type.getInternalName(Assignment.class)+";"+OBJECT_ARRAY+"L"+CONT+";)L"+OBJECT+";", false);
+			}
+			else if (node instanceof Call) {
+				compileCall((Call) node, false);
+			}
+			else if (node instanceof Or) {
+				Node[] nodes = ((Or) node).getNodes();
+				Label end = new Label();
+				for (int i = 0; i < nodes.length-1; i++) {
+					compileValue(nodes[i]);
+					mv.visitInsn(DUP);
+					mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SchemeValue.class), "isFalse", "(L"+OBJECT+";)Z", false);
+					mv.visitJumpInsn(IFEQ, end);
+					mv.visitInsn(POP);
+				}
+				compileValue(nodes[nodes.length-1]);
+				mv.visitLabel(end);
+			}
+			else if (node instanceof Let) {
+				Let let = (Let) node;
+				compileLetFrame(let);
+				compileValue(let.getBody());
+				// Back to the enclosing frame
+				mv.visitVarInsn(ALOAD, FRAME);
+				pushInt(0);
+				mv.visitInsn(AALOAD);
+				mv.visitTypeInsn(CHECKCAST, OBJECT_ARRAY);
+				mv.visitVarInsn(ASTORE, FRAME);
+			}
+			else if (node instanceof Case) {
+				Case caseNode = (Case) node;
+				Node[] bodies = caseNode.getBodies();
+				Label end = new Label();
+				Label[] labels = compileCaseDispatch(caseNode);
+				for (int i = 0; i < bodies.length; i++) {
+					mv.visitLabel(labels[i]);
+					compileValue(bodies[i]);
+					mv.visitJumpInsn(GOTO, end);
+				}
+				mv.visitLabel(labels[bodies.length]);
+				compileValue(caseNode.getElse());
+				mv.visitLabel(end);
+			}
+			else if (node instanceof PrimitiveCall) {
+				// While the operator is bound to the primitive, call its method directly
+				PrimitiveCall call = (PrimitiveCall) node;
+				int i = addConst(call);
+				Label generic = new Label();
+				Label end = new Label();
+				loadConst(i, PRIMITIVE_CALL);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PRIMITIVE_CALL, "isInlined", "()Z", false);
+				mv.visitJumpInsn(IFEQ, generic);
+				compileInlined(call);
+				mv.visitJumpInsn(GOTO, end);
+				mv.visitLabel(generic);
+				mv.visitVarInsn(ALOAD, M);
+				loadConst(i, NODE);
+				mv.visitVarInsn(ALOAD, FRAME);
+				int state = pushSuspension(node);
+				mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "eval", "(L"+NODE+";"+OBJECT_ARRAY+"L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+				resumePoint(state);
+				mv.visitLabel(end);
+			}
+			else if (node.isSimple()) {
+				int i = addConst(node);
+				setPos(i);
+				loadConst(i, NODE);
+				mv.visitVarInsn(ALOAD, FRAME);
+				mv.visitMethodInsn(INVOKEVIRTUAL, NODE, "value", "("+OBJECT_ARRAY+")L"+OBJECT+";", false);
+			}
+			else {
+				mv.visitVarInsn(ALOAD, M);
+				loadConst(addConst(node), NODE);
+				mv.visitVarInsn(ALOAD, FRAME);
+				int state = pushSuspension(node);
+				mv.visitMethodInsn(INVOKEVIRTUAL, MACHINE, "eval", "(L"+NODE+";"+OBJECT_ARRAY+"L"+CONT+";)V", false);
+				mv.visitInsn(RETURN);
+				resumePoint(state);
+			}
+		}
+
+		/**
+		 * Generate the direct call of the method of an inlined primitive, for
+		 * code that has checked that {@link PrimitiveCall#isInlined()}. That
+		 * covers the operands that are inlined calls too.
+		 */
+		private void compileInlined(PrimitiveCall call) {
+			Method method = call.getPrimitive().getMethod();
+			for (Node rand : call.getRands()) {
+				if (rand instanceof PrimitiveCall)
+					compileInlined((PrimitiveCall) rand);
+				else
+					compileValue(rand);
+			}
+			setPos(addConst(call));
+			mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(method.getDeclaringClass()), 
+					method.getName(), Type.getMethodDescriptor(method), false);
+		}
+
+		/**
+		 * Generate code that creates the activation frame of a Let, evaluates the 
+		 * inits into it and makes it the current frame. For a let, the values are kept
+		 * in temporary locals until they are all known, as for a call, so that a 
+		 * continuation captured in an init doesn't share the frame.
+		 */
+		private void compileLetFrame(Let let) {
+			Node[] inits = let.getInits();
+			int frameSize = let.getScope().getFrameSize();
+			if (let.isRec()) {
+				newFrame(frameSize);
+				for (int i = 0; i < inits.length; i++) {
+					mv.visitInsn(DUP);
+					pushInt(i+1);
+					mv.visitFieldInsn(GETSTATIC, Type.getInternalName(Boolean.class), "FALSE", Type.getDescriptor(Boolean.class));
+					mv.visitInsn(AASTORE);
+				}
+				mv.visitVarInsn(ASTORE, FRAME);
+				for (int i = 0; i < inits.length; i++) {
+					compileValue(inits[i]);
+					mv.visitVarInsn(ALOAD, FRAME);
+					mv.visitInsn(SWAP);
+					pushInt(i+1);
+					mv.visitInsn(SWAP);
+					mv.visitInsn(AASTORE);
+				}
+			}
+			else {
+				int firstTemp = nextTemp;
+				int[] temps = new int[inits.length];
+				for (int i = 0; i < inits.length; i++) {
+					compileValue(inits[i]);
+					temps[i] = nextTemp++;
+					mv.visitVarInsn(ASTORE, temps[i]);
+					liveTemps.add(temps[i]);
+				}
+				for (int i = 0; i < inits.length; i++) {
+					liveTemps.remove(liveTemps.size()-1);
+				}
+				nextTemp = firstTemp;
+				newFrame(frameSize);
+				for (int i = 0; i < inits.length; i++) {
+					mv.visitInsn(DUP);
+					pushInt(i+1);
+					mv.visitVarInsn(ALOAD, temps[i]);
+					mv.visitInsn(AASTORE);
+				}
+				mv.visitVarInsn(ASTORE, FRAME);
+			}
+		}
+
+		/**
+		 * Push a new activation frame whose parent is the current frame.
+		 */
+		private void newFrame(int frameSize) {
+			pushInt(frameSize);
+			mv.visitTypeInsn(ANEWARRAY, OBJECT);
+			mv.visitInsn(DUP);
+			pushInt(0);
+			mv.visitVarInsn(ALOAD, FRAME);
+			mv.visitInsn(AASTORE);
+		}
+
+		/**
+		 * Generate code that evaluates the key of a Case and jumps to the selected
+		 * clause.
+		 *
+		 * @return The labels of the clauses, followed by the label of the else part.
+		 */
+		private Label[] compileCaseDispatch(Case caseNode) {
+			Label[] labels = new Label[caseNode.getBodies().length+1];
+			for (int i = 0; i < labels.length; i++) {
+				labels[i] = new Label();
+			}
+			compileValue(caseNode.getKey());
+			loadConst(addConst(caseNode), Type.getInternalName(Case.class));
+			mv.visitInsn(SWAP);
+			mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(Case.class), "select", "(L"+OBJECT+";)I", false);
+			mv.visitTableSwitchInsn(0, labels.length-1, labels[labels.length-1], labels);
+			return labels;
+		}
+
+		/**
+		 * Generate a call. If all parts of the call are direct, they are evaluated
+		 * straight onto the operand stack. Otherwise, their values are kept in
+		 * temporary locals, since evaluating a part may suspend.
+		 */
+		private void compileCall(Call call, boolean tail) {
+			Node[] parts = call.getParts();
+			int numArgs = parts.length-1;
+			int pos = addConst(call);
+			boolean loop = tail && call.isLoop();
+			boolean allDirect = !loop;
+			for (Node part : parts) {
+				allDirect = allDirect && isDirect(part);
+			}
+			if (allDirect) {
+				compileValue(parts[0]);
+				toProcedure(pos);
+				mv.visitVarInsn(ALOAD, M);
+				if (numArgs<=3) {
+					for (int i = 1; i < parts.length; i++) {
+						compileValue(parts[i]);
+					}
+				}
+				else {
+					pushInt(numArgs);
+					mv.visitTypeInsn(ANEWARRAY, OBJECT);
+					for (int i = 1; i < parts.length; i++) {
+						mv.visitInsn(DUP);
+						pushInt(i-1);
+						compileValue(parts[i]);
+						mv.visitInsn(AASTORE);
+					}
+				}
+			}
+			else {
+				int firstTemp = nextTemp;
+				int[] temps = new int[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					compileValue(parts[i]);
+					temps[i] = nextTemp++;
+					mv.visitVarInsn(ASTORE, temps[i]);
+					liveTemps.add(temps[i]);
+				}
+				// The values are consumed by the call, so they needn't be saved when it suspends.
+				for (int i = 0; i < parts.length; i++) {
+					liveTemps.remove(liveTemps.size()-1);
+				}
+				nextTemp = firstTemp;
+				if (loop)
+					compileLoop(pos, temps);
+				mv.visitVarInsn(ALOAD, temps[0]);
+				toProcedure(pos);
+				mv.visitVarInsn(ALOAD, M);
+				if (numArgs<=3) {
+					for (int i = 1; i < parts.length; i++) {
+						mv.visitVarInsn(ALOAD, temps[i]);
+					}
+				}
+				else {
+					pushInt(numArgs);
+					mv.visitTypeInsn(ANEWARRAY, OBJECT);
+					for (int i = 1; i < parts.length; i++) {
+						mv.visitInsn(DUP);
+						pushInt(i-1);
+						mv.visitVarInsn(ALOAD, temps[i]);
+						mv.visitInsn(AASTORE);
+					}
+				}
+			}
+			int state = -1;
+			if (tail)
+				mv.visitVarInsn(ALOAD, K);
+			else
+				state = pushSuspension(call);
+			String cont = "L"+CONT+";";
+			String machine = "L"+MACHINE+";";
+			String obj = "L"+OBJECT+";";
+			switch (numArgs) {
+			case 0:
+				mv.visitMethodInsn(INVOKEVIRTUAL, PROCEDURE, "apply0", "("+machine+cont+")V", false);
+				break;
+			case 1:
+				mv.visitMethodInsn(INVOKEVIRTUAL, PROCEDURE, "apply1", "("+machine+obj+cont+")V", false);
+				break;
+			case 2:
+				mv.visitMethodInsn(INVOKEVIRTUAL, PROCEDURE, "apply2", "("+machine+obj+obj+cont+")V", false);
+				break;
+			case 3:
+				mv.visitMethodInsn(INVOKEVIRTUAL, PROCEDURE, "apply3", "("+machine+obj+obj+obj+cont+")V", false);
+				break;
+			default:
+				mv.visitMethodInsn(INVOKEVIRTUAL, PROCEDURE, "applyN", "("+machine+OBJECT_ARRAY+cont+")V", false);
+			}
+			mv.visitInsn(RETURN);
+			if (!tail)
+				resumePoint(state);
+		}
+
+		/**
+		 * Generate the check for a self tail call that can reuse the activation frame
+		 * (see {@link Call#reusableFrame}). If it is one, the operands are stored in the
+		 * frame and the next iteration is started. Otherwise the code falls through to
+		 * an ordinary call.
+		 *
+		 * @param pos The index of the Call in consts.
+		 * @param temps The locals holding the values of the operator and operands.
+		 */
+		private void compileLoop(int pos, int[] temps) {
+			String call = Type.getInternalName(Call.class);
+			Label notLoop = new Label();
+			loadConst(pos, call);
+			mv.visitVarInsn(ALOAD, temps[0]);
+			mv.visitVarInsn(ALOAD, FRAME);
+			mv.visitMethodInsn(INVOKEVIRTUAL, call, "reusableFrame", "(L"+OBJECT+";"+OBJECT_ARRAY+")"+OBJECT_ARRAY, false);
+			mv.visitInsn(DUP);
+			mv.visitJumpInsn(IFNULL, notLoop);
+			for (int i = 1; i < temps.length; i++) {
+				mv.visitInsn(DUP);
+				pushInt(i);
+				mv.visitVarInsn(ALOAD, temps[i]);
+				mv.visitInsn(AASTORE);
+			}
+			loadConst(pos, call);
+			mv.visitInsn(SWAP);
+			mv.visitVarInsn(ALOAD, M);
+			mv.visitInsn(SWAP);
+			mv.visitVarInsn(ALOAD, K);
+			mv.visitMethodInsn(INVOKEVIRTUAL, call, "loop", "(L"+MACHINE+";"+OBJECT_ARRAY+"L"+CONT+";)V", false);
+			mv.visitInsn(RETURN);
+			mv.visitLabel(notLoop);
+			mv.visitInsn(POP);
+		}
+
+		/**
+		 * Convert the value on the operand stack to a procedure.
+		 */
+		private void toProcedure(int pos) {
+			setPos(pos);
+			mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(SchemeValue.class), "asProcedure",
+					"(L"+OBJECT+";)L"+PROCEDURE+";", false);
+		}
+
+		/**
+		 * Push a {@link CompiledFrame} for a new resume point onto the operand stack,
+		 * saving the live temporaries in it.
+		 *
+		 * @return The state number of the resume point.
+		 */
+		private int pushSuspension(Node node) {
+			resumeNodes.add(node);
+			resumeLabels.add(new Label());
+			int state = resumeLabels.size();
+			mv.visitVarInsn(ALOAD, THIS);
+			pushInt(state);
+			mv.visitVarInsn(ALOAD, FRAME);
+			if (liveTemps.isEmpty())
+				mv.visitInsn(ACONST_NULL);
+			else {
+				pushInt(liveTemps.size());
+				mv.visitTypeInsn(ANEWARRAY, OBJECT);
+				for (int i = 0; i < liveTemps.size(); i++) {
+					mv.visitInsn(DUP);
+					pushInt(i);
+					mv.visitVarInsn(ALOAD, liveTemps.get(i));
+					mv.visitInsn(AASTORE);
+				}
+			}
+			mv.visitVarInsn(ALOAD, K);
+			mv.visitMethodInsn(INVOKEVIRTUAL, CODE, "suspend", "(I"+OBJECT_ARRAY+OBJECT_ARRAY+"L"+CONT+";)L"+CONT+";", false);
+			return state;
+		}
+
+		/**
+		 * Place the label for a resume point. The code that follows restores the live
+		 * temporaries and pushes the value that the code was resumed with.
+		 */
+		private void resumePoint(int state) {
+			mv.visitLabel(resumeLabels.get(state-1));
+			for (int i = 0; i < liveTemps.size(); i++) {
+				mv.visitVarInsn(ALOAD, TEMPS);
+				pushInt(i);
+				mv.visitInsn(AALOAD);
+				mv.visitVarInsn(ASTORE, liveTemps.get(i));
+			}
+			mv.visitVarInsn(ALOAD, VALUE);
+		}
+
+		private int addConst(Object value) {
+			consts.add(value);
+			return consts.size()-1;
+		}
+
+		/**
+		 * Push consts[i], cast to a given type (unless type is null).
+		 */
+		private void loadConst(int i, String type) {
+			mv.visitVarInsn(ALOAD, THIS);
+			mv.visitFieldInsn(GETFIELD, CODE, "consts", OBJECT_ARRAY);
+			pushInt(i);
+			mv.visitInsn(AALOAD);
+			if (type!=null)
+				mv.visitTypeInsn(CHECKCAST, type);
+		}
+
+		/**
+		 * Record the node that is about to be evaluated, for error reporting.
+		 */
+		private void setPos(int pos) {
+			pushInt(pos);
+			mv.visitVarInsn(ISTORE, POS);
+		}
+
+		private void pushInt(int i) {
+			if (i>=-1 && i<=5)
+				mv.visitInsn(ICONST_0+i);
+			else if (i>=Byte.MIN_VALUE && i<=Byte.MAX_VALUE)
+				mv.visitIntInsn(BIPUSH, i);
+			else if (i>=Short.MIN_VALUE && i<=Short.MAX_VALUE)
+				mv.visitIntInsn(SIPUSH, i);
+			else
+				mv.visitLdcInsn(i);
+		}
+
+	}
+
+}
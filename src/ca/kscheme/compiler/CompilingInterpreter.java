@@ -0,0 +1,56 @@
+package ca.kscheme.compiler;
+
+import ca.kscheme.KScheme;
+import ca.kscheme.interp.CoreInterpreter;
+import ca.kscheme.interp.Node;
+
+/**
+ * A variant of the {@link CoreInterpreter} that compiles code to JVM bytecode, using
+ * the {@link Compiler}. 
+ * <p>
+ * By default, code starts out interpreted, and lambda bodies are compiled in the 
+ * background once they get hot (see {@link TieredCompiler}). This keeps startup 
+ * fast. Alternatively, all top-level expressions and lambda bodies can be compiled 
+ * before they first run, see {@link #getEager()}.
+ * 
+ * @author kdvolder
+ */
+public class CompilingInterpreter extends CoreInterpreter {
+	
+	private final Compiler compiler = new Compiler();
+	private final boolean eager;
+
+	protected CompilingInterpreter(boolean eager) {
+		this.eager = eager;
+		if (!eager)
+			setTiering(new TieredCompiler(compiler));
+	}
+
+	public static KScheme getDefault() throws Exception {
+		CompilingInterpreter interp = new CompilingInterpreter(false);
+		interp.setup();
+		return interp;
+	}
+	
+	/**
+	 * Create an interpreter that compiles all code up front.
+	 */
+	public static KScheme getEager() throws Exception {
+		CompilingInterpreter interp = new CompilingInterpreter(true);
+		interp.setup();
+		return interp;
+	}
+	
+	@Override
+	protected Node prepare(Node node) {
+		if (eager)
+			return compiler.compile(node);
+		else
+			return node;
+	}
+
+	public Compiler getCompiler() {
+		return compiler;
+	}
+
+}
@@ -0,0 +1,144 @@
+package ca.kscheme.compiler;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.interp.Lambda;
+import ca.kscheme.interp.Node;
+import ca.kscheme.interp.Tiering;
+
+/**
+ * {@link Tiering} policy that compiles hot lambda bodies in the background and 
+ * installs the compiled code in the Lambda.
+ * <p>
+ * The thresholds default to the values of the system properties 
+ * "kscheme.tiering.invocations" and "kscheme.tiering.backedges" (or 
+ * {@link #DEFAULT_INVOCATION_THRESHOLD} and {@link #DEFAULT_BACK_EDGE_THRESHOLD}).
+ * Compile events are logged to a PrintStream, if one is set. Setting the system 
+ * property "kscheme.tiering.log" to true logs them to System.err.
+ *
+ * @author kdvolder
+ */
+public class TieredCompiler extends Tiering {
+	
+	public static final int DEFAULT_INVOCATION_THRESHOLD = 1000;
+	public static final int DEFAULT_BACK_EDGE_THRESHOLD = 200;
+	
+	private static final ThreadFactory daemonThreads = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "kscheme-compiler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	
+	private final Compiler compiler;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(daemonThreads);
+	private volatile PrintStream log = Boolean.getBoolean("kscheme.tiering.log") ? System.err : null;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger compiled = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong compileNanos = new AtomicLong();
+
+	public TieredCompiler(Compiler compiler) {
+		super(Integer.getInteger("kscheme.tiering.invocations", DEFAULT_INVOCATION_THRESHOLD),
+		      Integer.getInteger("kscheme.tiering.backedges", DEFAULT_BACK_EDGE_THRESHOLD));
+		this.compiler = compiler;
+	}
+
+	@Override
+	protected void hot(final Lambda lambda) {
+		queued.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compile(lambda);
+			}
+		});
+	}
+
+	private void compile(Lambda lambda) {
+		long start = System.nanoTime();
+		try {
+			Node body = lambda.getBody();
+			Node compiledBody = compiler.compile(body);
+			if (compiledBody==body) {
+				failed.incrementAndGet();
+				log("not compiled (too large)", lambda, start);
+			}
+			else {
+				lambda.setBody(compiledBody);
+				compiled.incrementAndGet();
+				log("compiled", lambda, start);
+			}
+		} catch (KSchemeException e) {
+			failed.incrementAndGet();
+			log("not compiled ("+e.getMessage()+")", lambda, start);
+		} finally {
+			compileNanos.addAndGet(System.nanoTime()-start);
+			queued.decrementAndGet();
+		}
+	}
+
+	private void log(String event, Lambda lambda, long start) {
+		PrintStream out = log;
+		if (out!=null) {
+			out.println("[tiering] "+event+" "+lambda
+					+" invocations="+lambda.getInvocationCount()
+					+" backEdges="+lambda.getBackEdgeCount()
+					+" time="+(System.nanoTime()-start)/1000+"us");
+		}
+	}
+	
+	/**
+	 * Wait until all hot lambdas found so far have been compiled.
+	 */
+	public void awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime()+unit.toNanos(timeout);
+		while (queued.get()>0 && System.nanoTime()<deadline) {
+			Thread.sleep(1);
+		}
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	/**
+	 * Number of lambda bodies waiting to be compiled.
+	 */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	public int getCompiledCount() {
+		return compiled.get();
+	}
+
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	public long getCompileTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(compileNanos.get());
+	}
+	
+	@Override
+	public String toString() {
+		return "TieredCompiler(invocationThreshold="+getInvocationThreshold()
+			+" backEdgeThreshold="+getBackEdgeThreshold()
+			+" queued="+getQueuedCount()
+			+" compiled="+getCompiledCount()
+			+" failed="+getFailedCount()
+			+" compileTime="+getCompileTimeMillis()+"ms)";
+	}
+
+}
@@ -0,0 +1,49 @@
+package ca.kscheme.data;
+
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.ErrorWithCont;
+import ca.kscheme.interp.Machine;
+
+/**
+ * Superclass for procedures that need their rands in an array anyway. All entry 
+ * points bridge to {@link #applyN(Machine, Object[], Cont)}.
+ */
+public abstract class ArrayArgsProcedure extends SProcedure {
+	
+	private static final Object[] NO_ARGS = new Object[0];
+
+	@Override
+	public void apply(Machine m, Object rands, Cont k) {
+		Object[] args;
+		try {
+			args = toArray(rands);
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("Converting rands to array: rands ="+rands, k, e);
+		}
+		applyN(m, args, k);
+	}
+	
+	@Override
+	public void apply0(Machine m, Cont k) {
+		applyN(m, NO_ARGS, k);
+	}
+	
+	@Override
+	public void apply1(Machine m, Object a, Cont k) {
+		applyN(m, new Object[] {a}, k);
+	}
+	
+	@Override
+	public void apply2(Machine m, Object a, Object b, Cont k) {
+		applyN(m, new Object[] {a, b}, k);
+	}
+	
+	@Override
+	public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+		applyN(m, new Object[] {a, b, c}, k);
+	}
+	
+	@Override
+	public abstract void applyN(Machine m, Object[] args, Cont k);
+
+}
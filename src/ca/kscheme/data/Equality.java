@@ -0,0 +1,232 @@
+package ca.kscheme.data;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Structural equality (equal?) and a hash code that agrees with it.
+ * <p>
+ * Both walk the data with a loop: cdr chains are followed in place and the
+ * other parts are kept on an explicit stack, so that long lists and deep trees
+ * don't overflow the Java stack. Only parts that are pairs or vectors go on
+ * the stack, other elements are compared as they are met.
+ * <p>
+ * Circular data would make a plain walk go on forever. The hash only looks at
+ * a bounded number of parts. The comparison follows each cdr chain with a
+ * second, half as fast cursor, and stops when the two meet, which is when the
+ * chains have gone round a cycle (Floyd's algorithm). That takes no memory. A
+ * cycle through a car or a vector element is found with the union-find 
+ * algorithm of Adams and Dybvig: the pairs and vectors that are met as cars
+ * and elements are merged into equivalence classes, and two that are already 
+ * in the same class are treated as equal. That is only done after the first 
+ * {@link #FAST_STEPS} of them, which is all that ordinary data has, and the
+ * classes are dropped whenever there are {@link #MAX_SEEN} of them, so the 
+ * memory used stays bounded. A cycle is still found as long as it goes 
+ * through fewer than half that many cars and elements.
+ */
+final class Equality {
+
+	/** Number of pairs and vectors met as cars or elements before union-find is used */
+	private static final int FAST_STEPS = 10000;
+
+	/** Number of objects the union-find keeps before it starts over */
+	private static final int MAX_SEEN = 1<<16;
+
+	/** Number of parts of a datum that contribute to its hash */
+	private static final int HASH_STEPS = 100;
+
+	private Equality() {}
+
+	static boolean isEqual(Object a, Object b) {
+		Object[] stack = new Object[16];
+		int sp = 0;
+		int steps = 0;
+		UnionFind seen = null;
+		while (true) {
+			a = SchemeValue.unproxy(a);
+			b = SchemeValue.unproxy(b);
+			if (a!=b) {
+				if (!isCompound(a) || !isCompound(b)) {
+					if (!isEqualAtom(a, b))
+						return false;
+				}
+				else if (a instanceof IPair!=b instanceof IPair)
+					return false;
+				else {
+					if (seen==null ? ++steps>FAST_STEPS : seen.size()>=MAX_SEEN)
+						seen = new UnionFind();
+					if (seen==null || !seen.union(a, b)) {
+						if (a instanceof IPair) {
+							IPair pa = (IPair) a;
+							IPair pb = (IPair) b;
+							Object slowA = a;
+							Object slowB = b;
+							for (int i = 1; ; i++) {
+								Object ca = SchemeValue.unproxy(pa.car());
+								Object cb = SchemeValue.unproxy(pb.car());
+								if (ca!=cb) {
+									if (isCompound(ca) && isCompound(cb)) {
+										if (sp+2>stack.length)
+											stack = grow(stack);
+										stack[sp++] = ca;
+										stack[sp++] = cb;
+									}
+									else if (!isEqualAtom(ca, cb))
+										return false;
+								}
+								a = SchemeValue.unproxy(pa.cdr());
+								b = SchemeValue.unproxy(pb.cdr());
+								if (a==b || !(a instanceof IPair) || !(b instanceof IPair))
+									break;
+								if ((i&1)==0) {
+									slowA = SchemeValue.unproxy(((IPair) slowA).cdr());
+									slowB = SchemeValue.unproxy(((IPair) slowB).cdr());
+								}
+								if (a==slowA && b==slowB) {
+									// Round a cycle: the rest has been compared already
+									a = b = null;
+									break;
+								}
+								pa = (IPair) a;
+								pb = (IPair) b;
+							}
+							// Compare the tails
+							continue;
+						}
+						Object[] va = (Object[]) a;
+						Object[] vb = (Object[]) b;
+						if (va.length!=vb.length)
+							return false;
+						for (int i = 0; i < va.length; i++) {
+							Object ea = SchemeValue.unproxy(va[i]);
+							Object eb = SchemeValue.unproxy(vb[i]);
+							if (ea!=eb) {
+								if (isCompound(ea) && isCompound(eb)) {
+									if (sp+2>stack.length)
+										stack = grow(stack);
+									stack[sp++] = ea;
+									stack[sp++] = eb;
+								}
+								else if (!isEqualAtom(ea, eb))
+									return false;
+							}
+						}
+					}
+				}
+			}
+			if (sp==0)
+				return true;
+			b = stack[--sp];
+			a = stack[--sp];
+		}
+	}
+
+	private static boolean isCompound(Object x) {
+		return x instanceof IPair || x instanceof Object[];
+	}
+
+	/**
+	 * Compare two unproxied values that aren't both pairs or vectors.
+	 */
+	private static boolean isEqualAtom(Object a, Object b) {
+		if (a==b)
+			return true;
+		else if (a==null || isCompound(a) || isCompound(b))
+			return false;
+		else if (a instanceof SchemeValue)
+			return ((SchemeValue) a).isEqual(b);
+		else
+			return a.equals(b);
+	}
+
+	static int hash(Object x) {
+		Object[] stack = new Object[16];
+		int sp = 0;
+		int hash = 17;
+		for (int steps = 0; steps < HASH_STEPS; steps++) {
+			x = SchemeValue.unproxy(x);
+			if (x instanceof IPair) {
+				IPair p = (IPair) x;
+				hash = hash*31 + 1;
+				if (sp==stack.length)
+					stack = grow(stack);
+				stack[sp++] = p.cdr();
+				x = p.car();
+				continue;
+			}
+			if (x instanceof Object[]) {
+				Object[] v = (Object[]) x;
+				hash = hash*31 + 2 + v.length;
+				int n = Math.min(v.length, HASH_STEPS-steps);
+				while (sp+n>stack.length)
+					stack = grow(stack);
+				for (int i = n-1; i >= 0; i--)
+					stack[sp++] = v[i];
+			}
+			else
+				hash = hash*31 + (x==null ? 0 : x.hashCode());
+			if (sp==0)
+				break;
+			x = stack[--sp];
+		}
+		return hash;
+	}
+
+	private static Object[] grow(Object[] stack) {
+		Object[] bigger = new Object[stack.length*2];
+		System.arraycopy(stack, 0, bigger, 0, stack.length);
+		return bigger;
+	}
+
+	/**
+	 * Equivalence classes of pairs and vectors, by identity.
+	 */
+	private static final class UnionFind {
+
+		private final IdentityHashMap<Object, Node> nodes = new IdentityHashMap<Object, Node>();
+
+		private static final class Node {
+			Node parent = this;
+			int size = 1;
+		}
+
+		int size() {
+			return nodes.size();
+		}
+
+		private Node find(Object x) {
+			Node node = nodes.get(x);
+			if (node==null) {
+				node = new Node();
+				nodes.put(x, node);
+				return node;
+			}
+			Node root = node;
+			while (root.parent!=root)
+				root = root.parent;
+			while (node!=root) {
+				Node next = node.parent;
+				node.parent = root;
+				node = next;
+			}
+			return root;
+		}
+
+		/**
+		 * Merge the classes of a and b.
+		 * @return Whether they were in the same class already.
+		 */
+		boolean union(Object a, Object b) {
+			Node ra = find(a);
+			Node rb = find(b);
+			if (ra==rb)
+				return true;
+			if (ra.size<rb.size) {
+				Node t = ra; ra = rb; rb = t;
+			}
+			rb.parent = ra;
+			ra.size += rb.size;
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package ca.kscheme.data;
+
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * The offsets at which the lines of a source start. With it, a position in
+ * the source can be kept as just an int offset, and turned into a
+ * {@link SourcePosition} with a line and column only when it is needed,
+ * for an error message or a backtrace.
+ * <p>
+ * An {@link SInputPort} has one, and adds to it as it reads past the end of
+ * a line.
+ */
+public class LineMap {
+
+	private final URL sourceFile;
+
+	/** lineStarts[i] is the offset of the first character of line i+1 */
+	private int[] lineStarts = new int[64];
+	private int lines = 1;
+
+	public LineMap(URL sourceFile) {
+		this.sourceFile = sourceFile;
+	}
+
+	/**
+	 * A LineMap with the lines recorded in another one, as returned by
+	 * {@link #getLineStarts()}.
+	 */
+	public LineMap(URL sourceFile, int[] lineStarts) {
+		this.sourceFile = sourceFile;
+		this.lineStarts = lineStarts.clone();
+		this.lines = lineStarts.length;
+	}
+
+	/**
+	 * Record that a line starts at offset. The same line may be recorded more
+	 * than once, but lines must be recorded in order.
+	 */
+	void lineStart(int offset) {
+		if (offset<=lineStarts[lines-1])
+			return;
+		if (lines==lineStarts.length) {
+			int[] bigger = new int[lines*2];
+			System.arraycopy(lineStarts, 0, bigger, 0, lines);
+			lineStarts = bigger;
+		}
+		lineStarts[lines++] = offset;
+	}
+
+	/**
+	 * The line and column of offset. The column is the number of characters
+	 * on the line up to offset, so the character at offset 0 is at column 1
+	 * once it is read.
+	 */
+	public SourcePosition getPosition(int offset) {
+		int lo = 0;
+		int hi = lines-1;
+		while (lo<hi) {
+			int mid = (lo+hi+1)>>>1;
+			if (lineStarts[mid]<=offset)
+				lo = mid;
+			else
+				hi = mid-1;
+		}
+		return new SourcePosition(sourceFile, lo+1, offset-lineStarts[lo]);
+	}
+
+	public int[] getLineStarts() {
+		return Arrays.copyOf(lineStarts, lines);
+	}
+
+	public URL getSourceURL() {
+		return sourceFile;
+	}
+
+}
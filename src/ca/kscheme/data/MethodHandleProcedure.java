@@ -0,0 +1,219 @@
+package ca.kscheme.data;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.ErrorWithCont;
+import ca.kscheme.interp.Machine;
+
+/**
+ * Superclass for procedures that call Java code, such as the invokers for
+ * Java methods and constructors.
+ * <p>
+ * The target is a MethodHandle, adapted to take and return Objects and to
+ * unproxy its arguments. The fixed arity entry points call it with
+ * invokeExact, so no array is built and the JIT can inline through the call.
+ * <p>
+ * Subclasses can leave making the target to {@link #target()}, which is only
+ * called when the procedure is first called. Making MethodHandles is slow in
+ * a JVM that has just started, and most of the procedures of a module are
+ * not called by most programs.
+ */
+public abstract class MethodHandleProcedure extends SProcedure {
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final MethodHandle UNPROXY;
+	static {
+		try {
+			UNPROXY = lookup.findStatic(SchemeValue.class, "unproxy",
+					MethodType.methodType(Object.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ImpossibleError(e);
+		}
+	}
+
+	private final int arity;
+	private final boolean unproxy;
+
+	/**
+	 * The target, of type (Object, ...) Object, or null if it hasn't been made
+	 * yet. It is set after spreader, so once it is seen, spreader is too.
+	 */
+	private volatile MethodHandle handle;
+
+	/** The target, of type (Object[]) Object */
+	private MethodHandle spreader;
+
+	/**
+	 * @param unproxy Whether Proxies are unproxied before they are passed to target.
+	 */
+	protected MethodHandleProcedure(MethodHandle target, boolean unproxy) {
+		this(target.type().parameterCount(), unproxy);
+		link(target);
+	}
+
+	/**
+	 * For a procedure whose target is made by {@link #target()}.
+	 * 
+	 * @param arity The number of parameters of the target.
+	 */
+	protected MethodHandleProcedure(int arity, boolean unproxy) {
+		this.arity = arity;
+		this.unproxy = unproxy;
+	}
+
+	/**
+	 * Make the target, when the procedure is first called. Must be overridden
+	 * if the target wasn't given to the constructor.
+	 */
+	protected MethodHandle target() throws KSchemeException {
+		throw new ImpossibleError("No target for "+this);
+	}
+
+	/**
+	 * The target, of type (Object, ...) Object.
+	 */
+	protected final MethodHandle handle() throws KSchemeException {
+		MethodHandle h = handle;
+		if (h==null) {
+			synchronized (this) {
+				if (handle==null)
+					link(target());
+				h = handle;
+			}
+		}
+		return h;
+	}
+
+	private void link(MethodHandle target) {
+		MethodHandle h = target.asFixedArity().asType(MethodType.genericMethodType(arity));
+		if (unproxy) {
+			MethodHandle[] filters = new MethodHandle[arity];
+			Arrays.fill(filters, UNPROXY);
+			h = MethodHandles.filterArguments(h, 0, filters);
+		}
+		spreader = h.asSpreader(Object[].class, arity);
+		handle = h;
+	}
+
+	public static MethodHandle unreflect(Method method) throws KSchemeException {
+		try {
+			return lookup.unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new KSchemeException("Can not access "+method, e);
+		}
+	}
+
+	public static MethodHandle unreflect(Constructor<?> constructor) throws KSchemeException {
+		try {
+			return lookup.unreflectConstructor(constructor);
+		} catch (IllegalAccessException e) {
+			throw new KSchemeException("Can not access "+constructor, e);
+		}
+	}
+
+	/**
+	 * Called when the target throws, or the number of rands is wrong.
+	 */
+	protected abstract void fail(Machine m, Object[] args, Cont k, Throwable e);
+
+	@Override
+	public void apply(Machine m, Object rands, Cont k) {
+		Object[] args;
+		try {
+			args = toArray(rands);
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("Converting rands to array: rands ="+rands, k, e);
+		}
+		applyN(m, args, k);
+	}
+
+	@Override
+	public void apply0(Machine m, Cont k) {
+		if (arity!=0) {
+			applyN(m, NO_ARGS, k);
+			return;
+		}
+		Object value;
+		try {
+			value = (Object) handle().invokeExact();
+		} catch (Throwable e) {
+			fail(m, NO_ARGS, k, e);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void apply1(Machine m, Object a, Cont k) {
+		if (arity!=1) {
+			applyN(m, new Object[] {a}, k);
+			return;
+		}
+		Object value;
+		try {
+			value = (Object) handle().invokeExact(a);
+		} catch (Throwable e) {
+			fail(m, new Object[] {a}, k, e);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void apply2(Machine m, Object a, Object b, Cont k) {
+		if (arity!=2) {
+			applyN(m, new Object[] {a, b}, k);
+			return;
+		}
+		Object value;
+		try {
+			value = (Object) handle().invokeExact(a, b);
+		} catch (Throwable e) {
+			fail(m, new Object[] {a, b}, k, e);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+		if (arity!=3) {
+			applyN(m, new Object[] {a, b, c}, k);
+			return;
+		}
+		Object value;
+		try {
+			value = (Object) handle().invokeExact(a, b, c);
+		} catch (Throwable e) {
+			fail(m, new Object[] {a, b, c}, k, e);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void applyN(Machine m, Object[] args, Cont k) {
+		if (args.length!=arity) {
+			fail(m, args, k, new KSchemeException("Number of rands: expected "+arity+" but got "+args.length));
+			return;
+		}
+		Object value;
+		try {
+			handle();
+			value = (Object) spreader.invokeExact(args);
+		} catch (Throwable e) {
+			fail(m, args, k, e);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+}
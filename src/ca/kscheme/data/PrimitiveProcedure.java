@@ -0,0 +1,85 @@
+package ca.kscheme.data;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+
+/**
+ * A procedure implemented by a static Java method that takes and returns 
+ * Objects, and that computes its result directly. Calls of it can be inlined:
+ * their value can be computed by calling the method, without going through 
+ * the Machine.
+ */
+public class PrimitiveProcedure extends MethodHandleProcedure {
+
+	private final Method method;
+
+	public PrimitiveProcedure(Method method) throws KSchemeException {
+		super(method.getParameterCount(), false);
+		this.method = method;
+	}
+
+	@Override
+	protected MethodHandle target() throws KSchemeException {
+		return unreflect(method);
+	}
+
+	/**
+	 * @return The static method that implements this procedure.
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	public int getArity() {
+		return method.getParameterCount();
+	}
+
+	/**
+	 * Compute the result for one argument. The arity must be 1.
+	 */
+	public Object call1(Object a) throws KSchemeException {
+		try {
+			return (Object) handle().invokeExact(a);
+		} catch (Throwable e) {
+			throw asKSchemeException(e);
+		}
+	}
+
+	/**
+	 * Compute the result for two arguments. The arity must be 2.
+	 */
+	public Object call2(Object a, Object b) throws KSchemeException {
+		try {
+			return (Object) handle().invokeExact(a, b);
+		} catch (Throwable e) {
+			throw asKSchemeException(e);
+		}
+	}
+
+	/**
+	 * Compute the result for three arguments. The arity must be 3.
+	 */
+	public Object call3(Object a, Object b, Object c) throws KSchemeException {
+		try {
+			return (Object) handle().invokeExact(a, b, c);
+		} catch (Throwable e) {
+			throw asKSchemeException(e);
+		}
+	}
+
+	private KSchemeException asKSchemeException(Throwable e) {
+		if (e instanceof KSchemeException)
+			return (KSchemeException) e;
+		return new KSchemeException("Applying "+this, e);
+	}
+
+	@Override
+	protected void fail(Machine m, Object[] args, Cont k, Throwable e) {
+		k.raise(m, cons(this, list(args)), 
+				e instanceof Exception ? (Exception)e : new KSchemeException("Applying "+this, e));
+	}
+
+}
@@ -0,0 +1,295 @@
+package ca.kscheme.data;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+
+/**
+ * Prints Scheme data to an Appendable, as display or write does.
+ * <p>
+ * The printer streams: it appends each part as it gets to it, rather than
+ * building a string of the whole datum first. It doesn't recurse on the Java
+ * stack either. The parts still to print are kept on an explicit stack, so
+ * long lists and deep trees print fine.
+ * <p>
+ * Optionally, pairs and vectors that occur more than once are labelled the
+ * way SRFI 38 does it: the first occurrence is printed as #n=datum and the
+ * others as #n#. Circular data needs this to print in finite space. Lists and
+ * vectors can also be cut off after a number of elements, and data nested
+ * deeper than some level left out. Both are printed as "...".
+ */
+public class Printer {
+
+	// Kinds of work on the stack
+	private static final int DATUM = 0;
+	private static final int TEXT = 1;
+	private static final int LIST_REST = 2;
+	private static final int VECTOR_REST = 3;
+
+	private final Appendable out;
+	private final boolean write;
+
+	private boolean shared = false;
+	private int maxLength = -1;
+	private int maxDepth = -1;
+
+	/** For every pair and vector, whether it occurs more than once */
+	private IdentityHashMap<Object, Boolean> seen;
+	private IdentityHashMap<Object, Integer> labels;
+
+	// The stack. depth is the nesting depth of the datum, or of the list or
+	// vector. For LIST_REST and VECTOR_REST, index is the number of elements
+	// printed already.
+	private int[] kinds;
+	private Object[] items;
+	private int[] indexes;
+	private int[] depths;
+	private int sp = 0;
+
+	/**
+	 * @param write Whether to print as write does rather than as display.
+	 */
+	public Printer(Appendable out, boolean write) {
+		this.out = out;
+		this.write = write;
+	}
+
+	/**
+	 * Label the pairs and vectors that occur more than once.
+	 */
+	public Printer shared() {
+		this.shared = true;
+		return this;
+	}
+
+	/**
+	 * Print at most maxLength elements of a list or vector, and print data
+	 * nested deeper than maxDepth as "...". -1 means no limit.
+	 */
+	public Printer limit(int maxLength, int maxDepth) {
+		this.maxLength = maxLength;
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	public static String toString(Object x, boolean write) {
+		StringBuilder out = new StringBuilder();
+		try {
+			new Printer(out, write).print(x);
+		} catch (IOException e) {
+			throw new ImpossibleError(e);
+		}
+		return out.toString();
+	}
+
+	public void print(Object x) throws IOException {
+		x = SchemeValue.unproxy(x);
+		if (!isCompound(x)) {
+			printAtom(x);
+			return;
+		}
+		if (shared)
+			findShared(x);
+		push(DATUM, x, 0, 0);
+		while (sp>0) {
+			sp--;
+			Object item = items[sp];
+			items[sp] = null;
+			switch (kinds[sp]) {
+			case DATUM:
+				printDatum(SchemeValue.unproxy(item), depths[sp]);
+				break;
+			case TEXT:
+				out.append((String) item);
+				break;
+			case LIST_REST:
+				printListRest(SchemeValue.unproxy(item), indexes[sp], depths[sp]);
+				break;
+			case VECTOR_REST:
+				printVectorRest((Object[]) item, indexes[sp], depths[sp]);
+				break;
+			}
+		}
+		if (shared) {
+			seen = null;
+			labels = null;
+		}
+	}
+
+	private static boolean isCompound(Object x) {
+		return x instanceof IPair || x instanceof Object[] && ((Object[]) x).length>0;
+	}
+
+	private void printDatum(Object x, int depth) throws IOException {
+		if (!isCompound(x)) {
+			printAtom(x);
+			return;
+		}
+		if (maxDepth>=0 && depth>=maxDepth) {
+			out.append("...");
+			return;
+		}
+		if (shared && seen.get(x)) {
+			Integer label = labels.get(x);
+			if (label!=null) {
+				out.append('#').append(label.toString()).append('#');
+				return;
+			}
+			label = labels.size();
+			labels.put(x, label);
+			out.append('#').append(label.toString()).append('=');
+		}
+		if (x instanceof IPair) {
+			IPair p = (IPair) x;
+			out.append('(');
+			push(TEXT, ")", 0, 0);
+			push(LIST_REST, p.cdr(), 1, depth);
+			push(DATUM, p.car(), 0, depth+1);
+		}
+		else {
+			out.append("#(");
+			push(TEXT, ")", 0, 0);
+			push(VECTOR_REST, x, 0, depth);
+		}
+	}
+
+	/**
+	 * Print what follows the first element of a list.
+	 */
+	private void printListRest(Object rest, int count, int depth) throws IOException {
+		if (SchemeValue.isNull(rest))
+			return;
+		if (rest instanceof IPair && !(shared && seen.get(rest))) {
+			if (maxLength>=0 && count>=maxLength) {
+				out.append(" ...");
+				return;
+			}
+			IPair p = (IPair) rest;
+			out.append(' ');
+			push(LIST_REST, p.cdr(), count+1, depth);
+			push(DATUM, p.car(), 0, depth+1);
+		}
+		else {
+			out.append(" . ");
+			push(DATUM, rest, 0, depth+1);
+		}
+	}
+
+	private void printVectorRest(Object[] v, int index, int depth) throws IOException {
+		if (index>=v.length)
+			return;
+		if (maxLength>=0 && index>=maxLength) {
+			out.append(" ...");
+			return;
+		}
+		if (index>0)
+			out.append(' ');
+		push(VECTOR_REST, v, index+1, depth);
+		push(DATUM, v[index], 0, depth+1);
+	}
+
+	private void printAtom(Object x) throws IOException {
+		if (SchemeValue.isNull(x))
+			out.append("()");
+		else if (x instanceof String) {
+			if (write)
+				printQuoted((String) x);
+			else
+				out.append((String) x);
+		}
+		else if (x instanceof Character) {
+			char c = (Character) x;
+			if (!write)
+				out.append(c);
+			else if (c==' ')
+				out.append("#\\space");
+			else if (c=='\n')
+				out.append("#\\newline");
+			else
+				out.append("#\\").append(c);
+		}
+		else if (x instanceof Boolean)
+			out.append((Boolean) x ? "#t" : "#f");
+		else if (x instanceof Object[])
+			out.append("#()");
+		else
+			out.append(x.toString());
+	}
+
+	private void printQuoted(String s) throws IOException {
+		out.append('"');
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c=='"' || c=='\\') {
+				out.append(s, start, i).append('\\');
+				start = i;
+			}
+		}
+		out.append(s, start, s.length()).append('"');
+	}
+
+	/**
+	 * Find the pairs and vectors that can be reached from x in more than one
+	 * way, before printing any of it.
+	 */
+	private void findShared(Object x) {
+		seen = new IdentityHashMap<Object, Boolean>();
+		labels = new IdentityHashMap<Object, Integer>();
+		Object[] todo = new Object[16];
+		int n = 0;
+		todo[n++] = x;
+		while (n>0) {
+			x = SchemeValue.unproxy(todo[--n]);
+			todo[n] = null;
+			if (!isCompound(x))
+				continue;
+			if (seen.containsKey(x)) {
+				seen.put(x, true);
+				continue;
+			}
+			seen.put(x, false);
+			Object[] parts;
+			if (x instanceof IPair)
+				parts = new Object[] {((IPair) x).car(), ((IPair) x).cdr()};
+			else
+				parts = (Object[]) x;
+			while (n+parts.length>todo.length) {
+				Object[] bigger = new Object[todo.length*2];
+				System.arraycopy(todo, 0, bigger, 0, n);
+				todo = bigger;
+			}
+			System.arraycopy(parts, 0, todo, n, parts.length);
+			n += parts.length;
+		}
+	}
+
+	private void push(int kind, Object item, int index, int depth) {
+		if (kinds==null) {
+			kinds = new int[16];
+			items = new Object[16];
+			indexes = new int[16];
+			depths = new int[16];
+		}
+		else if (sp==kinds.length) {
+			int size = 2*sp;
+			int[] newKinds = new int[size];
+			Object[] newItems = new Object[size];
+			int[] newIndexes = new int[size];
+			int[] newDepths = new int[size];
+			System.arraycopy(kinds, 0, newKinds, 0, sp);
+			System.arraycopy(items, 0, newItems, 0, sp);
+			System.arraycopy(indexes, 0, newIndexes, 0, sp);
+			System.arraycopy(depths, 0, newDepths, 0, sp);
+			kinds = newKinds;
+			items = newItems;
+			indexes = newIndexes;
+			depths = newDepths;
+		}
+		kinds[sp] = kind;
+		items[sp] = item;
+		indexes[sp] = index;
+		depths[sp] = depth;
+		sp++;
+	}
+
+}
@@ -0,0 +1,205 @@
+package ca.kscheme.data;
+
+/**
+ * A Scheme hash table.
+ * <p>
+ * The entries are kept in open addressing arrays with linear probing, and
+ * deleting shifts the entries after the deleted one back, so there are no
+ * tombstones. An eqv table compares keys with {@link SchemeValue#isEqv} and
+ * hashes them with hashCode, which is the identity hash for symbols and the
+ * value for fixnums. An equal table uses {@link SchemeValue#isEqual} and
+ * {@link SchemeValue#equalHash}.
+ * <p>
+ * Since eq? is the same as eqv? in KScheme, and strings are immutable Java
+ * Strings, eqv tables also serve as eq tables and string tables.
+ */
+public class SHashTable extends SchemeValue {
+
+	private static final int MIN_CAPACITY = 8;
+
+	/** Stands for the key null, since null marks an empty slot */
+	private static final Object NULL_KEY = new Object();
+
+	private final boolean equal;
+
+	private Object[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	private SHashTable(boolean equal, int capacity) {
+		this.equal = equal;
+		keys = new Object[capacity];
+		values = new Object[capacity];
+	}
+
+	public static SHashTable makeEqv() {
+		return new SHashTable(false, MIN_CAPACITY);
+	}
+
+	public static SHashTable makeEqual() {
+		return new SHashTable(true, MIN_CAPACITY);
+	}
+
+	public boolean isEqualTable() {
+		return equal;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int hash(Object key) {
+		int h = equal ? equalHash(key) : key.hashCode();
+		h *= 0x9E3779B9;
+		return h ^ (h>>>16);
+	}
+
+	private boolean same(Object k1, Object k2) {
+		return k1==k2 || (equal ? isEqual(k1, k2) : k1.equals(k2));
+	}
+
+	private static Object toKey(Object key) {
+		key = unproxy(key);
+		return key==null ? NULL_KEY : key;
+	}
+
+	/**
+	 * The slot holding key, or the empty slot where it would go.
+	 */
+	private int slot(Object key) {
+		int mask = keys.length-1;
+		int i = hash(key) & mask;
+		while (true) {
+			Object k = keys[i];
+			if (k==null || same(k, key))
+				return i;
+			i = (i+1) & mask;
+		}
+	}
+
+	public boolean containsKey(Object key) {
+		return keys[slot(toKey(key))]!=null;
+	}
+
+	/**
+	 * The value for key, or dflt if there is none.
+	 */
+	public Object get(Object key, Object dflt) {
+		int i = slot(toKey(key));
+		return keys[i]==null ? dflt : values[i];
+	}
+
+	public void put(Object key, Object value) {
+		key = toKey(key);
+		int i = slot(key);
+		if (keys[i]==null) {
+			if (2*(size+1)>keys.length) {
+				resize(2*keys.length);
+				i = slot(key);
+			}
+			keys[i] = key;
+			size++;
+		}
+		values[i] = unproxy(value);
+	}
+
+	public boolean remove(Object key) {
+		int i = slot(toKey(key));
+		if (keys[i]==null)
+			return false;
+		int mask = keys.length-1;
+		// Shift back the entries that follow, up to the next empty slot,
+		// unless that would move them before their home slot.
+		int j = i;
+		while (true) {
+			j = (j+1) & mask;
+			Object k = keys[j];
+			if (k==null)
+				break;
+			int home = hash(k) & mask;
+			if (i<=j ? (home<=i || home>j) : (home<=i && home>j)) {
+				keys[i] = k;
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = null;
+		values[i] = null;
+		size--;
+		return true;
+	}
+
+	public void clear() {
+		keys = new Object[MIN_CAPACITY];
+		values = new Object[MIN_CAPACITY];
+		size = 0;
+	}
+
+	public SHashTable copy() {
+		SHashTable copy = new SHashTable(equal, keys.length);
+		System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+		System.arraycopy(values, 0, copy.values, 0, values.length);
+		copy.size = size;
+		return copy;
+	}
+
+	private void resize(int capacity) {
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new Object[capacity];
+		values = new Object[capacity];
+		for (int j = 0; j < oldKeys.length; j++) {
+			Object k = oldKeys[j];
+			if (k!=null) {
+				int i = slot(k);
+				keys[i] = k;
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	// Iteration. Entries are visited by slot index, so that an iteration can
+	// be suspended in a continuation and resumed later without keeping an
+	// Iterator. The result of changing the table while iterating is unspecified.
+
+	/**
+	 * The first slot at or after index that holds an entry, or -1 if there is
+	 * none.
+	 */
+	public int nextEntry(int index) {
+		for (int i = index; i < keys.length; i++) {
+			if (keys[i]!=null)
+				return i;
+		}
+		return -1;
+	}
+
+	public Object keyAt(int index) {
+		Object k = keys[index];
+		return k==NULL_KEY ? null : k;
+	}
+
+	public Object valueAt(int index) {
+		return values[index];
+	}
+
+	/**
+	 * A list of the results of f on every entry.
+	 */
+	public Object collect(Entries f) {
+		Object result = makeNull();
+		for (int i = nextEntry(0); i>=0; i = nextEntry(i+1))
+			result = cons(f.get(keyAt(i), valueAt(i)), result);
+		return result;
+	}
+
+	public interface Entries {
+		Object get(Object key, Object value);
+	}
+
+	@Override
+	public String toString() {
+		return "#<hash-table "+size+">";
+	}
+
+}
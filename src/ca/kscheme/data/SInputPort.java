@@ -4,64 +4,135 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.URL;
 
-/** A Scheme Input Port, is a wrapper around a Java Reader */
+/**
+ * A Scheme Input Port, is a wrapper around a Java Reader.
+ * <p>
+ * Characters are read from the Reader a buffer full at a time. The reader
+ * gets them as ints through {@link #read()} and {@link #peek()}, or whole
+ * runs of them through {@link #readUntil(boolean[], StringBuilder)}, so
+ * they don't need to be boxed. readChar and peekChar, for read-char and
+ * peek-char, still return Characters or the EOF object.
+ */
 public class SInputPort extends SchemeValue {
-	
-	private URL sourceFile;
-	private int line = 1;
-	private int col = 0;
-	private int pos = 0;
-	
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final LineMap lines;
+	/** The number of characters read, counting reads at the end of the input */
+	private int offset = 0;
+
 	private Reader input;
-	private Object peekedChar;
-	private boolean isPeeked = false;
 	private boolean isCaseSensitive = false;
-	
+
+	// The window on the source: buffer[next..end) hasn't been read yet.
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int next = 0;
+	private int end = 0;
+
+	/**
+	 * Whether the last thing done was a peek. The position includes the
+	 * peeked character, as it always has.
+	 */
+	private boolean peeked = false;
+
 	public SInputPort(Reader input, URL sourceUrl) {
-		this.sourceFile = sourceUrl;
+		this.lines = new LineMap(sourceUrl);
 		this.input = input;
 	}
-	
-	public Object readChar() throws KSchemeException {
-		Object result;
-		if (isPeeked) {
-			result = peekedChar;
-			isPeeked = false;
-		}
-		else {
-			result = getc();
-		}
-		return result;
-	}
 
-	private Object getc() throws KSchemeException {
-		int result;
+	/**
+	 * Refill the buffer, if it has been read completely.
+	 * @return false at the end of the input.
+	 */
+	private boolean fill() throws KSchemeException {
+		if (next<end)
+			return true;
+		if (input==null)
+			return false;
 		try {
-			result = input.read();
-			pos++;
-			if (result=='\n') {
-				line++;
-				col = 0;
-			}
-			else
-				col++;
+			int n = input.read(buffer, 0, buffer.length);
+			if (n<=0)
+				return false;
+			next = 0;
+			end = n;
+			return true;
 		} catch (IOException e) {
 			throw new KSchemeException("getc", e);
 		}
-		if (result==-1)
-			return SchemeValue.makeEOF();
-		else {
-			//System.out.append((char)result);
-			return SchemeValue.makeChar((char)result);
+	}
+
+	/**
+	 * @return the next character, or -1 at the end of the input.
+	 */
+	public int read() throws KSchemeException {
+		peeked = false;
+		offset++;
+		if (next==end && !fill())
+			return -1;
+		char c = buffer[next++];
+		if (c=='\n')
+			lines.lineStart(offset);
+		return c;
+	}
+
+	/**
+	 * @return the next character, without reading it, or -1 at the end of
+	 * the input.
+	 */
+	public int peek() throws KSchemeException {
+		peeked = true;
+		if (next==end && !fill())
+			return -1;
+		char c = buffer[next];
+		if (c=='\n')
+			lines.lineStart(offset+1);
+		return c;
+	}
+
+	/**
+	 * Read characters up to the first one that stop says to stop at, and
+	 * append them to out. That one is peeked at, but not read. Characters
+	 * beyond the end of stop are never stopped at.
+	 *
+	 * @return the character that was stopped at, or -1 at the end of the input.
+	 */
+	public int readUntil(boolean[] stop, StringBuilder out) throws KSchemeException {
+		while (fill()) {
+			int i = next;
+			while (i<end) {
+				char c = buffer[i];
+				if (c<stop.length && stop[c])
+					break;
+				i++;
+				if (c=='\n')
+					lines.lineStart(offset+i-next);
+			}
+			out.append(buffer, next, i-next);
+			offset += i-next;
+			next = i;
+			if (i<end) {
+				peeked = true;
+				if (buffer[i]=='\n')
+					lines.lineStart(offset+1);
+				return buffer[i];
+			}
 		}
+		peeked = true;
+		return -1;
+	}
+
+	public Object readChar() throws KSchemeException {
+		int c = read();
+		if (c<0)
+			return SchemeValue.makeEOF();
+		return SchemeValue.makeChar((char) c);
 	}
 
 	public Object peekChar() throws KSchemeException {
-		if (!isPeeked) {
-			peekedChar = getc();
-			isPeeked = true;
-		}
-		return peekedChar;
+		int c = peek();
+		if (c<0)
+			return SchemeValue.makeEOF();
+		return SchemeValue.makeChar((char) c);
 	}
 
 	@Override
@@ -71,15 +142,28 @@ public class SInputPort extends SchemeValue {
 
 	@Override
 	public int hashCode() {
-		return input.hashCode();
+		return System.identityHashCode(this);
+	}
+
+	/**
+	 * The offset of the current position in {@link #getLineMap()}. That
+	 * includes the last character peeked at, as it always has: after a
+	 * peek, the position is that of the peeked character.
+	 */
+	public int getOffset() {
+		return peeked ? offset+1 : offset;
+	}
+
+	public LineMap getLineMap() {
+		return lines;
 	}
-	
+
 	public SourcePosition getPosition() {
-		return new SourcePosition(sourceFile,line,col);
+		return lines.getPosition(getOffset());
 	}
-	
+
 	public URL getSourceFile() {
-		return sourceFile;
+		return lines.getSourceURL();
 	}
 
 	@Override
@@ -101,7 +185,7 @@ public class SInputPort extends SchemeValue {
 	public void setCaseSensitive(boolean isCaseSensitive) {
 		this.isCaseSensitive = isCaseSensitive;
 	}
-	
+
 	@Override
 	public String toString() {
 		return "SInputPort("+getPosition()+")";
@@ -1,11 +1,10 @@
 package ca.kscheme.data;
 
-import ca.kscheme.interp.Cont;
-import ca.kscheme.interp.CoreInterpreter;
+import ca.kscheme.interp.Analyzer;
 import ca.kscheme.interp.CoreInterpreter.SSyntax;
-import ca.kscheme.interp.Trampoline;
-import ca.kscheme.namespace.Env;
-import ca.kscheme.primitives.PrimitiveSyntaxes;
+import ca.kscheme.interp.Expander;
+import ca.kscheme.interp.Node;
+import ca.kscheme.interp.Scope;
 
 public class SMacro extends SSyntax {
 
@@ -15,30 +14,27 @@ public class SMacro extends SSyntax {
 		this.transformer = transformerProc;
 	}
 
+	public SProcedure getTransformer() {
+		return transformer;
+	}
+
 	@Override
-	public Trampoline applySyntax(final CoreInterpreter interp, final Env env, final IPair exp, final Cont k) {
-		return transformer.apply(exp, new Cont(exp, k) {
-			@Override
-			protected Trampoline applyNow(Object transformed) {
-				try {
-					if (isPair(transformed)) {
-						setCar(exp, car(transformed));
-						setCdr(exp, cdr(transformed));
-					}
-					else {
-						setCar(exp, PrimitiveSyntaxes.begin);
-						setCdr(exp, cons(transformed, makeNull()));
-					}
-				} catch (KSchemeException e) {
-					k.raise("Problem caching expanded syntax: "+exp+"\n expanded = "+transformed,e);
-				}
-				return interp.eval(transformed, env, k);
-			}
+	public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+		Object expanded = analyzer.getExpander().expandOnce(this, exp);
+		return analyzer.analyze(expanded, scope);
+	}
 
-//			@Override
-//			public String toString() {
-//				return "(eval *)\n"+k;
-//			}
-		});
+	@Override
+	public Object expand(Expander expander, Object exp) throws KSchemeException {
+		Object expanded;
+		try {
+			expanded = expander.expandOnce(this, exp);
+		} catch (KSchemeException e) {
+			// Leave it to the Analyzer to report, if and when this form is actually
+			// analyzed.
+			expander.deferFailure(this, exp, e);
+			return exp;
+		}
+		return expander.expand(expanded);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,270 @@
+package ca.kscheme.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A Scheme Output Port. Characters are collected in a buffer, and only
+ * encoded and written to the underlying OutputStream when the buffer is full,
+ * or the port is flushed or closed.
+ * <p>
+ * The ports for System.out and System.err are shared, see {@link #stdout()}.
+ * Since they are buffered too, the KScheme front end flushes them after every
+ * top level evaluation.
+ */
+public class SOutputPort extends SchemeValue implements Appendable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static SOutputPort stdout;
+	private static SOutputPort stderr;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flushConsole();
+			}
+		});
+	}
+
+	private final OutputStream out;
+	private final CharsetEncoder encoder;
+
+	private final char[] chars = new char[BUFFER_SIZE];
+	private int count = 0;
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE*2);
+
+	private boolean closed = false;
+
+	public SOutputPort(OutputStream out) {
+		this(out, Charset.defaultCharset());
+	}
+
+	public SOutputPort(OutputStream out, Charset charset) {
+		this.out = out;
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * The port for System.out. If System.out was replaced since the last call,
+	 * the old port is flushed, and a new one made.
+	 */
+	public static synchronized SOutputPort stdout() throws KSchemeException {
+		if (stdout==null || stdout.out!=System.out) {
+			if (stdout!=null)
+				stdout.flush();
+			stdout = new SOutputPort(System.out, charsetOf(System.out));
+		}
+		return stdout;
+	}
+
+	/**
+	 * The port for System.err, see {@link #stdout()}.
+	 */
+	public static synchronized SOutputPort stderr() throws KSchemeException {
+		if (stderr==null || stderr.out!=System.err) {
+			if (stderr!=null)
+				stderr.flush();
+			stderr = new SOutputPort(System.err, charsetOf(System.err));
+		}
+		return stderr;
+	}
+
+	private static Charset charsetOf(PrintStream stream) {
+		try {
+			return (Charset) PrintStream.class.getMethod("charset").invoke(stream);
+		} catch (Exception e) {
+			// Before Java 18, PrintStreams don't tell.
+			return Charset.defaultCharset();
+		}
+	}
+
+	/**
+	 * Flush the ports for System.out and System.err, if there are any.
+	 */
+	public static synchronized void flushConsole() {
+		try {
+			if (stdout!=null)
+				stdout.flush();
+			if (stderr!=null)
+				stderr.flush();
+		} catch (KSchemeException e) {
+			// Like System.out, which ignores errors too
+		}
+	}
+
+	public void writeChar(char c) throws KSchemeException {
+		checkOpen();
+		if (count==chars.length)
+			drain();
+		chars[count++] = c;
+	}
+
+	public void writeString(String s) throws KSchemeException {
+		writeString(s, 0, s.length());
+	}
+
+	public void writeString(String s, int start, int end) throws KSchemeException {
+		checkOpen();
+		while (start<end) {
+			if (count==chars.length)
+				drain();
+			int n = Math.min(end-start, chars.length-count);
+			s.getChars(start, start+n, chars, count);
+			count += n;
+			start += n;
+		}
+	}
+
+	public void newline() throws KSchemeException {
+		writeChar('\n');
+	}
+
+	/**
+	 * Write x as display does: strings and characters without quotes.
+	 */
+	public void display(Object x) throws KSchemeException {
+		print(new Printer(this, false), x);
+	}
+
+	/**
+	 * Write x as write does, so that it can be read back if it is a datum.
+	 */
+	public void write(Object x) throws KSchemeException {
+		print(new Printer(this, true), x);
+	}
+
+	/**
+	 * Write x as write does, with labels for shared structure.
+	 */
+	public void writeShared(Object x) throws KSchemeException {
+		print(new Printer(this, true).shared(), x);
+	}
+
+	private void print(Printer printer, Object x) throws KSchemeException {
+		try {
+			printer.print(x);
+		} catch (IOException e) {
+			if (e.getCause() instanceof KSchemeException)
+				throw (KSchemeException) e.getCause();
+			throw new KSchemeException("Writing to output port", e);
+		}
+	}
+
+	private void checkOpen() throws KSchemeException {
+		if (closed)
+			throw new KSchemeException("Output port is closed");
+	}
+
+	/**
+	 * Encode the buffered characters and write them to the OutputStream.
+	 */
+	private void drain() throws KSchemeException {
+		encode(false);
+	}
+
+	/**
+	 * Encode the buffered characters and write them. At the end of the input,
+	 * the encoder is finished too, so that a stateful charset writes the bytes
+	 * it ends with.
+	 */
+	private void encode(boolean endOfInput) throws KSchemeException {
+		checkOpen();
+		CharBuffer in = CharBuffer.wrap(chars, 0, count);
+		try {
+			while (true) {
+				encoder.encode(in, bytes, endOfInput);
+				if (bytes.position()==0)
+					break;
+				writeBytes();
+			}
+			if (endOfInput) {
+				while (encoder.flush(bytes).isOverflow())
+					writeBytes();
+				writeBytes();
+			}
+		} catch (IOException e) {
+			throw new KSchemeException("Writing to output port", e);
+		}
+		// A high surrogate whose low surrogate hasn't been written yet stays
+		count = in.remaining();
+		in.get(chars, 0, count);
+	}
+
+	private void writeBytes() throws IOException {
+		out.write(bytes.array(), 0, bytes.position());
+		bytes.clear();
+	}
+
+	public void flush() throws KSchemeException {
+		if (closed)
+			return;
+		drain();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new KSchemeException("Flushing output port", e);
+		}
+	}
+
+	public void close() throws KSchemeException {
+		if (closed)
+			return;
+		encode(true);
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new KSchemeException("Closing output port", e);
+		}
+	}
+
+	// Appendable
+
+	public Appendable append(CharSequence csq) throws IOException {
+		return append(csq, 0, csq.length());
+	}
+
+	public Appendable append(CharSequence csq, int start, int end) throws IOException {
+		try {
+			writeString(csq.toString(), start, end);
+		} catch (KSchemeException e) {
+			throw new IOException(e);
+		}
+		return this;
+	}
+
+	public Appendable append(char c) throws IOException {
+		try {
+			writeChar(c);
+		} catch (KSchemeException e) {
+			throw new IOException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return this==obj;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return "#<output-port>";
+	}
+
+}
@@ -1,5 +1,7 @@
 package ca.kscheme.data;
 
+import java.io.IOException;
+
 import com.github.kdvolder.util.Assert;
 
 public class SPair extends SchemeValue implements IPair {
@@ -19,45 +21,24 @@ public class SPair extends SchemeValue implements IPair {
 
 	@Override
 	public boolean isEqual(Object obj) {
-		if (obj==null) return false;
-		if (!isPair(obj))
-			return false;
-		IPair other;
-		try {
-			other = asPair(obj);
-		} catch (KSchemeException e) {
-			throw new ImpossibleError(e);
-		}
-		return isEqual(this.car, other.car())
-			&& isEqual(this.cdr, other.cdr());
+		return isEqual(this, obj);
 	}
 
+	/**
+	 * As write would print it, but with labels for shared structure, and long
+	 * or deep data cut off, since this goes into error messages.
+	 */
 	@Override
 	public String toString() {
 		StringBuilder out = new StringBuilder();
-		out.append('(');
 		try {
-			toStringRest(this, out);
-		} catch (Exception e) {
-			out.append(e);
+			new Printer(out, true).shared().limit(1000, 100).print(this);
+		} catch (IOException e) {
+			throw new ImpossibleError(e);
 		}
-		out.append(')');
 		return out.toString();
 	}
 
-	private void toStringRest(Object val, StringBuilder out) throws Exception {
-		if (isPair(val)) {
-			out.append(toString(car(val)));
-			out.append(' ');
-			toStringRest(cdr(val), out);
-		}
-		else if (isNull(val)) {}
-		else {
-			out.append(" . ");
-			out.append(val.toString());
-		}
-	}
-
 	/* (non-Javadoc)
 	 * @see ca.kdvolder.myscheme.data.IPair#car()
 	 */
@@ -80,6 +61,9 @@ public class SPair extends SchemeValue implements IPair {
 		Assert.isLegalState(mutable);
 		this.cdr = v;
 	}
+	public boolean isMutable() {
+		return mutable;
+	}
 	public void makeImmutable() {
 		this.mutable = false;
 	}
@@ -1,9 +1,18 @@
 package ca.kscheme.data;
 
 import ca.kscheme.interp.Cont;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 
 
+/**
+ * Superclass of all procedures.
+ * <p>
+ * Besides the general entry point {@link #apply(Machine, Object, Cont)}, which 
+ * takes the rands as a list, procedures have entry points for calls with a fixed
+ * number of rands. The evaluator uses these, so that no list has to be built for
+ * a call. By default they bridge to the list form. Procedures that take a fixed
+ * number of arguments should override the corresponding entry point.
+ */
 public abstract class SProcedure extends SchemeValue {
 	
 	protected Object name;
@@ -16,6 +25,13 @@ public abstract class SProcedure extends SchemeValue {
 			this.name = name;
 	}
 	
+	/**
+	 * The name of the first variable this procedure was bound to, or null.
+	 */
+	public Object getName() {
+		return name;
+	}
+
 	@Override
 	public String toString() {
 		if (name==null)
@@ -23,6 +39,35 @@ public abstract class SProcedure extends SchemeValue {
 		return "#proc:"+name;
 	}
 	
-	abstract public Trampoline apply(Object rands, Cont k);
+	/**
+	 * Apply this procedure. Rather than returning a value, this loads the next
+	 * step of the computation into the Machine, e.g. by passing the result to
+	 * k with {@link Machine#applyCont(Cont, Object)}.
+	 */
+	abstract public void apply(Machine m, Object rands, Cont k);
+	
+	public void apply0(Machine m, Cont k) {
+		apply(m, makeNull(), k);
+	}
+
+	public void apply1(Machine m, Object a, Cont k) {
+		apply(m, cons(a, makeNull()), k);
+	}
+
+	public void apply2(Machine m, Object a, Object b, Cont k) {
+		apply(m, cons(a, cons(b, makeNull())), k);
+	}
+
+	public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+		apply(m, cons(a, cons(b, cons(c, makeNull()))), k);
+	}
+
+	/**
+	 * Apply this procedure to an array of rands. The array is owned by the 
+	 * procedure: callers must pass a fresh array and not use it afterwards.
+	 */
+	public void applyN(Machine m, Object[] args, Cont k) {
+		apply(m, list(args), k);
+	}
 		
 }
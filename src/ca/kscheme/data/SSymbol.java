@@ -6,18 +6,25 @@ public class SSymbol extends SchemeValue {
 	
 	private static ReferenceMap symbolTable = new ReferenceMap();
 	private String string;
+	
+	/**
+	 * Bumped every time a new binding for this symbol is created in some Frame.
+	 * Caches of resolved global references compare against this to find out 
+	 * whether a define may have shadowed or replaced the location they hold.
+	 */
+	private volatile int bindingVersion = 0;
 
 	private SSymbol(String string) {
 		this.string = string;
 	}
 
 	public static SSymbol intern(String string) {
-		string = new String(string.toCharArray()); //copy!
-		   // copy: not needed if Strings are immutable.
-		   // but for the sake of Scheme string-set! we have hacked
-		   // around String immutability with Java reflection!
 		SSymbol sym = (SSymbol) symbolTable.get(string);
 		if (sym==null) {
+			string = new String(string.toCharArray()); //copy!
+			   // copy: not needed if Strings are immutable.
+			   // but for the sake of Scheme string-set! we have hacked
+			   // around String immutability with Java reflection!
 			sym = new SSymbol(string);
 			symbolTable.put(string, sym);
 		}
@@ -33,6 +40,22 @@ public class SSymbol extends SchemeValue {
 		return string;
 	}
 	
+	/**
+	 * Whether this is the symbol that {@link #intern(String)} returns for its
+	 * name, rather than one made by {@link #gensym()}.
+	 */
+	public boolean isInterned() {
+		return symbolTable.get(string)==this;
+	}
+
+	public int getBindingVersion() {
+		return bindingVersion;
+	}
+	
+	public synchronized void bindingChanged() {
+		bindingVersion++;
+	}
+	
 	public SchemeValue gensym() {
 		return new SSymbol(string);
 	}
@@ -9,8 +9,8 @@ import java.io.StringReader;
 import java.net.URL;
 
 import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
 import ca.kscheme.interp.CoreInterpreter.SSyntax;
-import ca.kscheme.interp.Trampoline;
 import ca.kscheme.reader.SyntaxObj;
 
 /** 
@@ -34,11 +34,11 @@ public abstract class SchemeValue {
 		return asInt(n1)+asInt(n2);
 	}
 
-	public static Trampoline apply(Object proc, Object rands, Cont k) {
+	public static void apply(Machine m, Object proc, Object rands, Cont k) {
 		try {
-			return asProcedure(proc).apply(rands, k);
+			asProcedure(proc).apply(m, rands, k);
 		} catch (KSchemeException e) {
-			return k.raise("apply \n proc="+proc+"\n rand = "+rands,e);
+			k.raise(m, "apply \n proc="+proc+"\n rand = "+rands,e);
 		}
 	}
 	public static boolean asBoolean(Object obj) throws KSchemeException {
@@ -139,22 +139,6 @@ public abstract class SchemeValue {
 			((PrintWriter)port).print(obj);
 		}
 	}
-	private static boolean equalArrays(Object o1, Object o2) {
-		if (o1 instanceof Object[] && o2 instanceof Object[]) {
-			Object[] arr1 = (Object[]) o1; 
-			Object[] arr2 = (Object[]) o2; 
-			if (arr1.length!=arr2.length) 
-				return false;
-			for (int i = 0; i < arr1.length; i++) {
-				if (!isEqual(arr1[i], arr2[i]))
-					return false;
-			}
-			return true;
-		}
-		else
-			return false;
-	}
-
 	public static boolean sameInt(int n1, int n2) {
 		return n1==n2;
 	}
@@ -188,17 +172,19 @@ public abstract class SchemeValue {
 		return o1==o2;
 	}
 
+	/**
+	 * Scheme's equal?. Doesn't recurse on the Java stack, and terminates on
+	 * circular data, see {@link Equality}.
+	 */
 	public static boolean isEqual(Object o1, Object o2) {
-		o1 = unproxy(o1);
-		o2 = unproxy(o2);
-		if (o1==null) 
-			return o2==null;
-		else if (o1 instanceof Object[]) 
-		    return equalArrays(o1,o2);
-		else if (o1 instanceof SchemeValue)
-			return ((SchemeValue) o1).isEqual(o2);
-		else 
-			return o1.equals(o2);
+		return Equality.isEqual(o1, o2);
+	}
+
+	/**
+	 * A hash code for o that is the same for all objects that are equal? to it.
+	 */
+	public static int equalHash(Object o) {
+		return Equality.hash(o);
 	}
 
 	public static Boolean isEqv(Object v1, Object v2) {
@@ -305,7 +291,21 @@ public abstract class SchemeValue {
 	public static Object makeNull() {
 		return SNull.the;
 	}
+	private static final int SMALL_INT_MIN = -128;
+	private static final int SMALL_INT_MAX = 1023;
+	private static final Integer[] smallInts = new Integer[SMALL_INT_MAX-SMALL_INT_MIN+1];
+	static {
+		for (int i = 0; i < smallInts.length; i++)
+			smallInts[i] = new Integer(i+SMALL_INT_MIN);
+	}
+	
+	/**
+	 * Boxes an int. Small ints (loop counters, indices) are shared rather
+	 * than allocated anew.
+	 */
 	public static Number makeNumber(int i) {
+		if (i>=SMALL_INT_MIN && i<=SMALL_INT_MAX)
+			return smallInts[i-SMALL_INT_MIN];
 		return new Integer(i);
 	}
 	public static Object parseInt(String str, int radix) throws KSchemeException {
@@ -388,6 +388,15 @@ public abstract class SchemeValue {
 		}
 		return arr;
 	}
+	/**
+	 * Unproxy the elements of an array, in place.
+	 */
+	public static Object[] unproxyAll(Object[] arr) {
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = unproxy(arr[i]);
+		}
+		return arr;
+	}
 	public static Object[] toArray(Object list) throws KSchemeException {
 		Object[] arr = new Object[length(list)];
 		for (int i = 0; i < arr.length; i++) {
@@ -0,0 +1,490 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.asPair;
+import static ca.kscheme.data.SchemeValue.asSymbol;
+import static ca.kscheme.data.SchemeValue.caddr;
+import static ca.kscheme.data.SchemeValue.cadr;
+import static ca.kscheme.data.SchemeValue.car;
+import static ca.kscheme.data.SchemeValue.cddr;
+import static ca.kscheme.data.SchemeValue.cdr;
+import static ca.kscheme.data.SchemeValue.cons;
+import static ca.kscheme.data.SchemeValue.isNull;
+import static ca.kscheme.data.SchemeValue.isPair;
+import static ca.kscheme.data.SchemeValue.isSymbol;
+import static ca.kscheme.data.SchemeValue.length;
+import static ca.kscheme.data.SchemeValue.list;
+import static ca.kscheme.data.SchemeValue.makeNull;
+import static ca.kscheme.data.SchemeValue.makeSymbol;
+import static ca.kscheme.data.SchemeValue.makeUndefined;
+import static ca.kscheme.data.SchemeValue.toArray;
+import static ca.kscheme.data.SchemeValue.unproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.kscheme.data.IPair;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.PrimitiveProcedure;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.interp.CoreInterpreter.SSyntax;
+import ca.kscheme.primitives.Send;
+
+/**
+ * The Analyzer converts expressions into trees of {@link Node}s. Special forms
+ * are looked up, and macros are expanded (by the {@link Expander}), only once during analysis rather than
+ * every time an expression is evaluated.
+ * 
+ * @author kdvolder
+ */
+public class Analyzer {
+	
+	private static final SSymbol ELSE = makeSymbol("else");
+	private static final SSymbol ARROW = makeSymbol("=>");
+	private static final SSymbol BEGIN = makeSymbol("begin");
+	private static final SSymbol IF = makeSymbol("if");
+	private static final SSymbol OR = makeSymbol("or");
+	private static final SSymbol QUOTE = makeSymbol("quote");
+	private static final SSymbol DO_LOOP = makeSymbol("do-loop");
+	
+	private final CoreInterpreter interp;
+
+	public Analyzer(CoreInterpreter interp) {
+		this.interp = interp;
+	}
+	
+	public CoreInterpreter getInterpreter() {
+		return interp;
+	}
+	
+	public Expander getExpander() {
+		return interp.getExpander();
+	}
+
+	public Node analyze(Object exp, Scope scope) throws KSchemeException {
+		Node node;
+		if (isPair(exp)) 
+			node = analyzePair(exp, asPair(exp), scope);
+		else if (isSymbol(exp))
+			node = analyzeVariable(exp, asSymbol(exp), scope);
+		else 
+			node = new Const(exp, unproxy(exp));
+		DebugInfo.record(node);
+		return node;
+	}
+
+	private Node analyzeVariable(Object exp, SSymbol name, Scope scope) {
+		int depth = 0;
+		for (Scope s = scope; !s.isGlobal(); s = s.getParent()) {
+			int slot = s.slotOf(name);
+			if (slot>0) 
+				return new LocalRef(exp, name, depth, slot);
+			depth++;
+		}
+		return new GlobalRef(exp, name, scope.getGlobalEnv());
+	}
+
+	/**
+	 * Analyze a (set! var value) expression.
+	 */
+	public Node analyzeSet(Object exp, SSymbol name, Object valueExp, Scope scope) throws KSchemeException {
+		Node value = analyze(valueExp, scope);
+		int depth = 0;
+		for (Scope s = scope; !s.isGlobal(); s = s.getParent()) {
+			int slot = s.slotOf(name);
+			if (slot>0) 
+				return new LocalSet(exp, name, depth, slot, value);
+			depth++;
+		}
+		return new GlobalSet(exp, name, scope.getGlobalEnv(), value);
+	}
+
+	/**
+	 * Analyze a (define var value) expression. Defines inside a lambda body
+	 * get a slot in the lambda's activation frame. 
+	 */
+	public Node analyzeDefine(Object exp, SSymbol name, Object valueExp, Scope scope) throws KSchemeException {
+		Node value = analyze(valueExp, scope);
+		if (scope.isGlobal())
+			return new GlobalDefine(exp, interp, name, scope.getGlobalEnv(), value);
+		else
+			return new LocalDefine(exp, interp, name, scope.declare(name), value);
+	}
+
+	private Node analyzePair(Object exp, IPair form, Scope scope) throws KSchemeException {
+		SSyntax specialForm = interp.getSpecialForm(form.car());
+		if (specialForm!=null) 
+			return specialForm.analyze(this, exp, scope);
+		Node rator = analyze(form.car(), scope);
+		Object randExps = form.cdr();
+		Node[] rands = new Node[length(randExps)];
+		for (int i = 0; i < rands.length; i++) {
+			rands[i] = analyze(car(randExps), scope);
+			randExps = cdr(randExps);
+		}
+		PrimitiveProcedure primitive = inlinablePrimitive(rator, rands);
+		if (primitive!=null)
+			return new PrimitiveCall(exp, (GlobalRef) rator, rands, primitive);
+		return new Call(exp, rator, rands);
+	}
+
+	/**
+	 * If a call can be inlined, return the primitive it calls. That is when the 
+	 * operator is a global variable currently bound to a primitive that takes as 
+	 * many arguments as there are operands, and the operands are simple or 
+	 * inlined calls.
+	 */
+	private PrimitiveProcedure inlinablePrimitive(Node rator, Node[] rands) {
+		if (!(rator instanceof GlobalRef) || rands.length<1 || rands.length>3)
+			return null;
+		for (Node rand : rands) {
+			if (!rand.isSimple() && !(rand instanceof PrimitiveCall))
+				return null;
+		}
+		Object proc;
+		try {
+			proc = rator.value(null);
+		} catch (KSchemeException e) {
+			return null; // Not defined yet
+		}
+		if (proc instanceof PrimitiveProcedure && ((PrimitiveProcedure) proc).getArity()==rands.length)
+			return (PrimitiveProcedure) proc;
+		return null;
+	}
+
+	/**
+	 * Analyze a (send rcvr name arg ...) expression. It becomes a call of a 
+	 * {@link Send} of its own, so that each send form has its own inline cache.
+	 */
+	public Node analyzeSend(Object exp, Scope scope) throws KSchemeException {
+		KSchemeAssert.assertTrue("send needs a receiver and a method name", length(exp)>=3);
+		Object name = unproxy(caddr(exp));
+		if (isPair(name) && unproxy(car(name))==QUOTE)
+			name = cadr(name);
+		Send send = new Send(asSymbol(name).getName());
+		Object randExps = cons(cadr(exp), cdr(cddr(exp)));
+		Node[] rands = new Node[length(randExps)];
+		for (int i = 0; i < rands.length; i++) {
+			rands[i] = analyze(car(randExps), scope);
+			randExps = cdr(randExps);
+		}
+		return new Call(exp, new Const(exp, send), rands);
+	}
+
+	/**
+	 * Analyze a (let ...) expression, which may be a named let.
+	 */
+	public Node analyzeLet(Object exp, Scope scope) throws KSchemeException {
+		if (isSymbol(cadr(exp)))
+			return analyzeNamedLet(exp, asSymbol(cadr(exp)), caddr(exp), cdr(cddr(exp)), scope);
+		return analyzeLet(exp, cadr(exp), cddr(exp), scope, false);
+	}
+
+	/**
+	 * Analyze a let or letrec with given bindings and body.
+	 */
+	public Node analyzeLet(Object exp, Object bindings, Object body, Scope scope, boolean rec) throws KSchemeException {
+		int count = length(bindings);
+		Object[] names = new Object[count];
+		Object inits = bindings;
+		for (int i = 0; i < count; i++) {
+			names[i] = car(car(inits));
+			inits = cdr(inits);
+		}
+		Scope letScope = scope.extend(list(names));
+		if (letScope.getFrameSize()!=count+1)
+			throw new KSchemeException("Duplicate variable in "+exp);
+		Node[] initNodes = new Node[count];
+		for (int i = 0; i < count; i++) {
+			initNodes[i] = analyze(cadr(car(bindings)), rec ? letScope : scope);
+			bindings = cdr(bindings);
+		}
+		return new Let(exp, letScope, initNodes, analyzeSeq(exp, body, letScope), rec);
+	}
+
+	/**
+	 * Analyze a (let name ((var init) ...) body) expression. This binds name to a 
+	 * procedure, as in a letrec, and calls it with the values of the inits.
+	 */
+	private Node analyzeNamedLet(Object exp, SSymbol name, Object bindings, Object body, Scope scope) throws KSchemeException {
+		int count = length(bindings);
+		Object[] vars = new Object[count];
+		Object inits = bindings;
+		for (int i = 0; i < count; i++) {
+			vars[i] = car(car(inits));
+			inits = cdr(inits);
+		}
+		Scope loopScope = scope.extend(list(name));
+		Lambda loop = new Lambda(exp, this, list(vars), body, loopScope.extend(list(vars)));
+		loop.gotName(name);
+		// The inits must not see name. Analyze them in a Scope with the same shape 
+		// as loopScope, but binding a name that can't occur in the source.
+		Scope initScope = scope.extend(list(name.gensym()));
+		Node[] initNodes = new Node[count];
+		for (int i = 0; i < count; i++) {
+			initNodes[i] = analyze(cadr(car(bindings)), initScope);
+			bindings = cdr(bindings);
+		}
+		Node call = new Call(exp, new LocalRef(exp, name, 0, 1), initNodes);
+		return new Let(exp, loopScope, new Node[] {loop}, call, true);
+	}
+
+	/**
+	 * Analyze a (let* ...) expression as nested lets, one for each binding.
+	 */
+	public Node analyzeLetStar(Object exp, Object bindings, Object body, Scope scope) throws KSchemeException {
+		if (isNull(bindings) || isNull(cdr(bindings)))
+			return analyzeLet(exp, bindings, body, scope, false);
+		Object binding = car(bindings);
+		Scope letScope = scope.extend(list(car(binding)));
+		Node init = analyze(cadr(binding), scope);
+		Node inner = analyzeLetStar(exp, cdr(bindings), body, letScope);
+		return new Let(exp, letScope, new Node[] {init}, inner, false);
+	}
+
+	/**
+	 * Analyze a (do ((var init step) ...) (test exp ...) command ...) expression. 
+	 * It is rewritten into a named let, using the special forms themselves rather 
+	 * than their names, so that it doesn't matter how those names are bound.
+	 */
+	public Node analyzeDo(Object exp, Scope scope) throws KSchemeException {
+		SSymbol loop = (SSymbol) DO_LOOP.gensym();
+		Object[] clauses = toArray(cadr(exp));
+		Object[] bindings = new Object[clauses.length];
+		Object[] steps = new Object[clauses.length];
+		for (int i = 0; i < clauses.length; i++) {
+			Object clause = clauses[i];
+			bindings[i] = list(car(clause), cadr(clause));
+			steps[i] = isNull(cddr(clause)) ? car(clause) : caddr(clause);
+		}
+		Object finish = caddr(exp);
+		Object[] commands = toArray(cdr(cddr(exp)));
+		Object[] again = Arrays.copyOf(commands, commands.length+1);
+		again[commands.length] = cons(loop, list(steps));
+		Object repeat = cons(interp.getSpecialForm(BEGIN), list(again));
+		Object body;
+		if (isNull(cdr(finish)))
+			body = list(interp.getSpecialForm(OR), car(finish), repeat);
+		else
+			body = list(interp.getSpecialForm(IF), car(finish), cons(interp.getSpecialForm(BEGIN), cdr(finish)), repeat);
+		return analyzeNamedLet(exp, loop, list(bindings), list(body), scope);
+	}
+
+	/**
+	 * Analyze the clauses of a (cond ...) expression.
+	 */
+	public Node analyzeCond(Object exp, Object clauses, Scope scope) throws KSchemeException {
+		if (isNull(clauses))
+			return new Const(exp, false);
+		Object clause = car(clauses);
+		Object test = car(clause);
+		Object body = cdr(clause);
+		if (isNull(body))
+			return new Or(clause, new Node[] {analyze(test, scope), analyzeCond(exp, cdr(clauses), scope)});
+		else if (isElse(test, scope))
+			return analyzeSeq(clause, body, scope);
+		else if (isSymbol(car(body)) && asSymbol(car(body))==ARROW) {
+			// (test => receiver): bind the value of the test to a fresh variable
+			SSymbol var = (SSymbol) ARROW.gensym();
+			Scope tmpScope = scope.extend(list(var));
+			Node ref = new LocalRef(clause, var, 0, 1);
+			Node receiver = analyze(cadr(body), tmpScope);
+			Node thn = new Call(clause, receiver, new Node[] {ref});
+			Node els = analyzeCond(exp, cdr(clauses), tmpScope);
+			return new Let(clause, tmpScope, new Node[] {analyze(test, scope)}, new If(clause, ref, thn, els), false);
+		}
+		else
+			return new If(clause, analyze(test, scope), analyzeSeq(clause, body, scope), analyzeCond(exp, cdr(clauses), scope));
+	}
+
+	/**
+	 * Analyze a (case key clause ...) expression.
+	 */
+	public Node analyzeCase(Object exp, Scope scope) throws KSchemeException {
+		Node key = analyze(cadr(exp), scope);
+		Object clauses = cddr(exp);
+		List<Object[]> data = new ArrayList<Object[]>();
+		List<Node> bodies = new ArrayList<Node>();
+		Node els = new Const(exp, false);
+		for (; !isNull(clauses); clauses = cdr(clauses)) {
+			Object clause = car(clauses);
+			if (isSymbol(car(clause)) && asSymbol(car(clause))==ELSE) {
+				els = analyzeSeq(clause, cdr(clause), scope);
+				break;
+			}
+			Object[] datums = new Object[length(car(clause))];
+			Object list = car(clause);
+			for (int i = 0; i < datums.length; i++) {
+				datums[i] = unproxy(car(list));
+				list = cdr(list);
+			}
+			data.add(datums);
+			bodies.add(analyzeSeq(clause, cdr(clause), scope));
+		}
+		return new Case(exp, key, data.toArray(new Object[data.size()][]), bodies.toArray(new Node[bodies.size()]), els);
+	}
+
+	/**
+	 * Analyze the arguments of an (and ...) expression.
+	 */
+	public Node analyzeAnd(Object exp, Object args, Scope scope) throws KSchemeException {
+		if (isNull(args))
+			return new Const(exp, true);
+		else if (isNull(cdr(args)))
+			return analyze(car(args), scope);
+		else
+			return new If(exp, analyze(car(args), scope), analyzeAnd(exp, cdr(args), scope), new Const(exp, false));
+	}
+
+	/**
+	 * Analyze the arguments of an (or ...) expression.
+	 */
+	public Node analyzeOr(Object exp, Object args, Scope scope) throws KSchemeException {
+		if (isNull(args))
+			return new Const(exp, false);
+		else if (isNull(cdr(args)))
+			return analyze(car(args), scope);
+		Node[] nodes = new Node[length(args)];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = analyze(car(args), scope);
+			args = cdr(args);
+		}
+		return new Or(exp, nodes);
+	}
+
+	/**
+	 * Whether a cond test is the keyword else, i.e. the symbol else when it isn't 
+	 * lexically bound.
+	 */
+	private boolean isElse(Object test, Scope scope) throws KSchemeException {
+		if (!isSymbol(test) || asSymbol(test)!=ELSE)
+			return false;
+		for (Scope s = scope; !s.isGlobal(); s = s.getParent()) {
+			if (s.slotOf(ELSE)>0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Analyze a sequence of expressions, as found in a (begin ...) expression. 
+	 */
+	public Node analyzeSeq(Object exp, Object exps, Scope scope) throws KSchemeException {
+		if (isNull(exps))
+			return new Const(exp, makeUndefined());
+		else if (isNull(cdr(exps)))
+			return analyze(car(exps), scope);
+		else {
+			Node[] nodes = new Node[length(exps)];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = analyze(car(exps), scope);
+				exps = cdr(exps);
+			}
+			return new Seq(exp, nodes);
+		}
+	}
+
+	/**
+	 * Analyze the body of a lambda expression. 
+	 */
+	public Node analyzeBody(Lambda lambda) throws KSchemeException {
+		Node body = analyzeSeq(lambda.getExp(), lambda.getBodyExp(), lambda.getScope());
+		Map<Call, Integer> selfCalls = new IdentityHashMap<Call, Integer>();
+		markTailCalls(body, lambda, 0, selfCalls);
+		if (!selfCalls.isEmpty() && !mayCapture(body)) {
+			lambda.getScope().reserveLoopSlots();
+			for (Map.Entry<Call, Integer> entry : selfCalls.entrySet())
+				entry.getKey().setLoop(entry.getValue());
+		}
+		return interp.prepare(body);
+	}
+
+	/**
+	 * Tell the calls in tail position in a lambda body which lambda they belong to,
+	 * so they can recognize self tail calls. The calls that look like self tail calls 
+	 * by name, and that have the right number of operands, are collected along with
+	 * the number of let frames they are nested in.
+	 */
+	private void markTailCalls(Node node, Lambda owner, int depth, Map<Call, Integer> selfCalls) {
+		if (node instanceof Call) {
+			Call call = (Call) node;
+			call.setTailOf(owner);
+			if (isSelfCall(call, owner))
+				selfCalls.put(call, depth);
+		}
+		else if (node instanceof If) {
+			markTailCalls(((If) node).getThen(), owner, depth, selfCalls);
+			markTailCalls(((If) node).getElse(), owner, depth, selfCalls);
+		}
+		else if (node instanceof Seq) {
+			Node[] nodes = ((Seq) node).getNodes();
+			markTailCalls(nodes[nodes.length-1], owner, depth, selfCalls);
+		}
+		else if (node instanceof Or) {
+			Node[] nodes = ((Or) node).getNodes();
+			markTailCalls(nodes[nodes.length-1], owner, depth, selfCalls);
+		}
+		else if (node instanceof Let)
+			markTailCalls(((Let) node).getBody(), owner, depth+1, selfCalls);
+		else if (node instanceof Case) {
+			for (Node body : ((Case) node).getBodies())
+				markTailCalls(body, owner, depth, selfCalls);
+			markTailCalls(((Case) node).getElse(), owner, depth, selfCalls);
+		}
+	}
+
+	private boolean isSelfCall(Call call, Lambda owner) {
+		Node[] parts = call.getParts();
+		if (owner.getName()==null || !owner.getScope().takesExactly(parts.length-1))
+			return false;
+		if (parts[0] instanceof LocalRef)
+			return ((LocalRef) parts[0]).getName()==owner.getName();
+		else if (parts[0] instanceof GlobalRef)
+			return ((GlobalRef) parts[0]).getName()==owner.getName();
+		return false;
+	}
+
+	/**
+	 * Whether evaluating a node may create a closure, which could keep a reference
+	 * to the frame it is evaluated in. 
+	 */
+	private boolean mayCapture(Node node) {
+		if (node instanceof Lambda)
+			return true;
+		else if (node.isSimple())
+			return false;
+		else if (node instanceof If) {
+			If ifNode = (If) node;
+			return mayCapture(ifNode.getTest()) || mayCapture(ifNode.getThen()) || mayCapture(ifNode.getElse());
+		}
+		else if (node instanceof Seq)
+			return mayCapture(((Seq) node).getNodes());
+		else if (node instanceof Call)
+			return mayCapture(((Call) node).getParts());
+		else if (node instanceof PrimitiveCall)
+			return mayCapture(((PrimitiveCall) node).getRands());
+		else if (node instanceof Or)
+			return mayCapture(((Or) node).getNodes());
+		else if (node instanceof Let) 
+			return mayCapture(((Let) node).getInits()) || mayCapture(((Let) node).getBody());
+		else if (node instanceof Case) {
+			Case caseNode = (Case) node;
+			return mayCapture(caseNode.getKey()) || mayCapture(caseNode.getBodies()) || mayCapture(caseNode.getElse());
+		}
+		else if (node instanceof Assignment)
+			return mayCapture(((Assignment) node).getValue());
+		else
+			return true;
+	}
+
+	private boolean mayCapture(Node[] nodes) {
+		for (Node node : nodes) {
+			if (mayCapture(node))
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,43 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of the operator or of an operand of a {@link Call}. 
+ * <p>
+ * The values of the parts evaluated so far are kept in an array that is filled
+ * in as evaluation proceeds. If the continuation is resumed more than once 
+ * (which can happen when it was captured by call/cc), the array is copied first,
+ * so that the calls resulting from each resumption don't see each other's values.
+ */
+final class ArgEvalFrame extends Cont {
+
+	private final Call node;
+	private final Object[] frame;
+	private final Object[] vals;
+	private final int i;
+	private boolean resumed = false;
+
+	ArgEvalFrame(Call node, Object[] frame, Object[] vals, int i, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.frame = frame;
+		this.vals = vals;
+		this.i = i;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getPart(i);
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		Object[] vals = this.vals;
+		if (resumed) 
+			vals = vals.clone();
+		else
+			resumed = true;
+		vals[i] = value;
+		node.evalFrom(m, frame, vals, i+1, parent);
+	}
+
+}
@@ -0,0 +1,28 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of the value of an {@link Assignment}.
+ */
+final class AssignFrame extends Cont {
+
+	private final Assignment node;
+	private final Object[] frame;
+
+	AssignFrame(Assignment node, Object[] frame, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.frame = frame;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.value;
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		node.assign(frame, value, parent);
+		m.applyCont(parent, value);
+	}
+
+}
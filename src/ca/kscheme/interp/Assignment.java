@@ -0,0 +1,44 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Common superclass for the nodes of define and set! expressions. These evaluate
+ * a value, store it somewhere and return it.
+ */
+public abstract class Assignment extends Node {
+
+	protected final Node value;
+
+	protected Assignment(Object exp, Node value) {
+		super(exp);
+		this.value = value;
+	}
+
+	@Override
+	public final void exec(Machine m, Object[] frame, Cont k) {
+		if (value.hasValue()) {
+			Object val;
+			try {
+				val = value.value(frame);
+			} catch (KSchemeException e) {
+				k.raise(m, value.exp, e);
+				return;
+			}
+			assign(frame, val, k);
+			m.applyCont(k, val);
+		}
+		else
+			m.eval(value, frame, new AssignFrame(this, frame, k));
+	}
+
+	/**
+	 * Store the value. Errors are reported by throwing an {@link ErrorWithCont}.
+	 */
+	public abstract void assign(Object[] frame, Object val, Cont k);
+
+	public Node getValue() {
+		return value;
+	}
+
+}
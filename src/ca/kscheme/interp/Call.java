@@ -0,0 +1,190 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.asProcedure;
+
+import java.util.Arrays;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+
+/**
+ * Node for a procedure call. The operator is evaluated first, then the 
+ * operands from left to right.
+ */
+public class Call extends Node {
+
+	/**
+	 * The operator, followed by the operands.
+	 */
+	private final Node[] parts;
+	
+	/**
+	 * If this call is in tail position in the body of a lambda, that lambda.
+	 */
+	private Lambda tailOf = null;
+	
+	/**
+	 * If this call may be a self tail call that reuses the activation frame of
+	 * tailOf: the number of let frames between the frame the call is evaluated in
+	 * and the activation frame. Otherwise -1.
+	 */
+	private int loopDepth = -1;
+	private boolean simpleParts = true;
+
+	public Call(Object exp, Node rator, Node[] rands) {
+		super(exp);
+		this.parts = new Node[rands.length+1];
+		this.parts[0] = rator;
+		System.arraycopy(rands, 0, this.parts, 1, rands.length);
+		for (Node part : parts)
+			simpleParts = simpleParts && part.isSimple();
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		if (loopDepth>=0 && simpleParts) {
+			Node part = parts[0];
+			try {
+				Object proc = part.value(frame);
+				Object[] loopFrame = reusableFrame(proc, frame);
+				if (loopFrame==null) {
+					Object[] vals = new Object[parts.length];
+					vals[0] = proc;
+					evalFrom(m, frame, vals, 1, k);
+					return;
+				}
+				// Evaluate into the scratch slots first: the operands may refer to the 
+				// current values of the variables.
+				int scratch = tailOf.getScope().getScratchSlot();
+				for (int i = 1; i < parts.length; i++) {
+					part = parts[i];
+					loopFrame[scratch+i-1] = part.value(frame);
+				}
+				System.arraycopy(loopFrame, scratch, loopFrame, 1, parts.length-1);
+				loop(m, loopFrame, k);
+			} catch (KSchemeException e) {
+				k.raise(m, part.exp, e);
+			}
+		}
+		else
+			evalFrom(m, frame, new Object[parts.length], 0, k);
+	}
+
+	/**
+	 * Evaluate the parts of the call starting at index i, storing their values 
+	 * in vals. Parts that {@link Node#hasValue()} are evaluated directly. At the 
+	 * first part that hasn't, evaluation is suspended with an {@link ArgEvalFrame}, 
+	 * which calls back here when the value of that part is known.
+	 */
+	void evalFrom(Machine m, Object[] frame, Object[] vals, int i, Cont k) {
+		for (; i<parts.length; i++) {
+			Node part = parts[i];
+			if (part.hasValue()) {
+				try {
+					vals[i] = part.value(frame);
+				} catch (KSchemeException e) {
+					k.raise(m, part.exp, e);
+					return;
+				}
+			}
+			else {
+				m.eval(part, frame, new ArgEvalFrame(this, frame, vals, i, k));
+				return;
+			}
+		}
+		SProcedure proc;
+		try {
+			proc = asProcedure(vals[0]);
+		} catch (KSchemeException e) {
+			k.raise(m, exp, e);
+			return;
+		}
+		if (tailOf!=null && proc instanceof SLambdaProcedure && ((SLambdaProcedure) proc).getLambda()==tailOf) {
+			Object[] loopFrame = reusableFrame(proc, frame);
+			if (loopFrame!=null) {
+				System.arraycopy(vals, 1, loopFrame, 1, vals.length-1);
+				loop(m, loopFrame, k);
+				return;
+			}
+			tailOf.countBackEdge();
+		}
+		switch (vals.length) {
+		case 1: proc.apply0(m, k); break;
+		case 2: proc.apply1(m, vals[1], k); break;
+		case 3: proc.apply2(m, vals[1], vals[2], k); break;
+		case 4: proc.apply3(m, vals[1], vals[2], vals[3], k); break;
+		default:
+			proc.applyN(m, Arrays.copyOfRange(vals, 1, vals.length), k);
+		}
+	}
+
+	void setTailOf(Lambda lambda) {
+		this.tailOf = lambda;
+	}
+
+	/**
+	 * Let this self tail call reuse the activation frame of the lambda it is in.
+	 * The Analyzer only does this for a call with the right number of operands,
+	 * in a lambda body that creates no closures, so the frame can't be captured 
+	 * by anything but a continuation.
+	 * 
+	 * @param depth The number of let frames between the call and the activation frame.
+	 */
+	void setLoop(int depth) {
+		this.loopDepth = depth;
+	}
+
+	public boolean isLoop() {
+		return loopDepth>=0;
+	}
+
+	/**
+	 * If this call is a self tail call that can reuse the activation frame of the
+	 * current invocation, return that frame. Otherwise null.
+	 * <p>
+	 * Whether it is a self call is decided at run time: the operator must be a 
+	 * closure of the same lambda, created in the same frame as the one being run.
+	 * Calling it would then just run the body again, in a frame with the same parent.
+	 */
+	public Object[] reusableFrame(Object proc, Object[] frame) {
+		if (loopDepth<0 || !(proc instanceof SLambdaProcedure))
+			return null;
+		SLambdaProcedure closure = (SLambdaProcedure) proc;
+		if (closure.getLambda()!=tailOf)
+			return null;
+		for (int d = loopDepth; d>0; d--)
+			frame = (Object[]) frame[0];
+		if (closure.getEnv()!=frame[0] || !tailOf.getScope().isReusable(frame))
+			return null;
+		return frame;
+	}
+
+	/**
+	 * Run the next iteration of a loop, in a frame returned by {@link #reusableFrame}
+	 * in which the arguments have been stored.
+	 */
+	public void loop(Machine m, Object[] loopFrame, Cont k) {
+		tailOf.countBackEdge();
+		tailOf.getScope().clearDefines(loopFrame);
+		Node body;
+		try {
+			body = tailOf.getBody();
+		} catch (KSchemeException e) {
+			k.raise(m, exp, e);
+			return;
+		}
+		m.eval(body, loopFrame, k);
+	}
+
+	Node getPart(int i) {
+		return parts[i];
+	}
+
+	/**
+	 * @return The operator, followed by the operands.
+	 */
+	public Node[] getParts() {
+		return parts.clone();
+	}
+
+}
@@ -0,0 +1,77 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.isEqv;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Node for a (case key clause ...) expression. The key is evaluated once and 
+ * compared with the data of each clause using eqv?. 
+ */
+public class Case extends Node {
+
+	private final Node key;
+	private final Object[][] data;
+	private final Node[] bodies;
+	private final Node els;
+
+	/**
+	 * Create a Case. The body of clause i is bodies[i], its data are data[i]. 
+	 * The else Node is used when no clause matches.
+	 */
+	public Case(Object exp, Node key, Object[][] data, Node[] bodies, Node els) {
+		super(exp);
+		this.key = key;
+		this.data = data;
+		this.bodies = bodies;
+		this.els = els;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		if (key.hasValue()) {
+			Object value;
+			try {
+				value = key.value(frame);
+			} catch (KSchemeException e) {
+				k.raise(m, key.exp, e);
+				return;
+			}
+			branch(m, frame, value, k);
+		}
+		else
+			m.eval(key, frame, new CaseFrame(this, frame, k));
+	}
+
+	void branch(Machine m, Object[] frame, Object value, Cont k) {
+		int i = select(value);
+		(i<bodies.length ? bodies[i] : els).exec(m, frame, k);
+	}
+
+	/**
+	 * @return The index of the first clause with a datum that is eqv? to the
+	 * value, or the number of clauses if there is none.
+	 */
+	public int select(Object value) {
+		for (int i = 0; i < data.length; i++) {
+			for (Object datum : data[i]) {
+				if (isEqv(value, datum))
+					return i;
+			}
+		}
+		return data.length;
+	}
+
+	public Node getKey() {
+		return key;
+	}
+
+	public Node[] getBodies() {
+		return bodies.clone();
+	}
+
+	public Node getElse() {
+		return els;
+	}
+
+}
@@ -0,0 +1,27 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of the key of a {@link Case} node.
+ */
+final class CaseFrame extends Cont {
+
+	private final Case node;
+	private final Object[] frame;
+
+	CaseFrame(Case node, Object[] frame, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.frame = frame;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getKey();
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		node.branch(m, frame, value, parent);
+	}
+
+}
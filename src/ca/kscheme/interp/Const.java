@@ -0,0 +1,25 @@
+package ca.kscheme.interp;
+
+
+/**
+ * Node for a self-evaluating or quoted expression.
+ */
+public class Const extends SimpleNode {
+
+	private final Object value;
+
+	public Const(Object exp, Object value) {
+		super(exp);
+		this.value = value;
+	}
+
+	@Override
+	public Object value(Object[] frame) {
+		return value;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+}
@@ -1,92 +1,113 @@
 package ca.kscheme.interp;
 
-import java.util.ArrayList;
-
 import ca.kscheme.data.KSchemeException;
 import ca.kscheme.data.SProcedure;
-import ca.kscheme.data.SchemeValue;
 
+/**
+ * A continuation frame. The interpreter uses a concrete subclass for each kind
+ * of pending work (e.g. {@link IfFrame}, {@link SeqFrame}, {@link ArgEvalFrame}),
+ * holding just the state needed to resume that work.
+ * <p>
+ * Continuations don't record debug info themselves. A backtrace is produced by
+ * walking the chain of continuations and describing the node each of them is
+ * waiting for, see {@link DebugInfo}.
+ */
 public abstract class Cont extends SProcedure {
 	
-	/**
-	 * The expression this continuation is a continuation of.
-	 */
-	private ArrayList<Object> exps = new ArrayList<Object>();
-	
 	/**
 	 * Continuation that this continuation transfers control to after
 	 * doing its own thing.
 	 * 
 	 * The parent may be null if this is the HALT cont.
 	 */
-	protected Cont parent;
+	protected final Cont parent;
+	
+	/**
+	 * Replaced by a new object whenever a continuation is handed to Scheme code,
+	 * which may then resume it any number of times. Activation frames that are 
+	 * reused for the iterations of a loop record the epoch they were created in,
+	 * and are only reused while it is still current (see {@link Scope#isReusable}).
+	 */
+	private static volatile Object escapeEpoch = new Object();
 
-	public Cont(Object exp, Cont parent) {
-		this.exps.add(exp);
+	public Cont(Cont parent) {
 		this.parent = parent;
 	}
 	
-	public final Trampoline applyCont(final Object value) {
-		return new Trampoline() {
-			@Override
-			public Trampoline force1() {
-				return applyNow(value);
-			}
-		};
-	}
+	/**
+	 * Receive a value. Like {@link Node#exec(Machine, Object[], Cont)}, this 
+	 * performs one step of the computation and loads the next step into the 
+	 * Machine. It is only called by the Machine's driver loop; use 
+	 * {@link Machine#applyCont(Cont, Object)} to pass a value to a continuation.
+	 */
+	protected abstract void resume(Machine m, Object value);
 	
-	protected abstract Trampoline applyNow(Object value);
+	/**
+	 * The node whose value this continuation is waiting for, or null if it
+	 * isn't waiting for a node. Used for backtraces only.
+	 */
+	protected Node getNode() {
+		return null;
+	}
 
 	@Override
 	public final String toString() {
 		StringBuilder result = new StringBuilder();
-		for (int i = exps.size()-1; i>=0 ; i--) {
-			result.append(SchemeValue.toStringWithLocation(exps.get(i)) + "\n");
+		for (Cont k = this; k!=null; k = k.parent) {
+			Node node = k.getNode();
+			if (node!=null)
+				result.append(DebugInfo.describe(node) + "\n");
 		}
-		if (parent!=null)
-			result.append(SchemeValue.toString(parent));
 		return result.toString();
 	}
 
-	/**
-	 * Add an expression for debug info. Since we have tail calling, some
-	 * continuations will correspond to multiple expressions in the code that
-	 * share that continuation. 
-	 */
-	public void setExp(Object addExp) {
-		if (isSyntaxObj(addExp)) { // Ignore exps that don't have line number info, not that useful
-			for (Object exp : exps) {
-				if (exp==addExp) return; // only add if not yet there
-			}
-			exps.add(addExp);
-		}
-	}
-
 	@Override
-	public Trampoline apply(Object rands, Cont k) {
+	public void apply(Machine m, Object rands, Cont k) {
 		try {
 			KSchemeAssert.assertEquals("Number of rands", 1, length(rands));
-			return this.applyCont(car(rands));
+			m.applyCont(this, car(rands));
 		} catch (KSchemeException e) {
-			return k.raise("applyCont "+this, e);
+			k.raise(m, "applyCont "+this, e);
 		}
 	}
 
-	public Trampoline raise(Object info, Exception e) {
-		return raise(this,info,e);
+	@Override
+	public void apply1(Machine m, Object a, Cont k) {
+		m.applyCont(this, a);
+	}
+
+	/**
+	 * Called before a continuation is handed to Scheme code, e.g. by call/cc.
+	 */
+	public static void escaped() {
+		escapeEpoch = new Object();
+	}
+	
+	static Object getEscapeEpoch() {
+		return escapeEpoch;
 	}
 
-	public Trampoline raise(final Cont origin, final Object info, final Exception e) {
-		if (parent==null) {
-			return new Trampoline() {
-				@Override
-				public Trampoline force1() {
-					throw new ErrorWithCont(info, origin, e);
-				}
-			};
-		} else {
-			return parent.raise(origin, info, e);
+	/**
+	 * Signal an error. Control is transferred to the nearest enclosing 
+	 * continuation that handles errors. If there is none, an ErrorWithCont
+	 * is thrown.
+	 */
+	public final void raise(Machine m, Object info, Exception e) {
+		for (Cont k = this; k!=null; k = k.parent) {
+			if (k.handle(m, this, info, e))
+				return;
 		}
+		throw new ErrorWithCont(info, this, e);
+	}
+
+	/**
+	 * Continuations that handle errors override this to load the handling
+	 * of the error into the Machine, and return true.
+	 * 
+	 * @param origin The continuation at which the error was raised.
+	 */
+	protected boolean handle(Machine m, Cont origin, Object info, Exception e) {
+		return false;
 	}
 	
 }
@@ -1,6 +1,5 @@
 package ca.kscheme.interp;
 
-import static ca.kscheme.data.SchemeValue.asPair;
 import static ca.kscheme.data.SchemeValue.asSymbol;
 import static ca.kscheme.data.SchemeValue.car;
 import static ca.kscheme.data.SchemeValue.cdr;
@@ -8,40 +7,72 @@ import static ca.kscheme.data.SchemeValue.isNull;
 import static ca.kscheme.data.SchemeValue.isPair;
 import static ca.kscheme.data.SchemeValue.isSymbol;
 import static ca.kscheme.data.SchemeValue.makeSymbol;
+import static ca.kscheme.data.SchemeValue.unproxy;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import ca.kscheme.KScheme;
-import ca.kscheme.data.IPair;
 import ca.kscheme.data.ImpossibleError;
 import ca.kscheme.data.KSchemeException;
-import ca.kscheme.data.SMacro;
-import ca.kscheme.data.SProcedure;
 import ca.kscheme.data.SSymbol;
 import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.Expander.Shape;
 import ca.kscheme.namespace.Env;
 import ca.kscheme.namespace.Frame;
+import ca.kscheme.namespace.HashFrame;
 import ca.kscheme.primitives.PrimitiveSyntaxes;
 import ca.kscheme.reader.SchemeReader;
 
 /**
- * An interpeter for something close to R4RS. This interpreter performs macro expansion
- * 'on the fly' whenever it comes across the use of a macro.
- * <p>
- * It is inefficient, but relatively easy to implement and can be used to bootstrap
- * more efficient implementations.
+ * An interpeter for something close to R4RS. Expressions are first converted into
+ * a tree of {@link Node}s by an {@link Analyzer}, after the {@link Expander} has expanded
+ * the macros that are known at that point.
+ * The Nodes are then executed. Lambda bodies are analyzed only once, when the
+ * procedure is first called.
  * 
  * @author kdvolder
  */
 public class CoreInterpreter extends KScheme {
 	
+	/**
+	 * The interpreter that is running code on each thread, for the primitives
+	 * that act on the interpreter, such as eval and load (see {@link #running()}).
+	 */
+	private static final ThreadLocal<CoreInterpreter> running = new ThreadLocal<CoreInterpreter>();
+
 	private Env globalEnv;
 	private Map<Object, Frame> modules;
 	private Object lastResult;
+
+	/**
+	 * The global environment that forks share, and the Env and frame this
+	 * interpreter has been defining in since it was forked.
+	 */
+	private Env forkBase;
+	private Env forkEnv;
+	private HashFrame forkFrame;
+
+	/** The shared variables that this interpreter has values of its own for */
+	private final List<ForkedReference> forkedReferences = new ArrayList<ForkedReference>();
+
+	/** Where {@link #load(URL)} keeps its {@link Fasl}s, or null to not keep any */
+	private File faslDirectory = defaultFaslDirectory();
+
+	/** The Fasl of the source being loaded, which records what it depends on */
+	private Fasl loading;
 	
 	private Map<SSymbol, SSyntax> specialForms = new HashMap<SSymbol, SSyntax>();
+	private Tiering tiering = new Tiering();
+	private Expander expander = new Expander(this);
+	private Analyzer analyzer = new Analyzer(this);
 
 	public CoreInterpreter() {
 		this(new Env(), SchemeReader.getDefault(), new HashMap<Object, Frame>());
@@ -53,7 +84,7 @@ public class CoreInterpreter extends KScheme {
 		return interp;
 	}
 	
-	private void setup() throws KSchemeException {
+	protected void setup() throws KSchemeException {
 		require(Require.class);
 		initSpecialForms();
 		load(KScheme.class.getResource("bootstrap.scm"));
@@ -69,157 +100,143 @@ public class CoreInterpreter extends KScheme {
 		this.modules = modules;
 	}
 	
-	public Trampoline eval(Object exp, Env env, Cont k) {
-		k.setExp(exp);
+	/**
+	 * For {@link #fork()}.
+	 */
+	private CoreInterpreter(CoreInterpreter parent) {
+		this(parent.forkBase.fork(), SchemeReader.getDefault(), new HashMap<Object, Frame>(parent.modules));
+		specialForms.putAll(parent.specialForms);
+		faslDirectory = parent.faslDirectory;
 		try {
-			if (isPair(exp)) 
-				return evalPair(asPair(exp), env, k);
-			else if (isSymbol(exp))
-				return k.applyCont(env.lookup(asSymbol(exp)));
-			else
-				return k.applyCont(exp);
-		}
-		catch (KSchemeException e) {
-			return k.raise(exp, e);
+			ForkedReference.fork(parent, this);
+		} catch (KSchemeException e) {
+			throw new ImpossibleError(e);
 		}
 	}
 
-	private Trampoline evalPair(final IPair exp, final Env env, final Cont k) {
-		try {
-			Object ratorExp = car(exp);
-			SSyntax specialForm = getSpecialForm(ratorExp);
-			if (specialForm!=null) {
-				return specialForm.applySyntax(this, env, exp, k);
-			}
-			return eval(ratorExp, env, new Cont(ratorExp, k) {
-				@Override
-				protected Trampoline applyNow(final Object rator) {
-					return evalList(exp.cdr(), env, new Cont(exp.cdr(), k) {
-						@Override
-						public Trampoline applyNow(Object rands) {
-							try {
-								return asProcedure(rator).apply(rands, k);
-							} catch (KSchemeException e) {
-								return k.raise(exp,e);
-							}
-						}
-					});
-				}
-			});
-		} catch (KSchemeException e) {
-			return k.raise(exp, e);
+	/**
+	 * Create an interpreter that starts out with everything that is defined
+	 * in this one, without loading bootstrap.scm again. The global frames are
+	 * shared, rather than copied: what the fork defines goes into a frame of
+	 * its own, and a shared variable that is assigned gets a value for each 
+	 * interpreter that assigns it, this one included (see {@link ForkedReference}). 
+	 * That holds for code defined before forking too. What this interpreter
+	 * defines or assigns after forking is only seen by forks made after that.
+	 * <p>
+	 * The values themselves are shared: a vector or hash table that was made
+	 * here, or a closure's own variables, can still be changed from every fork.
+	 * The fork is a plain CoreInterpreter, whatever the class of this one.
+	 */
+	public CoreInterpreter fork() {
+		if (forkBase==null || globalEnv!=forkEnv || !forkFrame.isEmpty()) {
+			forkBase = globalEnv;
+			forkFrame = new HashFrame();
+			forkEnv = globalEnv = globalEnv.fork(forkFrame);
 		}
+		return new CoreInterpreter(this);
 	}
 
-	private SSyntax getSpecialForm(Object exp) throws KSchemeException {
+	/**
+	 * The interpreter that is running code on this thread, or null if there is
+	 * none. Procedures that are shared with forks call this, rather than use
+	 * the interpreter they were made for, so that eval or load in a fork
+	 * defines in the fork.
+	 */
+	public static CoreInterpreter running() {
+		return running.get();
+	}
+
+	/**
+	 * Get the special form associated with the operator of a form, or null if
+	 * it isn't a special form.
+	 */
+	SSyntax getSpecialForm(Object exp) throws KSchemeException {
 		if (isSymbol(exp)) {
 			return specialForms.get(asSymbol(exp));
-		} else if (exp instanceof SSyntax) {
-			return (SSyntax) exp;
+		} else if (unproxy(exp) instanceof SSyntax) {
+			return (SSyntax) unproxy(exp);
 		}
 		return null;
 	}
 
-	private Trampoline evalList(final Object exps, final Env env, final Cont k) {
+	/**
+	 * Create a new Environment frame. Thus, redefinitions of identifiers made after
+	 * calling protectEnv will not affect references to those identifiers made before
+	 * the call to protectEnv. The "redefined" identifier will be a local identifier shadowing 
+	 * the original one, while letting previously define procedures keep accessing the
+	 * old id.
+	 */
+	public void protectEnv() {
+		globalEnv = globalEnv.extend(); 
+	}
+
+	/**
+	 * Evaluate an expression in the globalEnv. Instead of actually doing the eval
+	 * immediately, it loads the evaluation into the Machine's registers to support 
+	 * proper tail call behavior for this call to the evaluator.
+	 */
+	public void globalEval(Machine m, Object exp, Cont k) {
+		globalEval(m, exp, true, k);
+	}
+
+	private void globalEval(Machine m, Object exp, boolean expand, Cont k) {
 		try {
-			if (isNull(exps))
-				return k.applyCont(exps);
-			else if (isPair(exps)) {
-				final Object rest = cdr(exps);
-				return eval(car(exps), env, new Cont(car(exps), k) {
-					@Override
-					public Trampoline applyNow(final Object carVal) {
-						return evalList(rest, env, new Cont(rest, k) {
-							@Override
-							public Trampoline applyNow(Object cdrVal) {
-								return k.applyCont(cons(carVal, cdrVal));
-							}
-						});
-					}
-				});
+			Object expanded = expand ? expander.expand(exp) : exp;
+			Node node;
+			try {
+				node = analyzer.analyze(expanded, Scope.global(globalEnv));
+			} finally {
+				expander.forgetFailures();
 			}
-			else 
-				throw new ErrorWithCont("Improper list in evalList: "+exps, k, null);
+			m.eval(prepare(node), null, k);
 		} catch (KSchemeException e) {
-			throw new ErrorWithCont("evalList: "+exps, k, e);
+			k.raise(m, exp, e);
 		}
 	}
 
-	public Trampoline tEval(Object valExp, Env env, Cont k) {
-		return new EvalExpTrampoline(this, env, valExp, k);
+	public Expander getExpander() {
+		return expander;
 	}
 
-	public Object makeProcedure(Object formals, Object body, Env env) {
-		return new SLambdaProcedure(formals, body, env);
+	Analyzer getAnalyzer() {
+		return analyzer;
 	}
-	private class SLambdaProcedure extends SProcedure {
-		
-		private Object formals;
-		private Object body;
-		private Env env;
-
-		public SLambdaProcedure(Object formals, Object body,
-				 Env env) {
-			this.formals = formals;
-			this.body = body;
-			this.env = env;
-		}
-		
-		@Override
-		public String toString() {
-			if (name!=null)
-				return super.toString();
-			else
-				return "#proc<"+formals+" "+body+">";
-		}
-
-		@Override
-		public Trampoline apply(Object rands, Cont k) {
-			Env newEnv;
-			try {
-				newEnv = env.extend(formals, rands);
-			} catch (KSchemeException e) {
-				throw new ErrorWithCont("apply: bad rands?\n proc = "+this+"\n rands = "+rands, k, e);
-			}
-			return tEval(PrimitiveSyntaxes.makeBegin(body), newEnv, k);
-		}
 
+	public Tiering getTiering() {
+		return tiering;
 	}
 
 	/**
-	 * Create a new Environment frame. Thus, redefinitions of identifiers made after
-	 * calling protectEnv will not affect references to those identifiers made before
-	 * the call to protectEnv. The "redefined" identifier will be a local identifier shadowing 
-	 * the original one, while letting previously define procedures keep accessing the
-	 * old id.
+	 * Set the policy that decides when lambda bodies are hot. This must be done 
+	 * before any code is analyzed, i.e. in the constructor of a subclass.
 	 */
-	public void protectEnv() {
-		globalEnv = globalEnv.extend(); 
+	protected void setTiering(Tiering tiering) {
+		this.tiering = tiering;
 	}
 
 	/**
-	 * Evaluate an expression in the globalEnv. Instead of actually doing the eval
-	 * immediately, it returns a Trampoline to support proper tail call behavior for
-	 * this call to the evaluator.
+	 * Called with the analyzed form of each top-level expression and of each 
+	 * lambda body, before it is run for the first time. Subclasses can override 
+	 * this to translate the Node into something that runs faster.
 	 */
-	public Trampoline tGlobalEval(Object exp, Cont k) {
-		return tEval(exp, globalEnv, k);
+	protected Node prepare(Node node) throws KSchemeException {
+		return node;
 	}
 
-	private static class CaptureResultCont extends Cont {
+	static class CaptureResultCont extends Cont {
 		
-		public CaptureResultCont(Object exp) {
-			super(exp+"=>HALT",null);
+		public CaptureResultCont() {
+			super(null);
 		}
 
 		private Object res = null;
 		private boolean called = false;
 
 		@Override
-		public Trampoline applyNow(Object value) {
+		protected void resume(Machine m, Object value) {
 			res = value;
 			called = true;
-			return Trampoline.theNull;
+			m.halt();
 		}
 
 		public Object getResult() {
@@ -241,8 +258,28 @@ public class CoreInterpreter extends KScheme {
 	
 	@Override
 	public void compile(Object exp) {
-		CaptureResultCont k = new CaptureResultCont(exp);
-		eval(exp, globalEnv, k).force();
+		compile(exp, true);
+	}
+
+	/**
+	 * Like {@link #compile(Object)}, for an expression that has already been
+	 * expanded, such as one read from a {@link Fasl}.
+	 */
+	void compileExpanded(Object exp) {
+		compile(exp, false);
+	}
+
+	private void compile(Object exp, boolean expand) {
+		CaptureResultCont k = new CaptureResultCont();
+		Machine m = new Machine();
+		CoreInterpreter outer = running.get();
+		running.set(this);
+		try {
+			globalEval(m, exp, expand, k);
+			m.run();
+		} finally {
+			running.set(outer);
+		}
 		lastResult =  k.getResult();
 	}
 
@@ -251,12 +288,55 @@ public class CoreInterpreter extends KScheme {
 		return lastResult;
 	}
 
+	/**
+	 * Load a source, keeping its expanded forms in a {@link Fasl} if there is a
+	 * fasl directory. Loading the same source again then skips reading and
+	 * expanding it.
+	 */
+	@Override
+	public Object load(URL resource) throws KSchemeException {
+		if (faslDirectory==null || Fasl.build()==null)
+			return super.load(resource);
+		return new Fasl(this, faslDirectory).load(resource);
+	}
+
+	/**
+	 * The directory where {@link #load(URL)} keeps Fasls. It is set by the
+	 * system property kscheme.fasl.dir, and null if that isn't set, in which
+	 * case sources are just loaded.
+	 */
+	public File getFaslDirectory() {
+		return faslDirectory;
+	}
+
+	public void setFaslDirectory(File faslDirectory) {
+		this.faslDirectory = faslDirectory;
+	}
+
+	private static File defaultFaslDirectory() {
+		String dir = System.getProperty("kscheme.fasl.dir");
+		return dir==null || dir.isEmpty() ? null : new File(dir);
+	}
+
 	@Override
 	public boolean isDefined(String name) throws KSchemeException {
 		return globalEnv.lookupRef(makeSymbol(name))!=null;
 	}
 
 	public final void require(Class<? extends Frame> clss) throws KSchemeException {
+		if (loading!=null)
+			loading.dependOn(clss);
+		Frame module = getModule(clss);
+		for (Frame.Binding binding : module.exportedBindings()) {
+			globalEnv.defineRef(binding.name, binding.value);
+		}
+	}
+
+	/**
+	 * The instance of a module in this interpreter. It is created the first
+	 * time it is asked for.
+	 */
+	Frame getModule(Class<? extends Frame> clss) throws KSchemeException {
 		Frame module = modules.get(clss);
 		if (module==null) {
 			try {
@@ -269,172 +349,249 @@ public class CoreInterpreter extends KScheme {
 						Constructor<? extends Frame> cons = clss.getConstructor(KScheme.class);
 						module = cons.newInstance(this);
 					} catch (NoSuchMethodException e2) {
-						Constructor<? extends Frame> cons = clss.getConstructor(this.getClass());
+						Constructor<? extends Frame> cons = clss.getConstructor(CoreInterpreter.class);
 						module = cons.newInstance(this);
 					}
 				}
 			} catch (Exception e) {
 				throw new KSchemeException("Could not initialize module: "+clss, e);
 			}
+			modules.put(clss, module);
 		}
-		for (Frame.Binding binding : module.exportedBindings()) {
-			globalEnv.defineRef(binding.name, binding.value);
-		}
+		return module;
+	}
+
+	Map<Object, Frame> getModules() {
+		return modules;
+	}
+
+	Env getGlobalEnv() {
+		return globalEnv;
+	}
+
+	Fasl getLoading() {
+		return loading;
+	}
+
+	void setLoading(Fasl loading) {
+		this.loading = loading;
+	}
+
+	List<ForkedReference> getForkedReferences() {
+		return forkedReferences;
+	}
+
+	Map<SSymbol, SSyntax> getSpecialForms() {
+		return specialForms;
+	}
+
+	/**
+	 * Save the global environment to an image, from which new interpreters
+	 * can be started with {@link #fromImage(InputStream)}, without loading
+	 * bootstrap.scm again.
+	 */
+	public void saveImage(OutputStream out) throws KSchemeException {
+		Image.write(this, globalEnv, out);
+	}
+
+	public static KScheme fromImage(InputStream in) throws KSchemeException {
+		CoreInterpreter interp = new CoreInterpreter();
+		interp.loadImage(in);
+		return interp;
 	}
 
+	/**
+	 * Instead of {@link #setup()}: take the global environment from an image
+	 * made by {@link #saveImage(OutputStream)}.
+	 */
+	protected void loadImage(InputStream in) throws KSchemeException {
+		initSpecialForms();
+		globalEnv = Image.read(this, in);
+	}
+
+	private static final Shape BINDINGS_SHAPE = Shape.list(Shape.list(Shape.KEEP, Shape.EXPR));
+	private static final Shape LET_SHAPE = Shape.list(Shape.KEEP, BINDINGS_SHAPE, Shape.EXPR);
+	private static final Shape NAMED_LET_SHAPE = Shape.list(Shape.KEEP, Shape.KEEP, BINDINGS_SHAPE, Shape.EXPR);
+	private static final Shape DO_SHAPE = Shape.list(Shape.KEEP, BINDINGS_SHAPE, Shape.list(Shape.EXPR), Shape.EXPR);
+	private static final Shape COND_SHAPE = Shape.list(Shape.KEEP, Shape.list(Shape.EXPR));
+	private static final Shape CASE_SHAPE = Shape.list(Shape.KEEP, Shape.EXPR, Shape.list(Shape.KEEP, Shape.EXPR));
+
 	private void initSpecialForms() throws KSchemeException {
 		specialForm("begin", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(final CoreInterpreter interpreter, Env env, IPair arg, final Cont k) {
-				try {
-					return evalSeq(interpreter, env, cdr(arg), k);
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont("applySyntax: "+arg,k,e);
-				}
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeSeq(exp, cdr(exp), scope);
 			}
-
-			private Trampoline evalSeq(final CoreInterpreter interpreter, final Env env, final Object exps, final Cont k) {
-				try {
-					if (isNull(exps)) {
-						Object result = SchemeValue.makeUndefined();
-						return k.applyCont(result);
-					}
-					else if (isNull(cdr(exps))) {
-						return interpreter.eval(car(exps), env, k);
-					}
-					else {
-						final Object rest = cdr(exps);
-						return interpreter.eval(car(exps), env, new Cont(car(exps),k) {
-
-							@Override
-							protected Trampoline applyNow(Object value) {
-								return evalSeq(interpreter, env, rest, k);
-							}
-						});
-					}
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont("evalSeq: "+exps,k,e);
-				}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 1);
 			}
 		});
 		
 		specialForm("define", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(final CoreInterpreter interpreter, Env env, IPair defExp, Cont k) {
-				try {
-					Object var = cadr(defExp);
-					Object valExp = caddr(defExp);
-					if (isPair(var)) { // expand (define (f args) ...) syntax
-						return defineIt(interpreter, env, car(var), PrimitiveSyntaxes.makeLambda(cdr(var), cddr(defExp)), k);
-					}
-					else
-						return defineIt(interpreter, env, var, valExp, k);
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont("expanding: "+defExp,k,e);
+			public Node analyze(Analyzer analyzer, Object defExp, Scope scope) throws KSchemeException {
+				Object var = cadr(defExp);
+				Object valExp;
+				if (isPair(var)) { // expand (define (f args) ...) syntax
+					valExp = PrimitiveSyntaxes.makeLambda(cdr(var), cddr(defExp));
+					var = car(var);
 				}
+				else
+					valExp = caddr(defExp);
+				return analyzer.analyzeDefine(defExp, asSymbol(var), valExp, scope);
 			}
-
-			private Trampoline defineIt(final CoreInterpreter interpreter, final Env env, final Object var, Object valExp, final Cont k) {
-				return interpreter.eval(valExp, env, new Cont(valExp,k) {
-
-					@Override
-					protected Trampoline applyNow(Object value) {
-						try {
-							if (value instanceof SMacro) {
-								specialForm(asSymbol(var).getName(), (SMacro)value);
-							}
-							env.define(asSymbol(var), value);
-						} catch (KSchemeException e) {
-							throw new ErrorWithCont("(define "+var+ " "+value+")",this,e);
-						}
-						return k.applyCont(value);
-					}
-
-//					@Override
-//					public String toString() {
-//						return "(define "+var+"*)\n"+k;
-//					}
-					
-				});
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 2);
 			}
 		});
 		
 		specialForm("if", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(final CoreInterpreter interpreter, final Env env, IPair ifExp, final Cont k) {
-				try {
-					int len = length(ifExp);
-					KSchemeAssert.assertTrue("If must have 2 or 3 arguments", len==3||len==4);
-					Object test = cadr(ifExp);
-					final Object thn  = caddr(ifExp);
-					final Object els  = len==3 ? SchemeValue.makeUndefined() : cadddr(ifExp);
-					
-					return interpreter.eval(test, env, new Cont(test,k) {
-
-						@Override
-						protected Trampoline applyNow(Object value) {
-							if (isFalse(value)) {
-								return interpreter.eval(els, env, k);
-							}
-							else {
-								return interpreter.eval(thn, env, k);
-							}
-						}
-
-//						@Override
-//						public String toString() {
-//							return "(if * "+thn+" "+els+")\n"+k;
-//						}
-						
-					});
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont(""+ifExp,k,e);
-				}
+			public Node analyze(Analyzer analyzer, Object ifExp, Scope scope) throws KSchemeException {
+				int len = length(ifExp);
+				KSchemeAssert.assertTrue("If must have 2 or 3 arguments", len==3||len==4);
+				Node test = analyzer.analyze(cadr(ifExp), scope);
+				Node thn  = analyzer.analyze(caddr(ifExp), scope);
+				Node els  = len==3 ? new Const(ifExp, SchemeValue.makeUndefined()) 
+						           : analyzer.analyze(cadddr(ifExp), scope);
+				return new If(ifExp, test, thn, els);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 1);
 			}
 		});
 		
 		specialForm("lambda", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(CoreInterpreter interp, Env env, IPair exp, Cont k) {
-				try {
-					return k.applyCont(interp.makeProcedure(cadr(exp), cddr(exp), env));
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont("applySyntax:"+exp,k,e);
-				}
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				Object formals = cadr(exp);
+				return new Lambda(exp, analyzer, formals, cddr(exp), scope.extend(formals));
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 2);
+			}
+		});
+		
+		specialForm("let", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeLet(exp, scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, isSymbol(cadr(exp)) ? NAMED_LET_SHAPE : LET_SHAPE);
+			}
+		});
+
+		specialForm("let*", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeLetStar(exp, cadr(exp), cddr(exp), scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, LET_SHAPE);
+			}
+		});
+
+		specialForm("letrec", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeLet(exp, cadr(exp), cddr(exp), scope, true);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, LET_SHAPE);
+			}
+		});
+
+		specialForm("do", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeDo(exp, scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, DO_SHAPE);
+			}
+		});
+
+		specialForm("cond", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeCond(exp, cdr(exp), scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, COND_SHAPE);
+			}
+		});
+
+		specialForm("case", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeCase(exp, scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expand(exp, CASE_SHAPE);
+			}
+		});
+
+		specialForm("and", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeAnd(exp, cdr(exp), scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 1);
+			}
+		});
+
+		specialForm("or", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeOr(exp, cdr(exp), scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 1);
+			}
+		});
+		
+		specialForm("send", new SSyntax() {
+			@Override
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				return analyzer.analyzeSend(exp, scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 1);
 			}
 		});
 		
 		specialForm("quote", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(CoreInterpreter interpreter, Env env, IPair exp, Cont k) {
-				try {
-					KSchemeAssert.assertTrue("Mallformed 'quote' expression",isNull(cddr(exp)));
-					return k.applyCont(cadr(exp));
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont(""+exp,k,e);
-				}
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				KSchemeAssert.assertTrue("Mallformed 'quote' expression",isNull(cddr(exp)));
+				return new Const(exp, cadr(exp));
 			}
 		});
 
 		specialForm("set!", new SSyntax() {
 			@Override
-			public Trampoline applySyntax(final CoreInterpreter interpreter, final Env env, final IPair exp, final Cont k) {
-				try {
-					KSchemeAssert.assertEquals("number of arguments", 3, length(exp));
-					return interpreter.eval(caddr(exp), env, new Cont(caddr(exp), k) {
-						@Override
-						protected Trampoline applyNow(Object value) {
-							try {
-								env.assign(asSymbol(cadr(exp)), value);
-							} catch (KSchemeException e) {
-								throw new ErrorWithCont(exp,k,e);
-							}
-							return k.applyCont(value);
-						}
-					});
-				} catch (KSchemeException e) {
-					throw new ErrorWithCont(""+exp, k, e);
-				}
+			public Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException {
+				KSchemeAssert.assertEquals("number of arguments", 3, length(exp));
+				return analyzer.analyzeSet(exp, asSymbol(cadr(exp)), caddr(exp), scope);
+			}
+			@Override
+			public Object expand(Expander expander, Object exp) throws KSchemeException {
+				return expander.expandElements(exp, 2);
 			}
 		});
 		
@@ -442,8 +599,10 @@ public class CoreInterpreter extends KScheme {
 
 	/** Adds a special form to this interpreter */
 	private void specialForm(String name, SSyntax formInterpreter) throws KSchemeException {
-		KSchemeAssert.assertTrue("Multiply defined special form: "+name, !specialForms.containsKey(name));
-		SSymbol sym = makeSymbol(name);
+		specialForm(makeSymbol(name), formInterpreter);
+	}
+	
+	void specialForm(SSymbol sym, SSyntax formInterpreter) throws KSchemeException {
 		specialForms.put(sym, formInterpreter);
 		globalEnv.define(sym, formInterpreter);
 		formInterpreter.gotName(sym);
@@ -470,7 +629,19 @@ public class CoreInterpreter extends KScheme {
 				}
 		}
 
-		public abstract Trampoline applySyntax(CoreInterpreter interpreter, Env env, IPair exp, Cont k);
+		/**
+		 * Convert a use of this special form into an executable Node.
+		 */
+		public abstract Node analyze(Analyzer analyzer, Object exp, Scope scope) throws KSchemeException;
+
+		/**
+		 * Expand the macro uses in a use of this special form. The default leaves
+		 * the form alone, which is right for forms without subexpressions (like quote)
+		 * and safe for forms whose shape the Expander doesn't know about.
+		 */
+		public Object expand(Expander expander, Object exp) throws KSchemeException {
+			return exp;
+		}
 
 		@Override
 		public String toString() {
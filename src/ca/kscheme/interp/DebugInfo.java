@@ -0,0 +1,70 @@
+package ca.kscheme.interp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.data.SourcePosition;
+import ca.kscheme.reader.SyntaxObj;
+
+/**
+ * Side table with the source positions of analyzed nodes, used to annotate 
+ * backtraces.
+ * <p>
+ * Positions are only recorded in debug mode, which is off by default. It can be 
+ * turned on by setting the system property "kscheme.debug" to true, or by calling 
+ * {@link #setEnabled(boolean)}. Turning it on only affects code analyzed after that.
+ * With debug mode off, backtraces show the expressions without their positions.
+ * 
+ * @author kdvolder
+ */
+public final class DebugInfo {
+	
+	private static volatile boolean enabled = Boolean.getBoolean("kscheme.debug");
+	
+	/**
+	 * Keys are compared by identity, since Node doesn't override equals. The
+	 * values are the nodes' own expressions, whose positions are only worked
+	 * out when they are asked for.
+	 */
+	private static final Map<Node, SyntaxObj> positions = 
+		Collections.synchronizedMap(new WeakHashMap<Node, SyntaxObj>());
+	
+	private DebugInfo() {}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	public static void setEnabled(boolean enabled) {
+		DebugInfo.enabled = enabled;
+	}
+	
+	/**
+	 * Record the source position of a node, if debug mode is on and the node's
+	 * expression has one.
+	 */
+	static void record(Node node) {
+		if (enabled && node.exp instanceof SyntaxObj) {
+			positions.put(node, (SyntaxObj) node.exp);
+		}
+	}
+	
+	/**
+	 * Get the recorded source position of a node, or null.
+	 */
+	public static SourcePosition getPosition(Node node) {
+		SyntaxObj syntax = positions.get(node);
+		return syntax==null ? null : syntax.getStartPos();
+	}
+
+	static String describe(Node node) {
+		SourcePosition pos = getPosition(node);
+		if (pos==null)
+			return SchemeValue.toString(node.exp);
+		else
+			return pos+"\n   "+SchemeValue.toString(node.exp);
+	}
+
+}
@@ -0,0 +1,216 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.asPair;
+import static ca.kscheme.data.SchemeValue.cons;
+import static ca.kscheme.data.SchemeValue.isPair;
+import static ca.kscheme.data.SchemeValue.unproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.commons.collections.map.AbstractReferenceMap;
+import org.apache.commons.collections.map.ReferenceIdentityMap;
+
+import ca.kscheme.data.IPair;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SMacro;
+import ca.kscheme.interp.CoreInterpreter.CaptureResultCont;
+import ca.kscheme.interp.CoreInterpreter.SSyntax;
+import ca.kscheme.reader.SyntaxObj;
+
+/**
+ * The Expander rewrites macro uses in a form before it is analyzed. It never 
+ * modifies the forms it is given: an expanded form shares the unchanged parts 
+ * of the original and gets fresh pairs where something was rewritten.
+ * <p>
+ * Expansions are cached, keyed on the identity of the macro use and the macro
+ * that expanded it, so re-analyzing the same form does not run the transformer 
+ * again, while a form that later sees a different macro for its keyword is 
+ * expanded afresh.
+ * <p>
+ * Expanding a top-level form up front is best effort. Keywords that are not 
+ * yet bound to a macro (bootstrap.scm uses some macros in procedure bodies 
+ * before it defines them) are left alone; the Analyzer expands those when it 
+ * gets to them.
+ * 
+ * @author kdvolder
+ */
+public class Expander {
+
+	/**
+	 * Describes which parts of a special form are expressions, for special forms
+	 * that the Expander needs to look into. A Shape is either {@link #EXPR} (an 
+	 * expression), {@link #KEEP} (anything else, like a variable or quoted data), 
+	 * or a list of Shapes for the elements of a list. The last Shape in a list 
+	 * applies to all remaining elements.
+	 * <p>
+	 * For example, the shape of a let expression without a name is 
+	 * <code>list(KEEP, list(list(KEEP, EXPR)), EXPR)</code>.
+	 */
+	public static final class Shape {
+		
+		public static final Shape EXPR = new Shape(null);
+		public static final Shape KEEP = new Shape(null);
+		
+		private final Shape[] elements;
+		
+		private Shape(Shape[] elements) {
+			this.elements = elements;
+		}
+		
+		public static Shape list(Shape... elements) {
+			return new Shape(elements.clone());
+		}
+		
+		Shape element(int i) {
+			return elements[Math.min(i, elements.length-1)];
+		}
+	}
+
+	/**
+	 * What a macro made of a form: the result, or the error the transformer
+	 * failed with.
+	 */
+	private static class Expansion {
+		final SMacro macro;
+		final Object result;
+		final KSchemeException failure;
+		Expansion(SMacro macro, Object result, KSchemeException failure) {
+			this.macro = macro;
+			this.result = result;
+			this.failure = failure;
+		}
+	}
+
+	private final CoreInterpreter interp;
+	
+	@SuppressWarnings("unchecked")
+	private final Map<IPair, Expansion> cache = new ReferenceIdentityMap(
+			AbstractReferenceMap.WEAK, AbstractReferenceMap.HARD);
+
+	/**
+	 * Macro uses that failed to expand up front, kept for the Analyzer, which
+	 * reports the error when it gets to the same use right after. Forgotten once
+	 * the top-level form has been analyzed: the uses in lambda bodies are only
+	 * analyzed when the lambda is first called, and by then the transformer may
+	 * well succeed, so it is run again for those.
+	 */
+	private final Map<IPair, Expansion> failures = new IdentityHashMap<IPair, Expansion>();
+
+	public Expander(CoreInterpreter interp) {
+		this.interp = interp;
+	}
+
+	/**
+	 * Expand all macro uses in a form, as far as the macros are known now.
+	 */
+	public Object expand(Object exp) throws KSchemeException {
+		if (!isPair(exp))
+			return exp;
+		SSyntax specialForm = interp.getSpecialForm(asPair(exp).car());
+		if (specialForm!=null)
+			return specialForm.expand(this, exp);
+		return expandElements(exp, 0);
+	}
+
+	/**
+	 * Expand the elements of a list form, except for the first few. Returns the
+	 * original form if none of its elements changed.
+	 */
+	public Object expandElements(Object exp, int skip) throws KSchemeException {
+		Shape[] elements = new Shape[skip+1];
+		Arrays.fill(elements, Shape.KEEP);
+		elements[skip] = Shape.EXPR;
+		return expand(exp, Shape.list(elements));
+	}
+
+	/**
+	 * Expand the parts of a form that are expressions, according to a Shape. 
+	 * Returns the original form if nothing changed.
+	 */
+	public Object expand(Object exp, Shape shape) throws KSchemeException {
+		if (shape==Shape.KEEP)
+			return exp;
+		else if (shape==Shape.EXPR)
+			return expand(exp);
+		ArrayList<Object> elements = new ArrayList<Object>();
+		boolean changed = false;
+		Object rest = unproxy(exp);
+		while (isPair(rest)) {
+			IPair pair = asPair(rest);
+			Object element = pair.car();
+			Object expanded = expand(element, shape.element(elements.size()));
+			changed |= expanded!=element;
+			elements.add(expanded);
+			rest = unproxy(pair.cdr());
+		}
+		if (!changed)
+			return exp;
+		Object result = rest;
+		for (int i = elements.size()-1; i >= 0; i--)
+			result = cons(elements.get(i), result);
+		if (exp instanceof SyntaxObj) {
+			result = new SyntaxObj(result, (SyntaxObj) exp);
+		}
+		return result;
+	}
+
+	/**
+	 * Expand a single use of a macro. The result may itself be another macro use.
+	 */
+	public Object expandOnce(SMacro macro, Object exp) throws KSchemeException {
+		IPair form = asPair(exp);
+		synchronized (cache) {
+			Expansion failed = failures.remove(form);
+			if (failed!=null && failed.macro==macro)
+				throw failed.failure;
+			Expansion cached = cache.get(form);
+			if (cached!=null && cached.macro==macro)
+				return cached.result;
+		}
+		Object result = transform(macro, form);
+		synchronized (cache) {
+			cache.put(form, new Expansion(macro, result, null));
+		}
+		return result;
+	}
+
+	/**
+	 * Keep the error a macro use failed with when it was expanded up front, so
+	 * that analyzing it right after reports that error rather than running the
+	 * transformer again.
+	 */
+	public void deferFailure(SMacro macro, Object exp, KSchemeException failure) throws KSchemeException {
+		synchronized (cache) {
+			failures.put(asPair(exp), new Expansion(macro, null, failure));
+		}
+	}
+
+	/**
+	 * Called once the top-level form that was expanded has been analyzed.
+	 */
+	void forgetFailures() {
+		synchronized (cache) {
+			failures.clear();
+		}
+	}
+
+	/**
+	 * Apply a macro transformer to a form. The transformer is run to completion
+	 * on a Machine of its own.
+	 */
+	private Object transform(SMacro macro, IPair form) throws KSchemeException {
+		CaptureResultCont k = new CaptureResultCont();
+		try {
+			Machine m = new Machine();
+			macro.getTransformer().apply(m, form, k);
+			m.run();
+		} catch (ErrorWithCont e) {
+			throw new KSchemeException("expanding "+form, e);
+		}
+		return k.getResult();
+	}
+
+}
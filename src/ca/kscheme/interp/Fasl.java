@@ -0,0 +1,446 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.isEofObject;
+import static ca.kscheme.data.SchemeValue.unproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import ca.kscheme.KScheme;
+import ca.kscheme.data.ImpossibleError;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.LineMap;
+import ca.kscheme.data.SInputPort;
+import ca.kscheme.data.SMacro;
+import ca.kscheme.data.SOutputPort;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.interp.CoreInterpreter.SSyntax;
+import ca.kscheme.namespace.Reference;
+
+/**
+ * A file with the expanded top-level forms of a Scheme source, so that
+ * loading it again skips reading and expanding it. Expanding is most of the
+ * work of loading a source, since it runs the macro transformers.
+ * <p>
+ * The forms are saved in the format of an {@link Image}, with their source
+ * positions, so errors still point into the source. A procedure that a
+ * macro put into its expansion is saved as the name of a global variable it
+ * is the value of, and that name is looked up again when the form is read.
+ * A form with anything else that can't be saved in an image, such as a
+ * procedure that isn't the value of a global variable, doesn't get a Fasl.
+ * <p>
+ * The forms are read and run one at a time, as the source would be, since a
+ * form may use what the forms before it define.
+ * <p>
+ * The name of the file is a hash of the source, its URL, the classes and 
+ * sources of the interpreter itself (see {@link #build()}) and the special
+ * forms that were defined when the source was first loaded. So a changed
+ * source, or one loaded where its macros mean something else, gets a Fasl of
+ * its own. Fasls that aren't used any more are not deleted.
+ * <p>
+ * What the source loads or requires can define macros too, as can the
+ * procedures that the expansions refer to. So the Fasl also records the
+ * sources and classes that were loaded or required while it was made, with a
+ * hash of each, and the global procedures defined before it that the forms
+ * refer to. It is only used while all of those are still the same. A macro
+ * whose expansion depends on other state, such as the value of a variable,
+ * can still get an old expansion, which is why Fasls are only kept when a
+ * directory for them is set.
+ */
+final class Fasl {
+
+	private static final int MAGIC = 0x4b534641; // "KSFA"
+	private static final int VERSION = 2;
+
+	/** The text of each procedure, for {@link #procedureText(SProcedure)} */
+	private static final Map<SProcedure, String> procedureTexts =
+		Collections.synchronizedMap(new WeakHashMap<SProcedure, String>());
+
+	/** See {@link #build()} */
+	private static byte[] build;
+	private static boolean buildKnown;
+
+	private final CoreInterpreter interp;
+	private final File directory;
+
+	/** The number of forms in the file */
+	private int forms;
+
+	/**
+	 * The sources and classes loaded or required while the source was loaded,
+	 * with a hash of each, by URL.
+	 */
+	private final Map<String, byte[]> dependencies = new LinkedHashMap<String, byte[]>();
+
+	Fasl(CoreInterpreter interp, File directory) {
+		this.interp = interp;
+		this.directory = directory;
+	}
+
+	Object load(URL source) throws KSchemeException {
+		byte[] text = readSource(source);
+		Fasl outer = interp.getLoading();
+		interp.setLoading(this);
+		try {
+			return load(source, text);
+		} finally {
+			interp.setLoading(outer);
+			if (outer!=null) {
+				outer.dependencies.put(source.toString(), digest(text));
+				outer.dependencies.putAll(dependencies);
+			}
+		}
+	}
+
+	private Object load(URL source, byte[] text) throws KSchemeException {
+		File file = new File(directory, fileName(source, text));
+		DataInputStream in = null;
+		Image.Reader reader = null;
+		if (file.isFile()) {
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				reader = readHeader(in);
+			} catch (IOException e) {
+				// Then the source is loaded again
+			}
+		}
+		if (reader==null) {
+			close(in);
+			dependencies.clear();
+			return loadSource(source, text, file);
+		}
+		try {
+			for (int i = 0; i < forms; i++)
+				interp.compileExpanded(reader.readForm());
+			return interp.execute();
+		} catch (IOException e) {
+			throw new KSchemeException("Loading "+source+" from "+file, e);
+		} finally {
+			close(in);
+			SOutputPort.flushConsole();
+		}
+	}
+
+	/**
+	 * Record that the source requires a class.
+	 */
+	void dependOn(Class<?> clss) {
+		URL url = clss.getResource("/"+clss.getName().replace('.', '/')+".class");
+		if (url==null)
+			return;
+		try {
+			dependencies.put(url.toString(), digest(readSource(url)));
+		} catch (KSchemeException e) {
+			// A class that can't be read can't change either
+		}
+	}
+
+	/**
+	 * Read the header, up to the forms.
+	 * 
+	 * @return a Reader for the forms, or null if the file wasn't written by
+	 * this version, or something it depends on has changed.
+	 */
+	private Image.Reader readHeader(DataInputStream in) throws IOException, KSchemeException {
+		if (in.readInt()!=MAGIC || in.readInt()!=VERSION)
+			return null;
+		for (int n = in.readInt(); n>0; n--) {
+			String url = in.readUTF();
+			byte[] digest = readDigest(in);
+			dependencies.put(url, digest);
+			byte[] text;
+			try {
+				text = readSource(new URL(url));
+			} catch (KSchemeException e) {
+				return null;
+			}
+			if (!Arrays.equals(digest, digest(text)))
+				return null;
+		}
+		for (int n = in.readInt(); n>0; n--) {
+			SSymbol name = SSymbol.intern(in.readUTF());
+			byte[] digest = readDigest(in);
+			Reference<Object> ref = interp.getGlobalEnv().lookupRef(name);
+			Object value = ref==null ? null : ref.get();
+			if (!(value instanceof SProcedure) || !Arrays.equals(digest, digest(procedureText((SProcedure) value))))
+				return null;
+		}
+		forms = in.readInt();
+		LineMap[] lineMaps = new LineMap[in.readInt()];
+		for (int i = 0; i < lineMaps.length; i++)
+			lineMaps[i] = Image.readLines(in);
+		return new Image.Reader(interp, in, lineMaps);
+	}
+
+	private static void close(InputStream in) {
+		try {
+			if (in!=null)
+				in.close();
+		} catch (IOException e) {
+			// It was only read
+		}
+	}
+
+	/**
+	 * Load the source as {@link KScheme#load(SInputPort)} does, and save its
+	 * expanded forms in file, if they can be saved.
+	 */
+	private Object loadSource(URL source, byte[] text, File file) throws KSchemeException {
+		SInputPort input = new SInputPort(new InputStreamReader(new ByteArrayInputStream(text)), source);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Image.Writer writer;
+		try {
+			writer = new Image.Writer(interp, out, interp.getGlobalEnv());
+		} catch (KSchemeException e) {
+			writer = null;
+		}
+		int count = 0;
+		try {
+			Object exp = interp.read(input);
+			while (!isEofObject(exp)) {
+				Object expanded;
+				try {
+					expanded = interp.getExpander().expand(exp);
+				} catch (KSchemeException e) {
+					// Compiling it reports the error, as it always has
+					expanded = null;
+				}
+				if (expanded==null) {
+					writer = null;
+					interp.compile(exp);
+				} else {
+					if (writer!=null) {
+						try {
+							writer.write(expanded);
+							count++;
+						} catch (KSchemeException e) {
+							writer = null;
+						} catch (IOException e) {
+							throw new ImpossibleError(e);
+						}
+					}
+					interp.compileExpanded(expanded);
+				}
+				exp = interp.read(input);
+			}
+			Object result = interp.execute();
+			if (writer!=null)
+				save(file, writer, count, bytes);
+			return result;
+		} finally {
+			SOutputPort.flushConsole();
+		}
+	}
+
+	/**
+	 * Write the file, if that can be done. It is written under another name
+	 * first, so that no one ever reads half of it.
+	 */
+	private void save(File file, Image.Writer writer, int forms, ByteArrayOutputStream bytes) throws KSchemeException {
+		List<LineMap> lineMaps = writer.getLineMaps();
+		Map<SSymbol, Object> globals = writer.getUsedGlobals();
+		File temp = null;
+		try {
+			directory.mkdirs();
+			temp = File.createTempFile(file.getName(), ".tmp", directory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(dependencies.size());
+				for (Map.Entry<String, byte[]> dependency : dependencies.entrySet()) {
+					out.writeUTF(dependency.getKey());
+					out.write(dependency.getValue());
+				}
+				out.writeInt(globals.size());
+				for (Map.Entry<SSymbol, Object> global : globals.entrySet()) {
+					out.writeUTF(global.getKey().getName());
+					out.write(digest(procedureText((SProcedure) global.getValue())));
+				}
+				out.writeInt(forms);
+				out.writeInt(lineMaps.size());
+				for (LineMap lines : lineMaps)
+					Image.writeLines(out, lines);
+				bytes.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (temp.renameTo(file))
+				temp = null;
+		} catch (IOException e) {
+			// Then there is no Fasl, and the source is loaded again next time
+		} finally {
+			if (temp!=null)
+				temp.delete();
+		}
+	}
+
+	private static byte[] readSource(URL source) throws KSchemeException {
+		try {
+			InputStream in = source.openStream();
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int n = in.read(buffer); n>=0; n = in.read(buffer))
+					bytes.write(buffer, 0, n);
+				return bytes.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new KSchemeException("makeInputPort "+source, e);
+		}
+	}
+
+	private String fileName(URL source, byte[] text) throws KSchemeException {
+		MessageDigest digest = newDigest();
+		digest.update((VERSION+" "+Image.VERSION+"\n").getBytes(StandardCharsets.UTF_8));
+		digest.update(build());
+		digest.update((source+"\n").getBytes(StandardCharsets.UTF_8));
+		digest.update(specialForms().getBytes(StandardCharsets.UTF_8));
+		digest.update(text);
+		StringBuilder name = new StringBuilder();
+		String path = source.getPath();
+		for (char c : path.substring(path.lastIndexOf('/')+1).toCharArray())
+			name.append(Character.isLetterOrDigit(c) || c=='.' || c=='-' ? c : '_');
+		name.append('-');
+		for (byte b : digest.digest())
+			name.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+		return name.append(".fasl").toString();
+	}
+
+	/**
+	 * The special forms that are defined now, as text: the name of each, and
+	 * the class of a built-in one or the text of a macro's transformer.
+	 */
+	private String specialForms() throws KSchemeException {
+		Map<String, String> forms = new TreeMap<String, String>();
+		for (Map.Entry<SSymbol, SSyntax> entry : interp.getSpecialForms().entrySet()) {
+			SSyntax form = entry.getValue();
+			forms.put(entry.getKey().getName(), form instanceof SMacro 
+					? procedureText(((SMacro) form).getTransformer())
+					: form.getClass().getName());
+		}
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, String> entry : forms.entrySet())
+			text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		return text.toString();
+	}
+
+	/**
+	 * The source of a lambda's procedure, or the class and name of another one.
+	 */
+	private String procedureText(SProcedure proc) throws KSchemeException {
+		String text = procedureTexts.get(proc);
+		if (text==null) {
+			text = proc instanceof SLambdaProcedure
+					? interp.toString(unproxy(((SLambdaProcedure) proc).getLambda().getExp()))
+					: proc.getClass().getName()+" "+proc.getName();
+			procedureTexts.put(proc, text);
+		}
+		return text;
+	}
+
+	/**
+	 * A hash of the classes and sources of the interpreter, so that a Fasl
+	 * made by one build isn't used by another, whatever its version says. It
+	 * is made from the jar or directory that the interpreter was loaded from,
+	 * once. Null if that can't be read, and then no Fasls are used.
+	 */
+	static synchronized byte[] build() {
+		if (!buildKnown) {
+			buildKnown = true;
+			try {
+				CodeSource code = KScheme.class.getProtectionDomain().getCodeSource();
+				File location = new File(code.getLocation().toURI());
+				MessageDigest digest = newDigest();
+				byte[] buffer = new byte[8192];
+				List<File> files = new ArrayList<File>();
+				listFiles(location, files);
+				int prefix = location.getPath().length();
+				for (File file : files) {
+					digest.update(file.getPath().substring(prefix).getBytes(StandardCharsets.UTF_8));
+					InputStream in = new FileInputStream(file);
+					try {
+						for (int n = in.read(buffer); n>=0; n = in.read(buffer))
+							digest.update(buffer, 0, n);
+					} finally {
+						in.close();
+					}
+				}
+				build = digest.digest();
+			} catch (Exception e) {
+				// No code source, or not one in a file
+				build = null;
+			}
+		}
+		return build;
+	}
+
+	/**
+	 * The files in a directory and its subdirectories, in order, or the file 
+	 * itself.
+	 */
+	private static void listFiles(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children==null) {
+			files.add(dir);
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory())
+				listFiles(child, files);
+			else
+				files.add(child);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ImpossibleError(e);
+		}
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		return newDigest().digest(bytes);
+	}
+
+	private static byte[] digest(String text) {
+		return digest(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] readDigest(DataInputStream in) throws IOException {
+		byte[] digest = new byte[32];
+		in.readFully(digest);
+		return digest;
+	}
+
+}
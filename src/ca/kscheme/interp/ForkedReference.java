@@ -0,0 +1,98 @@
+package ca.kscheme.interp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.namespace.Env;
+import ca.kscheme.namespace.MutableReference;
+import ca.kscheme.namespace.Reference;
+
+/**
+ * The location of a global variable of the frames that forks share (see
+ * {@link CoreInterpreter#fork()}), once it has been assigned by one of the
+ * interpreters that share it. It replaces the variable's original location
+ * there. Each interpreter that assigns it gets a value of its own, which its
+ * forks start out with. The others still see the value of the original location.
+ * <p>
+ * The value that is used is the one of the interpreter running code on the
+ * current thread, rather than of the one the code was analyzed in, since
+ * procedures defined before forking are shared by all forks.
+ */
+final class ForkedReference extends Reference<Object> {
+
+	private final Reference<Object> original;
+
+	private final Map<CoreInterpreter, MutableReference<Object>> values =
+		Collections.synchronizedMap(new WeakHashMap<CoreInterpreter, MutableReference<Object>>());
+
+	private ForkedReference(Reference<Object> original) {
+		this.original = original;
+	}
+
+	/**
+	 * The location that assigning a global variable must set, given the location
+	 * it was looked up to. That is the location itself, unless the interpreter
+	 * that is running shares it with forks. Then it is the ForkedReference that
+	 * replaces it, made now if this is the first assignment since forking.
+	 */
+	static Reference<Object> toAssign(SSymbol name, Reference<Object> ref) throws KSchemeException {
+		CoreInterpreter interp = CoreInterpreter.running();
+		if (interp==null || !(ref instanceof MutableReference))
+			return ref;
+		Env env = interp.getGlobalEnv();
+		Reference<Object> shared = env.lookupShared(name);
+		if (shared!=ref && !(shared instanceof ForkedReference))
+			return ref;
+		synchronized (ForkedReference.class) {
+			shared = env.lookupShared(name);
+			if (shared==ref) {
+				shared = new ForkedReference(ref);
+				env.replaceShared(name, ref, shared);
+			}
+		}
+		// A location that was looked up before it was replaced
+		if (shared instanceof ForkedReference && ((ForkedReference) shared).original==ref)
+			return shared;
+		return ref;
+	}
+
+	/**
+	 * Let a new fork start out with the values of the interpreter it is forked from.
+	 */
+	static void fork(CoreInterpreter parent, CoreInterpreter fork) throws KSchemeException {
+		for (ForkedReference ref : parent.getForkedReferences()) {
+			ref.values.put(fork, new MutableReference<Object>(ref.get(parent)));
+			fork.getForkedReferences().add(ref);
+		}
+	}
+
+	Object get(CoreInterpreter interp) throws KSchemeException {
+		MutableReference<Object> value = interp==null ? null : values.get(interp);
+		return value==null ? original.get() : value.get();
+	}
+
+	@Override
+	public Object get() throws KSchemeException {
+		return get(CoreInterpreter.running());
+	}
+
+	@Override
+	public void set(Object newValue) throws KSchemeException {
+		CoreInterpreter interp = CoreInterpreter.running();
+		if (interp==null) {
+			original.set(newValue);
+			return;
+		}
+		MutableReference<Object> value = values.get(interp);
+		if (value==null) {
+			values.put(interp, new MutableReference<Object>(newValue));
+			interp.getForkedReferences().add(this);
+		}
+		else
+			value.set(newValue);
+	}
+
+}
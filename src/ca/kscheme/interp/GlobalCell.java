@@ -0,0 +1,44 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.namespace.Env;
+import ca.kscheme.namespace.Reference;
+
+/**
+ * Inline cache entry for a global variable use site: the location a name 
+ * resolved to, stamped with the symbol's binding version at the time of the 
+ * lookup. The entry remains valid as long as no new binding for the symbol 
+ * has been created since (see {@link SSymbol#getBindingVersion()}).
+ * <p>
+ * Instances are immutable so that a use site can replace its entry with a 
+ * single field write, even when shared between threads.
+ */
+final class GlobalCell {
+
+	final Reference<Object> ref;
+	private final int version;
+
+	private GlobalCell(Reference<Object> ref, int version) {
+		this.ref = ref;
+		this.version = version;
+	}
+
+	boolean isValidFor(SSymbol name) {
+		return version == name.getBindingVersion();
+	}
+
+	/**
+	 * Resolve a name in the global environment, throwing if it is unbound. 
+	 * The version is read before the lookup, so a define racing with us can 
+	 * only make the new entry look stale, never fresh.
+	 */
+	static GlobalCell resolve(Env globalEnv, SSymbol name) throws KSchemeException {
+		int version = name.getBindingVersion();
+		Reference<Object> ref = globalEnv.lookupRef(name);
+		if (ref==null)
+			throw new KSchemeException("Unbound identifier: "+name);
+		return new GlobalCell(ref, version);
+	}
+
+}
@@ -0,0 +1,37 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SMacro;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.namespace.Env;
+
+/**
+ * Node for a (define var exp) expression at the top level. The variable is 
+ * defined in the global environment's innermost frame.
+ */
+public class GlobalDefine extends Assignment {
+
+	private final CoreInterpreter interp;
+	private final SSymbol var;
+	private final Env globalEnv;
+
+	public GlobalDefine(Object exp, CoreInterpreter interp, SSymbol var, Env globalEnv, Node value) {
+		super(exp, value);
+		this.interp = interp;
+		this.var = var;
+		this.globalEnv = globalEnv;
+	}
+
+	@Override
+	public void assign(Object[] frame, Object val, Cont k) {
+		try {
+			if (val instanceof SMacro) {
+				interp.specialForm(var, (SMacro)val);
+			}
+			globalEnv.define(var, val);
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("(define "+var+ " "+val+")",k,e);
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.namespace.Env;
+
+/**
+ * Node for a reference to a variable that is not lexically bound. It is looked up
+ * directly in the global environment the expression was analyzed in, skipping 
+ * any local frames.
+ * <p>
+ * The resolved location is cached in the node and only looked up again after
+ * a new binding for the name has been defined somewhere.
+ */
+public class GlobalRef extends SimpleNode {
+
+	private final SSymbol name;
+	private final Env globalEnv;
+	private GlobalCell cache;
+
+	public GlobalRef(Object exp, SSymbol name, Env globalEnv) {
+		super(exp);
+		this.name = name;
+		this.globalEnv = globalEnv;
+	}
+
+	public SSymbol getName() {
+		return name;
+	}
+
+	@Override
+	public Object value(Object[] frame) throws KSchemeException {
+		GlobalCell cell = cache;
+		if (cell==null || !cell.isValidFor(name))
+			cache = cell = GlobalCell.resolve(globalEnv, name);
+		return cell.ref.get();
+	}
+
+}
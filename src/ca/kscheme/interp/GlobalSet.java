@@ -0,0 +1,38 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.namespace.Env;
+
+/**
+ * Node for a (set! var exp) expression, where var is not lexically bound.
+ */
+public class GlobalSet extends Assignment {
+
+	private final SSymbol var;
+	private final Env globalEnv;
+	private GlobalCell cache;
+
+	public GlobalSet(Object exp, SSymbol var, Env globalEnv, Node value) {
+		super(exp, value);
+		this.var = var;
+		this.globalEnv = globalEnv;
+	}
+
+	@Override
+	public void assign(Object[] frame, Object val, Cont k) {
+		try {
+			GlobalCell cell = cache;
+			if (cell==null || !cell.isValidFor(var))
+				cache = cell = GlobalCell.resolve(globalEnv, var);
+			ForkedReference.toAssign(var, cell.ref).set(val);
+			if (val instanceof SchemeValue) {
+				((SchemeValue)val).gotName(var);
+			}
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont(exp,k,e);
+		}
+	}
+
+}
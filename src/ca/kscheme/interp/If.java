@@ -0,0 +1,62 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.isFalse;
+
+import ca.kscheme.data.KSchemeException;
+
+
+/**
+ * Node for an (if test thn els) expression.
+ */
+public class If extends Node {
+
+	private final Node test;
+	private final Node thn;
+	private final Node els;
+
+	public If(Object exp, Node test, Node thn, Node els) {
+		super(exp);
+		this.test = test;
+		this.thn = thn;
+		this.els = els;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		if (test.hasValue()) {
+			Object value;
+			try {
+				value = test.value(frame);
+			} catch (KSchemeException e) {
+				k.raise(m, test.exp, e);
+				return;
+			}
+			branch(m, frame, value, k);
+		}
+		else
+			m.eval(test, frame, new IfFrame(this, frame, k));
+	}
+
+	/**
+	 * Continue with the branch selected by the value of the test.
+	 */
+	void branch(Machine m, Object[] frame, Object value, Cont k) {
+		if (isFalse(value))
+			els.exec(m, frame, k);
+		else
+			thn.exec(m, frame, k);
+	}
+
+	public Node getTest() {
+		return test;
+	}
+
+	public Node getThen() {
+		return thn;
+	}
+
+	public Node getElse() {
+		return els;
+	}
+
+}
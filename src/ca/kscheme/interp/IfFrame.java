@@ -0,0 +1,27 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of the test of an {@link If} node.
+ */
+final class IfFrame extends Cont {
+
+	private final If node;
+	private final Object[] frame;
+
+	IfFrame(If node, Object[] frame, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.frame = frame;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getTest();
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		node.branch(m, frame, value, parent);
+	}
+
+}
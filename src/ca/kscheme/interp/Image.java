@@ -0,0 +1,1079 @@
+package ca.kscheme.interp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.LineMap;
+import ca.kscheme.data.PrimitiveProcedure;
+import ca.kscheme.data.SHashTable;
+import ca.kscheme.data.SMacro;
+import ca.kscheme.data.SPair;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.CoreInterpreter.SSyntax;
+import ca.kscheme.namespace.AppendFrame;
+import ca.kscheme.namespace.Env;
+import ca.kscheme.namespace.Frame;
+import ca.kscheme.namespace.HashFrame;
+import ca.kscheme.namespace.ImmutableRef;
+import ca.kscheme.namespace.MutableReference;
+import ca.kscheme.namespace.Reference;
+import ca.kscheme.primitives.ConstructorInvoker;
+import ca.kscheme.primitives.InstanceMethodInvoker;
+import ca.kscheme.primitives.StaticMethodInvoker;
+import ca.kscheme.reader.SyntaxObj;
+
+/**
+ * A saved global environment, from which an interpreter can be started
+ * without loading bootstrap.scm again.
+ * <p>
+ * The image is a compact binary form of what is reachable from the global
+ * environment: data, and the closures and Lambda nodes made by bootstrap.scm.
+ * Lambdas are saved with their source and Scope, but without their analyzed
+ * body, which is analyzed again on the first call, as in a fresh interpreter.
+ * What belongs to the Java side of the interpreter is saved as a description,
+ * and looked up again when the image is read:
+ * <ul>
+ * <li>modules, and the procedures and variables they export, by module class
+ * and name;
+ * <li>special forms, by name, except macros defined in Scheme;
+ * <li>invokers of Java methods and constructors, by class, name and
+ * parameter types.
+ * </ul>
+ * The global environment is saved as the HashFrames that protectEnv stacked
+ * up, and the Env of a Scope as the number of those it sees.
+ * <p>
+ * Every object is saved once, and referred to by number after that. Pairs,
+ * vectors, hash tables and closures are created before their contents are
+ * read, so they can be part of cycles. Other objects are only created once
+ * their parts have been read, and saving a cycle through one of those fails,
+ * as does saving ports and other Java objects.
+ * <p>
+ * This doesn't use Java serialization, because in a fresh JVM that takes
+ * longer to start up than running bootstrap.scm does.
+ * <p>
+ * The same format is used for the forms saved in a {@link Fasl}.
+ */
+final class Image {
+
+	private static final int MAGIC = 0x4b53494d; // "KSIM"
+	static final int VERSION = 1;
+
+	// What follows in the image, for each object
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int INT = 3;
+	private static final int DOUBLE = 4;
+	private static final int CHAR = 5;
+	private static final int REF = 6;
+	private static final int STRING = 7;
+	private static final int SYMBOL = 8;
+	private static final int GENSYM = 9;
+	private static final int PAIRS = 10;
+	private static final int VECTOR = 11;
+	private static final int SYNTAX = 12;
+	private static final int LINES = 13;
+	private static final int LAMBDA = 14;
+	private static final int SCOPE = 15;
+	private static final int CLOSURE = 16;
+	private static final int MACRO = 17;
+	private static final int MUTABLE_REF = 18;
+	private static final int IMMUTABLE_REF = 19;
+	private static final int HASH_TABLE = 20;
+	private static final int ENV = 21;
+	private static final int MODULE = 22;
+	private static final int MODULE_REF = 23;
+	private static final int MODULE_VALUE = 24;
+	private static final int SPECIAL_FORM = 25;
+	private static final int STATIC_METHOD = 26;
+	private static final int INSTANCE_METHOD = 27;
+	private static final int PRIMITIVE = 28;
+	private static final int CONSTRUCTOR = 29;
+	private static final int JAVA_CLASS = 30;
+	private static final int TOKEN = 31;
+	// Only in the forms of a Fasl
+	private static final int GLOBAL_VALUE = 32;
+	private static final int LINE_TABLE = 33;
+
+	private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<String, Class<?>>();
+	static {
+		for (Class<?> c : new Class<?>[] { boolean.class, byte.class, char.class, short.class,
+				int.class, long.class, float.class, double.class, void.class })
+			PRIMITIVE_TYPES.put(c.getName(), c);
+	}
+
+	private Image() {}
+
+	static void write(CoreInterpreter interp, Env env, OutputStream out) throws KSchemeException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		try {
+			new Writer(interp, data).writeImage(env);
+			data.flush();
+		} catch (IOException e) {
+			throw new KSchemeException("Writing image", e);
+		}
+	}
+
+	/**
+	 * Read the global environment from an image, and add the macros saved
+	 * with it to the special forms of interp.
+	 */
+	static Env read(CoreInterpreter interp, InputStream in) throws KSchemeException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		try {
+			return new Reader(interp, data).readImage();
+		} catch (IOException e) {
+			throw new KSchemeException("Reading image", e);
+		} catch (ClassCastException e) {
+			throw new KSchemeException("Reading image: not a valid image", e);
+		}
+	}
+
+	static void writeLines(DataOutputStream out, LineMap lines) throws IOException {
+		URL url = lines.getSourceURL();
+		out.writeUTF(url==null ? "" : url.toString());
+		int[] starts = lines.getLineStarts();
+		out.writeInt(starts.length);
+		for (int start : starts)
+			out.writeInt(start);
+	}
+
+	static LineMap readLines(DataInputStream in) throws IOException {
+		String url = in.readUTF();
+		int[] starts = new int[in.readInt()];
+		for (int i = 0; i < starts.length; i++)
+			starts[i] = in.readInt();
+		return new LineMap(url.isEmpty() ? null : new URL(url), starts);
+	}
+
+	/**
+	 * The HashFrames of a global environment, starting with the one that
+	 * protectEnv extended first.
+	 */
+	private static List<Frame> framesOf(Env env) throws KSchemeException {
+		LinkedList<Frame> frames = new LinkedList<Frame>();
+		Frame frame = env.getFrame();
+		while (frame instanceof AppendFrame) {
+			frames.addFirst(((AppendFrame) frame).getRight());
+			frame = ((AppendFrame) frame).getLeft();
+		}
+		frames.addFirst(frame);
+		for (Frame f : frames)
+			if (f.getClass()!=HashFrame.class)
+				throw new KSchemeException("Can't save a global environment with a "+f.getClass().getName());
+		return frames;
+	}
+
+	/**
+	 * How an object is saved that can be found again by name.
+	 */
+	private static class Name {
+		final int tag;
+		final Class<?> module;
+		final SSymbol name;
+		Name(int tag, Class<?> module, SSymbol name) {
+			this.tag = tag;
+			this.module = module;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Writes an image, or the forms of a {@link Fasl}, one at a time.
+	 */
+	static class Writer {
+
+		/**
+		 * Something to write after the parts of an object that come before it.
+		 */
+		private abstract static class Step {
+			abstract void run() throws IOException, KSchemeException;
+		}
+
+		private final CoreInterpreter interp;
+		private final DataOutputStream out;
+		private final Map<Object, Integer> handles = new IdentityHashMap<Object, Integer>();
+		private final Map<Object, Name> names = new IdentityHashMap<Object, Name>();
+		private final Map<SSymbol, SSyntax> specialForms;
+
+		/**
+		 * The objects being written that are only created once their parts are
+		 * read. Those parts can't refer to them.
+		 */
+		private final Map<Object, Boolean> unfinished = new IdentityHashMap<Object, Boolean>();
+
+		/** What is left to write of the object being written, last first: objects, and Steps */
+		private final List<Object> todo = new ArrayList<Object>();
+
+		/** The frame of each global Env, and the number of HashFrames it has */
+		private final Map<Frame, Integer> envFrames = new IdentityHashMap<Frame, Integer>();
+
+		/**
+		 * For the forms of a Fasl: the global environment they are run in, and
+		 * the LineMaps they refer to, which are written separately, once they
+		 * are complete.
+		 */
+		private Env globals;
+		private List<LineMap> lineMaps;
+
+		/**
+		 * For the forms of a Fasl: the procedures that were the values of 
+		 * global variables before the first form was written, and those of
+		 * them that the forms refer to.
+		 */
+		private Map<Object, SSymbol> oldGlobals;
+		private Map<SSymbol, Object> usedGlobals;
+
+		Writer(CoreInterpreter interp, DataOutputStream out) throws KSchemeException {
+			this.interp = interp;
+			this.out = out;
+			for (Frame module : interp.getModules().values()) {
+				Class<?> clss = module.getClass();
+				names.put(module, new Name(MODULE, clss, null));
+				for (Frame.Binding binding : module.exportedBindings()) {
+					names.put(binding.value, new Name(MODULE_REF, clss, binding.name));
+					Object value = binding.value.get();
+					if ((value instanceof SProcedure || value instanceof SSyntax) && !names.containsKey(value))
+						names.put(value, new Name(MODULE_VALUE, clss, binding.name));
+				}
+			}
+			specialForms = interp.getSpecialForms();
+			for (Map.Entry<SSymbol, SSyntax> entry : specialForms.entrySet())
+				if (!(entry.getValue() instanceof SMacro))
+					names.put(entry.getValue(), new Name(SPECIAL_FORM, null, entry.getKey()));
+		}
+
+		/**
+		 * A Writer for the forms of a Fasl, which are run in globals. Procedures
+		 * that macros put in their expansions are written as the name of a
+		 * global variable they are the value of, and looked up again when the
+		 * form is read.
+		 */
+		Writer(CoreInterpreter interp, DataOutputStream out, Env globals) throws KSchemeException {
+			this(interp, out);
+			this.globals = globals;
+			this.lineMaps = new ArrayList<LineMap>();
+			this.usedGlobals = new LinkedHashMap<SSymbol, Object>();
+			nameGlobals();
+			oldGlobals = new IdentityHashMap<Object, SSymbol>();
+			for (Map.Entry<Object, Name> entry : names.entrySet())
+				if (entry.getValue().tag==GLOBAL_VALUE)
+					oldGlobals.put(entry.getKey(), entry.getValue().name);
+		}
+
+		List<LineMap> getLineMaps() {
+			return lineMaps;
+		}
+
+		/**
+		 * The global variables that were defined before the first form was
+		 * written and that the forms refer to by name, with their values.
+		 * Variables defined since are defined again when the forms are run.
+		 */
+		Map<SSymbol, Object> getUsedGlobals() {
+			return usedGlobals;
+		}
+
+		/**
+		 * (Re)name the procedures that are the values of global variables.
+		 */
+		private void nameGlobals() throws KSchemeException {
+			Iterator<Name> it = names.values().iterator();
+			while (it.hasNext())
+				if (it.next().tag==GLOBAL_VALUE)
+					it.remove();
+			List<Frame> frames = framesOf(globals);
+			for (int i = frames.size()-1; i>=0; i--) {
+				for (Frame.Binding binding : frames.get(i).exportedBindings()) {
+					Object value = binding.value.get();
+					if (value instanceof SProcedure && !names.containsKey(value) && isGlobalValue(binding.name, value))
+						names.put(value, new Name(GLOBAL_VALUE, null, binding.name));
+				}
+			}
+		}
+
+		private boolean isGlobalValue(SSymbol name, Object value) throws KSchemeException {
+			Reference<Object> ref = globals.lookupRef(name);
+			return ref!=null && ref.get()==value;
+		}
+
+		void writeImage(Env env) throws IOException, KSchemeException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			List<Frame> frames = framesOf(env);
+			Frame frame = env.getFrame();
+			for (int n = frames.size(); frame instanceof AppendFrame; n--) {
+				envFrames.put(frame, n);
+				frame = ((AppendFrame) frame).getLeft();
+			}
+			envFrames.put(frame, 1);
+			out.writeInt(frames.size());
+			for (Frame f : frames) {
+				List<Frame.Binding> bindings = new ArrayList<Frame.Binding>();
+				for (Frame.Binding binding : f.exportedBindings())
+					bindings.add(binding);
+				out.writeInt(bindings.size());
+				for (Frame.Binding binding : bindings) {
+					write(binding.name);
+					write(binding.value);
+				}
+			}
+			List<Map.Entry<SSymbol, SSyntax>> macros = new ArrayList<Map.Entry<SSymbol, SSyntax>>();
+			for (Map.Entry<SSymbol, SSyntax> entry : specialForms.entrySet())
+				if (entry.getValue() instanceof SMacro)
+					macros.add(entry);
+			out.writeInt(macros.size());
+			for (Map.Entry<SSymbol, SSyntax> entry : macros) {
+				write(entry.getKey());
+				write(entry.getValue());
+			}
+		}
+
+		/**
+		 * Write an object. Its parts are written from {@link #todo} rather than
+		 * recursively, so data can be nested as deeply as the heap allows.
+		 */
+		void write(Object x) throws IOException, KSchemeException {
+			int base = todo.size();
+			todo.add(x);
+			while (todo.size()>base) {
+				Object next = todo.remove(todo.size()-1);
+				if (next instanceof Step)
+					((Step) next).run();
+				else
+					writeOne(next);
+			}
+		}
+
+		/**
+		 * Write the parts of an object, in order, once what is being written
+		 * now is done.
+		 */
+		private void then(Object... parts) {
+			for (int i = parts.length-1; i>=0; i--)
+				todo.add(parts[i]);
+		}
+
+		/**
+		 * A Step that ends writing an object that is only created once its
+		 * parts are read.
+		 */
+		private Step finish(final Object x) {
+			return new Step() {
+				@Override
+				void run() {
+					unfinished.remove(x);
+				}
+			};
+		}
+
+		private void writeOne(Object x) throws IOException, KSchemeException {
+			if (x==null) {
+				out.writeByte(NULL);
+				return;
+			}
+			if (x instanceof Boolean) {
+				out.writeByte((Boolean) x ? TRUE : FALSE);
+				return;
+			}
+			if (x instanceof Integer) {
+				out.writeByte(INT);
+				out.writeInt((Integer) x);
+				return;
+			}
+			if (x instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) x);
+				return;
+			}
+			if (x instanceof Character) {
+				out.writeByte(CHAR);
+				out.writeChar((Character) x);
+				return;
+			}
+			if (x instanceof Env) {
+				Integer n = envFrames.get(((Env) x).getFrame());
+				if (n==null)
+					throw new KSchemeException("Can't save an environment other than the global one");
+				out.writeByte(ENV);
+				out.writeInt(n);
+				return;
+			}
+			Integer handle = handles.get(x);
+			if (handle!=null) {
+				if (unfinished.containsKey(x))
+					throw new KSchemeException("Can't save a cycle through a "+x.getClass().getName());
+				out.writeByte(REF);
+				out.writeInt(handle);
+				return;
+			}
+			handles.put(x, handles.size());
+			Name name = names.get(x);
+			if (globals!=null && (name==null ? x instanceof SProcedure
+					: name.tag==GLOBAL_VALUE && !isGlobalValue(name.name, x))) {
+				nameGlobals();
+				name = names.get(x);
+			}
+			if (name!=null) {
+				if (name.tag==GLOBAL_VALUE && oldGlobals.get(x)==name.name)
+					usedGlobals.put(name.name, x);
+				out.writeByte(name.tag);
+				if (name.module!=null)
+					out.writeUTF(name.module.getName());
+				if (name.name!=null)
+					then(name.name);
+			}
+			else if (x instanceof String) {
+				out.writeByte(STRING);
+				writeString((String) x);
+			}
+			else if (x instanceof SSymbol) {
+				SSymbol sym = (SSymbol) x;
+				out.writeByte(sym.isInterned() ? SYMBOL : GENSYM);
+				writeString(sym.getName());
+			}
+			else if (x instanceof SPair)
+				writePairs((SPair) x);
+			else if (x.getClass()==Object[].class) {
+				out.writeByte(VECTOR);
+				writeElements((Object[]) x);
+			}
+			else if (x instanceof SyntaxObj) {
+				final SyntaxObj syntax = (SyntaxObj) x;
+				unfinished.put(x, true);
+				out.writeByte(SYNTAX);
+				then(syntax.unproxy(), syntax.getLineMap(), new Step() {
+					@Override
+					void run() throws IOException {
+						out.writeInt(syntax.getStartOffset());
+						out.writeInt(syntax.getEndOffset());
+						unfinished.remove(syntax);
+					}
+				});
+			}
+			else if (x instanceof LineMap && lineMaps!=null) {
+				out.writeByte(LINE_TABLE);
+				out.writeInt(lineMaps.size());
+				lineMaps.add((LineMap) x);
+			}
+			else if (x instanceof LineMap) {
+				out.writeByte(LINES);
+				writeLines(out, (LineMap) x);
+			}
+			else if (x instanceof Lambda) {
+				Lambda lambda = (Lambda) x;
+				unfinished.put(x, true);
+				out.writeByte(LAMBDA);
+				then(lambda.getExp(), lambda.getFormals(), lambda.getBodyExp(), lambda.getScope(),
+						lambda.getName(), finish(x));
+			}
+			else if (x instanceof Scope) {
+				final Scope scope = (Scope) x;
+				unfinished.put(x, true);
+				out.writeByte(SCOPE);
+				then(scope.getParent(), scope.getGlobalEnv(), new Step() {
+					@Override
+					void run() throws IOException {
+						List<Object> parts = new ArrayList<Object>(scope.getNames());
+						out.writeInt(parts.size());
+						parts.add(new Step() {
+							@Override
+							void run() throws IOException {
+								out.writeInt(scope.getNumRequired());
+								out.writeBoolean(scope.hasRest());
+								out.writeInt(scope.getEpochSlot());
+								unfinished.remove(scope);
+							}
+						});
+						then(parts.toArray());
+					}
+				});
+			}
+			else if (x.getClass()==SLambdaProcedure.class) {
+				// The closure is created before its frame is read, since the
+				// frame may well contain it.
+				final SLambdaProcedure proc = (SLambdaProcedure) x;
+				unfinished.put(x, true);
+				out.writeByte(CLOSURE);
+				then(proc.getLambda(), proc.getName(), new Step() {
+					@Override
+					void run() throws IOException {
+						unfinished.remove(proc);
+						Object[] frame = proc.getEnv();
+						if (frame==null || handles.containsKey(frame))
+							then((Object) frame);
+						else {
+							handles.put(frame, handles.size());
+							out.writeByte(VECTOR);
+							writeElements(frame);
+						}
+					}
+				});
+			}
+			else if (x.getClass()==SMacro.class) {
+				SMacro macro = (SMacro) x;
+				unfinished.put(x, true);
+				out.writeByte(MACRO);
+				then(macro.getTransformer(), macro.getName(), finish(x));
+			}
+			else if (x.getClass()==MutableReference.class || x.getClass()==ImmutableRef.class) {
+				unfinished.put(x, true);
+				out.writeByte(x.getClass()==MutableReference.class ? MUTABLE_REF : IMMUTABLE_REF);
+				then(((Reference<?>) x).get(), finish(x));
+			}
+			else if (x instanceof ForkedReference) {
+				// Saved with the value it has in the interpreter being saved
+				unfinished.put(x, true);
+				out.writeByte(MUTABLE_REF);
+				then(((ForkedReference) x).get(interp), finish(x));
+			}
+			else if (x instanceof SHashTable) {
+				SHashTable table = (SHashTable) x;
+				out.writeByte(HASH_TABLE);
+				out.writeBoolean(table.isEqualTable());
+				out.writeInt(table.size());
+				Object[] entries = new Object[2*table.size()];
+				int j = 0;
+				for (int i = table.nextEntry(0); i>=0; i = table.nextEntry(i+1)) {
+					entries[j++] = table.keyAt(i);
+					entries[j++] = table.valueAt(i);
+				}
+				then(entries);
+			}
+			else if (x.getClass()==StaticMethodInvoker.class)
+				writeMethod(STATIC_METHOD, ((StaticMethodInvoker) x).getMethod(), x);
+			else if (x.getClass()==InstanceMethodInvoker.class)
+				writeMethod(INSTANCE_METHOD, ((InstanceMethodInvoker) x).getMethod(), x);
+			else if (x.getClass()==PrimitiveProcedure.class)
+				writeMethod(PRIMITIVE, ((PrimitiveProcedure) x).getMethod(), x);
+			else if (x.getClass()==ConstructorInvoker.class) {
+				Constructor<?> constructor = ((ConstructorInvoker) x).getConstructor();
+				out.writeByte(CONSTRUCTOR);
+				out.writeUTF(constructor.getDeclaringClass().getName());
+				writeTypes(constructor.getParameterTypes());
+				then(((SProcedure) x).getName());
+			}
+			else if (x instanceof Class) {
+				out.writeByte(JAVA_CLASS);
+				out.writeUTF(((Class<?>) x).getName());
+			}
+			else if (x.getClass()==Object.class)
+				// A token only compared with ==, like the escape epoch in a loop
+				// frame. A new one is just as good: that frame is not reused.
+				out.writeByte(TOKEN);
+			else
+				throw new KSchemeException("Can't save a "+x.getClass().getName()+" in an image");
+		}
+
+		/**
+		 * Write the pairs of a list that haven't been written yet all at once,
+		 * rather than one cdr after the other.
+		 */
+		private void writePairs(SPair first) throws IOException {
+			List<SPair> pairs = new ArrayList<SPair>();
+			pairs.add(first);
+			Object tail = first.cdr();
+			while (tail instanceof SPair && !handles.containsKey(tail) && !names.containsKey(tail)) {
+				handles.put(tail, handles.size());
+				pairs.add((SPair) tail);
+				tail = ((SPair) tail).cdr();
+			}
+			out.writeByte(PAIRS);
+			out.writeInt(pairs.size());
+			for (SPair pair : pairs)
+				out.writeBoolean(pair.isMutable());
+			Object[] parts = new Object[pairs.size()+1];
+			for (int i = 0; i < pairs.size(); i++)
+				parts[i] = pairs.get(i).car();
+			parts[pairs.size()] = tail;
+			then(parts);
+		}
+
+		private void writeElements(Object[] vector) throws IOException {
+			out.writeInt(vector.length);
+			then(vector);
+		}
+
+		private void writeMethod(int tag, Method method, Object proc) throws IOException, KSchemeException {
+			out.writeByte(tag);
+			out.writeUTF(method.getDeclaringClass().getName());
+			out.writeUTF(method.getName());
+			writeTypes(method.getParameterTypes());
+			write(((SProcedure) proc).getName());
+		}
+
+		private void writeTypes(Class<?>[] types) throws IOException {
+			out.writeInt(types.length);
+			for (Class<?> type : types)
+				out.writeUTF(type.getName());
+		}
+
+		private void writeString(String s) throws IOException {
+			out.writeInt(s.length());
+			out.writeChars(s);
+		}
+	}
+
+	/**
+	 * Reads an image, or the forms of a {@link Fasl}, one at a time.
+	 */
+	static class Reader {
+
+		/**
+		 * An object whose parts are being read.
+		 */
+		private abstract static class Parts {
+			/** Where the parts go, unless set is overridden */
+			final Object[] parts;
+			final int size;
+			int count;
+			Parts(Object[] parts) {
+				this.parts = parts;
+				this.size = parts.length;
+			}
+			Parts(int size) {
+				this.parts = null;
+				this.size = size;
+			}
+			void set(int i, Object part) {
+				parts[i] = part;
+			}
+			/**
+			 * Called once all parts are read. Returns the object, or the Parts
+			 * that are read next to finish it.
+			 */
+			abstract Object make() throws IOException, KSchemeException;
+		}
+
+		private final DataInputStream in;
+		private final CoreInterpreter interp;
+		private final ArrayList<Object> objects = new ArrayList<Object>();
+
+		/** For the forms of a Fasl: the LineMaps they refer to */
+		private LineMap[] lineMaps;
+
+		/** envs[n-1] is the global Env with the first n HashFrames */
+		private Env[] envs;
+
+		/** The objects whose parts are being read, innermost last */
+		private final List<Parts> reading = new ArrayList<Parts>();
+
+		/** Hash tables and their entries, which are only hashed once everything is read */
+		private final List<SHashTable> tables = new ArrayList<SHashTable>();
+		private final List<Object[]> tableEntries = new ArrayList<Object[]>();
+
+		Reader(CoreInterpreter interp, DataInputStream in) {
+			this.interp = interp;
+			this.in = in;
+		}
+
+		/**
+		 * A Reader for the forms of a Fasl. The procedures named in them are
+		 * looked up in the global environment of interp as each form is read.
+		 */
+		Reader(CoreInterpreter interp, DataInputStream in, LineMap[] lineMaps) {
+			this(interp, in);
+			this.lineMaps = lineMaps;
+		}
+
+		Object readForm() throws IOException, KSchemeException {
+			Object form = read();
+			fillTables();
+			return form;
+		}
+
+		@SuppressWarnings("unchecked")
+		Env readImage() throws IOException, KSchemeException {
+			if (in.readInt()!=MAGIC)
+				throw new KSchemeException("Not a KScheme image");
+			if (in.readInt()!=VERSION)
+				throw new KSchemeException("Image was made by another version of KScheme");
+			Frame[] frames = new Frame[in.readInt()];
+			envs = new Env[frames.length];
+			for (int i = 0; i < frames.length; i++) {
+				envs[i] = i==0 ? new Env() : envs[i-1].extend();
+				frames[i] = i==0 ? envs[i].getFrame() : ((AppendFrame) envs[i].getFrame()).getRight();
+			}
+			for (Frame frame : frames) {
+				for (int n = in.readInt(); n>0; n--) {
+					SSymbol name = (SSymbol) read();
+					frame.def(name, (Reference<Object>) read());
+				}
+			}
+			Map<SSymbol, SSyntax> specialForms = interp.getSpecialForms();
+			for (int n = in.readInt(); n>0; n--) {
+				SSymbol name = (SSymbol) read();
+				specialForms.put(name, (SSyntax) read());
+			}
+			fillTables();
+			return envs[envs.length-1];
+		}
+
+		private void fillTables() {
+			for (int i = 0; i < tables.size(); i++) {
+				Object[] entries = tableEntries.get(i);
+				for (int j = 0; j < entries.length; j += 2)
+					tables.get(i).put(entries[j], entries[j+1]);
+			}
+			tables.clear();
+			tableEntries.clear();
+		}
+
+		private int reserve() {
+			objects.add(null);
+			return objects.size()-1;
+		}
+
+		private <T> T define(int handle, T obj) {
+			objects.set(handle, obj);
+			return obj;
+		}
+
+		private <T> T add(T obj) {
+			objects.add(obj);
+			return obj;
+		}
+
+		/**
+		 * Read an object. Its parts are read into the {@link Parts} on
+		 * {@link #reading} rather than recursively, so data can be nested as
+		 * deeply as the heap allows.
+		 */
+		Object read() throws IOException, KSchemeException {
+			int base = reading.size();
+			for (;;) {
+				Object x = readOne();
+				for (;;) {
+					if (x instanceof Parts) {
+						Parts parts = (Parts) x;
+						if (parts.size>0) {
+							reading.add(parts);
+							break;
+						}
+						x = parts.make();
+					}
+					else if (reading.size()==base)
+						return x;
+					else {
+						Parts parts = reading.get(reading.size()-1);
+						parts.set(parts.count++, x);
+						if (parts.count<parts.size)
+							break;
+						reading.remove(reading.size()-1);
+						x = parts.make();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Read an object, or the start of one, returning the Parts that are
+		 * still to be read.
+		 */
+		private Object readOne() throws IOException, KSchemeException {
+			final int tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return in.readInt();
+			case DOUBLE:
+				return in.readDouble();
+			case CHAR:
+				return in.readChar();
+			case ENV:
+				return envs[in.readInt()-1];
+			case REF:
+				return objects.get(in.readInt());
+			case STRING:
+				return add(readString());
+			case SYMBOL:
+				return add(SSymbol.intern(readString()));
+			case GENSYM:
+				return add(SSymbol.intern(readString()).gensym());
+			case PAIRS:
+				return readPairs();
+			case VECTOR: {
+				Object[] vector = add(new Object[in.readInt()]);
+				return elements(vector, vector);
+			}
+			case SYNTAX: {
+				final int handle = reserve();
+				return new Parts(new Object[2]) {
+					@Override
+					Object make() throws IOException {
+						int start = in.readInt();
+						return define(handle, new SyntaxObj(parts[0], (LineMap) parts[1], start, in.readInt()));
+					}
+				};
+			}
+			case LINES:
+				return add(readLines(in));
+			case LINE_TABLE:
+				return add(lineMaps[in.readInt()]);
+			case LAMBDA: {
+				final int handle = reserve();
+				return new Parts(new Object[5]) {
+					@Override
+					Object make() throws KSchemeException {
+						Lambda lambda = new Lambda(parts[0], interp.getAnalyzer(), parts[1], parts[2], (Scope) parts[3]);
+						if (parts[4]!=null)
+							lambda.gotName(parts[4]);
+						return define(handle, lambda);
+					}
+				};
+			}
+			case SCOPE: {
+				final int handle = reserve();
+				return new Parts(new Object[2]) {
+					@Override
+					Object make() throws IOException {
+						final Scope parent = (Scope) parts[0];
+						final Env env = (Env) parts[1];
+						return new Parts(new Object[in.readInt()]) {
+							@Override
+							Object make() throws IOException {
+								List<SSymbol> names = new ArrayList<SSymbol>();
+								for (Object name : parts)
+									names.add((SSymbol) name);
+								int numRequired = in.readInt();
+								boolean hasRest = in.readBoolean();
+								return define(handle, new Scope(parent, env, names, numRequired, hasRest, in.readInt()));
+							}
+						};
+					}
+				};
+			}
+			case CLOSURE: {
+				final int handle = reserve();
+				return new Parts(new Object[2]) {
+					@Override
+					Object make() throws IOException, KSchemeException {
+						Lambda lambda = (Lambda) parts[0];
+						SLambdaProcedure proc;
+						Object[] frame = null;
+						switch (in.readByte()) {
+						case VECTOR:
+							frame = new Object[in.readInt()];
+							proc = define(handle, new SLambdaProcedure(lambda, frame));
+							add(frame);
+							break;
+						case REF:
+							proc = define(handle, new SLambdaProcedure(lambda, (Object[]) objects.get(in.readInt())));
+							break;
+						default:
+							proc = define(handle, new SLambdaProcedure(lambda, null));
+						}
+						if (parts[1]!=null)
+							proc.gotName(parts[1]);
+						return frame==null ? proc : elements(frame, proc);
+					}
+				};
+			}
+			case MACRO: {
+				final int handle = reserve();
+				return new Parts(new Object[2]) {
+					@Override
+					Object make() throws KSchemeException {
+						SchemeValue macro = SchemeValue.makeMacro((SProcedure) parts[0]);
+						if (parts[1]!=null)
+							macro.gotName(parts[1]);
+						return define(handle, macro);
+					}
+				};
+			}
+			case MUTABLE_REF:
+			case IMMUTABLE_REF: {
+				final int handle = reserve();
+				return new Parts(new Object[1]) {
+					@Override
+					Object make() {
+						return define(handle, tag==MUTABLE_REF ? new MutableReference<Object>(parts[0])
+								: new ImmutableRef<Object>(parts[0]));
+					}
+				};
+			}
+			case HASH_TABLE: {
+				SHashTable table = add(in.readBoolean() ? SHashTable.makeEqual() : SHashTable.makeEqv());
+				Object[] entries = new Object[2*in.readInt()];
+				tables.add(table);
+				tableEntries.add(entries);
+				return elements(entries, table);
+			}
+			case MODULE:
+				return add(interp.getModule(moduleClass(in.readUTF())));
+			case MODULE_REF:
+			case MODULE_VALUE: {
+				final int handle = reserve();
+				final Class<? extends Frame> module = moduleClass(in.readUTF());
+				return new Parts(new Object[1]) {
+					@Override
+					Object make() throws KSchemeException {
+						SSymbol name = (SSymbol) parts[0];
+						Reference<Object> ref = interp.getModule(module).lookup(name);
+						if (ref==null)
+							throw new KSchemeException("Module "+module.getName()+" doesn't define "+name);
+						return define(handle, tag==MODULE_REF ? ref : ref.get());
+					}
+				};
+			}
+			case GLOBAL_VALUE: {
+				final int handle = reserve();
+				return new Parts(new Object[1]) {
+					@Override
+					Object make() throws KSchemeException {
+						return define(handle, interp.getGlobalEnv().lookup((SSymbol) parts[0]));
+					}
+				};
+			}
+			case SPECIAL_FORM: {
+				final int handle = reserve();
+				return new Parts(new Object[1]) {
+					@Override
+					Object make() throws KSchemeException {
+						SSymbol name = (SSymbol) parts[0];
+						SSyntax form = interp.getSpecialForm(name);
+						if (form==null)
+							throw new KSchemeException("Unknown special form: "+name);
+						return define(handle, form);
+					}
+				};
+			}
+			case STATIC_METHOD:
+			case INSTANCE_METHOD:
+			case PRIMITIVE:
+			case CONSTRUCTOR:
+				return readInvoker(tag);
+			case JAVA_CLASS:
+				return add(classForName(in.readUTF()));
+			case TOKEN:
+				return add(new Object());
+			default:
+				throw new KSchemeException("Reading image: not a valid image");
+			}
+		}
+
+		private Parts readPairs() throws IOException {
+			final SPair[] pairs = new SPair[in.readInt()];
+			for (int i = 0; i < pairs.length; i++) {
+				pairs[i] = add(SchemeValue.cons(null, null));
+				if (i>0)
+					pairs[i-1].setCdr(pairs[i]);
+			}
+			final boolean[] mutable = new boolean[pairs.length];
+			for (int i = 0; i < pairs.length; i++)
+				mutable[i] = in.readBoolean();
+			return new Parts(pairs.length+1) {
+				@Override
+				void set(int i, Object part) {
+					if (i<pairs.length)
+						pairs[i].setCar(part);
+					else
+						pairs[pairs.length-1].setCdr(part);
+				}
+				@Override
+				Object make() {
+					for (int i = 0; i < pairs.length; i++)
+						if (!mutable[i])
+							pairs[i].makeImmutable();
+					return pairs[0];
+				}
+			};
+		}
+
+		/**
+		 * The Parts that read the elements of a vector, and then are the object.
+		 */
+		private Parts elements(Object[] vector, final Object object) {
+			return new Parts(vector) {
+				@Override
+				Object make() {
+					return object;
+				}
+			};
+		}
+
+		private Parts readInvoker(int tag) throws IOException, KSchemeException {
+			final int handle = reserve();
+			Class<?> clss = classForName(in.readUTF());
+			String methodName = tag==CONSTRUCTOR ? null : in.readUTF();
+			Class<?>[] types = new Class<?>[in.readInt()];
+			for (int i = 0; i < types.length; i++)
+				types[i] = classForName(in.readUTF());
+			SProcedure proc;
+			try {
+				switch (tag) {
+				case STATIC_METHOD:
+					proc = new StaticMethodInvoker(clss.getDeclaredMethod(methodName, types));
+					break;
+				case INSTANCE_METHOD:
+					proc = new InstanceMethodInvoker(clss.getDeclaredMethod(methodName, types));
+					break;
+				case PRIMITIVE:
+					proc = new PrimitiveProcedure(clss.getDeclaredMethod(methodName, types));
+					break;
+				default:
+					proc = new ConstructorInvoker(clss.getDeclaredConstructor(types));
+				}
+			} catch (NoSuchMethodException e) {
+				throw new KSchemeException("Reading image: no such method: "+e.getMessage(), e);
+			}
+			final SProcedure invoker = proc;
+			return new Parts(new Object[1]) {
+				@Override
+				Object make() {
+					if (parts[0]!=null)
+						invoker.gotName(parts[0]);
+					return define(handle, invoker);
+				}
+			};
+		}
+
+		@SuppressWarnings("unchecked")
+		private Class<? extends Frame> moduleClass(String name) throws KSchemeException {
+			return (Class<? extends Frame>) classForName(name);
+		}
+
+		private Class<?> classForName(String name) throws KSchemeException {
+			Class<?> primitive = PRIMITIVE_TYPES.get(name);
+			if (primitive!=null)
+				return primitive;
+			try {
+				return Class.forName(name, false, Image.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				throw new KSchemeException("Reading image: no such class: "+name, e);
+			}
+		}
+
+		private String readString() throws IOException {
+			char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = in.readChar();
+			return new String(chars);
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Node for a lambda expression. Evaluating it creates a closure.
+ * <p>
+ * The body is analyzed when the procedure is called for the first time, 
+ * rather than when the lambda expression itself is analyzed. This is because
+ * the body may use macros that are only defined later on (bootstrap.scm
+ * relies on this). The analyzed body is shared by all closures created from
+ * this node.
+ * <p>
+ * The Lambda also keeps the counters used by {@link Tiering}. Once the body is
+ * hot, a faster version of it can be installed with {@link #setBody(Node)}; all 
+ * closures switch to it on their next call.
+ */
+public class Lambda extends SimpleNode {
+
+	private final Analyzer analyzer;
+	private final Object formals;
+	private final Object body;
+	private final Scope scope;
+	private final Tiering tiering;
+	private volatile Node analyzedBody = null;
+	private Object name = null;
+	
+	/**
+	 * Counters for {@link Tiering}. They are not synchronized: being off by a few 
+	 * counts when closures are called from several threads doesn't matter. They
+	 * are only kept while their threshold isn't {@link Tiering#NEVER}, and stop
+	 * once the Lambda is hot, so they never overflow.
+	 */
+	private int invocations = 0;
+	private int backEdges = 0;
+	private volatile boolean hot = false;
+
+	public Lambda(Object exp, Analyzer analyzer, Object formals, Object body, Scope scope) {
+		super(exp);
+		this.analyzer = analyzer;
+		this.formals = formals;
+		this.body = body;
+		this.scope = scope;
+		this.tiering = analyzer.getInterpreter().getTiering();
+	}
+
+	@Override
+	public Object value(Object[] frame) {
+		return new SLambdaProcedure(this, frame);
+	}
+
+	/**
+	 * Get the analyzed body, analyzing it if this hasn't been done yet.
+	 */
+	public Node getBody() throws KSchemeException {
+		Node result = analyzedBody;
+		if (result==null)
+			result = analyzeBody();
+		return result;
+	}
+
+	private synchronized Node analyzeBody() throws KSchemeException {
+		if (analyzedBody==null) 
+			analyzedBody = analyzer.analyzeBody(this);
+		return analyzedBody;
+	}
+
+	/**
+	 * Replace the body by an equivalent Node, e.g. a compiled version of it.
+	 */
+	public synchronized void setBody(Node newBody) {
+		analyzedBody = newBody;
+	}
+
+	/**
+	 * Called for every invocation of a closure created from this node.
+	 */
+	void countInvocation() {
+		int threshold = tiering.getInvocationThreshold();
+		if (threshold!=Tiering.NEVER && !hot && ++invocations>=threshold) 
+			becameHot();
+	}
+
+	/**
+	 * Called for every self tail call from the body of this node.
+	 */
+	void countBackEdge() {
+		int threshold = tiering.getBackEdgeThreshold();
+		if (threshold!=Tiering.NEVER && !hot && ++backEdges>=threshold) 
+			becameHot();
+	}
+
+	private void becameHot() {
+		if (!hot) {
+			hot = true;
+			tiering.hot(this);
+		}
+	}
+
+	public int getInvocationCount() {
+		return invocations;
+	}
+
+	public int getBackEdgeCount() {
+		return backEdges;
+	}
+
+	public boolean isHot() {
+		return hot;
+	}
+
+	/**
+	 * The name of the first variable a closure created from this node was
+	 * bound to, or null.
+	 */
+	public Object getName() {
+		return name;
+	}
+
+	void gotName(Object name) {
+		if (this.name==null)
+			this.name = name;
+	}
+
+	/**
+	 * The Scope of the body, used to create activation frames for calls to closures 
+	 * created from this node. The body must already have been analyzed before 
+	 * creating frames, since that determines their size.
+	 */
+	public Scope getScope() {
+		return scope;
+	}
+
+	public Object getFormals() {
+		return formals;
+	}
+
+	public Object getBodyExp() {
+		return body;
+	}
+
+	@Override
+	public String toString() {
+		if (name!=null)
+			return "#lambda:"+name;
+		return super.toString();
+	}
+
+}
@@ -0,0 +1,86 @@
+package ca.kscheme.interp;
+
+import java.util.Arrays;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Node for a let or letrec expression (let*, named let and do are analyzed into
+ * these as well). Evaluating it creates an activation frame for the let's Scope 
+ * directly, without creating a closure and calling it.
+ * <p>
+ * For a let, the inits are evaluated in the enclosing frame. For a letrec, they 
+ * are evaluated in the new frame, in which all variables are initially #f, and 
+ * each value is stored as soon as it is known.
+ */
+public class Let extends Node {
+
+	private final Scope scope;
+	private final Node[] inits;
+	private final Node body;
+	private final boolean rec;
+
+	/**
+	 * Create a Let. The value of inits[i] is stored in slot i+1 of the new frame.
+	 */
+	public Let(Object exp, Scope scope, Node[] inits, Node body, boolean rec) {
+		super(exp);
+		this.scope = scope;
+		this.inits = inits;
+		this.body = body;
+		this.rec = rec;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		Object[] letFrame = scope.newFrame(frame);
+		if (rec)
+			Arrays.fill(letFrame, 1, inits.length+1, Boolean.FALSE);
+		initFrom(m, letFrame, 0, k);
+	}
+
+	/**
+	 * Evaluate the inits starting at index i, then the body. At the first init that
+	 * isn't simple, evaluation is suspended with a {@link LetFrame}.
+	 */
+	void initFrom(Machine m, Object[] letFrame, int i, Cont k) {
+		Object[] initFrame = rec ? letFrame : (Object[]) letFrame[0];
+		for (; i<inits.length; i++) {
+			Node init = inits[i];
+			if (init.hasValue()) {
+				try {
+					letFrame[i+1] = init.value(initFrame);
+				} catch (KSchemeException e) {
+					k.raise(m, init.exp, e);
+					return;
+				}
+			}
+			else {
+				m.eval(init, initFrame, new LetFrame(this, letFrame, i, k));
+				return;
+			}
+		}
+		body.exec(m, letFrame, k);
+	}
+
+	Node getInit(int i) {
+		return inits[i];
+	}
+
+	public Node[] getInits() {
+		return inits.clone();
+	}
+
+	public Node getBody() {
+		return body;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	public boolean isRec() {
+		return rec;
+	}
+
+}
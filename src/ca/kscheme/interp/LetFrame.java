@@ -0,0 +1,40 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of an init in a {@link Let}.
+ * <p>
+ * If a let (but not a letrec) continuation is resumed more than once, the new 
+ * frame is copied first, so each resumption gets fresh bindings, like a call 
+ * to a closure would.
+ */
+final class LetFrame extends Cont {
+
+	private final Let node;
+	private final Object[] letFrame;
+	private final int i;
+	private boolean resumed = false;
+
+	LetFrame(Let node, Object[] letFrame, int i, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.letFrame = letFrame;
+		this.i = i;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getInit(i);
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		Object[] letFrame = this.letFrame;
+		if (resumed && !node.isRec())
+			letFrame = letFrame.clone();
+		else
+			resumed = true;
+		letFrame[i+1] = value;
+		node.initFrom(m, letFrame, i+1, parent);
+	}
+
+}
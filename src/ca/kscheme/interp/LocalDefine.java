@@ -0,0 +1,40 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SMacro;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.data.SchemeValue;
+
+/**
+ * Node for a (define var exp) expression inside a lambda body. The Analyzer
+ * has allocated a slot for var in the lambda's activation frame.
+ */
+public class LocalDefine extends Assignment {
+
+	private final CoreInterpreter interp;
+	private final SSymbol var;
+	private final int slot;
+
+	public LocalDefine(Object exp, CoreInterpreter interp, SSymbol var, int slot, Node value) {
+		super(exp, value);
+		this.interp = interp;
+		this.var = var;
+		this.slot = slot;
+	}
+
+	@Override
+	public void assign(Object[] frame, Object val, Cont k) {
+		try {
+			if (val instanceof SMacro) {
+				interp.specialForm(var, (SMacro)val);
+			}
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("(define "+var+ " "+val+")",k,e);
+		}
+		frame[slot] = val;
+		if (val instanceof SchemeValue) {
+			((SchemeValue)val).gotName(var);
+		}
+	}
+
+}
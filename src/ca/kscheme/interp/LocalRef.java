@@ -0,0 +1,42 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.SSymbol;
+
+/**
+ * Node for a reference to a variable bound by an enclosing lambda, or
+ * by a define in the body of an enclosing lambda. The variable is found
+ * by following 'depth' parent pointers from the current activation frame.
+ */
+public class LocalRef extends SimpleNode {
+
+	private final SSymbol name;
+	private final int depth;
+	private final int slot;
+
+	public LocalRef(Object exp, SSymbol name, int depth, int slot) {
+		super(exp);
+		this.name = name;
+		this.depth = depth;
+		this.slot = slot;
+	}
+
+	@Override
+	public Object value(Object[] frame) {
+		for (int d = depth; d>0; d--)
+			frame = (Object[]) frame[0];
+		return frame[slot];
+	}
+
+	public SSymbol getName() {
+		return name;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getSlot() {
+		return slot;
+	}
+
+}
@@ -0,0 +1,32 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.data.SchemeValue;
+
+/**
+ * Node for a (set! var exp) expression, where var is lexically bound.
+ */
+public class LocalSet extends Assignment {
+
+	private final SSymbol var;
+	private final int depth;
+	private final int slot;
+
+	public LocalSet(Object exp, SSymbol var, int depth, int slot, Node value) {
+		super(exp, value);
+		this.var = var;
+		this.depth = depth;
+		this.slot = slot;
+	}
+
+	@Override
+	public void assign(Object[] frame, Object val, Cont k) {
+		for (int d = depth; d>0; d--)
+			frame = (Object[]) frame[0];
+		frame[slot] = val;
+		if (val instanceof SchemeValue) {
+			((SchemeValue)val).gotName(var);
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.ImpossibleError;
+
+/**
+ * The Machine is the driver loop of the interpreter. It implements proper tail 
+ * recursion in a way that is similar to a trampoline: instead of making a call
+ * that would grow the Java stack (e.g. to evaluate an expression in tail position, 
+ * or to pass a value to a continuation), a step of the computation loads the 
+ * Machine's registers and returns. The driver loop then performs the next step.
+ * <p>
+ * The registers hold the node to evaluate, the activation frame to evaluate it in, 
+ * the value being returned and the current continuation. Since the registers are 
+ * reused for every step, evaluating an expression or returning a value to a 
+ * continuation does not allocate anything.
+ * <p>
+ * A Machine runs a single computation, until a continuation calls {@link #halt()}.
+ * Nested computations (e.g. expanding a macro in the middle of a computation) 
+ * use a Machine of their own.
+ * 
+ * @author kdvolder
+ */
+public final class Machine {
+	
+	private static final int IDLE = 0;
+	private static final int EVAL = 1;
+	private static final int RETURN = 2;
+	private static final int HALT = 3;
+	
+	private int state = IDLE;
+	
+	private Node node;
+	private Object[] frame;
+	private Object value;
+	private Cont k;
+	
+	/**
+	 * Next step: evaluate a node in a given activation frame.
+	 */
+	public void eval(Node node, Object[] frame, Cont k) {
+		this.state = EVAL;
+		this.node = node;
+		this.frame = frame;
+		this.k = k;
+	}
+	
+	/**
+	 * Next step: pass a value to a continuation.
+	 */
+	public void applyCont(Cont k, Object value) {
+		this.state = RETURN;
+		this.value = value;
+		this.k = k;
+	}
+	
+	/**
+	 * Stop the driver loop after the current step.
+	 */
+	public void halt() {
+		this.state = HALT;
+		this.node = null;
+		this.frame = null;
+		this.value = null;
+		this.k = null;
+	}
+
+	/**
+	 * Run the driver loop until the computation halts. Some step must
+	 * already have been loaded into the registers.
+	 */
+	public void run() {
+		while (true) {
+			switch (state) {
+			case EVAL:
+				state = IDLE;
+				node.exec(this, frame, k);
+				break;
+			case RETURN:
+				state = IDLE;
+				k.resume(this, value);
+				break;
+			case HALT:
+				state = IDLE;
+				return;
+			default:
+				throw new ImpossibleError("No next step was loaded into the Machine");
+			}
+		}
+	}
+
+}
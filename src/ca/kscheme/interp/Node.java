@@ -0,0 +1,71 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.ImpossibleError;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SchemeValue;
+
+/**
+ * A Node is the executable form of an expression. The {@link Analyzer} converts
+ * expressions into trees of Nodes once, so that running them again does not
+ * involve re-parsing the expression, looking up special forms or expanding
+ * macros.
+ * 
+ * @author kdvolder
+ */
+public abstract class Node {
+	
+	/**
+	 * The expression this node was analyzed from. Used for debug info only.
+	 */
+	protected final Object exp;
+	
+	protected Node(Object exp) {
+		this.exp = exp;
+	}
+	
+	/**
+	 * Perform one step of evaluating this node. Implementations either load the 
+	 * next step into the Machine's registers, or throw an {@link ErrorWithCont}.
+	 * 
+	 * @param frame The activation frame of the innermost enclosing lambda, or null at 
+	 *              the top level. See {@link Scope}.
+	 * @param k     The continuation that receives the value.
+	 */
+	public abstract void exec(Machine m, Object[] frame, Cont k);
+	
+	/**
+	 * A simple node can't call procedures or capture continuations. Its value 
+	 * can be computed directly by calling {@link #value(Object[])}, without 
+	 * going through the Machine.
+	 */
+	public boolean isSimple() {
+		return false;
+	}
+	
+	/**
+	 * Whether the value of this node can be computed by {@link #value(Object[])}
+	 * now. It always can for a simple node. A node that isn't simple may be able
+	 * to while some condition holds, as a {@link PrimitiveCall} can while its 
+	 * operator is bound to the primitive.
+	 */
+	public boolean hasValue() {
+		return isSimple();
+	}
+	
+	/**
+	 * Compute the value of a simple node, or of a node that {@link #hasValue()}.
+	 */
+	public Object value(Object[] frame) throws KSchemeException {
+		throw new ImpossibleError("Not a simple node: "+this);
+	}
+	
+	public Object getExp() {
+		return exp;
+	}
+
+	@Override
+	public String toString() {
+		return SchemeValue.toString(exp);
+	}
+
+}
@@ -0,0 +1,62 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.isFalse;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Node for an (or exp ...) expression, with at least two expressions. Also used
+ * for cond clauses without a body, which return the value of their test.
+ */
+public class Or extends Node {
+
+	private final Node[] nodes;
+
+	public Or(Object exp, Node[] nodes) {
+		super(exp);
+		this.nodes = nodes;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		execFrom(m, 0, frame, k);
+	}
+
+	/**
+	 * Evaluate the nodes starting at index i, until one of them is true. The last
+	 * node is in tail position.
+	 */
+	void execFrom(Machine m, int i, Object[] frame, Cont k) {
+		int last = nodes.length-1;
+		for (; i<last; i++) {
+			Node node = nodes[i];
+			if (node.hasValue()) {
+				Object value;
+				try {
+					value = node.value(frame);
+				} catch (KSchemeException e) {
+					k.raise(m, node.exp, e);
+					return;
+				}
+				if (!isFalse(value)) {
+					m.applyCont(k, value);
+					return;
+				}
+			}
+			else {
+				m.eval(node, frame, new OrFrame(this, i, frame, k));
+				return;
+			}
+		}
+		nodes[last].exec(m, frame, k);
+	}
+
+	Node getNode(int i) {
+		return nodes[i];
+	}
+
+	public Node[] getNodes() {
+		return nodes.clone();
+	}
+
+}
@@ -0,0 +1,34 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.isFalse;
+
+/**
+ * Continuation of a node, other than the last one, in an {@link Or}.
+ */
+final class OrFrame extends Cont {
+
+	private final Or node;
+	private final int i;
+	private final Object[] frame;
+
+	OrFrame(Or node, int i, Object[] frame, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.i = i;
+		this.frame = frame;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getNode(i);
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		if (isFalse(value))
+			node.execFrom(m, i+1, frame, parent);
+		else
+			m.applyCont(parent, value);
+	}
+
+}
@@ -0,0 +1,101 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.ImpossibleError;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.PrimitiveProcedure;
+
+/**
+ * Node for an inlined call of a {@link PrimitiveProcedure}, made by the Analyzer
+ * for a call whose operator is a global variable bound to a primitive of the
+ * right arity, and whose operands are simple or inlined calls themselves. Its
+ * value is computed by calling the primitive's method directly.
+ * <p>
+ * The variable is checked on every call. Should it have been redefined, the node
+ * runs as the ordinary {@link Call} it was analyzed from, on the same Machine, so
+ * the new value is tail called and can capture continuations. Because of that
+ * the node isn't simple, but it {@link #hasValue()} while it is inlined, so the
+ * nodes around it can still compute its value directly.
+ */
+public class PrimitiveCall extends Node {
+
+	private final GlobalRef rator;
+	private final Node[] rands;
+	private final PrimitiveProcedure primitive;
+
+	/**
+	 * The call to run when the operator is bound to something else. Made when
+	 * that first happens.
+	 */
+	private Call call;
+
+	public PrimitiveCall(Object exp, GlobalRef rator, Node[] rands, PrimitiveProcedure primitive) {
+		super(exp);
+		this.rator = rator;
+		this.rands = rands;
+		this.primitive = primitive;
+	}
+
+	/**
+	 * Whether the operator is still bound to the primitive, and the operands
+	 * that are inlined calls are still inlined.
+	 */
+	public boolean isInlined() {
+		try {
+			if (rator.value(null)!=primitive)
+				return false;
+		} catch (KSchemeException e) {
+			return false;
+		}
+		for (Node rand : rands) {
+			if (!rand.hasValue())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean hasValue() {
+		return isInlined();
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		if (isInlined()) {
+			Object value;
+			try {
+				value = value(frame);
+			} catch (KSchemeException e) {
+				k.raise(m, exp, e);
+				return;
+			}
+			m.applyCont(k, value);
+		}
+		else {
+			if (call==null)
+				call = new Call(exp, rator, rands);
+			call.exec(m, frame, k);
+		}
+	}
+
+	/**
+	 * Compute the value by calling the primitive. Only while {@link #isInlined()}.
+	 */
+	@Override
+	public Object value(Object[] frame) throws KSchemeException {
+		switch (rands.length) {
+		case 1: return primitive.call1(rands[0].value(frame));
+		case 2: return primitive.call2(rands[0].value(frame), rands[1].value(frame));
+		case 3: return primitive.call3(rands[0].value(frame), rands[1].value(frame), rands[2].value(frame));
+		}
+		throw new ImpossibleError("Inlined call with "+rands.length+" operands: "+this);
+	}
+
+	public PrimitiveProcedure getPrimitive() {
+		return primitive;
+	}
+
+	public Node[] getRands() {
+		return rands.clone();
+	}
+
+}
@@ -18,7 +18,9 @@ public class Require extends ClassFrame {
 	public void require(String className) throws ClassNotFoundException, KSchemeException {
 		//This built-in version of require is minimalistic. It expects that the
 		//argument to require is a name of a Java class that implements Frame.
-		interpreter.require((Class<? extends Frame>) Class.forName(className));
+		//A fork requires into its own environment (see CoreInterpreter.running()).
+		KScheme running = CoreInterpreter.running();
+		(running!=null ? running : interpreter).require((Class<? extends Frame>) Class.forName(className));
 	}
 
 }
@@ -0,0 +1,149 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.list;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+
+/**
+ * A closure, created by evaluating a {@link Lambda} node in some activation frame.
+ * <p>
+ * The fixed-arity entry points store their rands directly in the new activation
+ * frame when the lambda takes exactly that many arguments.
+ */
+public class SLambdaProcedure extends SProcedure {
+	
+	private final Lambda lambda;
+	private final Object[] env;
+
+	public SLambdaProcedure(Lambda lambda, Object[] env) {
+		this.lambda = lambda;
+		this.env = env;
+	}
+	
+	public Lambda getLambda() {
+		return lambda;
+	}
+	
+	/**
+	 * The activation frame the closure was created in.
+	 */
+	public Object[] getEnv() {
+		return env;
+	}
+	
+	@Override
+	public void gotName(Object name) {
+		super.gotName(name);
+		lambda.gotName(name);
+	}
+	
+	@Override
+	public String toString() {
+		if (name!=null)
+			return super.toString();
+		else
+			return "#proc<"+lambda.getFormals()+" "+lambda.getBodyExp()+">";
+	}
+
+	/**
+	 * Get the analyzed body. If analyzing it fails, the error is raised
+	 * and null is returned.
+	 */
+	private Node getBody(Machine m, Cont k) {
+		lambda.countInvocation();
+		try {
+			return lambda.getBody();
+		} catch (KSchemeException e) {
+			k.raise(m, lambda.getExp(), e);
+			return null;
+		}
+	}
+
+	@Override
+	public void apply(Machine m, Object rands, Cont k) {
+		Node body = getBody(m, k);
+		if (body==null) return;
+		Object[] frame;
+		try {
+			frame = lambda.getScope().makeFrame(env, rands);
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("apply: bad rands?\n proc = "+this+"\n rands = "+rands, k, e);
+		}
+		m.eval(body, frame, k);
+	}
+
+	@Override
+	public void applyN(Machine m, Object[] args, Cont k) {
+		Node body = getBody(m, k);
+		if (body!=null)
+			enter(m, body, args, k);
+	}
+
+	private void enter(Machine m, Node body, Object[] args, Cont k) {
+		Object[] frame;
+		try {
+			frame = lambda.getScope().makeFrame(env, args);
+		} catch (KSchemeException e) {
+			throw new ErrorWithCont("apply: bad rands?\n proc = "+this+"\n rands = "+list(args), k, e);
+		}
+		m.eval(body, frame, k);
+	}
+
+	@Override
+	public void apply0(Machine m, Cont k) {
+		Node body = getBody(m, k);
+		if (body==null) return;
+		Scope scope = lambda.getScope();
+		if (scope.takesExactly(0))
+			m.eval(body, scope.newFrame(env), k);
+		else
+			enter(m, body, new Object[0], k);
+	}
+
+	@Override
+	public void apply1(Machine m, Object a, Cont k) {
+		Node body = getBody(m, k);
+		if (body==null) return;
+		Scope scope = lambda.getScope();
+		if (scope.takesExactly(1)) {
+			Object[] frame = scope.newFrame(env);
+			frame[1] = a;
+			m.eval(body, frame, k);
+		}
+		else
+			enter(m, body, new Object[] {a}, k);
+	}
+
+	@Override
+	public void apply2(Machine m, Object a, Object b, Cont k) {
+		Node body = getBody(m, k);
+		if (body==null) return;
+		Scope scope = lambda.getScope();
+		if (scope.takesExactly(2)) {
+			Object[] frame = scope.newFrame(env);
+			frame[1] = a;
+			frame[2] = b;
+			m.eval(body, frame, k);
+		}
+		else
+			enter(m, body, new Object[] {a, b}, k);
+	}
+
+	@Override
+	public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+		Node body = getBody(m, k);
+		if (body==null) return;
+		Scope scope = lambda.getScope();
+		if (scope.takesExactly(3)) {
+			Object[] frame = scope.newFrame(env);
+			frame[1] = a;
+			frame[2] = b;
+			frame[3] = c;
+			m.eval(body, frame, k);
+		}
+		else
+			enter(m, body, new Object[] {a, b, c}, k);
+	}
+
+}
@@ -0,0 +1,246 @@
+package ca.kscheme.interp;
+
+import static ca.kscheme.data.SchemeValue.asSymbol;
+import static ca.kscheme.data.SchemeValue.car;
+import static ca.kscheme.data.SchemeValue.cdr;
+import static ca.kscheme.data.SchemeValue.cons;
+import static ca.kscheme.data.SchemeValue.isNull;
+import static ca.kscheme.data.SchemeValue.isPair;
+import static ca.kscheme.data.SchemeValue.makeNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.namespace.Env;
+
+/**
+ * A Scope keeps track, at analysis time, of the variables that are lexically 
+ * bound around an expression. The outermost Scope corresponds to a global
+ * environment. Every other Scope corresponds to the body of a lambda, and
+ * binds its formals as well as any variables defined in its body.
+ * <p>
+ * Each variable in a lambda Scope is assigned a slot in the activation frame
+ * for that lambda. An activation frame is a plain Object[]. Slot 0 of the
+ * frame holds the frame of the enclosing lambda (or null, for a lambda 
+ * created at the top level). Lexical variables can therefore be addressed by 
+ * a (depth, slot) pair, where depth is the number of parent pointers to follow.
+ */
+public class Scope {
+	
+	private final Scope parent;
+	private final Env globalEnv;
+	private final List<SSymbol> names = new ArrayList<SSymbol>();
+	
+	/**
+	 * Number of required parameters, if this is a lambda Scope.
+	 */
+	private int numRequired = 0;
+	/**
+	 * Whether the lambda takes a 'rest' argument. 
+	 */
+	private boolean hasRest = false;
+	/**
+	 * If the activation frames of this lambda Scope are reused by self tail calls:
+	 * the slot that holds the escape epoch the frame was created in. It is followed
+	 * by a scratch slot for each argument. 0 if frames aren't reused.
+	 */
+	private int epochSlot = 0;
+
+	private Scope(Scope parent, Env globalEnv) {
+		this.parent = parent;
+		this.globalEnv = globalEnv;
+	}
+
+	/**
+	 * A Scope as it was saved in an {@link Image}.
+	 */
+	Scope(Scope parent, Env globalEnv, List<SSymbol> names, int numRequired, boolean hasRest, int epochSlot) {
+		this(parent, globalEnv);
+		this.names.addAll(names);
+		this.numRequired = numRequired;
+		this.hasRest = hasRest;
+		this.epochSlot = epochSlot;
+	}
+
+	public static Scope global(Env globalEnv) {
+		return new Scope(null, globalEnv);
+	}
+
+	/**
+	 * Create a nested Scope for a lambda with given formals.
+	 */
+	public Scope extend(Object formals) throws KSchemeException {
+		Scope scope = new Scope(this, globalEnv);
+		while (!isNull(formals)) {
+			if (isPair(formals)) {
+				scope.declare(asSymbol(car(formals)));
+				scope.numRequired++;
+				formals = cdr(formals);
+			}
+			else {
+				scope.declare(asSymbol(formals));
+				scope.hasRest = true;
+				formals = null;
+			}
+		}
+		return scope;
+	}
+
+	/**
+	 * Called when a define is found in the body corresponding to this Scope.
+	 * 
+	 * @return The slot allocated for the name in this Scope's frames.
+	 */
+	public int declare(SSymbol name) {
+		int slot = slotOf(name);
+		if (slot<0) {
+			names.add(name);
+			slot = names.size();
+		}
+		return slot;
+	}
+
+	/**
+	 * Find the slot of a name bound directly in this Scope.
+	 * 
+	 * @return The slot, or -1 if the name is not bound in this Scope.
+	 */
+	public int slotOf(SSymbol name) {
+		int i = names.indexOf(name);
+		return i<0 ? -1 : i+1;
+	}
+
+	List<SSymbol> getNames() {
+		return names;
+	}
+
+	int getNumRequired() {
+		return numRequired;
+	}
+
+	boolean hasRest() {
+		return hasRest;
+	}
+
+	int getEpochSlot() {
+		return epochSlot;
+	}
+
+	public Scope getParent() {
+		return parent;
+	}
+
+	public boolean isGlobal() {
+		return parent==null;
+	}
+
+	public Env getGlobalEnv() {
+		return globalEnv;
+	}
+
+	/**
+	 * Size of an activation frame for this Scope, including the parent pointer.
+	 */
+	public int getFrameSize() {
+		if (epochSlot>0)
+			return epochSlot+1+numRequired;
+		return names.size()+1;
+	}
+
+	/**
+	 * Add the slots needed to reuse the activation frames of this lambda Scope 
+	 * for self tail calls. Must be called after the body has been analyzed, and
+	 * before any frames are created.
+	 */
+	void reserveLoopSlots() {
+		epochSlot = names.size()+1;
+	}
+
+	/**
+	 * Whether a frame of this Scope can be reused for another iteration of a loop. 
+	 * This is not the case if a continuation escaped to Scheme code since the frame 
+	 * was created: resuming it later must not see the variables change.
+	 */
+	boolean isReusable(Object[] frame) {
+		return epochSlot>0 && frame[epochSlot]==Cont.getEscapeEpoch();
+	}
+
+	/**
+	 * The first of the slots where a self tail call may put its arguments while 
+	 * it evaluates them.
+	 */
+	int getScratchSlot() {
+		return epochSlot+1;
+	}
+
+	/**
+	 * Reset the variables defined in the body of a reused frame.
+	 */
+	void clearDefines(Object[] frame) {
+		Arrays.fill(frame, numRequired+1, epochSlot, null);
+	}
+
+	/**
+	 * Whether a lambda with this Scope takes exactly n arguments. If so, an
+	 * activation frame can be created with {@link #newFrame(Object[])} and
+	 * the arguments stored in slots 1 to n.
+	 */
+	public boolean takesExactly(int n) {
+		return !hasRest && numRequired==n;
+	}
+
+	/**
+	 * Create an activation frame for this Scope without binding the formals.
+	 */
+	public Object[] newFrame(Object[] parentFrame) {
+		Object[] frame = new Object[getFrameSize()];
+		frame[0] = parentFrame;
+		if (epochSlot>0)
+			frame[epochSlot] = Cont.getEscapeEpoch();
+		return frame;
+	}
+
+	/**
+	 * Create and initialize an activation frame for this Scope, binding 
+	 * the formals to the elements of an array of arguments.
+	 */
+	public Object[] makeFrame(Object[] parentFrame, Object[] args) throws KSchemeException {
+		if (args.length<numRequired)
+			throw new KSchemeException("Too few rands");
+		if (args.length>numRequired && !hasRest)
+			throw new KSchemeException("Too many rands");
+		Object[] frame = newFrame(parentFrame);
+		System.arraycopy(args, 0, frame, 1, numRequired);
+		if (hasRest) {
+			Object rest = makeNull();
+			for (int i = args.length-1; i>=numRequired; i--)
+				rest = cons(args[i], rest);
+			frame[numRequired+1] = rest;
+		}
+		return frame;
+	}
+
+	/**
+	 * Create and initialize an activation frame for this Scope, binding 
+	 * the formals to the elements of a list of arguments.
+	 */
+	public Object[] makeFrame(Object[] parentFrame, Object rands) throws KSchemeException {
+		Object[] frame = newFrame(parentFrame);
+		int slot = 1;
+		while (slot<=numRequired) {
+			if (!isPair(rands))
+				throw new KSchemeException("Too few rands");
+			frame[slot++] = car(rands);
+			rands = cdr(rands);
+		}
+		if (hasRest)
+			frame[slot] = rands;
+		else if (!isNull(rands))
+			throw new KSchemeException("Too many rands");
+		return frame;
+	}
+
+}
@@ -0,0 +1,59 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+
+
+/**
+ * Node for a sequence of expressions, as in a (begin ...) expression or a
+ * lambda body. The value of the last expression is the value of the sequence.
+ */
+public class Seq extends Node {
+
+	private final Node[] nodes;
+
+	/**
+	 * Create a Seq. The nodes array must contain at least one node.
+	 */
+	public Seq(Object exp, Node[] nodes) {
+		super(exp);
+		this.nodes = nodes;
+	}
+
+	@Override
+	public void exec(Machine m, Object[] frame, Cont k) {
+		execFrom(m, 0, frame, k);
+	}
+
+	/**
+	 * Evaluate the nodes starting at index i. Simple nodes that are not in 
+	 * tail position are evaluated directly, the others get a {@link SeqFrame}.
+	 */
+	void execFrom(Machine m, int i, Object[] frame, Cont k) {
+		int last = nodes.length-1;
+		for (; i<last; i++) {
+			Node node = nodes[i];
+			if (node.hasValue()) {
+				try {
+					node.value(frame);
+				} catch (KSchemeException e) {
+					k.raise(m, node.exp, e);
+					return;
+				}
+			}
+			else {
+				m.eval(node, frame, new SeqFrame(this, i, frame, k));
+				return;
+			}
+		}
+		nodes[last].exec(m, frame, k);
+	}
+
+	Node getNode(int i) {
+		return nodes[i];
+	}
+
+	public Node[] getNodes() {
+		return nodes.clone();
+	}
+
+}
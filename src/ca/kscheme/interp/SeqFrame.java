@@ -0,0 +1,29 @@
+package ca.kscheme.interp;
+
+/**
+ * Continuation of a node, other than the last one, in a {@link Seq}.
+ */
+final class SeqFrame extends Cont {
+
+	private final Seq node;
+	private final int i;
+	private final Object[] frame;
+
+	SeqFrame(Seq node, int i, Object[] frame, Cont parent) {
+		super(parent);
+		this.node = node;
+		this.i = i;
+		this.frame = frame;
+	}
+
+	@Override
+	protected Node getNode() {
+		return node.getNode(i);
+	}
+
+	@Override
+	protected void resume(Machine m, Object value) {
+		node.execFrom(m, i+1, frame, parent);
+	}
+
+}
@@ -0,0 +1,37 @@
+package ca.kscheme.interp;
+
+import ca.kscheme.data.KSchemeException;
+
+/**
+ * Common superclass for nodes whose value can be computed directly.
+ * See {@link Node#isSimple()}.
+ */
+public abstract class SimpleNode extends Node {
+
+	protected SimpleNode(Object exp) {
+		super(exp);
+	}
+
+	@Override
+	public final void exec(Machine m, Object[] frame, Cont k) {
+		try {
+			m.applyCont(k, value(frame));
+		} catch (KSchemeException e) {
+			k.raise(m, exp, e);
+		}
+	}
+	
+	@Override
+	public final boolean isSimple() {
+		return true;
+	}
+	
+	@Override
+	public final boolean hasValue() {
+		return true;
+	}
+	
+	@Override
+	public abstract Object value(Object[] frame) throws KSchemeException;
+
+}
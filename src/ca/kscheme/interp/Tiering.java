@@ -0,0 +1,58 @@
+package ca.kscheme.interp;
+
+/**
+ * Decides when the body of a lambda is handed to a faster tier. Every {@link Lambda}
+ * counts how often closures created from it are invoked, and how many of those 
+ * invocations are back edges: self tail calls, i.e. iterations of a loop. When either 
+ * counter reaches its threshold, {@link #hot(Lambda)} is called for the Lambda (only
+ * once per Lambda). A counter isn't kept while its threshold is {@link #NEVER}.
+ * <p>
+ * This class never calls hot, since its thresholds are unreachable by default. 
+ * Interpreters that have a faster tier use a subclass, see {@link CoreInterpreter#setTiering(Tiering)}.
+ * 
+ * @author kdvolder
+ */
+public class Tiering {
+	
+	public static final int NEVER = Integer.MAX_VALUE;
+	
+	private int invocationThreshold = NEVER;
+	private int backEdgeThreshold = NEVER;
+	
+	public Tiering() {
+	}
+
+	public Tiering(int invocationThreshold, int backEdgeThreshold) {
+		this.invocationThreshold = invocationThreshold;
+		this.backEdgeThreshold = backEdgeThreshold;
+	}
+
+	/**
+	 * Called once, when a counter of a Lambda reaches its threshold. Called on the 
+	 * thread that runs the code, so this should return quickly.
+	 */
+	protected void hot(Lambda lambda) {
+	}
+
+	public int getInvocationThreshold() {
+		return invocationThreshold;
+	}
+
+	/**
+	 * Lambdas whose counter is already past a new, lower threshold become hot on
+	 * their next invocation. Invocations made while the threshold was 
+	 * {@link #NEVER} weren't counted.
+	 */
+	public void setInvocationThreshold(int invocationThreshold) {
+		this.invocationThreshold = invocationThreshold;
+	}
+
+	public int getBackEdgeThreshold() {
+		return backEdgeThreshold;
+	}
+
+	public void setBackEdgeThreshold(int backEdgeThreshold) {
+		this.backEdgeThreshold = backEdgeThreshold;
+	}
+
+}
@@ -17,6 +17,14 @@ public class AppendFrame extends Frame {
 		this.l = l; this.r = r;
 	}
 
+	public Frame getLeft() {
+		return l;
+	}
+
+	public Frame getRight() {
+		return r;
+	}
+
 	@Override
 	public Reference<Object> lookup(SSymbol sym) throws KSchemeException {
 		Reference<Object> result = r.lookup(sym);
@@ -30,6 +38,11 @@ public class AppendFrame extends Frame {
 		r.def(var, ref);
 	}
 
+	@Override
+	public boolean replace(SSymbol sym, Reference<Object> old, Reference<Object> ref) throws KSchemeException {
+		return r.replace(sym, old, ref) || l.replace(sym, old, ref);
+	}
+
 	@Override
 	public String toString() {
 		return l.toString()+"\n"+r.toString();
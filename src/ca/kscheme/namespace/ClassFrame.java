@@ -1,5 +1,6 @@
 package ca.kscheme.namespace;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -7,13 +8,14 @@ import java.lang.reflect.Modifier;
 
 import ca.kscheme.data.ImpossibleError;
 import ca.kscheme.data.KSchemeException;
-import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.MethodHandleProcedure;
+import ca.kscheme.data.PrimitiveProcedure;
 import ca.kscheme.data.SSymbol;
 import ca.kscheme.data.SchemeValue;
 import ca.kscheme.interp.Cont;
 import ca.kscheme.interp.ErrorWithCont;
 import ca.kscheme.interp.KSchemeAssert;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 
 /**
  * ClassFrame is an abstract class from which a user can inherit to create
@@ -21,7 +23,8 @@ import ca.kscheme.interp.Trampoline;
  * class. 
  * <p>
  * To the user, a method will look like an immutable variable bound to a procedure.
- * Fields will look like variables that can be mutated.
+ * Fields will look like variables that can be mutated. Static methods marked
+ * {@link Inlinable} become {@link PrimitiveProcedure}s.
  */
 public abstract class ClassFrame extends HashFrame {
 	
@@ -64,15 +67,22 @@ public abstract class ClassFrame extends HashFrame {
 		return SchemeValue.makeSymbol(name);
 	}
 
-	private Reference<Object> makeMethodReference(final Method m) {
-		return new ImmutableRef<Object>(new SProcedure() {
+	private Reference<Object> makeMethodReference(final Method method) throws KSchemeException {
+		if (method.isAnnotationPresent(Inlinable.class)) {
+			KSchemeAssert.assertTrue("Inlinable method must be static: "+method, Modifier.isStatic(method.getModifiers()));
+			return new ImmutableRef<Object>(new PrimitiveProcedure(method));
+		}
+		return new ImmutableRef<Object>(new MethodHandleProcedure(method.getParameterCount(), true) {
 			@Override
-			public Trampoline apply(Object rands, Cont k) {
-				try {
-					return k.applyCont(m.invoke(ClassFrame.this, SchemeValue.toUnproxiedArray(rands)));
-				} catch (Exception e) {
-					throw new ErrorWithCont("invoking "+m,k,e);
-				}
+			protected MethodHandle target() throws KSchemeException {
+				MethodHandle handle = unreflect(method);
+				if (!Modifier.isStatic(method.getModifiers()))
+					handle = handle.bindTo(ClassFrame.this);
+				return handle;
+			}
+			@Override
+			protected void fail(Machine m, Object[] args, Cont k, Throwable e) {
+				throw new ErrorWithCont("invoking "+method,k,e);
 			}
 		});
 	}
@@ -1,26 +1,27 @@
 package ca.kscheme.namespace;
 
-import static ca.kscheme.data.SchemeValue.asSymbol;
-import static ca.kscheme.data.SchemeValue.car;
-import static ca.kscheme.data.SchemeValue.cdr;
-import static ca.kscheme.data.SchemeValue.isNull;
-import static ca.kscheme.data.SchemeValue.isPair;
-import static ca.kscheme.data.SchemeValue.makeNull;
 import ca.kscheme.data.KSchemeException;
 import ca.kscheme.data.SSymbol;
 import ca.kscheme.data.SchemeValue;
-import ca.kscheme.interp.KSchemeAssert;
 
 public final class Env {
 
 	private Frame frame;
 
+	/**
+	 * For an Env made by {@link #fork()}: the frames it shares with other
+	 * Envs. Otherwise null.
+	 */
+	private final Frame shared;
+
 	public Env() {
 		this.frame = new HashFrame();
+		this.shared = null;
 	}
 
-	private Env(Frame frame) {
+	private Env(Frame frame, Frame shared) {
 		this.frame = frame;
+		this.shared = shared;
 	}
 
 	public String toString() {
@@ -29,11 +30,28 @@ public final class Env {
 			   "}\n";
 	}
 
+	public Frame getFrame() {
+		return frame;
+	}
+
 	public Env extend() {
 		return extend(new HashFrame());
 	}
 	public Env extend(Frame addFrame) {
-		return new Env(new AppendFrame(frame, addFrame));
+		return new Env(new AppendFrame(frame, addFrame), shared);
+	}
+
+	/**
+	 * An Env that shares all the frames of this one, and defines in a new
+	 * frame of its own. Nothing must be defined in the shared frames any
+	 * more. The interpreter keeps the assignments to their variables apart,
+	 * using {@link #lookupShared(SSymbol)} and {@link #replaceShared}.
+	 */
+	public Env fork() {
+		return fork(new HashFrame());
+	}
+	public Env fork(Frame addFrame) {
+		return new Env(new AppendFrame(frame, addFrame), frame);
 	}
 
 	public void define(SSymbol sym, Object val) throws KSchemeException {
@@ -70,22 +88,21 @@ public final class Env {
 		return loc;
 	}
 
-	public Env extend(Object formals, Object rands) throws KSchemeException {
-		Env extEnv = this.extend();
-		while (!isNull(formals)) {
-			if (isPair(formals)) {
-				extEnv.define(asSymbol(car(formals)), car(rands));
-				formals = cdr(formals);
-				rands = cdr(rands);
-			}
-			else {
-				extEnv.define(asSymbol(formals), rands);
-				formals = makeNull();
-				rands = makeNull();
-			}
-		}
-		KSchemeAssert.assertTrue("Too many rands",isNull(rands));
-		return extEnv;
+	/**
+	 * For an Env made by {@link #fork()}, the location of a name in the frames
+	 * it shares. Otherwise null.
+	 */
+	public Reference<Object> lookupShared(SSymbol sym) throws KSchemeException {
+		return shared==null ? null : shared.lookup(sym);
+	}
+
+	/**
+	 * Replace the location of a name in the frames this Env shares, where it 
+	 * was bound to old, by ref (see {@link Frame#replace}).
+	 */
+	public void replaceShared(SSymbol sym, Reference<Object> old, Reference<Object> ref) throws KSchemeException {
+		if (shared==null || !shared.replace(sym, old, ref))
+			throw new KSchemeException("Not a shared variable: "+sym);
 	}
 
-}
\ No newline at end of file
+}
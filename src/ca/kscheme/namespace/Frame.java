@@ -41,6 +41,16 @@ public abstract class Frame {
 	 */
 	public abstract Reference<Object> lookup(SSymbol sym) throws KSchemeException;
 
+	/**
+	 * Bind a name that is bound to old in this Frame to ref instead, so that 
+	 * everything that looks the name up again finds ref.
+	 * <p>
+	 * Returns false if the name isn't bound to old here.
+	 */
+	public boolean replace(SSymbol sym, Reference<Object> old, Reference<Object> ref) throws KSchemeException {
+		return false;
+	}
+
 	public abstract Iterable<Binding> exportedBindings();
 
 }
@@ -32,8 +32,10 @@ public class HashFrame extends Frame {
 
 	@Override
 	public void def(SSymbol sym, Reference<Object> ref) throws KSchemeException {
-		if (allowRedefinitions || map.get(sym)==null)
+		if (allowRedefinitions || map.get(sym)==null) {
 			map.put(sym, ref);
+			sym.bindingChanged();
+		}
 		else
 			throw new KSchemeException("Variable "+sym+" already defined in scope");
 	}
@@ -49,6 +51,20 @@ public class HashFrame extends Frame {
 	protected void put(SSymbol sym, Object val) {
 		Assert.isLegalArgument("sym", sym, !map.containsKey(sym));
 		map.put(sym, new ImmutableRef<Object>(val));
+		sym.bindingChanged();
+	}
+
+	@Override
+	public boolean replace(SSymbol sym, Reference<Object> old, Reference<Object> ref) {
+		if (map.get(sym)!=old)
+			return false;
+		map.put(sym, ref);
+		sym.bindingChanged();
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
 	}
 
 	@Override
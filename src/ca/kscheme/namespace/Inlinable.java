@@ -0,0 +1,14 @@
+package ca.kscheme.namespace;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a public static method of a {@link ClassFrame} as a primitive whose
+ * calls the Analyzer may inline. The method must take and return Objects,
+ * unproxy its arguments itself, and have no effects other than on its
+ * arguments. See {@link ca.kscheme.data.PrimitiveProcedure}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Inlinable {
+}
@@ -0,0 +1,242 @@
+package ca.kscheme.primitives;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.namespace.ClassFrame;
+import ca.kscheme.namespace.SchemeName;
+
+/**
+ * Fixnum arithmetic and comparison primitives.
+ * <p>
+ * These used to be defined in bootstrap.scm on top of reflective calls to
+ * {@link ca.kscheme.data.SchemeValue#add(int, int)} and friends. Since
+ * arithmetic is on nearly every hot path, they are implemented here with an
+ * entry point per arity and a fast path for two Integer operands.
+ *
+ * @author kdvolder
+ */
+public class Arithmetic extends ClassFrame {
+
+	public Arithmetic() throws KSchemeException {
+		super();
+	}
+
+	/**
+	 * A left fold of a binary int operation over the rands.
+	 */
+	private static abstract class Fold extends SProcedure {
+
+		/** Result of applying to no rands, or null if that is an error */
+		private final Integer identity;
+
+		Fold(Integer identity) {
+			this.identity = identity;
+		}
+
+		abstract int op(int a, int b);
+
+		/** Result of applying to a single rand */
+		int unary(int a) {
+			return op(identity, a);
+		}
+
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply0(Machine m, Cont k) {
+			if (identity==null)
+				k.raise(m, list(this), new KSchemeException("Number of rands: expected at least 1"));
+			else
+				m.applyCont(k, identity);
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			try {
+				m.applyCont(k, makeNumber(unary(asInt(a))));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a), e);
+			}
+		}
+		@Override
+		public void apply2(Machine m, Object a, Object b, Cont k) {
+			if (a instanceof Integer && b instanceof Integer) {
+				m.applyCont(k, makeNumber(op((Integer)a, (Integer)b)));
+				return;
+			}
+			try {
+				m.applyCont(k, makeNumber(op(asInt(a), asInt(b))));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a, b), e);
+			}
+		}
+		@Override
+		public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+			try {
+				m.applyCont(k, makeNumber(op(op(asInt(a), asInt(b)), asInt(c))));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a, b, c), e);
+			}
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			switch (args.length) {
+			case 0: apply0(m, k); return;
+			case 1: apply1(m, args[0], k); return;
+			}
+			try {
+				int acc = asInt(args[0]);
+				for (int i = 1; i < args.length; i++)
+					acc = op(acc, asInt(args[i]));
+				m.applyCont(k, makeNumber(acc));
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, list(args)), e);
+			}
+		}
+	}
+
+	/**
+	 * A chained comparison: true iff the test holds for every pair of
+	 * adjacent rands. Needs at least two rands.
+	 */
+	private static abstract class Comparison extends SProcedure {
+
+		abstract boolean test(int a, int b);
+
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply0(Machine m, Cont k) {
+			applyN(m, new Object[0], k);
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			applyN(m, new Object[] {a}, k);
+		}
+		@Override
+		public void apply2(Machine m, Object a, Object b, Cont k) {
+			if (a instanceof Integer && b instanceof Integer) {
+				m.applyCont(k, makeBoolean(test((Integer)a, (Integer)b)));
+				return;
+			}
+			try {
+				m.applyCont(k, makeBoolean(test(asInt(a), asInt(b))));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a, b), e);
+			}
+		}
+		@Override
+		public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+			try {
+				int y = asInt(b);
+				m.applyCont(k, makeBoolean(test(asInt(a), y) && test(y, asInt(c))));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a, b, c), e);
+			}
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			try {
+				if (args.length<2)
+					throw new KSchemeException("Number of rands: expected at least 2");
+				// All rands are checked, even once the result is known.
+				boolean result = true;
+				int prev = asInt(args[0]);
+				for (int i = 1; i < args.length; i++) {
+					int next = asInt(args[i]);
+					result = result && test(prev, next);
+					prev = next;
+				}
+				m.applyCont(k, makeBoolean(result));
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, list(args)), e);
+			}
+		}
+	}
+
+	@SchemeName("+")
+	public final SProcedure plus = new Fold(0) {
+		@Override
+		int op(int a, int b) { return a+b; }
+	};
+
+	@SchemeName("-")
+	public final SProcedure minus = new Fold(null) {
+		@Override
+		int op(int a, int b) { return a-b; }
+		@Override
+		int unary(int a) { return -a; }
+	};
+
+	@SchemeName("*")
+	public final SProcedure times = new Fold(1) {
+		@Override
+		int op(int a, int b) { return a*b; }
+	};
+
+	@SchemeName("=")
+	public final SProcedure numEq = new Comparison() {
+		@Override
+		boolean test(int a, int b) { return a==b; }
+	};
+
+	@SchemeName("<")
+	public final SProcedure less = new Comparison() {
+		@Override
+		boolean test(int a, int b) { return a<b; }
+	};
+
+	@SchemeName(">")
+	public final SProcedure greater = new Comparison() {
+		@Override
+		boolean test(int a, int b) { return a>b; }
+	};
+
+	@SchemeName("<=")
+	public final SProcedure lessEq = new Comparison() {
+		@Override
+		boolean test(int a, int b) { return a<=b; }
+	};
+
+	@SchemeName(">=")
+	public final SProcedure greaterEq = new Comparison() {
+		@Override
+		boolean test(int a, int b) { return a>=b; }
+	};
+
+	@SchemeName("zero?")
+	public final SProcedure isZero = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				if (length(rands)!=1)
+					throw new KSchemeException("Number of rands: expected 1");
+				apply1(m, car(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			try {
+				m.applyCont(k, makeBoolean(asInt(a)==0));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, a), e);
+			}
+		}
+	};
+
+}
@@ -1,41 +1,37 @@
 package ca.kscheme.primitives;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 
 import ca.kscheme.data.KSchemeException;
-import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.MethodHandleProcedure;
 import ca.kscheme.interp.Cont;
 import ca.kscheme.interp.ErrorWithCont;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 
-public class ConstructorInvoker extends SProcedure {
+public class ConstructorInvoker extends MethodHandleProcedure {
 
 	private Constructor<?> constructor;
 
-	public ConstructorInvoker(Constructor<?> constructor) {
+	public ConstructorInvoker(Constructor<?> constructor) throws KSchemeException {
+		super(constructor.getParameterCount(), true);
 		this.constructor = constructor;
 	}
 
 	@Override
-	public Trampoline apply(final Object rands, final Cont k) {
-		try {
-			final Object[] args = toUnproxiedArray(rands);
-			return new Trampoline() {
-				@Override
-				public Trampoline force1() {
-					try {
-						return k.applyCont(constructor.newInstance(args));
-					} catch (Exception e) {
-						throw new ErrorWithCont("Invoke constructor "+constructor+"\n rands = "+rands, k, e);
-					}
-				}
-			};
-		} catch (KSchemeException e) {
-			throw new ErrorWithCont("Converting rands to array: rands ="+rands, k, e);
-		}
+	protected MethodHandle target() throws KSchemeException {
+		return unreflect(constructor);
+	}
+
+	@Override
+	protected void fail(Machine m, Object[] args, Cont k, Throwable e) {
+		throw new ErrorWithCont("Invoke constructor "+constructor+"\n rands = "+list(args), k, e);
 	}
 	
+	public Constructor<?> getConstructor() {
+		return constructor;
+	}
+
 	@Override
 	public String toString() {
 		if (name!=null) 
@@ -0,0 +1,226 @@
+package ca.kscheme.primitives;
+
+import java.lang.reflect.Array;
+
+import ca.kscheme.data.IPair;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SSymbol;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.namespace.ClassFrame;
+import ca.kscheme.namespace.Inlinable;
+import ca.kscheme.namespace.SchemeName;
+
+/**
+ * Primitives on pairs, vectors, strings and the basic type predicates.
+ * <p>
+ * These used to be defined in bootstrap.scm with method and instance-of, so
+ * that every (car x) was a reflective call. They are {@link Inlinable}: where
+ * they aren't shadowed, the Analyzer turns calls of them into direct calls of
+ * these methods.
+ *
+ * @author kdvolder
+ */
+public class CorePrimitives extends ClassFrame {
+
+	public CorePrimitives() throws KSchemeException {
+		super();
+	}
+
+	// Pairs
+
+	@Inlinable
+	public static Object car(Object x) throws KSchemeException {
+		return SchemeValue.asPair(x).car();
+	}
+
+	@Inlinable
+	public static Object cdr(Object x) throws KSchemeException {
+		return SchemeValue.asPair(x).cdr();
+	}
+
+	@Inlinable
+	public static Object cons(Object a, Object d) {
+		return SchemeValue.cons(SchemeValue.unproxy(a), SchemeValue.unproxy(d));
+	}
+
+	@Inlinable @SchemeName("set-car!")
+	public static Object setCar(Object x, Object v) throws KSchemeException {
+		SchemeValue.asPair(x).setCar(SchemeValue.unproxy(v));
+		return SchemeValue.makeUndefined();
+	}
+
+	@Inlinable @SchemeName("set-cdr!")
+	public static Object setCdr(Object x, Object v) throws KSchemeException {
+		SchemeValue.asPair(x).setCdr(SchemeValue.unproxy(v));
+		return SchemeValue.makeUndefined();
+	}
+
+	@Inlinable
+	public static Object caar(Object x) throws KSchemeException {
+		return car(car(x));
+	}
+
+	@Inlinable
+	public static Object cadr(Object x) throws KSchemeException {
+		return car(cdr(x));
+	}
+
+	@Inlinable
+	public static Object cdar(Object x) throws KSchemeException {
+		return cdr(car(x));
+	}
+
+	@Inlinable
+	public static Object cddr(Object x) throws KSchemeException {
+		return cdr(cdr(x));
+	}
+
+	@Inlinable
+	public static Object cadar(Object x) throws KSchemeException {
+		return car(cdr(car(x)));
+	}
+
+	@Inlinable
+	public static Object caddr(Object x) throws KSchemeException {
+		return car(cdr(cdr(x)));
+	}
+
+	// Equivalence
+
+	/**
+	 * Java's equals, so that e.g. all Booleans that represent true are eq?.
+	 */
+	@Inlinable @SchemeName("eq?")
+	public static Object isEq(Object x, Object y) {
+		return SchemeValue.isEqv(x, y);
+	}
+
+	@Inlinable @SchemeName("eqv?")
+	public static Object isEqv(Object x, Object y) {
+		return SchemeValue.isEqv(x, y);
+	}
+
+	@Inlinable @SchemeName("equal?")
+	public static Object isEqual(Object x, Object y) {
+		return SchemeValue.makeBoolean(SchemeValue.isEqual(x, y));
+	}
+
+	@Inlinable @SchemeName("equal-hash")
+	public static Object equalHash(Object x) {
+		return SchemeValue.makeNumber(SchemeValue.equalHash(x));
+	}
+
+	@Inlinable
+	public static Object not(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.isFalse(x));
+	}
+
+	// Type predicates
+
+	@Inlinable @SchemeName("null?")
+	public static Object isNull(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.isNull(x));
+	}
+
+	@Inlinable @SchemeName("pair?")
+	public static Object isPair(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof IPair);
+	}
+
+	@Inlinable @SchemeName("symbol?")
+	public static Object isSymbol(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof SSymbol);
+	}
+
+	@Inlinable @SchemeName("procedure?")
+	public static Object isProcedure(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof SProcedure);
+	}
+
+	@Inlinable @SchemeName("boolean?")
+	public static Object isBoolean(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof Boolean);
+	}
+
+	@Inlinable @SchemeName("char?")
+	public static Object isChar(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof Character);
+	}
+
+	@Inlinable @SchemeName("integer?")
+	public static Object isInteger(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof Integer);
+	}
+
+	@Inlinable @SchemeName("string?")
+	public static Object isString(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof String);
+	}
+
+	@Inlinable @SchemeName("vector?")
+	public static Object isVector(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof Object[]);
+	}
+
+	// Vectors. These also work on other Java arrays, such as the char[]
+	// that make-string fills.
+
+	@Inlinable @SchemeName("vector-length")
+	public static Object vectorLength(Object v) throws KSchemeException {
+		v = SchemeValue.unproxy(v);
+		if (v instanceof Object[])
+			return SchemeValue.makeNumber(((Object[]) v).length);
+		try {
+			return SchemeValue.makeNumber(Array.getLength(v));
+		} catch (RuntimeException e) {
+			throw new KSchemeException("vector-length: "+v+" is not a vector", e);
+		}
+	}
+
+	@Inlinable @SchemeName("vector-ref")
+	public static Object vectorRef(Object v, Object i) throws KSchemeException {
+		v = SchemeValue.unproxy(v);
+		int index = SchemeValue.asInt(i);
+		try {
+			if (v instanceof Object[])
+				return ((Object[]) v)[index];
+			return Array.get(v, index);
+		} catch (RuntimeException e) {
+			throw new KSchemeException("vector-ref: "+v+" "+index, e);
+		}
+	}
+
+	@Inlinable @SchemeName("vector-set!")
+	public static Object vectorSet(Object v, Object i, Object x) throws KSchemeException {
+		v = SchemeValue.unproxy(v);
+		int index = SchemeValue.asInt(i);
+		try {
+			x = SchemeValue.unproxy(x);
+			if (v instanceof Object[])
+				((Object[]) v)[index] = x;
+			else
+				Array.set(v, index, x);
+		} catch (RuntimeException e) {
+			throw new KSchemeException("vector-set!: "+v+" "+index, e);
+		}
+		return SchemeValue.makeUndefined();
+	}
+
+	// Strings
+
+	@Inlinable @SchemeName("string-length")
+	public static Object stringLength(Object s) throws KSchemeException {
+		return SchemeValue.makeNumber(SchemeValue.asString(s).length());
+	}
+
+	@Inlinable @SchemeName("string-ref")
+	public static Object stringRef(Object s, Object i) throws KSchemeException {
+		String str = SchemeValue.asString(s);
+		int index = SchemeValue.asInt(i);
+		if (index<0 || index>=str.length())
+			throw new KSchemeException("string-ref: index "+index+" out of range for "+str);
+		return SchemeValue.makeChar(str.charAt(index));
+	}
+
+}
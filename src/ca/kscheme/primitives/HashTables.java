@@ -0,0 +1,357 @@
+package ca.kscheme.primitives;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SHashTable;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.KSchemeAssert;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.namespace.ClassFrame;
+import ca.kscheme.namespace.Inlinable;
+import ca.kscheme.namespace.SchemeName;
+
+/**
+ * Hash tables, with the procedures of SRFI 69. make-hash-table, which picks
+ * the kind of table from an equivalence procedure, is defined in bootstrap.scm.
+ * <p>
+ * The procedures that call back into Scheme (hash-table-ref with a thunk,
+ * hash-table-update!, hash-table-walk and hash-table-fold) do so from
+ * continuation frames, and walk and fold keep only the index of the next
+ * entry, rather than a list of the entries.
+ *
+ * @author kdvolder
+ */
+public class HashTables extends ClassFrame {
+
+	public HashTables() throws KSchemeException {
+		super();
+	}
+
+	private static SHashTable asTable(Object x) throws KSchemeException {
+		x = SchemeValue.unproxy(x);
+		if (x instanceof SHashTable)
+			return (SHashTable) x;
+		throw new KSchemeException("Not a hash table: "+x);
+	}
+
+	@Inlinable @SchemeName("make-eqv-hash-table")
+	public static Object makeEqvHashTable() {
+		return SHashTable.makeEqv();
+	}
+
+	@Inlinable @SchemeName("make-equal-hash-table")
+	public static Object makeEqualHashTable() {
+		return SHashTable.makeEqual();
+	}
+
+	@Inlinable @SchemeName("hash-table?")
+	public static Object isHashTable(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof SHashTable);
+	}
+
+	@Inlinable @SchemeName("hash-table-size")
+	public static Object size(Object table) throws KSchemeException {
+		return SchemeValue.makeNumber(asTable(table).size());
+	}
+
+	@Inlinable @SchemeName("hash-table-ref/default")
+	public static Object refDefault(Object table, Object key, Object dflt) throws KSchemeException {
+		return asTable(table).get(key, dflt);
+	}
+
+	@Inlinable @SchemeName("hash-table-set!")
+	public static Object set(Object table, Object key, Object value) throws KSchemeException {
+		asTable(table).put(key, value);
+		return SchemeValue.makeUndefined();
+	}
+
+	@Inlinable @SchemeName("hash-table-delete!")
+	public static Object delete(Object table, Object key) throws KSchemeException {
+		asTable(table).remove(key);
+		return SchemeValue.makeUndefined();
+	}
+
+	@Inlinable @SchemeName("hash-table-exists?")
+	public static Object exists(Object table, Object key) throws KSchemeException {
+		return SchemeValue.makeBoolean(asTable(table).containsKey(key));
+	}
+
+	@Inlinable @SchemeName("hash-table-clear!")
+	public static Object clear(Object table) throws KSchemeException {
+		asTable(table).clear();
+		return SchemeValue.makeUndefined();
+	}
+
+	@Inlinable @SchemeName("hash-table-copy")
+	public static Object copy(Object table) throws KSchemeException {
+		return asTable(table).copy();
+	}
+
+	@Inlinable @SchemeName("hash-table-keys")
+	public static Object keys(Object table) throws KSchemeException {
+		return asTable(table).collect(new SHashTable.Entries() {
+			public Object get(Object key, Object value) {
+				return key;
+			}
+		});
+	}
+
+	@Inlinable @SchemeName("hash-table-values")
+	public static Object values(Object table) throws KSchemeException {
+		return asTable(table).collect(new SHashTable.Entries() {
+			public Object get(Object key, Object value) {
+				return value;
+			}
+		});
+	}
+
+	@Inlinable @SchemeName("hash-table->alist")
+	public static Object toAlist(Object table) throws KSchemeException {
+		return asTable(table).collect(new SHashTable.Entries() {
+			public Object get(Object key, Object value) {
+				return SchemeValue.cons(key, value);
+			}
+		});
+	}
+
+	/**
+	 * (hash-table-ref table key [thunk]): calls thunk if there is no entry
+	 * for key, or raises an error if there is no thunk either.
+	 */
+	@SchemeName("hash-table-ref")
+	public final SProcedure ref = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply2(Machine m, Object table, Object key, Cont k) {
+			apply3(m, table, key, null, k);
+		}
+		@Override
+		public void apply3(Machine m, Object table, Object key, Object thunk, Cont k) {
+			try {
+				SHashTable t = asTable(table);
+				Object value = t.get(key, t);
+				if (value!=t)
+					m.applyCont(k, value);
+				else if (thunk==null)
+					throw new KSchemeException("hash-table-ref: no entry for "+key);
+				else
+					asProcedure(thunk).apply0(m, k);
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, table, key), e);
+			}
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			if (args.length==2)
+				apply2(m, args[0], args[1], k);
+			else if (args.length==3)
+				apply3(m, args[0], args[1], args[2], k);
+			else
+				k.raise(m, cons(this, list(args)),
+						new KSchemeException("Number of rands: expected 2 or 3 but got "+args.length));
+		}
+	};
+
+	/**
+	 * (hash-table-update! table key proc [thunk]): stores the result of proc
+	 * on the value for key, or on the result of thunk if there is no entry.
+	 */
+	@SchemeName("hash-table-update!")
+	public final SProcedure update = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				Object[] args = toArray(rands);
+				if (args.length==3)
+					apply3(m, args[0], args[1], args[2], k);
+				else if (args.length==4)
+					update(m, args[0], args[1], args[2], args[3], k);
+				else
+					throw new KSchemeException("Number of rands: expected 3 or 4 but got "+args.length);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply3(Machine m, Object table, Object key, Object proc, Cont k) {
+			update(m, table, key, proc, null, k);
+		}
+		private void update(Machine m, Object table, Object key, Object proc, Object thunk, Cont k) {
+			try {
+				SHashTable t = asTable(table);
+				SProcedure p = asProcedure(proc);
+				Object value = t.get(key, t);
+				Cont store = new StoreCont(t, key, k);
+				if (value!=t)
+					p.apply1(m, value, store);
+				else if (thunk==null)
+					throw new KSchemeException("hash-table-update!: no entry for "+key);
+				else
+					asProcedure(thunk).apply0(m, new ApplyCont(p, store));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, table, key), e);
+			}
+		}
+	};
+
+	/**
+	 * (hash-table-update!/default table key proc default)
+	 */
+	@SchemeName("hash-table-update!/default")
+	public final SProcedure updateDefault = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				Object[] args = toArray(rands);
+				if (args.length!=4)
+					throw new KSchemeException("Number of rands: expected 4 but got "+args.length);
+				applyN(m, args, k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			if (args.length!=4) {
+				apply(m, list(args), k);
+				return;
+			}
+			try {
+				SHashTable t = asTable(args[0]);
+				asProcedure(args[2]).apply1(m, t.get(args[1], args[3]), new StoreCont(t, args[1], k));
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, list(args)), e);
+			}
+		}
+	};
+
+	/**
+	 * Stores the value it gets for a key.
+	 */
+	private static class StoreCont extends Cont {
+		private final SHashTable table;
+		private final Object key;
+
+		StoreCont(SHashTable table, Object key, Cont k) {
+			super(k);
+			this.table = table;
+			this.key = key;
+		}
+
+		@Override
+		protected void resume(Machine m, Object value) {
+			table.put(key, value);
+			m.applyCont(parent, SchemeValue.makeUndefined());
+		}
+	}
+
+	/**
+	 * Applies a procedure to the value it gets.
+	 */
+	private static class ApplyCont extends Cont {
+		private final SProcedure proc;
+
+		ApplyCont(SProcedure proc, Cont k) {
+			super(k);
+			this.proc = proc;
+		}
+
+		@Override
+		protected void resume(Machine m, Object value) {
+			proc.apply1(m, value, parent);
+		}
+	}
+
+	/**
+	 * (hash-table-walk table proc): calls proc on the key and value of every
+	 * entry.
+	 */
+	@SchemeName("hash-table-walk")
+	public final SProcedure walk = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				KSchemeAssert.assertEquals("Number of rands", 2, length(rands));
+				apply2(m, car(rands), cadr(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply2(Machine m, Object table, Object proc, Cont k) {
+			try {
+				m.applyCont(new FoldStep(asTable(table), asProcedure(proc), false, 0, k), SchemeValue.makeUndefined());
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, table, proc), e);
+			}
+		}
+	};
+
+	/**
+	 * (hash-table-fold table kons knil): calls (kons key value acc) on every
+	 * entry, where acc is knil for the first entry, and the result of the
+	 * previous call for the others.
+	 */
+	@SchemeName("hash-table-fold")
+	public final SProcedure fold = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				KSchemeAssert.assertEquals("Number of rands", 3, length(rands));
+				apply3(m, car(rands), cadr(rands), caddr(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply3(Machine m, Object table, Object kons, Object knil, Cont k) {
+			try {
+				m.applyCont(new FoldStep(asTable(table), asProcedure(kons), true, 0, k), knil);
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, table, kons, knil), e);
+			}
+		}
+	};
+
+	/**
+	 * Gets the result of the call on the entry before index, and makes the call
+	 * on the next entry.
+	 */
+	private static class FoldStep extends Cont {
+		private final SHashTable table;
+		private final SProcedure proc;
+		private final boolean fold;
+		private final int index;
+
+		FoldStep(SHashTable table, SProcedure proc, boolean fold, int index, Cont k) {
+			super(k);
+			this.table = table;
+			this.proc = proc;
+			this.fold = fold;
+			this.index = index;
+		}
+
+		@Override
+		protected void resume(Machine m, Object value) {
+			int i = table.nextEntry(index);
+			if (i<0) {
+				m.applyCont(parent, fold ? value : SchemeValue.makeUndefined());
+				return;
+			}
+			FoldStep next = new FoldStep(table, proc, fold, i+1, parent);
+			if (fold)
+				proc.apply3(m, table.keyAt(i), table.valueAt(i), value, next);
+			else
+				proc.apply2(m, table.keyAt(i), table.valueAt(i), next);
+		}
+	}
+
+}
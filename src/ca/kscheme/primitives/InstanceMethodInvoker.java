@@ -1,56 +1,51 @@
 package ca.kscheme.primitives;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
 import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.MethodHandleProcedure;
 import ca.kscheme.data.Proxy;
-import ca.kscheme.data.SProcedure;
 import ca.kscheme.interp.Cont;
 import ca.kscheme.interp.ErrorWithCont;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 
-public class InstanceMethodInvoker extends SProcedure {
+/**
+ * Invokes an instance method. The first rand is the receiver.
+ */
+public class InstanceMethodInvoker extends MethodHandleProcedure {
 
 	private Method method;
-	private boolean proxyAware;
 
-	public InstanceMethodInvoker(Method method) {
+	public InstanceMethodInvoker(Method method) throws KSchemeException {
+		super(method.getParameterCount()+1, !isProxyAware(method));
 		this.method = method;
-		proxyAware = Proxy.class.isAssignableFrom(method.getDeclaringClass());
 	}
 
 	@Override
-	public Trampoline apply(Object rands, final Cont k) {
-		try {
-			final Object rcvr = getReceiver(rands);
-			final Object[] args = getArgs(rands);
-			return new Trampoline() {
-				@Override
-				public Trampoline force1() {
-					try {
-						return k.applyCont(method.invoke(rcvr, args));
-					} catch (Throwable e) {
-						throw new ErrorWithCont("Could not call "+method+"\n rcvr = "
-								+rcvr+"\n args ="+args, k, e );
-					}
-				}
-			};
-		} catch (KSchemeException e) {
-			throw new ErrorWithCont("MethodInvoker.apply parsing rands: "+rands, k, e);
-		}
+	protected MethodHandle target() throws KSchemeException {
+		return unreflect(method);
 	}
-	
-	private Object getReceiver(Object rands) throws KSchemeException {
-		if (proxyAware)
-			return car(rands);
-		else 
-			return unproxy(car(rands));
+
+	/**
+	 * Methods declared by Proxy classes get the receiver and arguments as is.
+	 */
+	private static boolean isProxyAware(Method method) {
+		return Proxy.class.isAssignableFrom(method.getDeclaringClass());
 	}
-	private Object[] getArgs(Object rands) throws KSchemeException {
-		if (proxyAware)
-			return toArray(cdr(rands));
-		else 
-			return toUnproxiedArray(cdr(rands));
+
+	@Override
+	protected void fail(Machine m, Object[] rands, Cont k, Throwable e) {
+		if (rands.length==0)
+			throw new ErrorWithCont("MethodInvoker.apply parsing rands: "+list(rands), k, 
+					new KSchemeException("No receiver"));
+		throw new ErrorWithCont("Could not call "+method+"\n rcvr = "
+				+rands[0]+"\n args ="+list(Arrays.copyOfRange(rands, 1, rands.length)), k, e );
+	}
+
+	public Method getMethod() {
+		return method;
 	}
 
 	@Override
@@ -8,7 +8,7 @@ import ca.kscheme.interp.Cont;
 import ca.kscheme.interp.CoreInterpreter;
 import ca.kscheme.interp.ErrorWithCont;
 import ca.kscheme.interp.KSchemeAssert;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 import ca.kscheme.namespace.ClassFrame;
 import ca.kscheme.namespace.SchemeName;
 
@@ -26,35 +26,55 @@ public class InterpreterProcedures extends ClassFrame {
 	}
 
 	private CoreInterpreter interp;
+
+	/**
+	 * The interpreter to act on. That is the one running the code that calls
+	 * us, which may be a fork of the one we were made for.
+	 */
+	private CoreInterpreter interp() {
+		CoreInterpreter running = CoreInterpreter.running();
+		return running!=null ? running : interp;
+	}
 	
 	public final SProcedure eval = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
+		public void apply(Machine m, Object rands, Cont k) {
 			try {
 				KSchemeAssert.assertEquals("Number of rands",1, length(rands));
-				return interp.tGlobalEval(car(rands), k);
+				apply1(m, car(rands), k);
 			} catch (KSchemeException e) {
 				throw new ErrorWithCont("apply eval "+rands, k, e);
 			}
 		}
+		@Override
+		public void apply1(Machine m, Object exp, Cont k) {
+			interp().globalEval(m, exp, k);
+		}
 	};
 
 	@SchemeName("load/URL")
 	public final Object load(URL url) throws KSchemeException {
-		return interp.load(url);
+		return interp().load(url);
 	};
 
 	public final SProcedure read = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
+		public void apply(Machine m, Object rands, Cont k) {
 			try {
 				KSchemeAssert.assertEquals("Number of args", 1, length(rands));
-				Object input = car(rands);
-				return k.applyCont(interp.read(asInputPort(input)));
+				apply1(m, car(rands), k);
 			} catch (KSchemeException e) {
 				throw new ErrorWithCont("read "+rands,k,e);
 			}
 		}
+		@Override
+		public void apply1(Machine m, Object input, Cont k) {
+			try {
+				m.applyCont(k, interp().readDatum(asInputPort(input)));
+			} catch (KSchemeException e) {
+				throw new ErrorWithCont("read "+list(input),k,e);
+			}
+		}
 	};
 	
 }
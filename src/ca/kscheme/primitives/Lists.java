@@ -0,0 +1,439 @@
+package ca.kscheme.primitives;
+
+import ca.kscheme.data.IPair;
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.namespace.ClassFrame;
+import ca.kscheme.namespace.Inlinable;
+import ca.kscheme.namespace.SchemeName;
+
+/**
+ * The list library: list, length, append, reverse, list-tail, list-ref, list?,
+ * the member and assoc families, map and for-each.
+ * <p>
+ * These used to be defined in bootstrap.scm, mostly as recursions that went
+ * through apply for every element. Here they are loops. The first order ones
+ * are {@link Inlinable}. map and for-each call the procedure once per element
+ * with the fixed arity entry points, from a continuation frame that holds the
+ * rest of the lists.
+ *
+ * @author kdvolder
+ */
+public class Lists extends ClassFrame {
+
+	public Lists() throws KSchemeException {
+		super();
+	}
+
+	/**
+	 * The next pair of a list, or null at the end of the list.
+	 */
+	private static IPair next(String who, Object list) throws KSchemeException {
+		list = SchemeValue.unproxy(list);
+		if (list instanceof IPair)
+			return (IPair) list;
+		if (SchemeValue.isNull(list))
+			return null;
+		throw new KSchemeException(who+": not a proper list, ends in "+list);
+	}
+
+	@Inlinable
+	public static Object length(Object list) throws KSchemeException {
+		int length = 0;
+		for (IPair p = next("length", list); p!=null; p = next("length", p.cdr()))
+			length++;
+		return SchemeValue.makeNumber(length);
+	}
+
+	/**
+	 * Floyd's cycle detection: the hare moves two pairs for every pair the
+	 * tortoise moves, and catches up with it only if the list is circular.
+	 */
+	@Inlinable @SchemeName("list?")
+	public static Object isList(Object x) throws KSchemeException {
+		Object tortoise = SchemeValue.unproxy(x);
+		Object hare = tortoise;
+		while (true) {
+			if (!(hare instanceof IPair))
+				return SchemeValue.makeBoolean(SchemeValue.isNull(hare));
+			hare = SchemeValue.unproxy(((IPair) hare).cdr());
+			if (!(hare instanceof IPair))
+				return SchemeValue.makeBoolean(SchemeValue.isNull(hare));
+			hare = SchemeValue.unproxy(((IPair) hare).cdr());
+			tortoise = SchemeValue.unproxy(((IPair) tortoise).cdr());
+			if (hare==tortoise)
+				return SchemeValue.makeBoolean(false);
+		}
+	}
+
+	@Inlinable
+	public static Object reverse(Object list) throws KSchemeException {
+		Object result = SchemeValue.makeNull();
+		for (IPair p = next("reverse", list); p!=null; p = next("reverse", p.cdr()))
+			result = SchemeValue.cons(p.car(), result);
+		return result;
+	}
+
+	@Inlinable @SchemeName("list-tail")
+	public static Object listTail(Object list, Object k) throws KSchemeException {
+		int index = SchemeValue.asInt(k);
+		if (index<0)
+			throw new KSchemeException("list-tail: negative index "+index);
+		for (int i = 0; i < index; i++) {
+			IPair p = next("list-tail", list);
+			if (p==null)
+				throw new KSchemeException("list-tail: index "+index+" out of range");
+			list = p.cdr();
+		}
+		return list;
+	}
+
+	@Inlinable @SchemeName("list-ref")
+	public static Object listRef(Object list, Object k) throws KSchemeException {
+		IPair p = next("list-ref", listTail(list, k));
+		if (p==null)
+			throw new KSchemeException("list-ref: index "+k+" out of range");
+		return p.car();
+	}
+
+	// memq, memv, member
+
+	@Inlinable
+	public static Object memq(Object x, Object list) throws KSchemeException {
+		for (IPair p = next("memq", list); p!=null; p = next("memq", p.cdr())) {
+			if (SchemeValue.isEqv(x, p.car()))
+				return p;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	@Inlinable
+	public static Object memv(Object x, Object list) throws KSchemeException {
+		for (IPair p = next("memv", list); p!=null; p = next("memv", p.cdr())) {
+			if (SchemeValue.isEqv(x, p.car()))
+				return p;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	@Inlinable
+	public static Object member(Object x, Object list) throws KSchemeException {
+		for (IPair p = next("member", list); p!=null; p = next("member", p.cdr())) {
+			if (SchemeValue.isEqual(x, p.car()))
+				return p;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	// assq, assv, assoc
+
+	@Inlinable
+	public static Object assq(Object x, Object alist) throws KSchemeException {
+		for (IPair p = next("assq", alist); p!=null; p = next("assq", p.cdr())) {
+			IPair entry = SchemeValue.asPair(p.car());
+			if (SchemeValue.isEqv(x, entry.car()))
+				return entry;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	@Inlinable
+	public static Object assv(Object x, Object alist) throws KSchemeException {
+		for (IPair p = next("assv", alist); p!=null; p = next("assv", p.cdr())) {
+			IPair entry = SchemeValue.asPair(p.car());
+			if (SchemeValue.isEqv(x, entry.car()))
+				return entry;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	@Inlinable
+	public static Object assoc(Object x, Object alist) throws KSchemeException {
+		for (IPair p = next("assoc", alist); p!=null; p = next("assoc", p.cdr())) {
+			IPair entry = SchemeValue.asPair(p.car());
+			if (SchemeValue.isEqual(x, entry.car()))
+				return entry;
+		}
+		return SchemeValue.makeBoolean(false);
+	}
+
+	// Variadic procedures
+
+	/**
+	 * Always returns a fresh list, even when the rands are a list already,
+	 * as with (apply list lis).
+	 */
+	public final SProcedure list = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			Object result = makeNull();
+			try {
+				for (IPair p = next("list", rands); p!=null; p = next("list", p.cdr()))
+					result = cons(p.car(), result);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+				return;
+			}
+			m.applyCont(k, reverseInPlace(result));
+		}
+		@Override
+		public void apply0(Machine m, Cont k) {
+			m.applyCont(k, makeNull());
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			m.applyCont(k, list(unproxy(a)));
+		}
+		@Override
+		public void apply2(Machine m, Object a, Object b, Cont k) {
+			m.applyCont(k, list(unproxy(a), unproxy(b)));
+		}
+		@Override
+		public void apply3(Machine m, Object a, Object b, Object c, Cont k) {
+			m.applyCont(k, list(unproxy(a), unproxy(b), unproxy(c)));
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			unproxyAll(args);
+			m.applyCont(k, list(args));
+		}
+	};
+
+	/**
+	 * Copies all lists but the last, which becomes the tail of the result.
+	 */
+	public final SProcedure append = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply0(Machine m, Cont k) {
+			m.applyCont(k, makeNull());
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			m.applyCont(k, a);
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			if (args.length==0) {
+				apply0(m, k);
+				return;
+			}
+			Object result = args[args.length-1];
+			try {
+				for (int i = args.length-2; i >= 0; i--) {
+					Object copy = reverse(args[i]);
+					while (copy instanceof IPair) {
+						IPair p = (IPair) copy;
+						copy = p.cdr();
+						p.setCdr(result);
+						result = p;
+					}
+				}
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, list(args)), e);
+				return;
+			}
+			m.applyCont(k, result);
+		}
+	};
+
+	/**
+	 * Reverse a list of fresh pairs, reusing the pairs.
+	 */
+	private static Object reverseInPlace(Object list) {
+		Object result = SchemeValue.makeNull();
+		while (list instanceof IPair) {
+			IPair p = (IPair) list;
+			list = p.cdr();
+			p.setCdr(result);
+			result = p;
+		}
+		return result;
+	}
+
+	// map and for-each
+
+	public final SProcedure map = new Mapper(true);
+
+	@SchemeName("for-each")
+	public final SProcedure forEach = new Mapper(false);
+
+	private static class Mapper extends SProcedure {
+
+		/** Whether the results are collected, as by map, or dropped, as by for-each */
+		private final boolean collect;
+
+		Mapper(boolean collect) {
+			this.collect = collect;
+		}
+
+		private String who() {
+			return collect ? "map" : "for-each";
+		}
+
+		private Object done() {
+			return collect ? makeNull() : makeUndefined();
+		}
+
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply2(Machine m, Object f, Object list, Cont k) {
+			try {
+				SProcedure proc = asProcedure(f);
+				IPair p = next(who(), list);
+				if (p==null)
+					m.applyCont(k, done());
+				else
+					proc.apply1(m, p.car(), new Step1(this, proc, p.cdr(), makeNull(), k));
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, f, list), e);
+			}
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			if (args.length==2) {
+				apply2(m, args[0], args[1], k);
+				return;
+			}
+			try {
+				if (args.length<2)
+					throw new KSchemeException("Number of rands: expected at least 2 but got "+args.length);
+				SProcedure proc = asProcedure(args[0]);
+				Object[] lists = new Object[args.length-1];
+				System.arraycopy(args, 1, lists, 0, lists.length);
+				step(m, proc, lists, makeNull(), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, list(args)), e);
+			}
+		}
+
+		/**
+		 * Apply proc to the cars of the lists, or finish if one of them is empty.
+		 */
+		void step(Machine m, SProcedure proc, Object[] lists, Object results, Cont k) throws KSchemeException {
+			Object[] cars = new Object[lists.length];
+			Object[] cdrs = new Object[lists.length];
+			for (int i = 0; i < lists.length; i++) {
+				IPair p = next(who(), lists[i]);
+				if (p==null) {
+					finish(m, results, k);
+					return;
+				}
+				cars[i] = p.car();
+				cdrs[i] = p.cdr();
+			}
+			StepN next = new StepN(this, proc, cdrs, results, k);
+			switch (cars.length) {
+			case 2: proc.apply2(m, cars[0], cars[1], next); break;
+			case 3: proc.apply3(m, cars[0], cars[1], cars[2], next); break;
+			default: proc.applyN(m, cars, next);
+			}
+		}
+
+		void finish(Machine m, Object results, Cont k) {
+			if (!collect) {
+				m.applyCont(k, makeUndefined());
+				return;
+			}
+			Object result = makeNull();
+			for (; results instanceof IPair; results = ((IPair) results).cdr())
+				result = cons(((IPair) results).car(), result);
+			m.applyCont(k, result);
+		}
+
+		/**
+		 * The results so far, with value added if they are collected. Since
+		 * a continuation captured by proc may be resumed more than once, the
+		 * frames don't mutate any state: results is a list in reverse order
+		 * that only gets longer, and it is copied rather than reversed in
+		 * place at the end.
+		 */
+		Object collect(Object results, Object value) {
+			return collect ? cons(unproxy(value), results) : results;
+		}
+
+		@Override
+		public String toString() {
+			return "#proc:"+who();
+		}
+	}
+
+	/**
+	 * Waits for the value of proc on an element of a single list.
+	 */
+	private static class Step1 extends Cont {
+
+		private final Mapper mapper;
+		private final SProcedure proc;
+		private final Object rest;
+		private final Object results;
+
+		Step1(Mapper mapper, SProcedure proc, Object rest, Object results, Cont k) {
+			super(k);
+			this.mapper = mapper;
+			this.proc = proc;
+			this.rest = rest;
+			this.results = results;
+		}
+
+		@Override
+		protected void resume(Machine m, Object value) {
+			Object results = mapper.collect(this.results, value);
+			try {
+				IPair p = next(mapper.who(), rest);
+				if (p==null)
+					mapper.finish(m, results, parent);
+				else
+					proc.apply1(m, p.car(), new Step1(mapper, proc, p.cdr(), results, parent));
+			} catch (KSchemeException e) {
+				parent.raise(m, list(mapper, proc), e);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the value of proc on the elements of several lists.
+	 */
+	private static class StepN extends Cont {
+
+		private final Mapper mapper;
+		private final SProcedure proc;
+		private final Object[] rests;
+		private final Object results;
+
+		StepN(Mapper mapper, SProcedure proc, Object[] rests, Object results, Cont k) {
+			super(k);
+			this.mapper = mapper;
+			this.proc = proc;
+			this.rests = rests;
+			this.results = results;
+		}
+
+		@Override
+		protected void resume(Machine m, Object value) {
+			try {
+				mapper.step(m, proc, rests, mapper.collect(results, value), parent);
+			} catch (KSchemeException e) {
+				parent.raise(m, list(mapper, proc), e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package ca.kscheme.primitives;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.Printer;
+import ca.kscheme.data.SOutputPort;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.SchemeValue;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+import ca.kscheme.namespace.ClassFrame;
+import ca.kscheme.namespace.Inlinable;
+import ca.kscheme.namespace.SchemeName;
+
+/**
+ * Output ports and the procedures that write to them.
+ * <p>
+ * These used to be defined in bootstrap.scm, on top of reflective calls of
+ * OutputStream.write(int) for every character. Now they write whole strings
+ * into the buffer of an {@link SOutputPort}. Output only reaches the
+ * OutputStream when the buffer is full, or on flush-output or
+ * close-output-port.
+ *
+ * @author kdvolder
+ */
+public class Output extends ClassFrame {
+
+	public Output() throws KSchemeException {
+		super();
+	}
+
+	private static SOutputPort asPort(Object x) throws KSchemeException {
+		x = SchemeValue.unproxy(x);
+		if (x instanceof SOutputPort)
+			return (SOutputPort) x;
+		throw new KSchemeException("Not an output port: "+x);
+	}
+
+	@Inlinable @SchemeName("current-output-port")
+	public static Object currentOutputPort() throws KSchemeException {
+		return SOutputPort.stdout();
+	}
+
+	@Inlinable @SchemeName("current-error-port")
+	public static Object currentErrorPort() throws KSchemeException {
+		return SOutputPort.stderr();
+	}
+
+	@Inlinable @SchemeName("output-port?")
+	public static Object isOutputPort(Object x) {
+		return SchemeValue.makeBoolean(SchemeValue.unproxy(x) instanceof SOutputPort);
+	}
+
+	@Inlinable @SchemeName("open-output-file/File")
+	public static Object openOutputFile(Object file) throws KSchemeException {
+		file = SchemeValue.unproxy(file);
+		if (!(file instanceof File))
+			throw new KSchemeException("Not a File: "+file);
+		try {
+			return new SOutputPort(new BufferedOutputStream(new FileOutputStream((File) file)));
+		} catch (IOException e) {
+			throw new KSchemeException("open-output-file "+file, e);
+		}
+	}
+
+	/**
+	 * What display would print.
+	 */
+	@Inlinable @SchemeName("->string")
+	public static Object toDisplayString(Object x) {
+		return Printer.toString(x, false);
+	}
+
+	@Inlinable @SchemeName("close-output-port")
+	public static Object closeOutputPort(Object port) throws KSchemeException {
+		asPort(port).close();
+		return SchemeValue.makeUndefined();
+	}
+
+	/**
+	 * A procedure of zero or one rands, followed by an optional port that
+	 * defaults to the current output port.
+	 */
+	private static abstract class Writer extends SProcedure {
+
+		/** Number of rands before the port */
+		private final int arity;
+
+		Writer(int arity) {
+			this.arity = arity;
+		}
+
+		abstract void output(SOutputPort port, Object x) throws KSchemeException;
+
+		private void run(Machine m, Object port, Object x, Cont k) {
+			try {
+				output(port==null ? SOutputPort.stdout() : asPort(port), x);
+			} catch (KSchemeException e) {
+				k.raise(m, list(this, x), e);
+				return;
+			}
+			m.applyCont(k, makeUndefined());
+		}
+
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			try {
+				applyN(m, toArray(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, cons(this, rands), e);
+			}
+		}
+		@Override
+		public void apply0(Machine m, Cont k) {
+			if (arity==0)
+				run(m, null, null, k);
+			else
+				super.apply0(m, k);
+		}
+		@Override
+		public void apply1(Machine m, Object a, Cont k) {
+			if (arity==0)
+				run(m, a, null, k);
+			else
+				run(m, null, a, k);
+		}
+		@Override
+		public void apply2(Machine m, Object a, Object b, Cont k) {
+			if (arity==1)
+				run(m, b, a, k);
+			else
+				super.apply2(m, a, b, k);
+		}
+		@Override
+		public void applyN(Machine m, Object[] args, Cont k) {
+			if (args.length==arity)
+				run(m, null, arity==0 ? null : args[0], k);
+			else if (args.length==arity+1)
+				run(m, args[arity], arity==0 ? null : args[0], k);
+			else
+				k.raise(m, cons(this, list(args)), new KSchemeException(
+						"Number of rands: expected "+arity+" or "+(arity+1)+" but got "+args.length));
+		}
+	}
+
+	@SchemeName("write-char")
+	public final SProcedure writeChar = new Writer(1) {
+		@Override
+		void output(SOutputPort port, Object c) throws KSchemeException {
+			port.writeChar(asChar(c));
+		}
+	};
+
+	@SchemeName("write-string")
+	public final SProcedure writeString = new Writer(1) {
+		@Override
+		void output(SOutputPort port, Object s) throws KSchemeException {
+			port.writeString(asString(s));
+		}
+	};
+
+	public final SProcedure display = new Writer(1) {
+		@Override
+		void output(SOutputPort port, Object x) throws KSchemeException {
+			port.display(x);
+		}
+	};
+
+	public final SProcedure write = new Writer(1) {
+		@Override
+		void output(SOutputPort port, Object x) throws KSchemeException {
+			port.write(x);
+		}
+	};
+
+	/**
+	 * write with SRFI 38 labels for shared structure, so it terminates on
+	 * circular data.
+	 */
+	@SchemeName("write-shared")
+	public final SProcedure writeShared = new Writer(1) {
+		@Override
+		void output(SOutputPort port, Object x) throws KSchemeException {
+			port.writeShared(x);
+		}
+	};
+
+	public final SProcedure newline = new Writer(0) {
+		@Override
+		void output(SOutputPort port, Object x) throws KSchemeException {
+			port.newline();
+		}
+	};
+
+	@SchemeName("flush-output")
+	public final SProcedure flushOutput = new Writer(0) {
+		@Override
+		void output(SOutputPort port, Object x) throws KSchemeException {
+			port.flush();
+		}
+	};
+
+}
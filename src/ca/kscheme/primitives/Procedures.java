@@ -1,6 +1,5 @@
 package ca.kscheme.primitives;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 
@@ -9,7 +8,7 @@ import ca.kscheme.data.SProcedure;
 import ca.kscheme.interp.Cont;
 import ca.kscheme.interp.ErrorWithCont;
 import ca.kscheme.interp.KSchemeAssert;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 import ca.kscheme.namespace.ClassFrame;
 import ca.kscheme.namespace.SchemeName;
 
@@ -21,30 +20,42 @@ public class Procedures extends ClassFrame {
 	
 	public final SProcedure apply = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
+		public void apply(Machine m, Object rands, Cont k) {
 			try {
 				KSchemeAssert.assertEquals("number of argumens",2, length(rands));
-				return apply(car(rands),cadr(rands), k);
+				apply2(m, car(rands),cadr(rands), k);
 			} catch (KSchemeException e) {
 				throw new ErrorWithCont("Applying primitive #apply with rands "+rands,k,e);
 			}
 		}
+		@Override
+		public void apply2(Machine m, Object proc, Object rands, Cont k) {
+			apply(m, proc, rands, k);
+		}
 	};
 
 	public final SProcedure remainder = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
+		public void apply(Machine m, Object rands, Cont k) {
 			try {
 				KSchemeAssert.assertEquals("Number of rands", 2, length(rands));
-				return k.applyCont(asInt(car(rands))%asInt(cadr(rands)));
+				apply2(m, car(rands), cadr(rands), k);
+			} catch (Exception e) {
+				k.raise(m, "apply remainder "+rands, e);
+			}
+		}
+		@Override
+		public void apply2(Machine m, Object a, Object b, Cont k) {
+			try {
+				m.applyCont(k, asInt(a)%asInt(b));
 			} catch (Exception e) {
-				return k.raise("apply remainder "+rands, e);
+				k.raise(m, "apply remainder "+list(a, b), e);
 			}
 		}
 	};
 	public final SProcedure method = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
+		public void apply(Machine m, Object rands, Cont k) {
 			try {
 				KSchemeAssert.assertTrue("Number of args", length(rands)>=2);
 				Class<?> cls = asClass(car(rands));
@@ -58,9 +69,9 @@ public class Procedures extends ClassFrame {
 				}
 				Method method = cls.getMethod(methodName, parameterTypes);
 				if (Modifier.isStatic(method.getModifiers()))
-					return k.applyCont(new StaticMethodInvoker(method));
+					m.applyCont(k, new StaticMethodInvoker(method));
 				else 
-					return k.applyCont(new InstanceMethodInvoker(method));
+					m.applyCont(k, new InstanceMethodInvoker(method));
 			} catch (Exception e) {
 				throw new ErrorWithCont("apply #method "+rands, k, e);
 			}
@@ -69,8 +80,8 @@ public class Procedures extends ClassFrame {
 	
 	public final SProcedure constructor = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
-			Constructor<?> method;
+		public void apply(Machine m, Object rands, Cont k) {
+			ConstructorInvoker invoker;
 			try {
 				KSchemeAssert.assertTrue("Need at least one rand",length(rands)>=1);
 				Class<?> cls = asClass(car(rands));
@@ -81,52 +92,94 @@ public class Procedures extends ClassFrame {
 					parameterTypes[i] = asClass(car(argTypeList));
 					argTypeList = cdr(argTypeList);
 				}
-				method = cls.getConstructor(parameterTypes);
+				invoker = new ConstructorInvoker(cls.getConstructor(parameterTypes));
 			} catch (Exception e) {
 				throw new ErrorWithCont("constructor "+rands, k, e);
 			}
-			return k.applyCont(new ConstructorInvoker(method));
+			m.applyCont(k, invoker);
+		}
+	};
+	
+	/**
+	 * (invoke rcvr 'name arg ...) calls the Java method with the given name that 
+	 * best fits the classes of the receiver and arguments. The send special form
+	 * does the same, but caches the choice at each call site.
+	 */
+	public final SProcedure invoke = new SProcedure() {
+		@Override
+		public void apply(Machine m, Object rands, Cont k) {
+			Object value;
+			try {
+				KSchemeAssert.assertTrue("Number of args", length(rands)>=2);
+				String methodName = asSymbol(cadr(rands)).getName();
+				value = Send.invoke(methodName, toArray(cons(car(rands), cddr(rands))));
+			} catch (Throwable e) {
+				k.raise(m, "apply invoke "+rands, e instanceof Exception ? (Exception)e : new KSchemeException("invoke", e));
+				return;
+			}
+			m.applyCont(k, value);
 		}
 	};
 	
 	@SchemeName("call-with-current-continuation")
 	public final SProcedure callCC = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, final Cont k) {
+		public void apply(Machine m, Object rands, final Cont k) {
 			try {
 				KSchemeAssert.assertEquals("Number of rands", 1, length(rands));
-				return apply(car(rands), list(k), k);
+				apply1(m, car(rands), k);
 			} catch (KSchemeException e) {
 				throw new ErrorWithCont("apply call/cc "+rands, k, e);
 			}
 		}
+		@Override
+		public void apply1(Machine m, Object proc, Cont k) {
+			try {
+				SProcedure receiver = asProcedure(proc);
+				Cont.escaped();
+				receiver.apply1(m, k, k);
+			} catch (KSchemeException e) {
+				k.raise(m, "apply call/cc "+list(proc), e);
+			}
+		}
 	};
 	
 	@SchemeName("call-with-handler")
 	public final SProcedure tryIt = new SProcedure() {
 
 		@Override
-		public Trampoline apply(Object rands, final Cont k) {
+		public void apply(Machine m, Object rands, final Cont k) {
 			try {
 				KSchemeAssert.assertEquals("Number of rands", 2, length(rands));
-				SProcedure body = asProcedure(car(rands));
-				final SProcedure handler = asProcedure(cadr(rands));
-				return body.apply(makeNull(), new Cont(null, k) {
+				apply2(m, car(rands), cadr(rands), k);
+			} catch (KSchemeException e) {
+				k.raise(m, "try: "+rands, e);
+			}
+		}
+
+		@Override
+		public void apply2(Machine m, Object thunk, Object handlerProc, final Cont k) {
+			try {
+				SProcedure body = asProcedure(thunk);
+				final SProcedure handler = asProcedure(handlerProc);
+				body.apply0(m, new Cont(k) {
 					// This continuation is is the one that handles exceptions.
 					@Override
-					protected Trampoline applyNow(Object value) {
+					protected void resume(Machine m, Object value) {
 						//In non exceptional situation skip over this cont.
-						return parent.applyCont(value);
+						m.applyCont(parent, value);
 					}
 					
 					@Override
-					public Trampoline raise(Cont origin, Object info, Exception e) {
+					protected boolean handle(Machine m, Cont origin, Object info, Exception e) {
 						// In exceptional situations... call the handler
-						return handler.apply(list(e,origin),parent);
+						Cont.escaped();
+						handler.apply2(m, e, origin, parent);
+						return true;
 					}
 				});
 			} catch (KSchemeException e) {
-				return k.raise("try: "+rands, e);
+				k.raise(m, "try: "+list(thunk, handlerProc), e);
 			}
 		}
 		
@@ -134,8 +187,8 @@ public class Procedures extends ClassFrame {
 	
 	public final SProcedure error = new SProcedure() {
 		@Override
-		public Trampoline apply(Object rands, Cont k) {
-			return k.raise(cons(error,rands),new KSchemeException("error"));
+		public void apply(Machine m, Object rands, Cont k) {
+			k.raise(m, cons(error,rands),new KSchemeException("error"));
 		}
 	};
 	
@@ -0,0 +1,343 @@
+package ca.kscheme.primitives;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.MethodHandleProcedure;
+import ca.kscheme.data.SProcedure;
+import ca.kscheme.interp.Cont;
+import ca.kscheme.interp.Machine;
+
+/**
+ * Calls a Java method by name, choosing the overload from the classes of the
+ * receiver and arguments at the time of the call. The first rand is the
+ * receiver.
+ * <p>
+ * Each (send ...) form gets a Send of its own, whose inline cache remembers
+ * the methods chosen for the last few combinations of classes seen there. A
+ * call site that sees more combinations than that goes megamorphic and looks
+ * up the method in a cache shared by all Sends.
+ */
+public class Send extends SProcedure {
+
+	private static final int CACHE_SIZE = 4;
+
+	private static final ConcurrentHashMap<Signature, MethodHandle> globalCache =
+		new ConcurrentHashMap<Signature, MethodHandle>();
+
+	private final String methodName;
+
+	/** Classes of the rands, per cache entry. The class of null is null. */
+	private final Class<?>[][] keys = new Class<?>[CACHE_SIZE][];
+
+	/** Targets, per cache entry, of type (Object, ...) Object */
+	private final MethodHandle[] targets = new MethodHandle[CACHE_SIZE];
+
+	private volatile int size = 0;
+	private volatile boolean megamorphic = false;
+
+	public Send(String methodName) {
+		this.methodName = methodName;
+	}
+
+	@Override
+	public void apply(Machine m, Object rands, Cont k) {
+		try {
+			applyN(m, toArray(rands), k);
+		} catch (KSchemeException e) {
+			k.raise(m, "send "+methodName+" "+rands, e);
+		}
+	}
+
+	@Override
+	public void apply1(Machine m, Object rcvr, Cont k) {
+		rcvr = unproxy(rcvr);
+		Object value;
+		try {
+			value = (Object) target1(classOf(rcvr)).invokeExact(rcvr);
+		} catch (Throwable e) {
+			fail(m, k, e, rcvr);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void apply2(Machine m, Object rcvr, Object a, Cont k) {
+		rcvr = unproxy(rcvr);
+		a = unproxy(a);
+		Object value;
+		try {
+			value = (Object) target2(classOf(rcvr), classOf(a)).invokeExact(rcvr, a);
+		} catch (Throwable e) {
+			fail(m, k, e, rcvr, a);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void apply3(Machine m, Object rcvr, Object a, Object b, Cont k) {
+		rcvr = unproxy(rcvr);
+		a = unproxy(a);
+		b = unproxy(b);
+		Object value;
+		try {
+			value = (Object) target3(classOf(rcvr), classOf(a), classOf(b)).invokeExact(rcvr, a, b);
+		} catch (Throwable e) {
+			fail(m, k, e, rcvr, a, b);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	@Override
+	public void applyN(Machine m, Object[] args, Cont k) {
+		if (args.length==0) {
+			fail(m, k, new KSchemeException("No receiver"), args);
+			return;
+		}
+		unproxyAll(args);
+		Object value;
+		try {
+			value = target(classesOf(args)).invokeWithArguments(args);
+		} catch (Throwable e) {
+			fail(m, k, e, args);
+			return;
+		}
+		m.applyCont(k, value);
+	}
+
+	private void fail(Machine m, Cont k, Throwable e, Object... args) {
+		k.raise(m, "send "+methodName+" "+list(args),
+				e instanceof Exception ? (Exception)e : new KSchemeException("send "+methodName, e));
+	}
+
+	private static Class<?> classOf(Object obj) {
+		return obj==null ? null : obj.getClass();
+	}
+
+	private static Class<?>[] classesOf(Object[] args) {
+		Class<?>[] classes = new Class<?>[args.length];
+		for (int i = 0; i < args.length; i++)
+			classes[i] = classOf(args[i]);
+		return classes;
+	}
+
+	/**
+	 * Find the target for rands of the given classes, trying the inline cache
+	 * first. The entries stay in use once the call site is megamorphic, only
+	 * no new ones are added.
+	 */
+	private MethodHandle target(Class<?>[] classes) throws KSchemeException {
+		int n = size;
+		for (int i = 0; i < n; i++) {
+			if (Arrays.equals(keys[i], classes))
+				return targets[i];
+		}
+		return miss(classes);
+	}
+
+	private MethodHandle target1(Class<?> c0) throws KSchemeException {
+		int n = size;
+		for (int i = 0; i < n; i++) {
+			Class<?>[] key = keys[i];
+			if (key.length==1 && key[0]==c0)
+				return targets[i];
+		}
+		return miss(c0);
+	}
+
+	private MethodHandle target2(Class<?> c0, Class<?> c1) throws KSchemeException {
+		int n = size;
+		for (int i = 0; i < n; i++) {
+			Class<?>[] key = keys[i];
+			if (key.length==2 && key[0]==c0 && key[1]==c1)
+				return targets[i];
+		}
+		return miss(c0, c1);
+	}
+
+	private MethodHandle target3(Class<?> c0, Class<?> c1, Class<?> c2) throws KSchemeException {
+		int n = size;
+		for (int i = 0; i < n; i++) {
+			Class<?>[] key = keys[i];
+			if (key.length==3 && key[0]==c0 && key[1]==c1 && key[2]==c2)
+				return targets[i];
+		}
+		return miss(c0, c1, c2);
+	}
+
+	private MethodHandle miss(Class<?>... classes) throws KSchemeException {
+		MethodHandle target = lookup(methodName, classes);
+		if (!megamorphic) {
+			synchronized (this) {
+				if (size<CACHE_SIZE) {
+					keys[size] = classes;
+					targets[size] = target;
+					size++;
+				}
+				else
+					megamorphic = true;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Find the target for a method call with rands of the given classes in the
+	 * global cache. This is what (invoke ...) uses, and what a megamorphic
+	 * (send ...) falls back on.
+	 */
+	public static MethodHandle lookup(String methodName, Class<?>... classes) throws KSchemeException {
+		Signature sig = new Signature(methodName, classes);
+		MethodHandle target = globalCache.get(sig);
+		if (target==null) {
+			target = resolve(methodName, classes);
+			globalCache.putIfAbsent(sig, target);
+		}
+		return target;
+	}
+
+	/**
+	 * Call the method chosen for the given rands, of which the first is the 
+	 * receiver, using only the global cache.
+	 */
+	public static Object invoke(String methodName, Object[] args) throws Throwable {
+		if (args.length==0)
+			throw new KSchemeException("No receiver");
+		unproxyAll(args);
+		return lookup(methodName, classesOf(args)).invokeWithArguments(args);
+	}
+
+	/**
+	 * Choose the most specific applicable public instance method, and adapt it 
+	 * to the type (Object, ...) Object, where the first argument is the receiver.
+	 */
+	private static MethodHandle resolve(String methodName, Class<?>[] classes) throws KSchemeException {
+		Class<?> rcvrClass = classes[0];
+		if (rcvrClass==null)
+			throw new KSchemeException("send "+methodName+": receiver is null");
+		Class<?>[] argClasses = Arrays.copyOfRange(classes, 1, classes.length);
+		List<Method> candidates = new ArrayList<Method>();
+		for (Method method : rcvrClass.getMethods()) {
+			if (method.getName().equals(methodName) && !method.isBridge()
+					&& !Modifier.isStatic(method.getModifiers())
+					&& isApplicable(method.getParameterTypes(), argClasses))
+				candidates.add(method);
+		}
+		if (candidates.isEmpty())
+			throw new KSchemeException("send: no method "+methodName+" in "+rcvrClass.getName()
+					+" applicable to "+Arrays.toString(argClasses));
+		Method best = candidates.get(0);
+		for (Method method : candidates) {
+			if (isMoreSpecific(method, best))
+				best = method;
+		}
+		for (Method method : candidates) {
+			if (!isMoreSpecific(best, method))
+				throw new KSchemeException("send: ambiguous call of "+methodName+" in "+rcvrClass.getName()
+						+" with "+Arrays.toString(argClasses)+": "+best+" or "+method);
+		}
+		return unreflect(rcvrClass, best).asType(MethodType.genericMethodType(classes.length));
+	}
+
+	private static boolean isApplicable(Class<?>[] paramTypes, Class<?>[] argClasses) {
+		if (paramTypes.length!=argClasses.length)
+			return false;
+		for (int i = 0; i < paramTypes.length; i++) {
+			Class<?> param = paramTypes[i];
+			Class<?> arg = argClasses[i];
+			if (arg==null) {
+				if (param.isPrimitive())
+					return false;
+			}
+			else if (param.isPrimitive()) {
+				if (MethodType.methodType(param).wrap().returnType()!=arg)
+					return false;
+			}
+			else if (!param.isAssignableFrom(arg))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Unlike in Java, a primitive parameter is more specific than any reference
+	 * type, since it only accepts the exact wrapper class. So (send sb append 1)
+	 * calls append(int) rather than append(Object).
+	 */
+	private static boolean isMoreSpecific(Method m1, Method m2) {
+		Class<?>[] params1 = m1.getParameterTypes();
+		Class<?>[] params2 = m2.getParameterTypes();
+		for (int i = 0; i < params1.length; i++) {
+			if (params1[i].isPrimitive() || params2[i].isPrimitive()) {
+				if (params2[i].isPrimitive() && params1[i]!=params2[i])
+					return false;
+			}
+			else if (!params2[i].isAssignableFrom(params1[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A method found with getMethods may be declared in a class we can't access,
+	 * such as a private implementation of a public interface. Then we call it
+	 * through an accessible supertype that has it.
+	 */
+	private static MethodHandle unreflect(Class<?> rcvrClass, Method method) throws KSchemeException {
+		List<Class<?>> todo = new ArrayList<Class<?>>();
+		todo.add(rcvrClass);
+		for (int i = 0; i < todo.size(); i++) {
+			Class<?> type = todo.get(i);
+			if (Modifier.isPublic(type.getModifiers())) {
+				try {
+					return MethodHandleProcedure.unreflect(type.getMethod(method.getName(), method.getParameterTypes()));
+				} catch (NoSuchMethodException e) {
+				} catch (KSchemeException e) {
+				}
+			}
+			if (type.getSuperclass()!=null)
+				todo.add(type.getSuperclass());
+			todo.addAll(Arrays.asList(type.getInterfaces()));
+		}
+		throw new KSchemeException("send: can not access "+method);
+	}
+
+	private static final class Signature {
+		private final String methodName;
+		private final Class<?>[] classes;
+
+		Signature(String methodName, Class<?>[] classes) {
+			this.methodName = methodName;
+			this.classes = classes;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Signature))
+				return false;
+			Signature other = (Signature) obj;
+			return methodName.equals(other.methodName) && Arrays.equals(classes, other.classes);
+		}
+
+		@Override
+		public int hashCode() {
+			return methodName.hashCode()*31 + Arrays.hashCode(classes);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "#send:"+methodName;
+	}
+
+}
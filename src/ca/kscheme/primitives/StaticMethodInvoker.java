@@ -1,40 +1,37 @@
 package ca.kscheme.primitives;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
 
 import ca.kscheme.data.KSchemeException;
-import ca.kscheme.data.SProcedure;
+import ca.kscheme.data.MethodHandleProcedure;
 import ca.kscheme.interp.Cont;
-import ca.kscheme.interp.ErrorWithCont;
-import ca.kscheme.interp.Trampoline;
+import ca.kscheme.interp.Machine;
 
-public class StaticMethodInvoker extends SProcedure {
+public class StaticMethodInvoker extends MethodHandleProcedure {
 
 	private Method method;
 
-	public StaticMethodInvoker(Method method) {
+	public StaticMethodInvoker(Method method) throws KSchemeException {
+		super(method.getParameterCount(), true);
 		this.method = method;
 	}
 
 	@Override
-	public Trampoline apply(final Object rands, final Cont k) {
-		try {
-			final Object[] args = toUnproxiedArray(rands);
-			return new Trampoline() {
-				@Override
-				public Trampoline force1() {
-					try {
-						return k.applyCont(method.invoke(null, args));
-					} catch (Exception e) {
-						return k.raise("StaticMethodInvoker "+method+"\n rand = "+rands, e);
-					}
-				}
-			};
-		} catch (KSchemeException e) {
-			throw new ErrorWithCont("StaticMethodInvoker "+method+"\n rand = "+rands, k, e);
-		}
+	protected MethodHandle target() throws KSchemeException {
+		return unreflect(method);
+	}
+
+	@Override
+	protected void fail(Machine m, Object[] args, Cont k, Throwable e) {
+		k.raise(m, "StaticMethodInvoker "+method+"\n rand = "+list(args), 
+				e instanceof Exception ? (Exception)e : new KSchemeException("Invoking "+method, e));
 	}
 	
+	public Method getMethod() {
+		return method;
+	}
+
 	@Override
 	public String toString() {
 		if (name!=null)
@@ -8,100 +8,179 @@ import java.util.Map;
 
 import ca.kscheme.data.KSchemeException;
 import ca.kscheme.data.SInputPort;
+import ca.kscheme.data.SPair;
 import ca.kscheme.data.SProcedure;
 import ca.kscheme.data.SSymbol;
 import ca.kscheme.data.SchemeValue;
-import ca.kscheme.data.SourcePosition;
 
 public class SchemeReader {
 
 	private static final SSymbol dotSymbol = SchemeValue.makeSymbol(".");
+
+	/** The characters a symbol ends at */
+	private static final boolean[] SYMBOL_END = new boolean[0x3001];
+	/** Whitespace, as Character.isWhitespace has it */
+	private static final boolean[] WHITESPACE = new boolean[0x3001];
+	/** The characters readString stops at in strings, and in |symbols| */
+	private static final boolean[] STRING_END = new boolean['\\'+1];
+	private static final boolean[] BAR_SYMBOL_END = new boolean['|'+1];
+
+	static {
+		for (char c = 0; c < WHITESPACE.length; c++)
+			WHITESPACE[c] = SYMBOL_END[c] = Character.isWhitespace(c);
+		for (char c : "()'\";".toCharArray())
+			SYMBOL_END[c] = true;
+		STRING_END['"'] = STRING_END['\\'] = true;
+		BAR_SYMBOL_END['|'] = BAR_SYMBOL_END['\\'] = true;
+	}
+
+	/** Decimals with at most this many digits are computed exactly */
+	private static final int MAX_EXACT_DIGITS = 15;
+	/** The largest power of ten that is an exact double */
+	private static final int MAX_EXACT_POWER = 22;
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_POWER+1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = 10*POWERS_OF_TEN[i-1];
+	}
+
 	private Map<String, Object> readerConstants = new HashMap<String, Object>();
+
+	/** Where symbols, strings and numbers are collected as they are read */
+	private final StringBuilder token = new StringBuilder();
 	
+	/**
+	 * Read code: the datum, and every datum in it, is wrapped in a SyntaxObj
+	 * with its location in the source.
+	 */
 	public SyntaxObj read(SInputPort input) throws KSchemeException {
+		return (SyntaxObj) read(input, true);
+	}
+
+	/**
+	 * Read data, as the read procedure does: no SyntaxObjs, and no positions.
+	 */
+	public Object readDatum(SInputPort input) throws KSchemeException {
+		return read(input, false);
+	}
+
+	/**
+	 * @param syntax Whether to read code rather than data.
+	 */
+	private Object read(SInputPort input, boolean syntax) throws KSchemeException {
 		skipWhite(input);
-		SourcePosition startPos = input.getPosition();
-		Object value = readNaked(input);
-		SourcePosition endPos = input.getPosition();
-		return new SyntaxObj(value, startPos, endPos);
+		if (!syntax)
+			return readNaked(input, false);
+		int start = input.getOffset();
+		Object value = readNaked(input, true);
+		return new SyntaxObj(value, input.getLineMap(), start, input.getOffset());
 	}
 	
 	public Object readNaked(SInputPort input) throws KSchemeException {
-		Object ch = input.peekChar();
-		if (isEofObject(ch))
-			return ch;
-		else if (isCharNumeric(ch)) {
-			return readNumber(input);
+		return readNaked(input, true);
+	}
+
+	private Object readNaked(SInputPort input, boolean syntax) throws KSchemeException {
+		int ch = input.peek();
+		if (ch<0)
+			return SchemeValue.makeEOF();
+		else if (digit(ch)>=0) {
+			return readNumber(input, false);
 		}
-		else if (ch.equals('-')) {
-			input.readChar();
-			if (isCharWhitespace(input.peekChar()) || input.peekChar().equals(')'))
-				return SchemeValue.makeSymbol("-");
-			Object rest = read(input);
-			if (isNumber(rest))
-				return negate(rest);
-			else if (isSymbol(rest))
-				return SchemeValue.makeSymbol(""+ch+asSymbol(rest).getName());
-			else {
-				throw new ReaderException("- in strange place", input);
-			}
+		else if (ch=='-') {
+			input.read();
+			if (digit(input.peek())>=0)
+				return readNumber(input, true);
+			StringBuilder s = startToken();
+			s.append('-');
+			return readSymbolRest(input, false, syntax);
 		}
-		else if (ch.equals('(')) 
-			return readList(input);
-		else if (ch.equals('\'')) {
+		else if (ch=='(') 
+			return readList(input, syntax);
+		else if (ch=='\'') {
 			SSymbol first = SchemeValue.makeSymbol("quote");
-			input.readChar();
-			return cons(first,cons(read(input),SchemeValue.makeNull()));
+			input.read();
+			return cons(first,cons(read(input, syntax),SchemeValue.makeNull()));
 		}
-		else if (ch.equals('`')) {
+		else if (ch=='`') {
 			SSymbol first = SchemeValue.makeSymbol("quasiquote");
-			input.readChar();
-			return cons(first,cons(read(input),SchemeValue.makeNull()));
+			input.read();
+			return cons(first,cons(read(input, syntax),SchemeValue.makeNull()));
 		}
-		else if (ch.equals(',')) {
+		else if (ch==',') {
 			SSymbol first = SchemeValue.makeSymbol("unquote");
-			input.readChar();
-			if (input.peekChar().equals('@')) {
-				input.readChar();
+			input.read();
+			if (input.peek()=='@') {
+				input.read();
 				first = SchemeValue.makeSymbol("unquote-splicing");
 			}
-			return cons(first,cons(read(input),SchemeValue.makeNull()));
+			return cons(first,cons(read(input, syntax),SchemeValue.makeNull()));
 		}
-		else if (ch.equals('"')) {
-			return readString(input, '"');
+		else if (ch=='"') {
+			return readString(input, STRING_END);
 		}
-		else if (ch.equals('|')) {
-			return makeSymbol(readString(input, '|'));
+		else if (ch=='|') {
+			return makeSymbol(readString(input, BAR_SYMBOL_END));
 		}
 		else { // Assume symbol
-			return readSymbol(input);
+			return readSymbol(input, syntax);
 		}
 	}
 
-	private Object readSymbol(SInputPort input) throws KSchemeException {
-		StringBuilder s = new StringBuilder();
-		Object c, oc;
-		boolean escaped = false;
-		do {
-			oc = c = input.readChar();
-			s.append(asChar(c));
-			c = input.peekChar();
-			escaped = !escaped && isEqv(oc, '\\');
-		} while (isCharPartOfSymbol(c) || escaped);
-		String image = s.toString();
-		if (image.startsWith("#")) {
+	private StringBuilder startToken() {
+		token.setLength(0);
+		return token;
+	}
+
+	private Object readSymbol(SInputPort input, boolean syntax) throws KSchemeException {
+		StringBuilder s = startToken();
+		int c = input.read();
+		s.append((char) c);
+		return readSymbolRest(input, c=='\\', syntax);
+	}
+
+	/**
+	 * Read the rest of the symbol, or # syntax, whose first characters are in
+	 * the token already.
+	 * 
+	 * @param escaped Whether the last of those is a \ that escapes the next
+	 * character.
+	 */
+	private Object readSymbolRest(SInputPort input, boolean escaped, boolean syntax) throws KSchemeException {
+		StringBuilder s = token;
+		while (true) {
+			if (escaped) {
+				int c = input.read();
+				if (c<0)
+					break;
+				s.append((char) c);
+			}
+			int start = s.length();
+			input.readUntil(SYMBOL_END, s);
+			// A \ escapes the delimiter after it, unless it is escaped itself
+			int backslashes = 0;
+			for (int i = s.length()-1; i>=start && s.charAt(i)=='\\'; i--)
+				backslashes++;
+			escaped = backslashes%2==1;
+			if (!escaped)
+				break;
+		}
+		if (s.charAt(0)=='#') {
+			String image = s.toString();
 			if (image.startsWith("#\\")&&image.length()==3)
 				return SchemeValue.makeChar(image.charAt(2));
 			else if (image.equals("#")) {
-				Object vectorElements = read(input);
+				Object vectorElements = read(input, syntax);
 				return SchemeValue.makeVector(vectorElements);
 			}
 			else if (image.startsWith("#|")) {
-				Object element = read(input);
+				Object element = read(input, syntax);
 				while (!isEofObject(element)) {
-					element = read(input);
+					element = read(input, syntax);
 					if (element.equals(makeSymbol("|#"))) 
-						return read(input);
+						return read(input, syntax);
 				}
 				return element; //EOF
 			}
@@ -113,7 +192,7 @@ public class SchemeReader {
 			}
 			else if (image.equals("#case-sensitive")) {
 				input.setCaseSensitive(true);
-				return read(input);
+				return read(input, syntax);
 			}
 			else if (image.charAt(1)=='x'
 				 ||  image.charAt(1)=='b'
@@ -129,126 +208,194 @@ public class SchemeReader {
 				return Integer.parseInt(image.substring(2), radix);
 			}
 		}
-		if (input.isCaseSensitive())
-			return SchemeValue.makeSymbol(s.toString());
-		else
-			return SchemeValue.makeSymbol(s.toString().toLowerCase());
+		if (!input.isCaseSensitive())
+			toLowerCase(s);
+		return SchemeValue.makeSymbol(s.toString());
 	}
 
-	private boolean isCharPartOfSymbol(Object o) {
-		if (!isChar(o)) return false;
-		char c = (Character)o;
-		return !( Character.isWhitespace(c)
-				|| c=='(' || c == ')' || c=='\'' || c =='"' 
-			    || c==';');
+	private static void toLowerCase(StringBuilder s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c>='A' && c<='Z')
+				s.setCharAt(i, (char) (c+('a'-'A')));
+			else if (c>=128)
+				s.setCharAt(i, Character.toLowerCase(c));
+		}
 	}
 
-	private Object readList(SInputPort input) throws KSchemeException {
-		input.readChar(); // skip '('
-		return readRest(input);
-	}
-	
-	private Object readRest(SInputPort input) throws KSchemeException {
-		skipWhite(input);
-		Object c = input.peekChar();
-		if (c.equals(')')) {
-			input.readChar();
-			return SchemeValue.makeNull();
-		}
-		else if (isEofObject(c))
-			throw new KSchemeException("Unexpected end of file:"+input.getPosition());
-		else {
-			Object first = read(input);
-			if (isEqual(dotSymbol, first)) {
-				Object result = read(input);
+	private Object readList(SInputPort input, boolean syntax) throws KSchemeException {
+		input.read(); // skip '('
+		SPair head = null;
+		SPair last = null;
+		while (true) {
+			skipWhite(input);
+			int c = input.peek();
+			if (c==')') {
+				input.read();
+				return head;
+			}
+			else if (c<0)
+				throw new KSchemeException("Unexpected end of file:"+input.getPosition());
+			Object element = read(input, syntax);
+			if (unproxy(element)==dotSymbol) {
+				Object rest = read(input, syntax);
 				skipWhite(input);
 				expect(input, ')');
-				return result;
+				if (last==null)
+					return rest;
+				last.setCdr(rest);
+				return head;
 			}
-			else 
-				return cons(first,readRest(input));
+			SPair p = cons(element, SchemeValue.makeNull());
+			if (last==null)
+				head = p;
+			else
+				last.setCdr(p);
+			last = p;
 		}
 	}
 
-	private String readString(SInputPort input, char terminator) throws KSchemeException {
-		input.readChar(); // skip quote
-		Object c;
-		StringBuilder image = new StringBuilder();
-		while (!(c = input.readChar()).equals(terminator)) {
-			if (isEofObject(c)) 
+	private String readString(SInputPort input, boolean[] end) throws KSchemeException {
+		int terminator = input.read(); // skip quote
+		StringBuilder image = startToken();
+		while (true) {
+			int c = input.readUntil(end, image);
+			input.read();
+			if (c<0) 
 				throw new KSchemeException("Unexpected end of file");
-			if (c.equals('\\')) {
-				//TODO: handle escape sequences?
-				c = input.readChar();
-			}
-			image.append(asChar(c));
+			if (c==terminator)
+				break;
+			//TODO: handle escape sequences?
+			c = input.read();
+			if (c<0) 
+				throw new KSchemeException("Unexpected end of file");
+			image.append((char) c);
 		}
 		return SchemeValue.makeString(image.toString());
 	}
 
 	private void expect(SInputPort input, char c) throws KSchemeException {
-		Object got = input.peekChar();
-		if (got.equals(c)) {
-			input.readChar();
+		int got = input.peek();
+		if (got==c) {
+			input.read();
 		}
 		else 
-			throw new KSchemeException("Error while reading: expected a '"+c+"' but got a '"+got);
+			throw new KSchemeException("Error while reading: expected a '"+c+"' but got a '"+
+					(got<0 ? makeEOF() : (Object) (char) got));
 	}
 
 	private void skipWhite(SInputPort input) throws KSchemeException {
-		Object c = input.peekChar();
-		while (isCharWhitespace(c) || c.equals(';')) {
-			input.readChar();
-			if (c.equals(';')) skipToEol(input); //single line comment
-			c = input.peekChar();
+		int c = input.peek();
+		while (isWhitespace(c) || c==';') {
+			input.read();
+			if (c==';') skipToEol(input); //single line comment
+			c = input.peek();
 		}
 	}
 
 	private void skipToEol(SInputPort input) throws KSchemeException {
-		Object c = input.readChar();
-		while (!(c.equals('\n')||c.equals('\r')||isEofObject(c)))
-			c = input.readChar();
+		int c = input.read();
+		while (!(c=='\n'||c=='\r'||c<0))
+			c = input.read();
 	}
 
-	private Object readNumber(SInputPort input) throws KSchemeException {
-		Object ch = input.peekChar();
-		boolean isFloat = false;
-		StringBuilder image = new StringBuilder();
-		while (isCharNumeric(ch)) {
-			image.append(ch);
-			input.readChar(); // we are processing the char, so skip it
-			ch = input.peekChar();
+	private static boolean isWhitespace(int c) {
+		return c>=0 && c<WHITESPACE.length && WHITESPACE[c];
+	}
+
+	/**
+	 * @return the value of c as a decimal digit, or -1 if it isn't one.
+	 */
+	private static int digit(int c) {
+		if (c>='0' && c<='9')
+			return c-'0';
+		else if (c>=128 && Character.isDigit(c))
+			return Character.digit(c, 10);
+		else
+			return -1;
+	}
+
+	/**
+	 * Read an integer, or a decimal with a fraction and an optional exponent.
+	 * Integers are computed as the digits are read. So are decimals of up to
+	 * 15 digits with a small exponent, since those can be computed exactly,
+	 * as a product or quotient of two doubles. Other decimals are left to
+	 * Double.parseDouble.
+	 */
+	private Object readNumber(SInputPort input, boolean negative) throws KSchemeException {
+		StringBuilder image = startToken();
+		if (negative)
+			image.append('-');
+		long mantissa = 0;
+		int digits = 0; // Significant digits in mantissa
+		int ch = input.peek();
+		int d;
+		while ((d = digit(ch))>=0) {
+			image.append((char) ch);
+			if (digits<=MAX_EXACT_DIGITS) {
+				mantissa = 10*mantissa+d;
+				if (mantissa>0)
+					digits++;
+			}
+			else
+				digits++;
+			input.read(); // we are processing the char, so skip it
+			ch = input.peek();
+		}
+		if (ch!='.') {
+			if (digits>10 || mantissa>(negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE))
+				throw new ReaderException("Integer too large: "+image, input);
+			return (int) (negative ? -mantissa : mantissa);
 		}
-		if (isEqv(ch, '.')) {
-			isFloat = true;
-			image.append(ch);
-			input.readChar();
-			ch = input.peekChar();
-			while (isCharNumeric(ch)) {
-				image.append(ch);
-				input.readChar(); // we are processing the char, so skip it
-				ch = input.peekChar();
+		image.append('.');
+		input.read();
+		ch = input.peek();
+		int exponent = 0;
+		while ((d = digit(ch))>=0) {
+			image.append((char) ch);
+			if (digits<=MAX_EXACT_DIGITS) {
+				mantissa = 10*mantissa+d;
+				if (mantissa>0)
+					digits++;
+				exponent--;
 			}
-			if (isEqv(ch,'e') || isEqv(ch,'E')) {
-				image.append(ch);
-				input.readChar(); // we are processing the char, so skip it
-				ch = input.peekChar();
-				if (isEqv(ch, '-') || isEqv(ch, '+')) {
-					image.append(ch);
-					input.readChar();
-					ch = input.peekChar();
-				}
-				while (isCharNumeric(ch)) {
-					image.append(ch);
-					input.readChar(); // we are processing the char, so skip it
-					ch = input.peekChar();
-				}
+			else
+				digits++;
+			input.read();
+			ch = input.peek();
+		}
+		boolean exact = digits<=MAX_EXACT_DIGITS;
+		if (ch=='e' || ch=='E') {
+			image.append((char) ch);
+			input.read();
+			ch = input.peek();
+			boolean negativeExponent = false;
+			if (ch=='-' || ch=='+') {
+				negativeExponent = ch=='-';
+				image.append((char) ch);
+				input.read();
+				ch = input.peek();
 			}
+			int e = 0;
+			boolean any = false;
+			while ((d = digit(ch))>=0) {
+				image.append((char) ch);
+				if (e<100000)
+					e = 10*e+d;
+				any = true;
+				input.read();
+				ch = input.peek();
+			}
+			exact = exact && any;
+			exponent += negativeExponent ? -e : e;
 		}
-		if (!isFloat)
-			return Integer.parseInt(image.toString());
-		else
-			return Double.parseDouble(image.toString());
+		if (exact && exponent>=-MAX_EXACT_POWER && exponent<=MAX_EXACT_POWER) {
+			double value = exponent>=0 
+				? mantissa * POWERS_OF_TEN[exponent] 
+				: mantissa / POWERS_OF_TEN[-exponent];
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(image.toString());
 	}
 
 	/**
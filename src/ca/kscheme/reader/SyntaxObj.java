@@ -2,28 +2,41 @@ package ca.kscheme.reader;
 
 import java.net.URL;
 
+import ca.kscheme.data.LineMap;
 import ca.kscheme.data.Proxy;
 import ca.kscheme.data.SourcePosition;
 
 
-/** 
+/**
  * A Scheme SyntaxObj is essentially a Scheme Object annotated with
  * additional information, such as the source location from where this
  * Scheme object was parsed.
  * <p>
+ * The location is kept as two offsets in the {@link LineMap} of the source,
+ * which all the SyntaxObjs read from it share. The line and column are only
+ * worked out when {@link #getStartPos()} or {@link #getEndPos()} is called.
+ * <p>
  * The SyntaxObj can be treated as a Proxy for the object it wraps.
  */
 public class SyntaxObj implements Proxy {
-	
+
 	private Object value;
-	private SourcePosition startPos;
-	private SourcePosition endPos;
+	private LineMap lines;
+	private int start;
+	private int end;
 
-	public SyntaxObj(Object value, SourcePosition startPos,
-			SourcePosition endPos) {
+	public SyntaxObj(Object value, LineMap lines, int start, int end) {
 		this.value = value;
-		this.startPos = startPos;
-		this.endPos = endPos;
+		this.lines = lines;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * A SyntaxObj for value, at the location of syntax.
+	 */
+	public SyntaxObj(Object value, SyntaxObj syntax) {
+		this(value, syntax.lines, syntax.start, syntax.end);
 	}
 
 	@Override
@@ -37,11 +50,31 @@ public class SyntaxObj implements Proxy {
 	}
 
 	public String toStringWithLocation() {
-		return ""+startPos+"\n   "+value.toString();
+		return ""+getStartPos()+"\n   "+value.toString();
+	}
+
+	public SourcePosition getStartPos() {
+		return lines.getPosition(start);
+	}
+
+	public SourcePosition getEndPos() {
+		return lines.getPosition(end);
 	}
-	
+
+	public LineMap getLineMap() {
+		return lines;
+	}
+
+	public int getStartOffset() {
+		return start;
+	}
+
+	public int getEndOffset() {
+		return end;
+	}
+
 	public URL getSourceURL() {
-		return startPos.getSourceURL();
+		return lines.getSourceURL();
 	}
 
 }
@@ -0,0 +1,18 @@
+package ca.kscheme.test;
+
+import org.junit.Before;
+
+import ca.kscheme.compiler.CompilingInterpreter;
+
+/**
+ * Runs all the tests in {@link TestScheme} against the {@link CompilingInterpreter}, compiling
+ * all code up front.
+ */
+public class TestCompiledScheme extends TestScheme {
+
+	@Override
+	@Before public void setup() throws Exception {
+		scheme = CompilingInterpreter.getEager();
+	}
+
+}
@@ -6,8 +6,14 @@ import static ca.kscheme.data.SchemeValue.makeNull;
 import static ca.kscheme.data.SchemeValue.makeNumber;
 import static ca.kscheme.data.SchemeValue.makeSymbol;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -16,8 +22,12 @@ import org.junit.Test;
 
 import ca.kscheme.KScheme;
 import ca.kscheme.data.KSchemeException;
+import ca.kscheme.data.SOutputPort;
+import ca.kscheme.data.SPair;
 import ca.kscheme.data.SchemeValue;
 import ca.kscheme.interp.CoreInterpreter;
+import ca.kscheme.interp.DebugInfo;
+import ca.kscheme.interp.ErrorWithCont;
 
 public class TestScheme {
 	
@@ -67,15 +77,530 @@ public class TestScheme {
 		testEval(false, "(and (= 1 1) (= 3 2))");
 	}
 	
+	@Test
+	public void testArity() throws Exception {
+		testEval("'()", "((lambda r r))");
+		testEval("'(2 3 4 5)", "((lambda (a . r) r) 1 2 3 4 5)");
+		testEval(5, "((lambda (a b c d e) e) 1 2 3 4 5)");
+		testEval(3, "((lambda (a b c) c) 1 2 3)");
+		testEval("'(1 2 3 4)", "(list 1 2 3 4)");
+		testEval(1, "(call-with-current-continuation (lambda (k) (k 1) 2))");
+	}
+
+	@Test
+	public void testGlobalRedefinition() throws Exception {
+		scheme.parseAndRun("(define (gr-g) 1)");
+		scheme.parseAndRun("(define (gr-f) (gr-g))");
+		testEval(1, "(gr-f)");
+		scheme.parseAndRun("(define (gr-g) 2)");
+		testEval(2, "(gr-f)");
+		scheme.parseAndRun("(set! gr-g (lambda () 3))");
+		testEval(3, "(gr-f)");
+		scheme.protectEnv();
+		scheme.parseAndRun("(define (gr-g) 4)");
+		testEval(3, "(gr-f)");
+		testEval(4, "(gr-g)");
+	}
+	
+	@Test
+	public void testExpansionLeavesFormAlone() throws Exception {
+		testEval("'(let ((x 1)) x)", "(let ((form '(let ((x 1)) x))) (eval form) (eval form) form)");
+		testEval("'(1 (let ((x 1)) x))", "(let ((form '(let ((x 1)) x))) (list (eval form) form))");
+	}
+
+	@Test
+	public void testFailingMacroRunsOnce() throws Exception {
+		scheme.parseAndRun(
+				"(define runs 0)\n" +
+				"(define broken (macro (lambda (xxx e) (set! runs (+ runs 1)) (car e))))");
+		try {
+			scheme.parseAndRun("(broken 5)");
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+			// The error of the first, and only, expansion
+			Assert.assertEquals("expanding (broken 5)", e.getCause().getMessage());
+		}
+		testEval(1, "runs");
+	}
+
+	@Test
+	public void testMacroHelperDefinedAfterUse() throws Exception {
+		scheme.parseAndRun(
+				"(define twice (macro (lambda (kw x) (helper x))))\n" +
+				"(define (use-it) (twice 21))\n" +
+				"(define (helper x) (list '* 2 x))");
+		testEval(42, "(use-it)");
+	}
+	
+	@Test
+	public void testDerivedForms() throws Exception {
+		testEval(6, "(let loop ((i 3) (acc 0)) (if (= i 0) acc (loop (- i 1) (+ acc i))))");
+		testEval(3, "(let ((x 1)) (let loop ((x (+ x 1))) (if (> x 2) x (loop (+ x 1)))))");
+		testEval(2, "(let* ((x 1) (x (+ x 1))) x)");
+		testEval(5, "(do ((i 0 (+ i 1))) ((= i 5) i))");
+		testEval("'x", "(do ((i 0 (+ i 1))) ((and (= i 5) 'x)))");
+		testEval(2, "(cond ((assv 'b '((a 1) (b 2))) => cadr) (else 3))");
+		testEval(3, "(cond (#f 1) ((+ 1 2)) (else 4))");
+		testEval(1, "(let ((else #f)) (cond (else 2) (#t 1)))");
+		testEval("'other", "(case 5 ((1 2) 'low) (else 'other))");
+		testEval(false, "(case 5 ((1 2) 'low))");
+		testEval(3, "(or #f 3 (car '()))");
+		testEval(false, "(and 1 #f (car '()))");
+		testEval(true, "(letrec ((ev? (lambda (n) (if (= n 0) #t (od? (- n 1))))) (od? (lambda (n) (if (= n 0) #f (ev? (- n 1)))))) (ev? 10))");
+		testEval("'(1 2)", "(let ((k #f) (r '())) (let ((x (call-with-current-continuation (lambda (c) (set! k c) 1)))) (set! r (cons x r)) (if (= x 1) (k 2) (reverse r))))");
+	}
+	
+	@Test
+	public void testSelfTailCalls() throws Exception {
+		testEval(100000, "(let loop ((i 0)) (if (< i 100000) (loop (+ i 1)) i))");
+		testEval(3, "(let ((loop (lambda (i) 3))) (let loop2 ((i 0)) (if (< i 2) (loop2 (+ i 1)) (loop i))))");
+		scheme.parseAndRun("(define (count-up n) (define (loop i acc) (define x (- n i)) (if (= i n) acc (loop (+ i 1) (cons x acc)))) (loop 0 '()))");
+		testEval("'(1 2 3)", "(count-up 3)");
+		// A continuation captured in the middle of an iteration must see the variables as they were
+		scheme.parseAndRun("(define saved #f)");
+		scheme.parseAndRun("(define (grab) (call-with-current-continuation (lambda (c) (set! saved c) 0)))");
+		scheme.parseAndRun("(define (f) (let loop ((i 0) (acc '())) (if (= i 3) acc (loop (+ i 1) (cons (+ i (if (= i 1) (grab) 0)) acc)))))");
+		testEval("'(2 11 0)", "(let ((count 0) (result #f)) (set! result (f)) (if (= count 0) (begin (set! count 1) (saved 10)) result))");
+	}
+
+	@Test
+	public void testArithmetic() throws Exception {
+		testEval(0, "(+)");
+		testEval(1, "(*)");
+		testEval(-5, "(- 5)");
+		testEval(3, "(- 10 4 2 1)");
+		testEval(15, "(+ 1 2 3 4 5)");
+		testEval(24, "(apply * '(1 2 3 4))");
+		testEval(true, "(< 1 2 3)");
+		testEval(false, "(< 1 3 2)");
+		testEval(true, "(>= 3 3 1 0)");
+		testEval(true, "(= 7 7 7 7)");
+		testEval(true, "(zero? (- 3 3))");
+		testEval(true, "(eq? (+ 100 1) (+ 1 100))");
+		try {
+			scheme.parseAndRun("(+ 1 'a)");
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+		}
+		try {
+			scheme.parseAndRun("(< 1)");
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+		}
+	}
+
+	@Test
+	public void testJavaMethods() throws Exception {
+		scheme.parseAndRun("(define |Str| (|getClass| \"java.lang.String\"))");
+		testEval(3, "((method |Str| 'length) \"abc\")");
+		testEval("\"bc\"", "((method |Str| 'substring int int) \"abcd\" 1 3)");
+		testEval("\"bc\"", "(apply (method |Str| 'substring int int) '(\"abcd\" 1 3))");
+		testEval(true, "((method |Str| '|regionMatches| int |Str| int int) \"abcd\" 1 \"xbc\" 1 2)");
+		testEval("\"7\"", "((method |Str| '|valueOf| int) 7)");
+		testEval("\"x\"", "((method (|getClass| \"java.lang.Object\") '|toString|) ((constructor (|getClass| \"java.lang.StringBuilder\") |Str|) \"x\"))");
+		testEval("'failed", "(call-with-handler (lambda () ((method |Str| '|valueOf| int) 1 2)) (lambda (e k) 'failed))");
+		try {
+			scheme.parseAndRun("((method |Str| 'length))");
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+		}
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		testEval(3, "(send \"abc\" length)");
+		testEval("\"bc\"", "(send \"abcd\" substring 1 3)");
+		testEval("\"bcd\"", "(send \"abcd\" 'substring 1)");
+		testEval("\"bc\"", "(invoke \"abcd\" 'substring 1 3)");
+		// Overloads are chosen by the classes of the rands at each call
+		scheme.parseAndRun("(define sb ((constructor (|getClass| \"java.lang.StringBuilder\"))))");
+		scheme.parseAndRun("(define (add x) (send sb append x))");
+		testEval("\"1xtruecy2\"", "(begin (for-each add (list 1 \"x\" #t #\\c 'y 2)) (send sb |toString|))");
+		// A method of a private class is called through the public interface
+		scheme.parseAndRun("(define al ((constructor (|getClass| \"java.util.ArrayList\"))))");
+		testEval(true, "(send (begin (send al add 'x) (send al iterator)) |hasNext|)");
+		testEval("'failed", "(call-with-handler (lambda () (send \"abc\" nosuch)) (lambda (e k) 'failed))");
+		testEval("'failed", "(call-with-handler (lambda () (invoke '() 'length)) (lambda (e k) 'failed))");
+	}
+
+	@Test
+	public void testInlinedPrimitives() throws Exception {
+		scheme.parseAndRun("(define (second x) (car (cdr x)))");
+		testEval(2, "(second '(1 2 3))");
+		testEval(2, "(let ((car cdr)) (car '(1 . 2)))");
+		testEval("'(#t #f #t #f)", "(list (pair? '(1)) (null? '(1)) (vector? (vector)) (string? 'a))");
+		testEval("#\\b", "(string-ref \"abc\" 1)");
+		testEval("'(1 2)", "(let ((v (make-vector 2 1))) (vector-set! v 1 2) (vector->list v))");
+		testEval("'failed", "(call-with-handler (lambda () (car 1)) (lambda (e k) 'failed))");
+		testEval("'failed", "(call-with-handler (lambda () (vector-ref (vector 1) 1)) (lambda (e k) 'failed))");
+		// Code that inlined a primitive sees a later redefinition
+		scheme.parseAndRun("(define (car x) 'mine)");
+		testEval("'mine", "(second '(1 2 3))");
+		testEval("'(1 2)", "(map (lambda (x) x) '(1 2))");
+	}
+
+	@Test
+	public void testRedefinedPrimitiveCapture() throws Exception {
+		// A continuation captured by the new definition escapes the inlined call
+		scheme.parseAndRun("(define esc #f)");
+		scheme.parseAndRun("(define (f l) (car l))");
+		testEval(1, "(f '(1))");
+		scheme.parseAndRun("(define (car x) (esc 42))");
+		testEval(43, "(+ 1 (call-with-current-continuation (lambda (c) (set! esc c) (f '(1)))))");
+	}
+
+	@Test
+	public void testRedefinedPrimitiveTailCall() throws Exception {
+		// The new definition is tail called from where the primitive was inlined
+		scheme.parseAndRun("(define (f l) (car l))");
+		testEval(1, "(f '(1))");
+		scheme.parseAndRun("(define (car l) (if (null? (cdr l)) 'end (f (cdr l))))");
+		testEval("'end", "(f (vector->list (make-vector 100000 0)))");
+	}
+
 	@Test
 	public void testAppend() throws Exception {
 		testEval(scheme.parseAndRun("'(1 2 3 4)"), "(append '(1 2) '(3 4))");
 	}
 
+	@Test
+	public void testEqual() throws Exception {
+		testEval(true, "(equal? '(1 #(2 \"three\") (4 . 5)) (list 1 (vector 2 \"three\") (cons 4 5)))");
+		testEval(false, "(equal? '(1 #(2 3)) '(1 #(2 4)))");
+		testEval(false, "(equal? #(1 2) #(1 2 3))");
+		testEval(false, "(equal? '(1 2) '(1 2 . 3))");
+		testEval(true, "(= (equal-hash (list 'a \"b\" #(1 2))) (equal-hash (list 'a \"b\" (vector 1 2))))");
+		// Long lists and deep trees don't overflow the stack
+		scheme.parseAndRun("(define (deep n) (let loop ((i 0) (x '())) (if (= i n) x (loop (+ i 1) (list x)))))");
+		testEval(true, "(equal? (deep 200000) (deep 200000))");
+		testEval(true, "(let ((l (vector->list (make-vector 200000 'x)))) (equal? l (append l '())))");
+		testEval(true, "(integer? (equal-hash (deep 200000)))");
+		// Circular data
+		scheme.parseAndRun("(define (circle . xs) (let ((l (apply list xs))) (set-cdr! (list-tail l (- (length l) 1)) l) l))");
+		testEval(true, "(equal? (circle 1 2) (circle 1 2 1 2))");
+		testEval(false, "(equal? (circle 1 2) (circle 1 2 1 3))");
+		testEval(true, "(= (equal-hash (circle 1 2)) (equal-hash (circle 1 2 1 2)))");
+		testEval(true, "(equal? (circle '(1) #(2)) (circle '(1) #(2) (list 1) (vector 2)))");
+		testEval(true, "(let ((a (list 1 2)) (b (list 1 2))) (set-car! (cdr a) a) (set-car! (cdr b) b) (equal? a b))");
+		testEval(false, "(let ((a (list 1 2)) (b (list 1 3))) (set-car! a a) (set-car! b b) (equal? a b))");
+		testEval(true, "(let ((v (vector 1 #f)) (w (vector 1 #f))) (vector-set! v 1 v) (vector-set! w 1 (vector 1 w)) (equal? v w))");
+	}
+
+	@Test
+	public void testHashTables() throws Exception {
+		scheme.parseAndRun("(define ht (make-hash-table))");
+		testEval("'b", "(begin (hash-table-set! ht '(1 \"a\") 'a) (hash-table-set! ht (list 1 \"a\") 'b) (hash-table-ref ht '(1 \"a\")))");
+		testEval(1, "(hash-table-size ht)");
+		testEval("'none", "(hash-table-ref ht 'x (lambda () 'none))");
+		testEval("'failed", "(call-with-handler (lambda () (hash-table-ref ht 'x)) (lambda (e k) 'failed))");
+		// Many keys, with deletions in between, in an eqv table
+		scheme.parseAndRun("(define st (make-eqv-hash-table))");
+		scheme.parseAndRun("(do ((i 0 (+ i 1))) ((= i 1000)) (hash-table-set! st i (* i i)) (if (even? i) (hash-table-delete! st (quotient i 2))))");
+		testEval(500, "(hash-table-size st)");
+		testEval(false, "(hash-table-exists? st 10)");
+		testEval(998001, "(hash-table-ref/default st 999 #f)");
+		testEval(true, "(= (hash-table-fold st (lambda (k v acc) (+ v acc)) 0) (apply + (hash-table-values st)))");
+		testEval(500, "(length (hash-table->alist st))");
+		testEval(3, "(let ((t (make-eq-hash-table))) (hash-table-update!/default t 'n (lambda (x) (+ x 1)) 2) (hash-table-ref t 'n))");
+		testEval(6, "(let ((t (make-string-hash-table))) (hash-table-set! t \"a\" 5) (hash-table-update! t \"a\" (lambda (x) (+ x 1))) (hash-table-ref t \"a\"))");
+		testEval(1, "(let ((t (make-hash-table eq?))) (hash-table-update! t 'n (lambda (x) (+ x 1)) (lambda () 0)) (hash-table-ref t 'n))");
+		testEval(2, "(let ((t (make-hash-table)) (n 0)) (hash-table-set! t 'a 1) (hash-table-set! t 'b 2) (hash-table-walk t (lambda (k v) (set! n (+ n 1)))) n)");
+		testEval(0, "(let ((t (hash-table-copy st))) (hash-table-clear! t) (hash-table-size t))");
+		testEval(500, "(hash-table-size st)");
+	}
+
+	@Test
+	public void testListLibrary() throws Exception {
+		testEval("'(1 2 3 . 4)", "(append '(1) '() '(2 3) 4)");
+		testEval("'()", "(append)");
+		testEval(true, "(let ((l (list 1 2))) (eq? l (cdr (append '(0) l))))");
+		testEval(false, "(let ((l (list 1 2))) (eq? l (apply list l)))");
+		testEval("'(3 2 1)", "(reverse '(1 2 3))");
+		testEval(3, "(length '(a b c))");
+		testEval("'c", "(list-ref '(a b c) 2)");
+		testEval("'(c)", "(list-tail '(a b c) 2)");
+		testEval("'(b c)", "(memq 'b '(a b c))");
+		testEval("'((2) 3)", "(member '(2) '(1 (2) 3))");
+		testEval(false, "(memv 4 '(1 2 3))");
+		testEval("'(b 2)", "(assq 'b '((a 1) (b 2)))");
+		testEval("'((a) 1)", "(assoc '(a) '(((a) 1)))");
+		testEval(true, "(list? '(1 2 3))");
+		testEval(false, "(list? '(1 2 . 3))");
+		testEval(false, "(let ((l (list 1 2 3))) (set-cdr! (cddr l) l) (list? l))");
+		testEval(false, "(let ((l (list 1 2 3 4))) (set-cdr! (cdr (cddr l)) (cdr l)) (list? l))");
+		testEval("'(2 3 4)", "(map (lambda (x) (+ x 1)) '(1 2 3))");
+		testEval("'(5 7 9)", "(map + '(1 2 3) '(4 5 6))");
+		testEval("'((1 3 5) (2 4 6))", "(map list '(1 2) '(3 4) '(5 6))");
+		testEval("'(10 20)", "(map + '(1 2) '(2 4) '(3 6) '(4 8))");
+		testEval(6, "(let ((sum 0)) (for-each (lambda (x) (set! sum (+ sum x))) '(1 2 3)) sum)");
+		testEval(100000, "(length (map (lambda (x) x) (vector->list (make-vector 100000 0))))");
+		// A continuation captured in map can be resumed after map returned
+		testEval("'((1 2 3) (10 2 3))",
+				"(let* ((k #f) (results '()) " +
+				"       (l (map (lambda (x) (if (= x 1) (call-with-current-continuation (lambda (c) (set! k c) x)) x)) '(1 2 3)))) " +
+				"  (set! results (cons l results)) " +
+				"  (if (= (length results) 1) (k 10) (reverse results)))");
+		testEval("'failed", "(call-with-handler (lambda () (length '(1 . 2))) (lambda (e k) 'failed))");
+		testEval("'failed", "(call-with-handler (lambda () (map car '(1 2))) (lambda (e k) 'failed))");
+		testEval("'failed", "(call-with-handler (lambda () (list-ref '(1 2) 2)) (lambda (e k) 'failed))");
+	}
+
 	@Test public void testBegin() throws Exception {
 		testEval(5, "(begin (define x 5) x)");
 	}
 	
+	@Test public void testImage() throws Exception {
+		CoreInterpreter original = (CoreInterpreter) CoreInterpreter.getDefault();
+		original.parseAndRun(
+				"(define counter (let ((n 0)) (lambda () (set! n (+ n 1)) n)))\n" +
+				"(define (even2? n) (letrec ((ev? (lambda (n) (if (= n 0) #t (od? (- n 1)))))\n" +
+				"                            (od? (lambda (n) (if (= n 0) #f (ev? (- n 1))))))\n" +
+				"                     (ev? n)))\n" +
+				"(define swap! (macro (lambda (xxx a b) `(let ((tmp ,a)) (set! ,a ,b) (set! ,b tmp)))))\n" +
+				"(define concat (method (|getClass| \"java.lang.String\") 'concat (|getClass| \"java.lang.String\")))\n" +
+				"(define ht (make-hash-table))\n" +
+				"(hash-table-set! ht '(1 \"a\") 'a)\n" +
+				"(define g (gensym 'g))\n" +
+				"(define (squares n) (do ((i (- n 1) (- i 1)) (r '() (cons (* i i) r))) ((< i 0) r)))\n" +
+				"(define (fails-deep x) (+ 1 (vector-ref x 5)))");
+		original.parseAndRun("(counter)");
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		original.saveImage(image);
+		scheme = CoreInterpreter.fromImage(new ByteArrayInputStream(image.toByteArray()));
+
+		testEval(2, "(counter)");
+		testEval(true, "(even2? 10)");
+		testEval("'(2 1)", "(let ((a 1) (b 2)) (swap! a b) (list a b))");
+		testEval((Object)"abcdef", "(concat \"abc\" \"def\")");
+		testEval("'a", "(hash-table-ref ht (list 1 \"a\"))");
+		testEval(false, "(eq? g (string->symbol (symbol->string g)))");
+		testEval("'(0 1 4 9)", "(squares 4)");
+		testEval("'(0 1 4 9 16)", "(squares 5)");
+
+		// The two interpreters don't share any state
+		scheme.parseAndRun("(hash-table-set! ht 'x 'y)");
+		Assert.assertTrue(isEqual(makeNumber(2), original.parseAndRun("(counter)")));
+		Assert.assertTrue(isEqual(makeSymbol("none"), original.parseAndRun("(hash-table-ref ht 'x (lambda () 'none))")));
+
+		DebugInfo.setEnabled(true);
+		try {
+			scheme.parseAndRun("(+ 2\n   (fails-deep (vector 1 2)))");
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("line: 2  col: 4"));
+		} finally {
+			DebugInfo.setEnabled(false);
+		}
+
+		// Definitions made after loading shadow the ones from the image, as
+		// they do after protectEnv
+		scheme.parseAndRun("(define (vector-ref v i) 'mine)");
+		testEval("'mine", "(vector-ref #(1) 0)");
+		testEval(2, "(+ 1 1)");
+	}
+
+	@Test public void testImageDeepData() throws Exception {
+		CoreInterpreter original = (CoreInterpreter) CoreInterpreter.getDefault();
+		original.parseAndRun(
+				"(define deep-list (do ((i 0 (+ i 1)) (x '() (list x 'a))) ((= i 100000) x)))\n" +
+				"(define deep-vector (do ((i 0 (+ i 1)) (x 'end (vector 'a x))) ((= i 100000) x)))\n" +
+				"(define (list-depth x) (let loop ((x x) (n 0)) (if (pair? x) (loop (car x) (+ n 1)) n)))\n" +
+				"(define (vector-depth x) (let loop ((x x) (n 0)) (if (vector? x) (loop (vector-ref x 1) (+ n 1)) n)))");
+		// On the thread the tests run in, not one with a larger stack
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		original.saveImage(image);
+		scheme = CoreInterpreter.fromImage(new ByteArrayInputStream(image.toByteArray()));
+
+		testEval(100000, "(list-depth deep-list)");
+		testEval(100000, "(vector-depth deep-vector)");
+		testEval(true, "(equal? deep-list deep-list)");
+	}
+
+	@Test public void testFork() throws Exception {
+		CoreInterpreter parent = (CoreInterpreter) scheme;
+		parent.parseAndRun("(define counter 0)");
+		KScheme a = parent.fork();
+		KScheme b = parent.fork();
+
+		// Definitions, assignments and macros stay in the fork that made them
+		a.parseAndRun("(define x 1)");
+		a.parseAndRun("(set! counter 10)");
+		a.parseAndRun("(set! list->string 'gone)");
+		a.parseAndRun("(define my-if (macro (lambda (xxx c t e) `(cond (,c ,t) (else ,e)))))");
+		Assert.assertTrue(a.isDefined("x"));
+		Assert.assertFalse(b.isDefined("x"));
+		Assert.assertFalse(parent.isDefined("x"));
+		Assert.assertTrue(isEqual(makeNumber(10), a.parseAndRun("counter")));
+		Assert.assertTrue(isEqual(makeNumber(0), b.parseAndRun("counter")));
+		Assert.assertTrue(isEqual(makeNumber(0), parent.parseAndRun("counter")));
+		Assert.assertTrue(isEqual(makeSymbol("gone"), a.parseAndRun("list->string")));
+		Assert.assertTrue(isEqual("ab", b.parseAndRun("(list->string '(#\\a #\\b))")));
+		Assert.assertTrue(isEqual(makeSymbol("yes"), a.parseAndRun("(my-if #t 'yes 'no)")));
+		b.parseAndRun("(define (my-if c t e) (list c t e))");
+		Assert.assertTrue(isEqual(b.parseAndRun("'(#t yes no)"), b.parseAndRun("(my-if #t 'yes 'no)")));
+
+		// eval and load act on the fork that calls them, even though they were
+		// defined in the parent
+		b.parseAndRun("(eval '(define y 2))");
+		Assert.assertTrue(b.isDefined("y"));
+		Assert.assertFalse(a.isDefined("y"));
+		Assert.assertFalse(parent.isDefined("y"));
+
+		// What the parent defines after forking is seen by later forks only
+		parent.parseAndRun("(define z 3)");
+		Assert.assertFalse(a.isDefined("z"));
+		Assert.assertTrue(parent.fork().isDefined("z"));
+		Assert.assertTrue(isEqual(makeNumber(4), parent.parseAndRun("(+ z 1)")));
+	}
+
+	@Test public void testForkAssignInParentCode() throws Exception {
+		// A procedure defined before forking assigns the variable of the fork
+		// that calls it
+		CoreInterpreter parent = (CoreInterpreter) scheme;
+		parent.parseAndRun("(define counter 0)");
+		parent.parseAndRun("(define (bump!) (set! counter (+ counter 1)) counter)");
+		parent.parseAndRun("(bump!)");
+		KScheme a = parent.fork();
+		KScheme b = parent.fork();
+		Assert.assertTrue(isEqual(makeNumber(2), a.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(3), a.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(1), b.parseAndRun("counter")));
+		Assert.assertTrue(isEqual(makeNumber(2), b.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(1), parent.parseAndRun("counter")));
+		a.parseAndRun("(set! counter 100)");
+		Assert.assertTrue(isEqual(makeNumber(101), a.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(3), b.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(2), parent.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(2), parent.parseAndRun("counter")));
+
+		// A fork of a fork starts out with the values of the fork
+		KScheme aa = ((CoreInterpreter) a).fork();
+		Assert.assertTrue(isEqual(makeNumber(102), aa.parseAndRun("(bump!)")));
+		Assert.assertTrue(isEqual(makeNumber(101), a.parseAndRun("counter")));
+	}
+
+	@Test public void testFasl() throws Exception {
+		File dir = File.createTempFile("fasl", "");
+		dir.delete();
+		File source = new File(dir, "source.scm");
+		File cache = new File(dir, "cache");
+		try {
+			dir.mkdir();
+			write(source,
+					"(define expansions 0)\n" +
+					"(define twice (macro (lambda (xxx e) (set! expansions (+ expansions 1)) `(begin ,e ,e))))\n" +
+					"(define hits '())\n" +
+					"(twice (set! hits (cons 'a hits)))\n" +
+					"(define v '#(1 \"two\" #\\3))\n" +
+					"(define (fails-deep x)\n" +
+					"  (+ 1\n" +
+					"     (vector-ref x 5)))\n");
+			CoreInterpreter first = (CoreInterpreter) scheme;
+			first.setFaslDirectory(cache);
+			first.load(source.toURI().toURL());
+			Assert.assertTrue(isEqual(makeNumber(1), first.parseAndRun("expansions")));
+			Assert.assertEquals(1, cache.list().length);
+
+			// Loaded again, the forms aren't expanded again
+			CoreInterpreter second = (CoreInterpreter) CoreInterpreter.getDefault();
+			second.setFaslDirectory(cache);
+			second.load(source.toURI().toURL());
+			scheme = second;
+			testEval(0, "expansions");
+			testEval("'(a a)", "hits");
+			testEval("'#(1 \"two\" #\\3)", "v");
+			testEval("'(b b)", "(let ((hits '())) (twice (set! hits (cons 'b hits))) hits)");
+			DebugInfo.setEnabled(true);
+			try {
+				scheme.parseAndRun("(fails-deep (vector 1 2))");
+				Assert.fail("Expected an error");
+			} catch (ErrorWithCont e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("line: 8"));
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("source.scm"));
+			} finally {
+				DebugInfo.setEnabled(false);
+			}
+
+			// A changed source gets a Fasl of its own
+			write(source, "(define expansions 'changed)\n");
+			second.load(source.toURI().toURL());
+			testEval("'changed", "expansions");
+			Assert.assertEquals(2, cache.list().length);
+		} finally {
+			if (cache.isDirectory())
+				for (File file : cache.listFiles())
+					file.delete();
+			cache.delete();
+			source.delete();
+			dir.delete();
+		}
+	}
+
+	@Test public void testFaslDependencies() throws Exception {
+		File dir = File.createTempFile("fasl", "");
+		dir.delete();
+		File macros = new File(dir, "macros.scm");
+		File source = new File(dir, "source.scm");
+		File cache = new File(dir, "cache");
+		try {
+			dir.mkdir();
+			write(macros, "(define which (macro (lambda (xxx) ''one)))\n");
+			write(source, "(load \""+macros.getPath().replace("\\", "/")+"\")\n(define result (which))\n");
+			CoreInterpreter first = (CoreInterpreter) scheme;
+			first.setFaslDirectory(cache);
+			first.load(source.toURI().toURL());
+			Assert.assertTrue(isEqual(makeSymbol("one"), first.parseAndRun("result")));
+
+			// The source is the same, but a macro it loads has changed
+			write(macros, "(define expansions 0)\n(define which (macro (lambda (xxx) (set! expansions (+ expansions 1)) ''two)))\n");
+			CoreInterpreter second = (CoreInterpreter) CoreInterpreter.getDefault();
+			second.setFaslDirectory(cache);
+			second.load(source.toURI().toURL());
+			Assert.assertTrue(isEqual(makeSymbol("two"), second.parseAndRun("result")));
+
+			Assert.assertTrue(isEqual(makeNumber(1), second.parseAndRun("expansions")));
+
+			// And the Fasl made with the new macro is used
+			CoreInterpreter third = (CoreInterpreter) CoreInterpreter.getDefault();
+			third.setFaslDirectory(cache);
+			third.load(source.toURI().toURL());
+			Assert.assertTrue(isEqual(makeSymbol("two"), third.parseAndRun("result")));
+			Assert.assertTrue(isEqual(makeNumber(0), third.parseAndRun("expansions")));
+		} finally {
+			if (cache.isDirectory())
+				for (File file : cache.listFiles())
+					file.delete();
+			cache.delete();
+			macros.delete();
+			source.delete();
+			dir.delete();
+		}
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test public void testDebugInfo() throws Exception {
+		String program = 
+			"(define (fails-deep x) (+ 1 (vector-ref x 5)))\n" +
+			"(+ 2 (fails-deep (vector 1 2)))";
+		DebugInfo.setEnabled(true);
+		try {
+			scheme.parseAndRun(program);
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("line: 2  col: 6"));
+		} finally {
+			DebugInfo.setEnabled(false);
+		}
+	}
+	
 	@Test public void testCase() throws Exception {
 		testEval("'composite", 
 				"(case (* 2 3)" +
@@ -121,6 +646,87 @@ public class TestScheme {
 	@Test public void testDisplay() throws Exception {
 		testOutput("1", "(display 1)");
 	}
+	@Test public void testOutputPorts() throws Exception {
+		testOutput("a \"b\\\\\" #\\c\n", "(begin (display \"a \") (write \"b\\\\\") (write-char #\\space) (write #\\c) (newline))");
+		testOutput("(1 #t (a . b) #(() x))x", "(begin (display '(1 #t (a . b) #(() \"x\"))) (write-string \"x\"))");
+		testOutput("ab", "(let ((p (current-output-port))) (write-char #\\a p) (display \"b\" p) (flush-output p))");
+		// Longer than the buffer, and with characters that aren't ASCII
+		testEval(20000, "(let ((p (open-output-file \"tmp-ports\"))) " +
+				"(do ((i 0 (+ i 1))) ((= i 10000)) (write-string \"\u00e9\" p) (write-char #\\x p)) " +
+				"(close-output-port p) " +
+				"(let ((in (open-input-file \"tmp-ports\"))) " +
+				"  (let loop ((n 0)) (if (eof-object? (read-char in)) (begin (close-input-port in) (delete-file \"tmp-ports\") n) (loop (+ n 1))))))");
+		testEval("'failed", "(call-with-handler (lambda () (display 1 'not-a-port)) (lambda (e k) 'failed))");
+		testEval("'(failed failed)", "(let ((p (open-output-file \"tmp-ports\"))) " +
+				"(close-output-port p) " +
+				"(delete-file \"tmp-ports\") " +
+				"(list (call-with-handler (lambda () (write-char #\\a p)) (lambda (e k) 'failed)) " +
+				"      (call-with-handler (lambda () (display \"b\" p)) (lambda (e k) 'failed))))");
+		// A stateful charset gets to end what it wrote
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SOutputPort port = new SOutputPort(bytes, Charset.forName("ISO-2022-JP"));
+		port.writeString("\u3042");
+		port.close();
+		Assert.assertEquals("\u3042", new String(bytes.toByteArray(), "ISO-2022-JP"));
+		byte[] written = bytes.toByteArray();
+		Assert.assertEquals(0x1b, written[written.length-3]);
+	}
+	@Test public void testPrinter() throws Exception {
+		testEval("\"(a b   #(1 #t) . c)\"", "(->string '(a \"b\" #\\space #(1 #t) . c))");
+		testOutput("(a \"b\" #\\space #(1 #t) . c)", "(write '(a \"b\" #\\space #(1 #t) . c))");
+		testOutput("#0=(1 2 . #0#)", "(let ((l (list 1 2))) (set-cdr! (cdr l) l) (write-shared l))");
+		testOutput("(#0=(x) #0# #1=#(#1#))", "(let ((x (list 'x)) (v (vector 0))) (vector-set! v 0 v) (write-shared (list x x v)))");
+		testOutput("(x x)", "(let ((x 'x)) (write-shared (list x x)))");
+		// Long lists and deep trees don't overflow the stack
+		testEval(400001, "(string-length (->string (vector->list (make-vector 200000 1))))");
+		testEval(400002, "(string-length (->string (let loop ((i 0) (x '())) (if (= i 200000) x (loop (+ i 1) (list x))))))");
+		Assert.assertEquals("\"x\"", scheme.toString("x"));
+		Object circular = scheme.parseAndRun("(let ((l (list 1 2 3))) (set-cdr! (cddr l) l) l)");
+		Assert.assertEquals("#0=(1 2 3 . #0#)", circular.toString());
+		Object longList = scheme.parseAndRun("(vector->list (make-vector 2000 0))");
+		Assert.assertTrue(longList.toString().endsWith(" 0 ...)"));
+	}
+	@Test public void testReader() throws Exception {
+		testEval(-2147483648, "-2147483648");
+		testEval(2147483647, "2147483647");
+		Assert.assertEquals(-1.5e-3, scheme.parseAndRun("-1.5e-3"));
+		Assert.assertEquals(0.1, scheme.parseAndRun("0.1"));
+		Assert.assertEquals(123456789.123456789, scheme.parseAndRun("123456789.123456789"));
+		Assert.assertEquals(2.5e300, scheme.parseAndRun("2.5e300"));
+		Assert.assertEquals(7.0, scheme.parseAndRun("7."));
+		testEval("'(- -> -x 1 a|b)", "'(- -> -X 1 A|B)");
+		testEval("(list (string->symbol \"a\\\\(b\") #\\( #\\space #\\\\ \"a\\\"b\\\\\")", "'(a\\(b #\\( #\\  #\\\\ \"a\\\"b\\\\\")");
+		testEval("'(1 (2 . 3) #(4 5))", "'(1 ; comment\n (2 . 3) #(4 5))");
+		try {
+			scheme.read("2147483648");
+			Assert.fail("Expected an error");
+		} catch (KSchemeException e) {
+		}
+		// Data is read without SyntaxObjs
+		SPair datum = (SPair) scheme.readDatum(SchemeValue.makeStringInputPort("(a (b . 1) #(c))"));
+		Assert.assertSame(makeSymbol("a"), datum.car());
+		Assert.assertTrue(((SPair) datum.cdr()).car() instanceof SPair);
+		Assert.assertEquals("(a (b . 1) #(c))", datum.toString());
+		// Positions are right across the boundaries of the buffer
+		StringBuilder program = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			program.append("(define x 1) ; comment\n");
+		program.append("  (car 5)");
+		DebugInfo.setEnabled(true);
+		try {
+			scheme.parseAndRun(program.toString());
+			Assert.fail("Expected an error");
+		} catch (ErrorWithCont e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("line: 1001  col: 3"));
+		} finally {
+			DebugInfo.setEnabled(false);
+		}
+		// A long list doesn't overflow the stack
+		StringBuilder list = new StringBuilder("(length '(");
+		for (int i = 0; i < 200000; i++)
+			list.append("x ");
+		testEval(200000, list.append("))").toString());
+	}
 	@Test public void testEqTrueTrue() throws Exception {
 		testEval(true, "(eq? (eqv? 4 4) (eqv? 4 4))");
 		// This test fails because when a method returning a boolean is called,
@@ -0,0 +1,58 @@
+package ca.kscheme.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.kscheme.compiler.CompilingInterpreter;
+import ca.kscheme.compiler.TieredCompiler;
+import ca.kscheme.interp.Lambda;
+import ca.kscheme.interp.SLambdaProcedure;
+import ca.kscheme.interp.Tiering;
+
+/**
+ * Runs all the tests in {@link TestScheme} against the {@link CompilingInterpreter},
+ * with very low tiering thresholds so that procedures switch to compiled code while
+ * the tests run.
+ */
+public class TestTieredScheme extends TestScheme {
+	
+	private TieredCompiler tiering;
+
+	@Override
+	@Before public void setup() throws Exception {
+		CompilingInterpreter interp = (CompilingInterpreter) CompilingInterpreter.getDefault();
+		tiering = (TieredCompiler) interp.getTiering();
+		tiering.setInvocationThreshold(3);
+		tiering.setBackEdgeThreshold(3);
+		scheme = interp;
+	}
+	
+	@Test public void testHotLoopIsCompiled() throws Exception {
+		scheme.parseAndRun("(define (count-down n) (if (= n 0) 'done (count-down (- n 1))))");
+		Assert.assertEquals("done", scheme.parseAndRun("(count-down 10)").toString());
+		tiering.awaitQuiescence(10, TimeUnit.SECONDS);
+		Assert.assertTrue(tiering.toString(), tiering.getCompiledCount()>0);
+		Assert.assertEquals("done", scheme.parseAndRun("(count-down 10000)").toString());
+	}
+
+	@Test public void testCountingStops() throws Exception {
+		scheme.parseAndRun("(define (inc x) (+ x 1))");
+		for (int i = 0; i < 10; i++)
+			scheme.parseAndRun("(inc 1)");
+		Lambda lambda = ((SLambdaProcedure) scheme.parseAndRun("inc")).getLambda();
+		Assert.assertTrue(lambda.isHot());
+		Assert.assertEquals(3, lambda.getInvocationCount());
+
+		tiering.setInvocationThreshold(Tiering.NEVER);
+		scheme.parseAndRun("(define (dec x) (- x 1))");
+		for (int i = 0; i < 10; i++)
+			scheme.parseAndRun("(dec 1)");
+		lambda = ((SLambdaProcedure) scheme.parseAndRun("dec")).getLambda();
+		Assert.assertFalse(lambda.isHot());
+		Assert.assertEquals(0, lambda.getInvocationCount());
+	}
+
+}